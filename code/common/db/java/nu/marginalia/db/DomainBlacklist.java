@@ -10,4 +10,9 @@ public interface DomainBlacklist {
         return new TIntHashSet();
     }
     void waitUntilLoaded() throws InterruptedException;
+
+    /** Returns the currently loaded set of blacklisted domain ids.  The set is replaced rather than
+     * modified when the blacklist is reloaded, and must not be modified by the caller.
+     */
+    TIntHashSet getLoadedSpamDomains();
 }
@@ -114,6 +114,11 @@ public class DomainBlacklistImpl implements DomainBlacklist {
         return result;
     }
 
+    @Override
+    public TIntHashSet getLoadedSpamDomains() {
+        return spamDomainSet;
+    }
+
     @Override
     public boolean isBlacklisted(int domainId) {
 
@@ -3,5 +3,6 @@ package nu.marginalia.linkdb;
 public class LinkdbFileNames {
     public static String DEPRECATED_LINKDB_FILE_NAME = "links.db";
     public static String DOCDB_FILE_NAME = "documents.db";
+    public static String DOCDB_MMAP_FILE_NAME = "documents.db.mmap";
     public static String DOMAIN_LINKS_FILE_NAME = "domain-links.dat";
 }
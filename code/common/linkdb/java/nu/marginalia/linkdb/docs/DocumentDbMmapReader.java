@@ -0,0 +1,181 @@
+package nu.marginalia.linkdb.docs;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongList;
+import nu.marginalia.linkdb.model.DocdbUrlDetail;
+import nu.marginalia.model.EdgeUrl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/** Memory mapped, read-optimized companion file of the document database,
+ * written by {@link DocumentDbMmapWriter} alongside the SQLite database.
+ * <p></p>
+ * Lookups are a binary search in a sorted column of document ids, followed by
+ * decoding a record at the corresponding offset.  There is no locking and no JDBC
+ * involved, so concurrent lookups don't contend with each other.
+ * <p></p>
+ * Layout, all values big-endian:
+ * <pre>
+ * records[]      variable size, see below
+ * padding        to 8 bytes
+ * long[n]        sorted document ids
+ * long[n]        record offsets
+ * long           offset of the id column
+ * long           n
+ * long           MAGIC
+ * </pre>
+ * Each record is
+ * <pre>
+ * long dataHash, double quality, int features, int pubYear, int wordsTotal,
+ * string url, string title, string description, string language, string format
+ * </pre>
+ * where a string is an int length followed by as many bytes of UTF-8, or a length of -1 for null.
+ */
+public class DocumentDbMmapReader implements AutoCloseable {
+    static final long MAGIC = 0x444F_4344_424D_4D01L;
+    static final int RECORD_FIXED_SIZE = 8 + 8 + 4 + 4 + 4;
+    private static final int TRAILER_SIZE = 24;
+
+    private static final ValueLayout.OfLong LONG = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+    private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+    private static final ValueLayout.OfDouble DOUBLE = ValueLayout.JAVA_DOUBLE_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+
+    private static final Logger logger = LoggerFactory.getLogger(DocumentDbMmapReader.class);
+
+    private final Arena arena;
+    private final MemorySegment segment;
+
+    private final long idsStart;
+    private final long offsetsStart;
+    private final long n;
+
+    public DocumentDbMmapReader(Path file) throws IOException {
+        arena = Arena.ofShared();
+
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+        }
+        catch (IOException ex) {
+            arena.close();
+            throw ex;
+        }
+
+        long size = segment.byteSize();
+        if (size < TRAILER_SIZE || segment.get(LONG, size - 8) != MAGIC) {
+            arena.close();
+            throw new IOException("Invalid docdb mmap file " + file);
+        }
+
+        idsStart = segment.get(LONG, size - 24);
+        n = segment.get(LONG, size - 16);
+        offsetsStart = idsStart + 8 * n;
+
+        if (idsStart < 0 || n < 0 || offsetsStart + 8 * n + TRAILER_SIZE != size) {
+            arena.close();
+            throw new IOException("Truncated docdb mmap file " + file);
+        }
+    }
+
+    /** The location of the mmap file that accompanies the given SQLite database file */
+    public static Path companionFile(Path dbFile) {
+        return dbFile.resolveSibling(dbFile.getFileName() + ".mmap");
+    }
+
+    public long size() {
+        return n;
+    }
+
+    /** Returns the URL details for the given document ids, ids that are not present are omitted */
+    public Long2ObjectMap<DocdbUrlDetail> getUrlDetails(LongList ids) {
+        Long2ObjectMap<DocdbUrlDetail> ret = new Long2ObjectOpenHashMap<>(ids.size());
+
+        for (int i = 0; i < ids.size(); i++) {
+            long id = ids.getLong(i);
+
+            long idx = indexOf(id);
+            if (idx < 0)
+                continue;
+
+            var details = readRecord(id, segment.get(LONG, offsetsStart + 8 * idx));
+            if (details != null) {
+                ret.put(id, details);
+            }
+        }
+
+        return ret;
+    }
+
+    private long indexOf(long id) {
+        long low = 0;
+        long high = n - 1;
+
+        while (low <= high) {
+            long mid = (low + high) >>> 1;
+            long midVal = segment.get(LONG, idsStart + 8 * mid);
+
+            if (midVal < id) low = mid + 1;
+            else if (midVal > id) high = mid - 1;
+            else return mid;
+        }
+
+        return -1;
+    }
+
+    private DocdbUrlDetail readRecord(long id, long offset) {
+        long dataHash = segment.get(LONG, offset);
+        double quality = segment.get(DOUBLE, offset + 8);
+        int features = segment.get(INT, offset + 16);
+        int pubYear = segment.get(INT, offset + 20);
+        int wordsTotal = segment.get(INT, offset + 24);
+
+        long pos = offset + RECORD_FIXED_SIZE;
+
+        String url = readString(pos);
+        pos += stringSize(pos);
+        String title = readString(pos);
+        pos += stringSize(pos);
+        String description = readString(pos);
+        pos += stringSize(pos);
+        String language = readString(pos);
+        pos += stringSize(pos);
+        String format = readString(pos);
+
+        var urlMaybe = EdgeUrl.parse(url);
+        if (urlMaybe.isEmpty()) {
+            logger.warn("Failed to parse URL {}", url);
+            return null;
+        }
+
+        return new DocdbUrlDetail(id, urlMaybe.get(), title, description, language,
+                quality, format, features, pubYear, dataHash, wordsTotal);
+    }
+
+    private String readString(long pos) {
+        int length = segment.get(INT, pos);
+        if (length < 0)
+            return null;
+
+        byte[] bytes = new byte[length];
+        MemorySegment.copy(segment, ValueLayout.JAVA_BYTE, pos + 4, bytes, 0, length);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private long stringSize(long pos) {
+        return 4 + Math.max(0, segment.get(INT, pos));
+    }
+
+    public void close() {
+        arena.close();
+    }
+}
@@ -0,0 +1,118 @@
+package nu.marginalia.linkdb.docs;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import nu.marginalia.linkdb.model.DocdbUrlDetail;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/** Writes the memory mapped companion file of the document database,
+ * see {@link DocumentDbMmapReader} for the layout.
+ * <p></p>
+ * Records are appended in the order they are added, and the sorted id
+ * and offset columns are written when the writer is closed.  The ids and
+ * offsets are kept on heap until then, at 16 bytes per document.
+ * <p></p>
+ * Like the SQLite database, the first record added for an id wins.
+ */
+class DocumentDbMmapWriter implements AutoCloseable {
+    private final Path destFile;
+    private final Path tempFile;
+    private final DataOutputStream output;
+
+    private final LongArrayList ids = new LongArrayList();
+    private final LongArrayList offsets = new LongArrayList();
+
+    private long position = 0;
+
+    DocumentDbMmapWriter(Path destFile) throws IOException {
+        this.destFile = destFile;
+        this.tempFile = destFile.resolveSibling(destFile.getFileName() + ".tmp");
+
+        output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile), 65536));
+    }
+
+    public void add(DocdbUrlDetail document) throws IOException {
+        ids.add(document.urlId());
+        offsets.add(position);
+
+        output.writeLong(document.dataHash());
+        output.writeDouble(document.urlQuality());
+        output.writeInt(document.features());
+        output.writeInt(document.pubYear() == null ? 0 : document.pubYear());
+        output.writeInt(document.wordsTotal());
+        position += DocumentDbMmapReader.RECORD_FIXED_SIZE;
+
+        writeString(document.url().toString());
+        writeString(document.title());
+        writeString(document.description());
+        writeString(document.language());
+        writeString(document.format());
+    }
+
+    private void writeString(String s) throws IOException {
+        if (s == null) {
+            output.writeInt(-1);
+            position += 4;
+            return;
+        }
+
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+        position += 4 + bytes.length;
+    }
+
+    /** Write the id and offset columns, and move the finished file into place */
+    public void close() throws IOException {
+        long[] sortedIds = ids.toLongArray();
+        long[] sortedOffsets = offsets.toLongArray();
+
+        // Sort on (id, offset), so that the first record added for each id comes first
+        LongArrays.parallelQuickSort(sortedIds, sortedOffsets);
+
+        // Align the columns to 8 bytes
+        while ((position & 7) != 0) {
+            output.writeByte(0);
+            position++;
+        }
+
+        final long columnsStart = position;
+
+        int n = 0;
+        for (int i = 0; i < sortedIds.length; i++) {
+            if (i > 0 && sortedIds[i] == sortedIds[i - 1])
+                continue;
+            sortedIds[n] = sortedIds[i];
+            sortedOffsets[n] = sortedOffsets[i];
+            n++;
+        }
+
+        for (int i = 0; i < n; i++) {
+            output.writeLong(sortedIds[i]);
+        }
+        for (int i = 0; i < n; i++) {
+            output.writeLong(sortedOffsets[i]);
+        }
+
+        output.writeLong(columnsStart);
+        output.writeLong(n);
+        output.writeLong(DocumentDbMmapReader.MAGIC);
+
+        output.close();
+
+        Files.move(tempFile, destFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Close the writer without producing an output file */
+    public void abort() throws IOException {
+        output.close();
+        Files.deleteIfExists(tempFile);
+    }
+}
@@ -24,21 +24,31 @@ import java.util.stream.Collectors;
  * containing the URLs and metadata of the documents in the
  * index.
  * <p></p>
+ * When the memory mapped companion file is present, lookups are
+ * served from it instead of from SQLite, see {@link DocumentDbMmapReader}.
+ * This can be disabled with -Ddocdb.disableMmap=true
+ * <p></p>
  * The database is created by the DocumentDbWriter class.
  * */
 @Singleton
 public class DocumentDbReader {
+    private static final boolean useMmap = !Boolean.getBoolean("docdb.disableMmap");
+
     private final Path dbFile;
+    private final Path mmapFile;
     private volatile Connection connection;
+    private volatile DocumentDbMmapReader mmapReader;
 
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
     @Inject
     public DocumentDbReader(@Named("docdb-file") Path dbFile) throws SQLException {
         this.dbFile = dbFile;
+        this.mmapFile = DocumentDbMmapReader.companionFile(dbFile);
 
         if (Files.exists(dbFile)) {
             connection = createConnection();
+            mmapReader = createMmapReader();
         }
         else {
             logger.warn("No docdb file {}", dbFile);
@@ -56,6 +66,28 @@ public class DocumentDbReader {
         }
     }
 
+    private DocumentDbMmapReader createMmapReader() {
+        if (!useMmap || !Files.exists(mmapFile))
+            return null;
+
+        try {
+            return new DocumentDbMmapReader(mmapFile);
+        }
+        catch (IOException ex) {
+            logger.error("Failed to open docdb mmap file " + mmapFile + ", falling back to SQLite", ex);
+            return null;
+        }
+    }
+
+    private void closeMmapReader() {
+        var reader = mmapReader;
+        mmapReader = null;
+
+        if (reader != null) {
+            reader.close();
+        }
+    }
+
     /** Switches the input database file to a new file.
      * <p></p>
      * This is used to switch over to a new database file
@@ -70,12 +102,23 @@ public class DocumentDbReader {
         if (connection != null) {
             connection.close();
         }
+        closeMmapReader();
 
         logger.info("Moving {} to {}", newDbFile, dbFile);
 
         Files.move(newDbFile, dbFile, StandardCopyOption.REPLACE_EXISTING);
 
+        // The mmap file must always accompany the database it was written with
+        Path newMmapFile = DocumentDbMmapReader.companionFile(newDbFile);
+        if (Files.isRegularFile(newMmapFile)) {
+            Files.move(newMmapFile, mmapFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+        else {
+            Files.deleteIfExists(mmapFile);
+        }
+
         connection = createConnection();
+        mmapReader = createMmapReader();
     }
 
     /** Re-establishes the connection, useful in tests and not
@@ -83,8 +126,24 @@ public class DocumentDbReader {
     public void reconnect() throws SQLException {
         if (connection != null)
             connection.close();
+        closeMmapReader();
 
         connection = createConnection();
+        mmapReader = createMmapReader();
+    }
+
+    /** Closes the database.  This is only needed for readers that are
+     * created outside of the injector, such as the delta index's reader. */
+    public void close() {
+        try {
+            if (connection != null)
+                connection.close();
+        }
+        catch (SQLException ex) {
+            logger.error("Failed to close docdb " + dbFile, ex);
+        }
+
+        closeMmapReader();
     }
 
     /** Returns the URL details for the given document ids.
@@ -96,6 +155,11 @@ public class DocumentDbReader {
         if (ids.isEmpty())
             return Long2ObjectMaps.emptyMap();
 
+        var reader = mmapReader;
+        if (reader != null) {
+            return reader.getUrlDetails(ids);
+        }
+
         if (connection == null || connection.isClosed()) {
             logger.error("URL query temporarily unavailable due to database switch");
             // This shouldn't be possible unless something has gone wrong with the mutex handling
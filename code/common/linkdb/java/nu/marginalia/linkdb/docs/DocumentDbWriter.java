@@ -1,8 +1,11 @@
 package nu.marginalia.linkdb.docs;
 
 import nu.marginalia.linkdb.model.DocdbUrlDetail;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.DriverManager;
@@ -12,12 +15,31 @@ import java.util.List;
 /** Writes the document database, which is a SQLite database
  * containing the URLs and metadata of the documents in the
  * index.
+ * <p></p>
+ * A read-optimized memory mapped copy of the same data is written
+ * next to the database, see {@link DocumentDbMmapReader}.  The SQLite
+ * database remains the authoritative copy, so if the mmap file can't be
+ * written, the reader falls back to the database.
  * */
 public class DocumentDbWriter {
 
     private final Connection connection;
+    private DocumentDbMmapWriter mmapWriter;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
 
     public DocumentDbWriter(Path outputFile) throws SQLException {
+        Path mmapFile = DocumentDbMmapReader.companionFile(outputFile);
+        try {
+            // Remove any stale mmap file, so that it can't be paired with a new database
+            Files.deleteIfExists(mmapFile);
+            mmapWriter = new DocumentDbMmapWriter(mmapFile);
+        }
+        catch (IOException ex) {
+            logger.error("Failed to create docdb mmap file " + mmapFile, ex);
+            mmapWriter = null;
+        }
+
         String connStr = "jdbc:sqlite:" + outputFile.toString();
         connection = DriverManager.getConnection(connStr);
 
@@ -76,9 +98,41 @@ public class DocumentDbWriter {
 
             if (i != 0) stmt.executeBatch();
         }
+
+        if (mmapWriter != null) {
+            try {
+                for (var document : docdbUrlDetail) {
+                    mmapWriter.add(document);
+                }
+            }
+            catch (IOException ex) {
+                logger.error("Failed to write docdb mmap file, falling back to SQLite only", ex);
+                abortMmapWriter();
+            }
+        }
+    }
+
+    private void abortMmapWriter() {
+        try {
+            mmapWriter.abort();
+        }
+        catch (IOException ex) {
+            logger.error("Failed to clean up docdb mmap file", ex);
+        }
+        mmapWriter = null;
     }
 
     public void close() throws SQLException {
         connection.close();
+
+        if (mmapWriter != null) {
+            try {
+                mmapWriter.close();
+            }
+            catch (IOException ex) {
+                logger.error("Failed to finalize docdb mmap file, falling back to SQLite only", ex);
+                abortMmapWriter();
+            }
+        }
     }
 }
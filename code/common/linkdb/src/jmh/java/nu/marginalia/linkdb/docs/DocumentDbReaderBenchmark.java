@@ -0,0 +1,107 @@
+package nu.marginalia.linkdb.docs;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import nu.marginalia.linkdb.model.DocdbUrlDetail;
+import nu.marginalia.model.EdgeDomain;
+import nu.marginalia.model.EdgeUrl;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** This benchmark simulates the decoration of a page of search results,
+ * comparing the memory mapped docdb with the SQLite database */
+public class DocumentDbReaderBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class DocdbState {
+        static final int numDocuments = 250_000;
+        static final int batchSize = 100;
+
+        Path dir;
+        DocumentDbReader mmapReader;
+        DocumentDbReader sqliteReader;
+
+        LongArrayList[] batches = new LongArrayList[64];
+        int batchIdx = 0;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            dir = Files.createTempDirectory("docdb-benchmark");
+
+            Path mmapDbFile = dir.resolve("mmap.db");
+            Path sqliteDbFile = dir.resolve("sqlite.db");
+
+            var writer = new DocumentDbWriter(mmapDbFile);
+            List<DocdbUrlDetail> documents = new ArrayList<>(1000);
+            for (int id = 0; id < numDocuments; id++) {
+                documents.add(new DocdbUrlDetail(id,
+                        new EdgeUrl("https", new EdgeDomain("www.example" + (id % 1000) + ".com"), null, "/some/path/to/document-" + id + ".html", null),
+                        "A reasonably long title for document number " + id,
+                        "A description that is typically a sentence or two long, taken from the document's summary. ".repeat(2),
+                        "en",
+                        -3.5,
+                        "HTML5",
+                        id & 0xFF,
+                        2020,
+                        id * 0x9E3779B97F4A7C15L,
+                        1500));
+
+                if (documents.size() == 1000) {
+                    writer.add(documents);
+                    documents.clear();
+                }
+            }
+            writer.add(documents);
+            writer.close();
+
+            // Same database, but without the mmap file, so the reader uses SQLite
+            Files.copy(mmapDbFile, sqliteDbFile);
+
+            mmapReader = new DocumentDbReader(mmapDbFile);
+            sqliteReader = new DocumentDbReader(sqliteDbFile);
+
+            Random r = new Random(42);
+            for (int i = 0; i < batches.length; i++) {
+                batches[i] = new LongArrayList(batchSize);
+                for (int j = 0; j < batchSize; j++) {
+                    batches[i].add(r.nextInt(numDocuments));
+                }
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            for (var file : List.of("mmap.db", "mmap.db.mmap", "sqlite.db")) {
+                Files.deleteIfExists(dir.resolve(file));
+            }
+            Files.deleteIfExists(dir);
+        }
+
+        LongArrayList nextBatch() {
+            return batches[batchIdx++ & (batches.length - 1)];
+        }
+    }
+
+    @Fork(value = 1, warmups = 1)
+    @Warmup(iterations = 3)
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int mmapDecoration(DocdbState state) throws Exception {
+        return state.mmapReader.getUrlDetails(state.nextBatch()).size();
+    }
+
+    @Fork(value = 1, warmups = 1)
+    @Warmup(iterations = 3)
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int sqliteDecoration(DocdbState state) throws Exception {
+        return state.sqliteReader.getUrlDetails(state.nextBatch()).size();
+    }
+}
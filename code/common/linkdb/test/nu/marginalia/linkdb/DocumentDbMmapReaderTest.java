@@ -0,0 +1,107 @@
+package nu.marginalia.linkdb;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import nu.marginalia.linkdb.docs.DocumentDbMmapReader;
+import nu.marginalia.linkdb.docs.DocumentDbReader;
+import nu.marginalia.linkdb.docs.DocumentDbWriter;
+import nu.marginalia.linkdb.model.DocdbUrlDetail;
+import nu.marginalia.model.EdgeDomain;
+import nu.marginalia.model.EdgeUrl;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DocumentDbMmapReaderTest {
+    Path dbFile;
+    Path mmapFile;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        dbFile = Files.createTempFile("docdb", ".db");
+        mmapFile = DocumentDbMmapReader.companionFile(dbFile);
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(dbFile);
+        Files.deleteIfExists(mmapFile);
+    }
+
+    private DocdbUrlDetail document(long id, String title, String description) {
+        return new DocdbUrlDetail(
+                id,
+                new EdgeUrl("https", new EdgeDomain("www.example.com"), null, "/doc/" + id, null),
+                title,
+                description,
+                "en",
+                -id / 10.,
+                "HTML5",
+                (int) id,
+                id % 2 == 0 ? null : 2000 + (int) (id % 25),
+                0xF00BA3L * id,
+                (int) (100 + id)
+        );
+    }
+
+    @Test
+    public void testSameAsSqlite() throws SQLException, IOException {
+        List<DocdbUrlDetail> documents = new ArrayList<>();
+        for (long id = 1000; id > 0; id -= 3) {
+            documents.add(document(id, "Title " + id + " Ænglisc", "Description " + id));
+        }
+
+        var writer = new DocumentDbWriter(dbFile);
+        writer.add(documents.subList(0, 100));
+        writer.add(documents.subList(100, documents.size()));
+        writer.close();
+
+        assertTrue(Files.exists(mmapFile));
+
+        LongArrayList ids = new LongArrayList();
+        for (long id = 0; id < 1005; id++) {
+            ids.add(id);
+        }
+
+        var mmapResult = new DocumentDbReader(dbFile).getUrlDetails(ids);
+
+        // Remove the mmap file to force the SQLite path
+        Files.delete(mmapFile);
+        var sqliteResult = new DocumentDbReader(dbFile).getUrlDetails(ids);
+
+        assertEquals(documents.size(), sqliteResult.size());
+        assertEquals(sqliteResult, mmapResult);
+    }
+
+    @Test
+    public void testFirstRecordWins() throws SQLException, IOException {
+        var writer = new DocumentDbWriter(dbFile);
+        writer.add(document(5, "First", "First"));
+        writer.add(document(3, "Other", "Other"));
+        writer.add(document(5, "Second", "Second"));
+        writer.close();
+
+        try (var reader = new DocumentDbMmapReader(mmapFile)) {
+            assertEquals(2, reader.size());
+
+            var result = reader.getUrlDetails(new LongArrayList(new long[] { 3, 4, 5 }));
+            assertEquals(2, result.size());
+            assertEquals("First", result.get(5).title());
+            assertEquals("Other", result.get(3).title());
+        }
+    }
+
+    @Test
+    public void testInvalidFile() throws IOException {
+        Files.writeString(mmapFile, "This is not a docdb mmap file");
+        assertThrows(IOException.class, () -> new DocumentDbMmapReader(mmapFile));
+    }
+}
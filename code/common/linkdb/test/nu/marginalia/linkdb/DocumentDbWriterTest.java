@@ -1,6 +1,7 @@
 package nu.marginalia.linkdb;
 
 import it.unimi.dsi.fastutil.longs.LongArrayList;
+import nu.marginalia.linkdb.docs.DocumentDbMmapReader;
 import nu.marginalia.linkdb.docs.DocumentDbReader;
 import nu.marginalia.linkdb.docs.DocumentDbWriter;
 import nu.marginalia.linkdb.model.DocdbUrlDetail;
@@ -40,6 +41,7 @@ public class DocumentDbWriterTest {
             throw new RuntimeException(e);
         } finally {
             Files.deleteIfExists(tempPath);
+            Files.deleteIfExists(DocumentDbMmapReader.companionFile(tempPath));
         }
     }
 }
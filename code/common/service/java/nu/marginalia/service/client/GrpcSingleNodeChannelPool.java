@@ -113,6 +113,8 @@ public class GrpcSingleNodeChannelPool<STUB> extends ServiceChangeMonitor {
         private volatile long lastUsed = System.nanoTime();
         private volatile boolean closed = false;
 
+        private final LatencyTracker latency = new LatencyTracker();
+
         ConnectionHolder(InstanceAddress address) {
             this.address = address;
         }
@@ -214,6 +216,22 @@ public class GrpcSingleNodeChannelPool<STUB> extends ServiceChangeMonitor {
             return channel.get() != null && !closed;
         }
 
+        /** Record the response time of a successful request to this instance */
+        public void recordLatency(Duration duration) {
+            latency.record(duration);
+        }
+
+        public LatencyTracker getLatency() {
+            return latency;
+        }
+
+        /** The average latency rounded to a power of two number of microseconds, so that
+         * instances with similar latencies compare as equal and are used round-robin */
+        private int latencyBucket() {
+            long micros = latency.average().toNanos() / 1000;
+            return 64 - Long.numberOfLeadingZeros(micros);
+        }
+
         @Override
         public int compareTo(@NotNull GrpcSingleNodeChannelPool<STUB>.ConnectionHolder o) {
 
@@ -223,6 +241,11 @@ public class GrpcSingleNodeChannelPool<STUB> extends ServiceChangeMonitor {
             diff = Boolean.compare(hasConnection(), o.hasConnection());
             if (diff != 0) return -diff; // prefer true
 
+            // Prefer the faster instance.  Instances with no recent latency samples are in the
+            // lowest bucket, so they are tried again, and their latency re-established
+            diff = Integer.compare(latencyBucket(), o.latencyBucket());
+            if (diff != 0) return diff; // prefer lower
+
 
             // If no error has been recorded (or both have recent errors), round-robin between the options
             return Long.compare(lastUsed, o.lastUsed);
@@ -270,6 +293,20 @@ public class GrpcSingleNodeChannelPool<STUB> extends ServiceChangeMonitor {
         return Optional.empty();
     }
 
+    /** Return the healthy instances, best first.  Used for hedged requests, where a
+     * duplicate request is sent to the second instance if the first is slow to respond. */
+    public List<ConnectionHolder> getHealthyConnectionHolders() {
+        List<ConnectionHolder> ret = new ArrayList<>();
+
+        for (var h : getConnectionHolders()) {
+            if (h.hasErrorSince(Duration.ofSeconds(5)))
+                continue;
+            ret.add(h);
+        }
+
+        return ret;
+    }
+
     public <T, I> T call(Function<ManagedChannel, STUB> stubConstructor,
                           BiFunction<STUB, I, T> call,
                           I arg) throws RuntimeException {
@@ -284,8 +321,11 @@ public class GrpcSingleNodeChannelPool<STUB> extends ServiceChangeMonitor {
                 if (null == channel)
                     continue;
 
+                long start = System.nanoTime();
+
                 var ret = call.apply(stubConstructor.apply(channel), arg);
 
+                holder.recordLatency(Duration.ofNanos(System.nanoTime() - start));
                 requestCounter.labelValues(serviceKeyStr).inc();
 
                 return ret;
@@ -0,0 +1,72 @@
+package nu.marginalia.service.client;
+
+import java.time.Duration;
+import java.util.Arrays;
+
+/** Response time statistics for a service instance.  Keeps an exponentially weighted
+ * moving average of the latency, and a window of the most recent samples for percentiles.
+ * <p></p>
+ * The statistics are forgotten when no sample has been recorded for a while, as an instance
+ * that was slow during e.g. a garbage collection pause or an index switchover should not
+ * be shunned forever after.
+ */
+public class LatencyTracker {
+    private static final int WINDOW_SIZE = 128;
+    private static final double ALPHA = 0.2;
+    private static final long MEMORY_NANOS = Duration.ofSeconds(30).toNanos();
+
+    private final long[] window = new long[WINDOW_SIZE];
+    private int windowPos = 0;
+    private int windowFill = 0;
+
+    private double ewmaNanos = 0;
+    private long lastSampleTime = 0;
+
+    public synchronized void record(Duration latency) {
+        long nanos = latency.toNanos();
+
+        if (isStale()) {
+            windowPos = 0;
+            windowFill = 0;
+            ewmaNanos = nanos;
+        }
+        else {
+            ewmaNanos += ALPHA * (nanos - ewmaNanos);
+        }
+
+        window[windowPos] = nanos;
+        windowPos = (windowPos + 1) % WINDOW_SIZE;
+        windowFill = Math.min(WINDOW_SIZE, windowFill + 1);
+
+        lastSampleTime = System.nanoTime();
+    }
+
+    /** The number of samples the percentiles are based on */
+    public synchronized int sampleCount() {
+        return isStale() ? 0 : windowFill;
+    }
+
+    /** The moving average of the latency, or zero if there are no recent samples */
+    public synchronized Duration average() {
+        if (isStale())
+            return Duration.ZERO;
+
+        return Duration.ofNanos((long) ewmaNanos);
+    }
+
+    /** The latency percentile (0-100) over the recent samples, or zero if there are none */
+    public synchronized Duration percentile(double percentile) {
+        if (isStale() || windowFill == 0)
+            return Duration.ZERO;
+
+        long[] sorted = Arrays.copyOf(window, windowFill);
+        Arrays.sort(sorted);
+
+        int idx = (int) Math.ceil(percentile / 100. * sorted.length) - 1;
+        return Duration.ofNanos(sorted[Math.clamp(idx, 0, sorted.length - 1)]);
+    }
+
+    private boolean isStale() {
+        return windowFill == 0 || System.nanoTime() - lastSampleTime > MEMORY_NANOS;
+    }
+}
@@ -0,0 +1,64 @@
+package nu.marginalia.service.client;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LatencyTrackerTest {
+
+    @Test
+    public void testEmpty() {
+        var tracker = new LatencyTracker();
+
+        assertEquals(0, tracker.sampleCount());
+        assertEquals(Duration.ZERO, tracker.average());
+        assertEquals(Duration.ZERO, tracker.percentile(95));
+    }
+
+    @Test
+    public void testPercentile() {
+        var tracker = new LatencyTracker();
+
+        for (int i = 1; i <= 100; i++) {
+            tracker.record(Duration.ofMillis(i));
+        }
+
+        assertEquals(100, tracker.sampleCount());
+        assertEquals(Duration.ofMillis(95), tracker.percentile(95));
+        assertEquals(Duration.ofMillis(50), tracker.percentile(50));
+        assertEquals(Duration.ofMillis(100), tracker.percentile(100));
+    }
+
+    @Test
+    public void testWindow() {
+        var tracker = new LatencyTracker();
+
+        for (int i = 0; i < 1000; i++) {
+            tracker.record(Duration.ofMillis(500));
+        }
+        for (int i = 0; i < 1000; i++) {
+            tracker.record(Duration.ofMillis(5));
+        }
+
+        // Only the recent samples count
+        assertEquals(Duration.ofMillis(5), tracker.percentile(99));
+    }
+
+    @Test
+    public void testAverageFollowsLatency() {
+        var tracker = new LatencyTracker();
+
+        tracker.record(Duration.ofMillis(10));
+        assertEquals(Duration.ofMillis(10), tracker.average());
+
+        for (int i = 0; i < 50; i++) {
+            tracker.record(Duration.ofMillis(100));
+        }
+
+        long averageMs = tracker.average().toMillis();
+        assertTrue(averageMs > 95 && averageMs <= 100, "Average was " + averageMs);
+    }
+}
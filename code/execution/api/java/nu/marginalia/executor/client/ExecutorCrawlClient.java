@@ -70,6 +70,16 @@ public class ExecutorCrawlClient {
                         .build());
     }
 
+    /** Load processed data on top of the data already loaded, and construct a delta index
+     * for it rather than reconstructing the index */
+    public void loadProcessedDataIncrementally(int node, List<FileStorageId> ids) {
+        channelPool.call(ExecutorCrawlApiBlockingStub::loadProcessedDataIncrementally)
+                .forNode(node)
+                .run(RpcFileStorageIds.newBuilder()
+                        .addAllFileStorageIds(ids.stream().map(FileStorageId::id).toList())
+                        .build());
+    }
+
     public void createCrawlSpecFromDownload(int node, String description, String url) {
         channelPool.call(ExecutorCrawlApiBlockingStub::createCrawlSpecFromDownload)
                 .forNode(node)
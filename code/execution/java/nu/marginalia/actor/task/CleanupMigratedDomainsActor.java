@@ -23,6 +23,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.sql.SQLException;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -36,6 +37,10 @@ import java.util.stream.Stream;
 public class CleanupMigratedDomainsActor extends RecordActorPrototype {
 
     private static final String SLOP_SUFFIX = ".slop.zip";
+    private static final String FINGERPRINT_SUFFIX = ".slop.zip.fp";
+
+    /** How long to wait for another process, such as the crawler, to stop writing to the domain state db */
+    private static final Duration STATE_DB_LOCK_TIMEOUT = Duration.ofMinutes(1);
 
     private final FileStorageService storageService;
     private final HikariDataSource dataSource;
@@ -79,9 +84,20 @@ public class CleanupMigratedDomainsActor extends RecordActorPrototype {
 
                 Set<String> domainsAssignedHere = loadDomainsAssignedHere(entryByDomain.keySet());
 
-                int deleted = deleteForeignFiles(base, domainByFilename, domainsAssignedHere);
-                pruneDomainState(base, entryByDomain.keySet(), domainsAssignedHere);
-                rewriteCrawlerLog(base, logPath, entryByDomain, domainsAssignedHere);
+                // Take the domain state db before anything is deleted, so that the cleanup
+                // fails up front rather than halfway if a crawl is running on this node
+                Path stateDbPath = base.resolve("domainstate.db");
+                int deleted;
+                try (DomainStateDb stateDb = Files.exists(stateDbPath)
+                        ? DomainStateDb.openForWriting(stateDbPath, STATE_DB_LOCK_TIMEOUT)
+                        : null)
+                {
+                    deleted = deleteForeignFiles(base, domainByFilename, domainsAssignedHere);
+                    if (stateDb != null) {
+                        pruneDomainState(stateDb, entryByDomain.keySet(), domainsAssignedHere);
+                    }
+                    rewriteCrawlerLog(base, logPath, entryByDomain, domainsAssignedHere);
+                }
 
                 eventLog.logEvent(getClass().getSimpleName(),
                         "Cleanup complete, deleted " + deleted + " foreign crawl data files");
@@ -92,7 +108,8 @@ public class CleanupMigratedDomainsActor extends RecordActorPrototype {
     }
 
     /** Delete every *.slop.zip whose domain is not assigned to this node, including orphan files
-     * not referenced by the crawler.log.  Returns the number of files deleted.
+     * not referenced by the crawler.log, along with their *.slop.zip.fp fingerprint indexes.
+     * Returns the number of files deleted.
      */
     private int deleteForeignFiles(Path base,
                                    Map<String, String> domainByFilename,
@@ -101,14 +118,20 @@ public class CleanupMigratedDomainsActor extends RecordActorPrototype {
         List<Path> slopFiles = new ArrayList<>();
         try (Stream<Path> paths = Files.walk(base)) {
             paths.filter(Files::isRegularFile)
-                    .filter(p -> p.getFileName().toString().endsWith(SLOP_SUFFIX))
+                    .filter(p -> p.getFileName().toString().endsWith(SLOP_SUFFIX)
+                              || p.getFileName().toString().endsWith(FINGERPRINT_SUFFIX))
                     .forEach(slopFiles::add);
         }
 
         int deleted = 0;
         try (var hb = heartbeat.createServiceAdHocTaskHeartbeat("Cleaning crawl data")) {
             for (var file : hb.wrap("cleanup", slopFiles)) {
-                String domain = domainByFilename.get(file.getFileName().toString());
+                String slopFileName = file.getFileName().toString();
+                if (slopFileName.endsWith(FINGERPRINT_SUFFIX)) {
+                    slopFileName = slopFileName.substring(0, slopFileName.length() - FINGERPRINT_SUFFIX.length() + SLOP_SUFFIX.length());
+                }
+
+                String domain = domainByFilename.get(slopFileName);
                 boolean assignedHere = domain != null && domainsAssignedHere.contains(domain.toLowerCase());
                 if (!assignedHere) {
                     Files.delete(file);
@@ -143,17 +166,10 @@ public class CleanupMigratedDomainsActor extends RecordActorPrototype {
         Files.move(newLogWorkPath, logPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
     }
 
-    private void pruneDomainState(Path base, Iterable<String> domains, Set<String> domainsAssignedHere) throws SQLException {
-        Path stateDbPath = base.resolve("domainstate.db");
-        if (!Files.exists(stateDbPath)) {
-            return;
-        }
-
-        try (DomainStateDb stateDb = new DomainStateDb(stateDbPath)) {
-            for (String domain : domains) {
-                if (!domainsAssignedHere.contains(domain.toLowerCase())) {
-                    stateDb.deleteDomain(domain);
-                }
+    private void pruneDomainState(DomainStateDb stateDb, Iterable<String> domains, Set<String> domainsAssignedHere) {
+        for (String domain : domains) {
+            if (!domainsAssignedHere.contains(domain.toLowerCase())) {
+                stateDb.deleteDomain(domain);
             }
         }
     }
@@ -66,6 +66,12 @@ public class ConvertAndLoadActor extends RecordActorPrototype {
         public Load(List<FileStorageId> processedId) { this(processedId, -1); }
     }
 
+    /** Load processed data on top of what is already loaded, and construct a delta index for it */
+    @Resume(behavior = ActorResumeBehavior.RETRY)
+    public record LoadDelta(List<FileStorageId> processedId, long msgId) implements ActorStep {
+        public LoadDelta(List<FileStorageId> processedId) { this(processedId, -1); }
+    }
+
     @Resume(behavior = ActorResumeBehavior.RETRY)
     public record Backup(List<FileStorageId> processedIds) implements ActorStep { }
     @Resume(behavior = ActorResumeBehavior.RETRY)
@@ -78,6 +84,9 @@ public class ConvertAndLoadActor extends RecordActorPrototype {
     public record ReindexPrio(long id) implements ActorStep {  public ReindexPrio() { this(-1); } }
     public record SwitchIndex() implements ActorStep {}
     @Resume(behavior = ActorResumeBehavior.RETRY)
+    public record ReindexDelta(long id) implements ActorStep {  public ReindexDelta() { this(-1); } }
+    public record SwitchDelta() implements ActorStep {}
+    @Resume(behavior = ActorResumeBehavior.RETRY)
     public record Repartition(String when) implements ActorStep {}
 
     @Override
@@ -156,6 +165,36 @@ public class ConvertAndLoadActor extends RecordActorPrototype {
 
                 yield new Backup(processedIds);
             }
+            case LoadDelta(List<FileStorageId> processedIds, long msgId) when msgId < 0 -> {
+                // Unlike a regular load, the construction area is not cleared, as the delta
+                // index is constructed from the journal pages appended after the existing ones
+                long id = mqLoaderOutbox.sendAsync(new LoadRequest(processedIds, true));
+
+                yield new LoadDelta(processedIds, id);
+            }
+            case LoadDelta(List<FileStorageId> processedIds, long msgId) -> {
+                var rsp = processWatcher.waitResponse(mqLoaderOutbox, ProcessSpawnerService.ProcessId.LOADER, msgId);
+
+                if (rsp.state() != MqMessageState.OK) {
+                    yield new Error("Loader failed");
+                }
+
+                yield new ReindexDelta();
+            }
+            case ReindexDelta(long id) when id < 0 -> new ReindexDelta(createIndex(IndexName.DELTA));
+            case ReindexDelta(long id) -> {
+                var rsp = processWatcher.waitResponse(mqIndexConstructorOutbox, ProcessSpawnerService.ProcessId.INDEX_CONSTRUCTOR, id);
+
+                if (rsp.state() != MqMessageState.OK)
+                    yield new Error("Delta index construction failed");
+                else
+                    yield new SwitchDelta();
+            }
+            case SwitchDelta() -> {
+                indexOutbox.sendNotice(IndexMqEndpoints.SWITCH_DELTA_INDEX, "here we");
+
+                yield new End();
+            }
             case Backup(List<FileStorageId> processedIds) -> {
                 backupService.createBackupFromStaging(processedIds);
                 yield new Rerank();
@@ -32,6 +32,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.sql.SQLException;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -53,6 +54,9 @@ public class MigrateDomainsActor extends RecordActorPrototype {
 
     private static final Logger logger = LoggerFactory.getLogger(MigrateDomainsActor.class);
 
+    /** How long to wait for another process, such as the crawler, to stop writing to the domain state db */
+    private static final Duration STATE_DB_LOCK_TIMEOUT = Duration.ofMinutes(1);
+
     @Resume(behavior = ActorResumeBehavior.ERROR)
     public record Initial() implements ActorStep {}
 
@@ -81,7 +85,7 @@ public class MigrateDomainsActor extends RecordActorPrototype {
 
                 try (HttpClient httpClient = HttpClient.newHttpClient();
                      WorkLog workLog = new WorkLog(localBase.resolve("crawler.log"));
-                     DomainStateDb localStateDb = new DomainStateDb(localBase.resolve("domainstate.db"));
+                     DomainStateDb localStateDb = DomainStateDb.openForWriting(localBase.resolve("domainstate.db"), STATE_DB_LOCK_TIMEOUT);
                      var hb = heartbeat.createServiceAdHocTaskHeartbeat("Migrating domains")) {
 
                     for (var bySource : domainsBySource.entrySet()) {
@@ -120,4 +120,22 @@ public class ExecutorCrawlGrpcService
         }
     }
 
+    @Override
+    public void loadProcessedDataIncrementally(RpcFileStorageIds request, StreamObserver<Empty> responseObserver) {
+        try {
+            actorControlService.startFrom(ExecutorActor.CONVERT_AND_LOAD,
+                    new ConvertAndLoadActor.LoadDelta(request.getFileStorageIdsList()
+                            .stream()
+                            .map(FileStorageId::of)
+                            .collect(Collectors.toList()))
+            );
+
+            responseObserver.onNext(Empty.getDefaultInstance());
+            responseObserver.onCompleted();
+        }
+        catch (Exception e) {
+            responseObserver.onError(Status.INTERNAL.withCause(e).asRuntimeException());
+        }
+    }
+
 }
@@ -38,6 +38,11 @@ public class SentenceExtractor {
     private final LanguageConfiguration languageConfiguration;
     private SentenceDetectorME sentenceDetector;
 
+    /* Scratch state that is reused between documents, which is what makes the extractor
+     * unsafe to share between threads; see the class comment */
+    private final Map<LanguageDefinition, SentenceSegmentSplitter> segmentSplitters = new IdentityHashMap<>();
+    private final StringBuilder documentText = new StringBuilder();
+
     private static final Logger logger = LoggerFactory.getLogger(SentenceExtractor.class);
     private static final SentencePreCleaner sentencePrecleaner = new SentencePreCleaner();
 
@@ -50,6 +55,8 @@ public class SentenceExtractor {
     static final int MAX_SENTENCE_LENGTH = 250;
     static final int MAX_SENTENCE_COUNT = 500;
 
+    private static final int MAX_RETAINED_TEXT_BUFFER = 1024 * 1024;
+
     @Inject
     public SentenceExtractor(LanguageConfiguration languageConfiguration, LanguageModels models)
     {
@@ -88,8 +95,7 @@ public class SentenceExtractor {
         final List<DocumentSentence> textSentences = new ArrayList<>();
         final List<HtmlTaggedString> taggedStrings = HtmlStringTagger.tagDocumentStrings(doc);
 
-        final int totalTextLength = taggedStrings.stream().mapToInt(HtmlTaggedString::length).sum();
-        final StringBuilder documentText = new StringBuilder(totalTextLength + taggedStrings.size());
+        documentText.setLength(0);
 
         for (var taggedString : taggedStrings) {
             String text = taggedString.string();
@@ -106,7 +112,19 @@ public class SentenceExtractor {
             }
         }
 
-        return new DocumentLanguageData(language, textSentences, documentText.toString());
+        String text = documentText.toString();
+
+        // Don't hold on to the buffer of an unusually large document
+        if (documentText.capacity() > MAX_RETAINED_TEXT_BUFFER) {
+            documentText.setLength(0);
+            documentText.trimToSize();
+        }
+
+        return new DocumentLanguageData(language, textSentences, text);
+    }
+
+    private SentenceSegmentSplitter segmentSplitter(LanguageDefinition language) {
+        return segmentSplitters.computeIfAbsent(language, SentenceSegmentSplitter::new);
     }
 
     public DocumentLanguageData extractSentences(String text, String title) {
@@ -142,7 +160,7 @@ public class SentenceExtractor {
                                             EnumSet<HtmlTag> htmlTags) {
         final Stemmer stemmer = language.stemmer();
 
-        var wordsAndSeps = new SentenceSegmentSplitter(language).splitSegment(text, MAX_SENTENCE_LENGTH);
+        var wordsAndSeps = segmentSplitter(language).splitSegment(text, MAX_SENTENCE_LENGTH);
 
         String[] words = wordsAndSeps.words();
         BitSet seps = wordsAndSeps.separators();
@@ -231,7 +249,7 @@ public class SentenceExtractor {
 
         List<DocumentSentence> ret = new ArrayList<>(sentences.length);
 
-        SentenceSegmentSplitter sentenceSegmentSplitter = new SentenceSegmentSplitter(language);
+        SentenceSegmentSplitter sentenceSegmentSplitter = segmentSplitter(language);
 
         if (isNaturalLanguage) {
             // Natural language text;  do POS tagging and stemming
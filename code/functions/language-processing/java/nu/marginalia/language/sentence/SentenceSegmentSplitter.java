@@ -10,14 +10,23 @@ import java.util.BitSet;
 import java.util.List;
 import java.util.regex.Matcher;
 
+/** Splits sentences into words.  The splitter keeps scratch buffers between calls,
+ * and is not thread safe; each {@link SentenceExtractor} keeps its own splitters.
+ */
 public class SentenceSegmentSplitter {
 
     private final UnicodeNormalization unicodeNormalization;
 
+    private final Matcher matcher;
+    private final List<String> words = new ArrayList<>();
+    private final TIntArrayList separators = new TIntArrayList();
+    private final List<String> ret = new ArrayList<>();
+
     public record SeparatedSentence(String[] words, BitSet separators) { }
 
     SentenceSegmentSplitter(LanguageDefinition languageDefinition) {
         this.unicodeNormalization = languageDefinition.unicodeNormalization();
+        this.matcher = unicodeNormalization.wordBreakPattern().matcher("");
     }
 
     /** Split a sentence into words and separators.
@@ -28,10 +37,10 @@ public class SentenceSegmentSplitter {
     public SeparatedSentence splitSegment(String segment, int maxLength) {
         String flatSegment = unicodeNormalization.flattenUnicode(segment);
 
-        Matcher matcher = unicodeNormalization.wordBreakPattern().matcher(flatSegment);
-
-        List<String> words = new ArrayList<>(flatSegment.length()/6);
-        TIntArrayList separators = new TIntArrayList(flatSegment.length()/6);
+        matcher.reset(flatSegment);
+        words.clear();
+        separators.resetQuick();
+        ret.clear();
 
         int wordStart = 0;
         while (wordStart <= flatSegment.length()) {
@@ -43,11 +52,10 @@ public class SentenceSegmentSplitter {
 
             if (wordStart != matcher.start()) {
                 String word = flatSegment.substring(wordStart, matcher.start());
-                String space = flatSegment.substring(matcher.start(), matcher.end());
 
                 words.add(word);
 
-                if (space.isBlank()) {
+                if (isBlank(flatSegment, matcher.start(), matcher.end())) {
                     separators.add(WordSeparator.SPACE);
                 }
                 else {
@@ -58,18 +66,16 @@ public class SentenceSegmentSplitter {
             wordStart = matcher.end();
         }
 
-        List<String> ret = new ArrayList<>(words.size());
-
-        String[] parts = words.toArray(String[]::new);
-
         BitSet seps = new BitSet(separators.size());
 
-        for (int i = 0; i < parts.length; i++) {
-            if (WordPatterns.isDiscardedByTokenizer(parts[i]))
+        for (int i = 0; i < words.size(); i++) {
+            String part = words.get(i);
+
+            if (WordPatterns.isDiscardedByTokenizer(part))
                 continue;
 
             seps.set(ret.size(), separators.get(i) != 0);
-            ret.add(parts[i]);
+            ret.add(part);
         }
 
         for (int i = 0; i < ret.size(); i++) {
@@ -106,6 +112,14 @@ public class SentenceSegmentSplitter {
     }
 
 
+    private static boolean isBlank(String s, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (!Character.isWhitespace(s.charAt(i)))
+                return false;
+        }
+        return true;
+    }
+
     public static final class WordSeparator {
         public static final int COMMA = 0;
         public static final int SPACE = 1;
@@ -19,6 +19,8 @@ import java.util.Objects;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class SentenceExtractorTest {
     private static SentenceExtractor sentenceExtractor;
@@ -123,4 +125,24 @@ class SentenceExtractorTest {
 
         assertArrayEquals(new String[] { "duke", "nuke", "em", "big", "ol", "big", "gun"}, dld.wordsLowerCase);
     }
-}
\ No newline at end of file
+
+    @Test
+    void testScratchStateIsNotShared() throws UnsupportedLanguageException {
+        var lang = Objects.requireNonNull(languageConfig.getLanguage("en"));
+
+        // The extractor reuses its buffers between calls, so the results of an earlier
+        // call must not change or leak into the next one
+        var first = sentenceExtractor.extractSentence(lang, "the quick brown fox jumps over the lazy dog", EnumSet.noneOf(HtmlTag.class));
+        var second = sentenceExtractor.extractSentence(lang, "hello world", EnumSet.noneOf(HtmlTag.class));
+
+        assertArrayEquals(new String[] { "the", "quick", "brown", "fox", "jumps", "over", "the", "lazy", "dog" }, first.wordsLowerCase);
+        assertArrayEquals(new String[] { "hello", "world" }, second.wordsLowerCase);
+
+        var firstDoc = sentenceExtractor.extractSentences(Jsoup.parse("<p>The quick brown fox jumps over the lazy dog, and then the fox runs away into the forest where it lives with the other foxes.</p>"));
+        var secondDoc = sentenceExtractor.extractSentences(Jsoup.parse("<p>This is a second document that is written in the English language, and it says nothing about any animals.</p>"));
+
+        assertTrue(firstDoc.text().contains("foxes"));
+        assertTrue(secondDoc.text().contains("second document"));
+        assertFalse(secondDoc.text().contains("foxes"));
+    }
+}
@@ -5,6 +5,8 @@ import com.google.inject.Singleton;
 import com.google.inject.name.Named;
 import com.zaxxer.hikari.HikariDataSource;
 import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import it.unimi.dsi.fastutil.ints.IntSets;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -73,6 +75,18 @@ public class NsfwDomainFilter {
         return false;
     }
 
+    /** Returns the domains listed in the given tier, not including the domains of lower tiers.
+     * The set is replaced rather than modified when the lists are synced, and must not be modified
+     * by the caller.
+     */
+    public IntSet getBlockedDomains(int tier) {
+        return switch (tier) {
+            case NSFW_BLOCK_DANGER -> blockedDomainIdsTier1;
+            case NSFW_BLOCK_SMUT -> blockedDomainIdsTier2;
+            default -> IntSets.emptySet();
+        };
+    }
+
     private synchronized void sync() {
         try (var conn = dataSource.getConnection();
              var stmt = conn.prepareStatement("SELECT ID, TIER FROM NSFW_DOMAINS")
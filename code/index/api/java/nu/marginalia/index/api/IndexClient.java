@@ -22,6 +22,7 @@ import nu.marginalia.nsfw.domain.NsfwDomainFilter;
 import nu.marginalia.service.NodeConfigurationWatcherIf;
 import nu.marginalia.service.client.GrpcChannelPoolFactoryIf;
 import nu.marginalia.service.client.GrpcSingleNodeChannelPool;
+import nu.marginalia.service.client.LatencyTracker;
 import nu.marginalia.service.discovery.property.ServiceKey;
 import nu.marginalia.service.discovery.property.ServicePartition;
 import org.slf4j.Logger;
@@ -52,6 +53,15 @@ public class IndexClient {
     private static final int maxConcurrentQueries = Integer.getInteger("index.query.maxConcurrentQueries", 256);
     private final Semaphore queryThrottle = new Semaphore(maxConcurrentQueries);
 
+    // Send queries to a second replica of a partition when the first is slow to respond
+    private static final boolean hedgeRequests = Boolean.getBoolean("index.query.hedgeRequests");
+    private static final double hedgePercentile = Double.parseDouble(System.getProperty("index.query.hedgePercentile", "95"));
+    private static final double hedgeMaxBudgetFraction = Double.parseDouble(System.getProperty("index.query.hedgeMaxBudgetFraction", "0.5"));
+    private static final int hedgeMinSamples = 20;
+
+    /** The time to the first response of the query to each replica, which hedging is based on */
+    private final Map<GrpcSingleNodeChannelPool.ConnectionHolder, LatencyTracker> firstResponseLatency = new ConcurrentHashMap<>();
+
     private static final Counter wmsa_index_query_count = Counter.builder()
             .name("wmsa_nsfw_filter_result_count")
             .labelNames("tier")
@@ -94,9 +104,6 @@ public class IndexClient {
         this.nsfwDomainFilter = nsfwDomainFilter;
     }
 
-    private static final Comparator<RpcDecoratedResultItem> comparator =
-            Comparator.comparing(RpcDecoratedResultItem::getRankingScore);
-
     public record AggreagateUnrankedQueryResponse(List<RpcDecoratedResultItem> results,
                                                   UnrankedCursor cursor) {
 
@@ -274,6 +281,33 @@ public class IndexClient {
         return queryThrottle.availablePermits() > 0;
     }
 
+    /** The time to wait for a partition replica to respond before hedging the query by sending
+     * it to another replica as well, or null if the query should not be hedged.
+     * <p></p>
+     * The delay is a high percentile of the recent time to the first response of the replica,
+     * so that only a small fraction of queries are sent twice, but no more than a fraction of the
+     * time budget of the query, so that the second replica has time to respond.
+     */
+    @Nullable
+    private Duration hedgeDelay(GrpcSingleNodeChannelPool.ConnectionHolder holder, long timeoutMs) {
+        if (!hedgeRequests || timeoutMs <= 0)
+            return null;
+
+        Duration maxDelay = Duration.ofMillis((long) (hedgeMaxBudgetFraction * timeoutMs));
+
+        var latency = firstResponseLatency.get(holder);
+        if (latency == null || latency.sampleCount() < hedgeMinSamples)
+            return maxDelay;
+
+        Duration delay = latency.percentile(hedgePercentile);
+        return delay.compareTo(maxDelay) < 0 ? delay : maxDelay;
+    }
+
+    private void recordFirstResponseLatency(GrpcSingleNodeChannelPool.ConnectionHolder holder, Duration latency) {
+        holder.recordLatency(latency);
+        firstResponseLatency.computeIfAbsent(holder, _ -> new LatencyTracker()).record(latency);
+    }
+
     private static long clampToRequestDeadline(long budgetMs, long reservedMs) {
         Deadline deadline = Context.current().getDeadline();
         if (deadline == null) {
@@ -328,44 +362,54 @@ public class IndexClient {
         }
 
         Instant bailInstant = Instant.now().plusMillis(fanOutBudgetMs);
+        Deadline deadline = Deadline.after(Math.min((long) (1.5 * timeoutMs), fanOutBudgetMs), TimeUnit.MILLISECONDS);
 
-        List<RpcDecoratedResultItem> results = new ArrayList<>();
-        List<Map.Entry<GrpcSingleNodeChannelPool.ConnectionHolder, ListenableFuture<RpcIndexQueryResponse>>> futures
-                = new ArrayList<>(channelPools.size());
+        // Only the results up until the end of the requested page are of interest, so the partitions
+        // can be told to stop sending results once we have that many that are better
+        int sublistStart = Math.max(0, (pagination.page - 1) * pagination.pageSize);
+        int sublistEnd = sublistStart + pagination.pageSize;
+
+        var merger = new IndexResultStreamMerger(sublistEnd, item -> isExcluded(item, filterTier));
 
         for (var pool: channelPools) {
-            var holder = pool.getBestConnectionHolder();
-            var channel = holder.map(GrpcSingleNodeChannelPool.ConnectionHolder::get);
+            List<IndexResultStreamMerger.Replica> replicas = new ArrayList<>(2);
+            Duration hedgeDelay = null;
 
-            if (channel.isEmpty())
-                continue;
+            for (var holder : pool.getHealthyConnectionHolders()) {
+                var channel = holder.get();
+                if (channel == null)
+                    continue;
 
-            var fut = IndexApiGrpc.newFutureStub(channel.get())
-                            .withExecutor(executor)
-                            .withDeadlineAfter(Duration.ofMillis(Math.min((long) (1.5 * timeoutMs), fanOutBudgetMs)))
-                        .query(indexRequest);
+                if (replicas.isEmpty()) {
+                    hedgeDelay = hedgeDelay(holder, timeoutMs);
+                }
 
-            futures.add(Map.entry(holder.get(), fut));
-        }
+                replicas.add(new IndexResultStreamMerger.Replica(channel,
+                        (ex) -> handleError(holder, ex),
+                        latency -> recordFirstResponseLatency(holder, latency)));
 
-        for (var holderAndFuture: futures) {
-            var holder = holderAndFuture.getKey();
-            var future = holderAndFuture.getValue();
-            handleResults(holder, bailInstant, future,
-                    (res) -> results.addAll(res.getResultsList()));
-        }
+                // A second replica is kept to fail over to if the first is unavailable, and to hedge with
+                if (replicas.size() >= 2)
+                    break;
+            }
 
-        results.removeIf(item -> isExcluded(item, filterTier));
-        results.sort(comparator);
+            merger.query(replicas, hedgeDelay, executor, deadline, indexRequest);
+        }
 
-        int totalNumResults = results.size();
+        try {
+            merger.await(bailInstant);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw Status.CANCELLED.withDescription("Interrupted awaiting index results").asRuntimeException();
+        }
 
-        int sublistStart = Math.max(0, (pagination.page - 1) * pagination.pageSize);
-        int sublistEnd = Math.min(results.size(), sublistStart + pagination.pageSize);
+        List<RpcDecoratedResultItem> results = merger.results();
+        int totalNumResults = merger.totalResults();
 
         List<RpcDecoratedResultItem> ret;
 
-        if (sublistStart < sublistEnd) ret = results.subList(sublistStart, sublistEnd);
+        if (sublistStart < results.size()) ret = results.subList(sublistStart, Math.min(results.size(), sublistEnd));
         else ret = List.of();
 
         return new AggregateQueryResponse(ret, pagination.page(), totalNumResults);
@@ -398,27 +442,7 @@ public class IndexClient {
             }
         }
         catch (ExecutionException ex) {
-            if (ex.getCause() instanceof StatusRuntimeException sre) {
-                switch (sre.getStatus().getCode()) {
-                    case DEADLINE_EXCEEDED -> logger.warn("Timeout: {}", sre.getMessage());
-                    case UNAVAILABLE -> {
-                        logger.warn("Unavailable: {}", sre.getMessage());
-                        holder.flagError();
-                    }
-                    case INTERNAL -> logger.warn("Internal Error in index: {}", sre);
-                    case RESOURCE_EXHAUSTED -> {
-                        logger.warn("Index partition overloaded: {}", sre.getMessage());
-                        wmsa_index_query_node_overloaded.inc();
-                        holder.flagError();
-                    }
-                    case CANCELLED -> wmsa_index_query_cancelled.inc();
-                    default -> logger.error("Error while fetching results", ex.getCause());
-                }
-            }
-            else {
-                holder.flagError();
-                logger.error("Error while fetching results", ex.getCause());
-            }
+            handleError(holder, ex.getCause());
         }
         catch (TimeoutException e) {
             future.cancel(true);
@@ -434,12 +458,41 @@ public class IndexClient {
 
 
 
+    /** Log the failure of a query on an index partition, and flag the connection
+     * if the partition appears to be unavailable or overloaded */
+    private void handleError(GrpcSingleNodeChannelPool.ConnectionHolder holder, Throwable cause) {
+        if (cause instanceof StatusRuntimeException sre) {
+            switch (sre.getStatus().getCode()) {
+                case DEADLINE_EXCEEDED -> logger.warn("Timeout: {}", sre.getMessage());
+                case UNAVAILABLE -> {
+                    logger.warn("Unavailable: {}", sre.getMessage());
+                    holder.flagError();
+                }
+                case INTERNAL -> logger.warn("Internal Error in index: {}", sre);
+                case RESOURCE_EXHAUSTED -> {
+                    logger.warn("Index partition overloaded: {}", sre.getMessage());
+                    wmsa_index_query_node_overloaded.inc();
+                    holder.flagError();
+                }
+                case CANCELLED -> wmsa_index_query_cancelled.inc();
+                default -> logger.error("Error while fetching results", cause);
+            }
+        }
+        else {
+            holder.flagError();
+            logger.error("Error while fetching results", cause);
+        }
+    }
+
     static String[] tierNames = {
             "OFF",
             "DANGER",
             "NSFW"
     };
 
+    /** The index partitions exclude blacklisted and NSFW domains while querying, the domain checks here
+     * catch results from partitions that predate this, or that were cached before the lists changed.
+     */
     private boolean isExcluded(RpcDecoratedResultItem item, int filterTier) {
         int domainId = UrlIdCodec.getDomainId(item.getRawItem().getCombinedId());
 
@@ -4,4 +4,5 @@ public class IndexMqEndpoints {
     public static final String INDEX_IS_BLOCKED = "INDEX-IS-BLOCKED";
     public static final String INDEX_RELOAD_SEARCH_SETS = "INDEX-RELOAD-SEARCH-SETS";
     public static final String SWITCH_INDEX = "SWITCH-INDEX";
+    public static final String SWITCH_DELTA_INDEX = "SWITCH-DELTA-INDEX";
 }
@@ -0,0 +1,513 @@
+package nu.marginalia.index.api;
+
+import io.grpc.Deadline;
+import io.grpc.ManagedChannel;
+import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.prometheus.metrics.core.metrics.Counter;
+import nu.marginalia.api.searchquery.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/** Bounded k-way merge of the streamed results of a query to several index partitions.
+ * <p></p>
+ * The merger holds the k best results seen so far in a heap, worst result on top.  Once
+ * the heap is full, the score of its worst result is the worst score any result can have
+ * and still make it into the final top k, and it is sent to all partitions that are still
+ * running the query, so that they can drop worse results early, and skip sending them.
+ * <p></p>
+ * Partitions that do not implement the streaming query are queried with the unary query instead.
+ * <p></p>
+ * A partition may have several replicas.  If the replica the query is sent to is unavailable,
+ * the query fails over to the next replica.  The query can also be hedged: if the first replica
+ * is slow to respond, the query is sent to a second replica as well, and the first of the two to
+ * respond is used.  A query sent to another replica after the first is given what remains of the
+ * time budget of the query, rather than all of it.
+ */
+public class IndexResultStreamMerger {
+    private static final Logger logger = LoggerFactory.getLogger(IndexResultStreamMerger.class);
+
+    private static final Counter wmsa_index_query_hedged = Counter.builder()
+            .name("wmsa_index_query_hedged")
+            .help("Index queries sent to a second replica of a partition that was slow to respond")
+            .register();
+    private static final Counter wmsa_index_query_hedge_wins = Counter.builder()
+            .name("wmsa_index_query_hedge_wins")
+            .help("Hedged index queries where the second replica responded first")
+            .register();
+
+    private static final ScheduledExecutorService hedgeScheduler =
+            Executors.newSingleThreadScheduledExecutor(
+                    Thread.ofPlatform()
+                            .name("index-query-hedge")
+                            .daemon()
+                            .factory()
+            );
+
+    private static final Comparator<RpcDecoratedResultItem> comparator =
+            Comparator.comparingDouble(RpcDecoratedResultItem::getRankingScore)
+                    .thenComparingLong(item -> item.getRawItem().getCombinedId());
+
+    private final int k;
+    private final Predicate<RpcDecoratedResultItem> isExcluded;
+
+    /** The best k results, worst on top */
+    private final PriorityQueue<RpcDecoratedResultItem> best;
+    private final List<PartitionCall> calls = new ArrayList<>();
+
+    private int outstanding = 0;
+    private int resultsAccepted = 0;
+    private int resultsWithheld = 0;
+    private double sentThreshold = Double.POSITIVE_INFINITY;
+
+    /**
+     * @param k the number of results wanted
+     * @param isExcluded predicate for results that should be discarded by the client
+     */
+    public IndexResultStreamMerger(int k, Predicate<RpcDecoratedResultItem> isExcluded) {
+        this.k = Math.max(1, k);
+        this.isExcluded = isExcluded;
+        this.best = new PriorityQueue<>(this.k + 1, comparator.reversed());
+    }
+
+    /** A replica of an index partition, along with callbacks for the outcome of queries sent to it.
+     *
+     * @param onError called with the cause if the query fails, except when it is cancelled by the merger
+     * @param onLatency called with the time to the first response of the replica, which is what decides
+     *                  whether a hedged query is sent
+     */
+    public record Replica(ManagedChannel channel,
+                          Consumer<Throwable> onError,
+                          Consumer<Duration> onLatency)
+    {
+        public Replica(ManagedChannel channel, Consumer<Throwable> onError) {
+            this(channel, onError, _ -> {});
+        }
+    }
+
+    /** Start executing the query on a partition
+     *
+     * @param onError called with the cause if the query fails, except when it is cancelled by {@link #await}
+     */
+    public void query(ManagedChannel channel,
+                      Executor executor,
+                      Deadline deadline,
+                      RpcIndexQuery query,
+                      Consumer<Throwable> onError)
+    {
+        query(List.of(new Replica(channel, onError)), null, executor, deadline, query);
+    }
+
+    /** Start executing the query on a partition with one or more replicas, best first.
+     * <p></p>
+     * The query is sent to the first replica, and to the next one if it is unavailable.  If a hedge
+     * delay is given, and the replica has not responded within it, the query is also sent to the
+     * second replica.  The results of the first replica to respond are used, and the query to the
+     * other replica is cancelled.
+     */
+    public synchronized void query(List<Replica> replicas,
+                                   @Nullable Duration hedgeDelay,
+                                   Executor executor,
+                                   Deadline deadline,
+                                   RpcIndexQuery query)
+    {
+        if (replicas.isEmpty())
+            return;
+
+        var call = new PartitionCall(replicas, hedgeDelay, executor, deadline, query);
+        calls.add(call);
+        outstanding++;
+
+        call.start();
+    }
+
+    /** Wait for all partitions to finish, or until the bail instant, after which
+     * any partitions still running are cancelled.
+     *
+     * @return true if all partitions finished
+     */
+    public synchronized boolean await(Instant bailInstant) throws InterruptedException {
+        long remainingMs;
+
+        while (outstanding > 0 && (remainingMs = Duration.between(Instant.now(), bailInstant).toMillis()) > 0) {
+            wait(remainingMs);
+        }
+
+        if (outstanding == 0)
+            return true;
+
+        for (var call : calls) {
+            call.cancel();
+        }
+        logger.error("Index request timeout");
+
+        return false;
+    }
+
+    /** The best results, best first.  At most k. */
+    public synchronized List<RpcDecoratedResultItem> results() {
+        List<RpcDecoratedResultItem> ret = new ArrayList<>(best);
+        ret.sort(comparator);
+        return ret;
+    }
+
+    /** The number of results found by the partitions, including the ones that were
+     * withheld for being worse than the threshold, but not the ones that were excluded */
+    public synchronized int totalResults() {
+        return resultsAccepted + resultsWithheld;
+    }
+
+    private synchronized void accept(RpcIndexQueryResponse response) {
+        for (var item : response.getResultsList()) {
+            if (isExcluded.test(item))
+                continue;
+
+            resultsAccepted++;
+
+            if (best.size() < k) {
+                best.add(item);
+            }
+            else if (comparator.compare(item, best.peek()) < 0) {
+                best.poll();
+                best.add(item);
+            }
+        }
+
+        resultsWithheld += response.getResultsWithheld();
+
+        if (best.size() < k)
+            return;
+
+        double threshold = best.peek().getRankingScore();
+        if (threshold >= sentThreshold)
+            return;
+
+        sentThreshold = threshold;
+
+        var message = RpcIndexQueryStreamRequest.newBuilder()
+                .setThreshold(RpcIndexScoreThreshold.newBuilder().setRankingScore(threshold))
+                .build();
+
+        for (var call : calls) {
+            call.sendThreshold(message);
+        }
+    }
+
+    private synchronized void finished() {
+        outstanding--;
+        notifyAll();
+    }
+
+    /** The query to a single partition, possibly sent to several of its replicas.
+     * All mutable state is guarded by the merger's lock. */
+    private class PartitionCall {
+        private final List<Replica> replicas;
+        @Nullable
+        private final Duration hedgeDelay;
+        private final Executor executor;
+        private final Deadline deadline;
+        private final RpcIndexQuery query;
+
+        private final List<Attempt> attempts = new ArrayList<>(2);
+        private long callStartTime;
+
+        /** The first attempt to respond, whose results are used */
+        @Nullable
+        private Attempt winner;
+
+        private boolean done = false;
+        private boolean cancelled = false;
+
+        PartitionCall(List<Replica> replicas, @Nullable Duration hedgeDelay, Executor executor, Deadline deadline, RpcIndexQuery query) {
+            this.replicas = replicas;
+            this.hedgeDelay = hedgeDelay;
+            this.executor = executor;
+            this.deadline = deadline;
+            this.query = query;
+        }
+
+        void start() {
+            callStartTime = System.nanoTime();
+            startAttempt(replicas.getFirst(), query);
+
+            if (hedgeDelay != null && replicas.size() > 1) {
+                hedgeScheduler.schedule(this::hedge, hedgeDelay.toNanos(), TimeUnit.NANOSECONDS);
+            }
+        }
+
+        /** Send the query to the next replica, if no replica has responded yet */
+        private void hedge() {
+            synchronized (IndexResultStreamMerger.this) {
+                if (done || cancelled || winner != null || attempts.size() >= replicas.size())
+                    return;
+
+                RpcIndexQuery remainingQuery = withRemainingBudget();
+                if (remainingQuery == null)
+                    return;
+
+                wmsa_index_query_hedged.inc();
+                startAttempt(replicas.get(attempts.size()), remainingQuery);
+            }
+        }
+
+        private void startAttempt(Replica replica, RpcIndexQuery attemptQuery) {
+            var attempt = new Attempt(replica, attemptQuery);
+            attempts.add(attempt);
+            attempt.start();
+        }
+
+        /** The query with its timeout reduced by the time since it was first sent, so that the
+         * replica it is sent to next doesn't spend more time on it than the client will wait for,
+         * or null if the time is up */
+        @Nullable
+        private RpcIndexQuery withRemainingBudget() {
+            if (!query.hasQueryLimits() || query.getQueryLimits().getTimeoutMs() <= 0)
+                return query;
+
+            long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - callStartTime);
+            long remainingMs = query.getQueryLimits().getTimeoutMs() - elapsedMs;
+            if (remainingMs <= 0)
+                return null;
+
+            return query.toBuilder()
+                    .setQueryLimits(query.getQueryLimits().toBuilder().setTimeoutMs((int) remainingMs))
+                    .build();
+        }
+
+        private void onResponse(Attempt attempt, RpcIndexQueryResponse response) {
+            synchronized (IndexResultStreamMerger.this) {
+                if (done || cancelled || !claimWin(attempt))
+                    return;
+
+                accept(response);
+            }
+        }
+
+        private void onDone(Attempt attempt) {
+            synchronized (IndexResultStreamMerger.this) {
+                attempt.ended = true;
+
+                if (done || cancelled || !claimWin(attempt))
+                    return;
+
+                done = true;
+                finished();
+            }
+        }
+
+        private void onFailure(Attempt attempt, Throwable t) {
+            synchronized (IndexResultStreamMerger.this) {
+                attempt.ended = true;
+
+                if (attempt.cancelled)
+                    return;
+
+                // If another replica is still working on the query, wait for it instead
+                boolean otherAttemptLive = false;
+                for (var other : attempts) {
+                    otherAttemptLive |= !other.ended;
+                }
+
+                RpcIndexQuery remainingQuery;
+                if (!done && !cancelled && winner == null && !otherAttemptLive
+                        && attempts.size() < replicas.size()
+                        && Status.fromThrowable(t).getCode() == Status.Code.UNAVAILABLE
+                        && (remainingQuery = withRemainingBudget()) != null)
+                {
+                    // Fail over to the next replica
+                    startAttempt(replicas.get(attempts.size()), remainingQuery);
+                }
+                else if (!done && (winner == attempt || !otherAttemptLive)) {
+                    done = true;
+                    finished();
+                }
+            }
+
+            attempt.replica.onError().accept(t);
+        }
+
+        /** Make the attempt the winner if there is none, cancelling the other attempts.
+         * @return true if the attempt is the winner */
+        private boolean claimWin(Attempt attempt) {
+            if (winner == null) {
+                winner = attempt;
+
+                attempt.replica.onLatency().accept(Duration.ofNanos(System.nanoTime() - attempt.startTime));
+
+                if (attempts.getFirst() != attempt) {
+                    wmsa_index_query_hedge_wins.inc();
+                }
+
+                for (var other : attempts) {
+                    if (other == attempt || other.ended)
+                        continue;
+
+                    other.cancel("Another replica responded first");
+
+                    // The replica was started first, and has been outpaced; what time it has taken
+                    // so far is a lower bound on its latency
+                    if (other.startTime < attempt.startTime) {
+                        other.replica.onLatency().accept(Duration.ofNanos(System.nanoTime() - other.startTime));
+                    }
+                }
+            }
+
+            return winner == attempt;
+        }
+
+        void sendThreshold(RpcIndexQueryStreamRequest message) {
+            if (done || cancelled)
+                return;
+
+            for (var attempt : attempts) {
+                attempt.sendThreshold(message);
+            }
+        }
+
+        void cancel() {
+            if (done || cancelled)
+                return;
+
+            cancelled = true;
+
+            for (var attempt : attempts) {
+                attempt.cancel("Index request timeout");
+            }
+        }
+
+        /** The query to one replica of the partition */
+        private class Attempt {
+            private final Replica replica;
+            private final RpcIndexQuery query;
+            private final long startTime = System.nanoTime();
+
+            @Nullable
+            private ClientCallStreamObserver<RpcIndexQueryStreamRequest> requests;
+            @Nullable
+            private ClientCallStreamObserver<RpcIndexQuery> unaryRequest;
+
+            private boolean receivedAny = false;
+            private boolean ended = false;
+            private boolean cancelled = false;
+
+            Attempt(Replica replica, RpcIndexQuery query) {
+                this.replica = replica;
+                this.query = query;
+            }
+
+            void start() {
+                var requestObserver = IndexApiGrpc.newStub(replica.channel())
+                        .withExecutor(executor)
+                        .withDeadline(deadline)
+                        .queryStream(new ClientResponseObserver<RpcIndexQueryStreamRequest, RpcIndexQueryResponse>() {
+                            @Override
+                            public void beforeStart(ClientCallStreamObserver<RpcIndexQueryStreamRequest> requestStream) {
+                                requests = requestStream;
+                            }
+
+                            @Override
+                            public void onNext(RpcIndexQueryResponse response) {
+                                receivedAny = true;
+                                onResponse(Attempt.this, response);
+                            }
+
+                            @Override
+                            public void onError(Throwable t) {
+                                if (!receivedAny && Status.fromThrowable(t).getCode() == Status.Code.UNIMPLEMENTED) {
+                                    startUnary();
+                                }
+                                else {
+                                    onFailure(Attempt.this, t);
+                                }
+                            }
+
+                            @Override
+                            public void onCompleted() {
+                                onDone(Attempt.this);
+                            }
+                        });
+
+                requestObserver.onNext(RpcIndexQueryStreamRequest.newBuilder().setQuery(query).build());
+
+                // A threshold may have been established by other partitions before this one was started
+                if (sentThreshold != Double.POSITIVE_INFINITY) {
+                    requestObserver.onNext(RpcIndexQueryStreamRequest.newBuilder()
+                            .setThreshold(RpcIndexScoreThreshold.newBuilder().setRankingScore(sentThreshold))
+                            .build());
+                }
+            }
+
+            /** Fall back to the unary query for index partitions that predate the streaming query */
+            private void startUnary() {
+                synchronized (IndexResultStreamMerger.this) {
+                    if (cancelled)
+                        return;
+                    requests = null;
+                }
+
+                IndexApiGrpc.newStub(replica.channel())
+                        .withExecutor(executor)
+                        .withDeadline(deadline)
+                        .query(query, new ClientResponseObserver<RpcIndexQuery, RpcIndexQueryResponse>() {
+                            @Override
+                            public void beforeStart(ClientCallStreamObserver<RpcIndexQuery> requestStream) {
+                                unaryRequest = requestStream;
+                            }
+
+                            @Override
+                            public void onNext(RpcIndexQueryResponse response) {
+                                onResponse(Attempt.this, response);
+                            }
+
+                            @Override
+                            public void onError(Throwable t) {
+                                onFailure(Attempt.this, t);
+                            }
+
+                            @Override
+                            public void onCompleted() {
+                                onDone(Attempt.this);
+                            }
+                        });
+            }
+
+            void sendThreshold(RpcIndexQueryStreamRequest message) {
+                if (ended || cancelled || requests == null)
+                    return;
+
+                try {
+                    requests.onNext(message);
+                }
+                catch (IllegalStateException ex) {
+                    // The call has already been closed
+                }
+            }
+
+            void cancel(String reason) {
+                if (ended || cancelled)
+                    return;
+
+                cancelled = true;
+
+                if (requests != null) {
+                    requests.cancel(reason, null);
+                }
+                if (unaryRequest != null) {
+                    unaryRequest.cancel(reason, null);
+                }
+            }
+        }
+    }
+}
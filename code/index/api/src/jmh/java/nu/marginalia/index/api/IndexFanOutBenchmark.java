@@ -0,0 +1,247 @@
+package nu.marginalia.index.api;
+
+import io.grpc.Deadline;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import nu.marginalia.api.searchquery.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.DoubleSupplier;
+
+/** This benchmark measures the latency of a query fanned out to several index partitions
+ * over in-process gRPC, where some of the partitions are slow to respond.
+ * <p></p>
+ * The unary variant waits for the full response of every partition, then sorts the
+ * combined results, as the client did before the streaming query.  The streaming variant merges
+ * the results as they arrive with {@link IndexResultStreamMerger}, and the partitions stop
+ * sending results once they are worse than the threshold the merger sends back.
+ * <p></p>
+ * The partitions are modelled on IndexGrpcService, and handle both calls the same way: they
+ * rank every result, taking a fixed delay, then decorate the ranked results, taking a smaller
+ * delay for each batch of them, and only then send them.  In the streaming call, the results
+ * past the threshold the partition has received by the end of ranking are dropped before they
+ * are decorated, and the results past the threshold at the time they are sent are withheld.
+ * <p></p>
+ * A slow partition thus bounds the latency of both variants.  With the parameters below, the slow
+ * partitions finish ranking before the fast ones have sent anything, so they get no threshold and
+ * decorate every result, and the two variants should take about as long, some 80 ms.  The streaming
+ * variant saves the transfer and client-side merging of the results past the threshold, not the
+ * wait for the slowest partition.
+ */
+public class IndexFanOutBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class FanOutState {
+        static final int numPartitions = 8;
+        static final int numSlowPartitions = 2;
+        static final int resultsPerPartition = 1000;
+        static final int batchSize = 25;
+
+        static final int fastDelayMs = 2;
+        static final int slowDelayMs = 40;
+        static final int batchDelayMs = 1;
+
+        static final int pageSize = 10;
+
+        final List<Server> servers = new ArrayList<>();
+        final List<ManagedChannel> channels = new ArrayList<>();
+        final ExecutorService executor = Executors.newCachedThreadPool();
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            Random random = new Random(42);
+
+            for (int i = 0; i < numPartitions; i++) {
+                String name = InProcessServerBuilder.generateName();
+                int delay = i < numSlowPartitions ? slowDelayMs : fastDelayMs;
+
+                servers.add(InProcessServerBuilder.forName(name)
+                        .addService(new SimulatedPartition(i, delay, random))
+                        .build()
+                        .start());
+                channels.add(InProcessChannelBuilder.forName(name).build());
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            channels.forEach(ManagedChannel::shutdownNow);
+            servers.forEach(Server::shutdownNow);
+            executor.shutdownNow();
+        }
+    }
+
+    @Fork(value = 1, warmups = 1)
+    @Warmup(iterations = 1)
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public List<RpcDecoratedResultItem> unaryFanOut(FanOutState state) throws Exception {
+        List<Future<RpcIndexQueryResponse>> futures = new ArrayList<>();
+
+        for (var channel : state.channels) {
+            futures.add(IndexApiGrpc.newFutureStub(channel)
+                    .withExecutor(state.executor)
+                    .withDeadlineAfter(5, TimeUnit.SECONDS)
+                    .query(RpcIndexQuery.getDefaultInstance()));
+        }
+
+        List<RpcDecoratedResultItem> results = new ArrayList<>();
+        for (var future : futures) {
+            results.addAll(future.get().getResultsList());
+        }
+
+        results.sort(Comparator.comparingDouble(RpcDecoratedResultItem::getRankingScore));
+
+        return results.subList(0, FanOutState.pageSize);
+    }
+
+    @Fork(value = 1, warmups = 1)
+    @Warmup(iterations = 1)
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public List<RpcDecoratedResultItem> streamingFanOut(FanOutState state) throws Exception {
+        var merger = new IndexResultStreamMerger(FanOutState.pageSize, _ -> false);
+        var deadline = Deadline.after(5, TimeUnit.SECONDS);
+
+        for (var channel : state.channels) {
+            merger.query(channel, state.executor, deadline, RpcIndexQuery.getDefaultInstance(), Throwable::printStackTrace);
+        }
+
+        merger.await(Instant.now().plusSeconds(5));
+
+        return merger.results();
+    }
+
+    /** An index partition with a fixed set of results, sorted by score */
+    static class SimulatedPartition extends IndexApiGrpc.IndexApiImplBase {
+        private final int delayMs;
+        private final List<RpcDecoratedResultItem> results = new ArrayList<>();
+
+        SimulatedPartition(int partition, int delayMs, Random random) {
+            this.delayMs = delayMs;
+
+            double[] scores = new double[FanOutState.resultsPerPartition];
+            for (int i = 0; i < scores.length; i++) {
+                scores[i] = random.nextDouble();
+            }
+            Arrays.sort(scores);
+
+            for (int i = 0; i < scores.length; i++) {
+                results.add(RpcDecoratedResultItem.newBuilder()
+                        .setRawItem(RpcRawResultItem.newBuilder().setCombinedId(((long) partition << 32) | i))
+                        .setUrl("https://www.example.com/" + partition + "/" + i)
+                        .setTitle("Result " + i)
+                        .setDescription("A simulated search result from partition " + partition)
+                        .setRankingScore(scores[i])
+                        .build());
+            }
+        }
+
+        @Override
+        public void query(RpcIndexQuery request, StreamObserver<RpcIndexQueryResponse> responseObserver) {
+            List<RpcDecoratedResultItem> ranked = rankAndDecorate(Double.POSITIVE_INFINITY);
+
+            responseObserver.onNext(RpcIndexQueryResponse.newBuilder().addAllResults(ranked).build());
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public StreamObserver<RpcIndexQueryStreamRequest> queryStream(StreamObserver<RpcIndexQueryResponse> responseObserver) {
+            final var threshold = new double[] { Double.POSITIVE_INFINITY };
+
+            return new StreamObserver<>() {
+                @Override
+                public void onNext(RpcIndexQueryStreamRequest request) {
+                    if (request.hasThreshold()) {
+                        synchronized (threshold) {
+                            threshold[0] = Math.min(threshold[0], request.getThreshold().getRankingScore());
+                        }
+                    }
+                    else if (request.hasQuery()) {
+                        Thread.ofVirtual().start(this::respond);
+                    }
+                }
+
+                private double currentThreshold() {
+                    synchronized (threshold) {
+                        return threshold[0];
+                    }
+                }
+
+                private void respond() {
+                    List<RpcDecoratedResultItem> ranked = rankAndDecorate(this::currentThreshold);
+                    int withheld = results.size() - ranked.size();
+
+                    for (int start = 0; start < ranked.size(); start += FanOutState.batchSize) {
+                        var batch = RpcIndexQueryResponse.newBuilder();
+
+                        double currentThreshold = currentThreshold();
+                        for (var item : ranked.subList(start, Math.min(ranked.size(), start + FanOutState.batchSize))) {
+                            if (item.getRankingScore() > currentThreshold) withheld++;
+                            else batch.addResults(item);
+                        }
+
+                        if (batch.getResultsCount() > 0) {
+                            responseObserver.onNext(batch.build());
+                        }
+                    }
+
+                    responseObserver.onNext(RpcIndexQueryResponse.newBuilder()
+                            .setFinished(true)
+                            .setResultsWithheld(withheld)
+                            .build());
+                    responseObserver.onCompleted();
+                }
+
+                @Override
+                public void onError(Throwable t) {}
+
+                @Override
+                public void onCompleted() {}
+            };
+        }
+
+        private List<RpcDecoratedResultItem> rankAndDecorate(double threshold) {
+            return rankAndDecorate(() -> threshold);
+        }
+
+        /** Rank all results, dropping those past the threshold at the end of ranking, then decorate
+         * the rest.  Ranking takes the partition's delay, and decoration a smaller delay per batch. */
+        private List<RpcDecoratedResultItem> rankAndDecorate(DoubleSupplier threshold) {
+            sleep(delayMs);
+
+            // Results are sorted by score, so the ones within the threshold are a prefix
+            double currentThreshold = threshold.getAsDouble();
+            int kept = 0;
+            while (kept < results.size() && results.get(kept).getRankingScore() <= currentThreshold) {
+                kept++;
+            }
+
+            sleep((long) batchCount(kept) * FanOutState.batchDelayMs);
+
+            return results.subList(0, kept);
+        }
+
+        private static int batchCount(int count) {
+            return (count + FanOutState.batchSize - 1) / FanOutState.batchSize;
+        }
+
+        private static void sleep(long ms) {
+            try {
+                Thread.sleep(ms);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
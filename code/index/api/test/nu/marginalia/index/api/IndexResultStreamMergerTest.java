@@ -0,0 +1,283 @@
+package nu.marginalia.index.api;
+
+import io.grpc.BindableService;
+import io.grpc.Deadline;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import nu.marginalia.api.searchquery.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IndexResultStreamMergerTest {
+    private final List<Server> servers = new ArrayList<>();
+    private final List<ManagedChannel> channels = new ArrayList<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final List<Throwable> errors = new CopyOnWriteArrayList<>();
+
+    @AfterEach
+    public void tearDown() {
+        channels.forEach(ManagedChannel::shutdownNow);
+        servers.forEach(Server::shutdownNow);
+        executor.shutdownNow();
+
+        assertEquals(List.of(), errors);
+    }
+
+    @Test
+    public void testMerge() throws Exception {
+        var merger = new IndexResultStreamMerger(5, item -> item.getRawItem().getCombinedId() == 3);
+
+        merger.query(channel(new StreamingPartition(1, 3, 5, 7, 9)), executor, deadline(), RpcIndexQuery.getDefaultInstance(), errors::add);
+        merger.query(channel(new StreamingPartition(2, 4, 6, 8, 10)), executor, deadline(), RpcIndexQuery.getDefaultInstance(), errors::add);
+
+        assertTrue(merger.await(Instant.now().plusSeconds(5)));
+
+        // 3 is excluded, and only the 5 best of the remainder are kept
+        assertEquals(List.of(1L, 2L, 4L, 5L, 6L), ids(merger.results()));
+        assertEquals(9, merger.totalResults());
+    }
+
+    @Test
+    public void testThresholdIsSentToSlowPartition() throws Exception {
+        var fast = new StreamingPartition(1, 2, 3, 4);
+        var slow = new StreamingPartition(5, 6, 7, 8);
+        slow.awaitThreshold = true;
+
+        var merger = new IndexResultStreamMerger(3, _ -> false);
+
+        merger.query(channel(slow), executor, deadline(), RpcIndexQuery.getDefaultInstance(), errors::add);
+        merger.query(channel(fast), executor, deadline(), RpcIndexQuery.getDefaultInstance(), errors::add);
+
+        assertTrue(merger.await(Instant.now().plusSeconds(5)));
+
+        // The third best result of the fast partition bounds the results of interest
+        assertEquals(3., slow.receivedThreshold.get(1, TimeUnit.SECONDS));
+
+        assertEquals(List.of(1L, 2L, 3L), ids(merger.results()));
+
+        // The slow partition withheld all its results
+        assertEquals(8, merger.totalResults());
+    }
+
+    @Test
+    public void testFallbackToUnaryQuery() throws Exception {
+        var merger = new IndexResultStreamMerger(10, _ -> false);
+
+        merger.query(channel(new UnaryPartition(1, 3)), executor, deadline(), RpcIndexQuery.getDefaultInstance(), errors::add);
+        merger.query(channel(new StreamingPartition(2, 4)), executor, deadline(), RpcIndexQuery.getDefaultInstance(), errors::add);
+
+        assertTrue(merger.await(Instant.now().plusSeconds(5)));
+        assertEquals(List.of(1L, 2L, 3L, 4L), ids(merger.results()));
+    }
+
+    @Test
+    public void testHedgedQuery() throws Exception {
+        var slow = new StreamingPartition(1, 2);
+        slow.awaitThreshold = true;
+        var fast = new StreamingPartition(1, 2);
+
+        List<Duration> slowLatencies = new CopyOnWriteArrayList<>();
+        List<Duration> fastLatencies = new CopyOnWriteArrayList<>();
+
+        var merger = new IndexResultStreamMerger(10, _ -> false);
+        merger.query(List.of(
+                    new IndexResultStreamMerger.Replica(channel(slow), errors::add, slowLatencies::add),
+                    new IndexResultStreamMerger.Replica(channel(fast), errors::add, fastLatencies::add)),
+                Duration.ofMillis(10), executor, deadline(), RpcIndexQuery.getDefaultInstance());
+
+        assertTrue(merger.await(Instant.now().plusSeconds(5)));
+
+        // The results are only counted once
+        assertEquals(List.of(1L, 2L), ids(merger.results()));
+        assertEquals(2, merger.totalResults());
+
+        assertEquals(1, fastLatencies.size());
+
+        // The slow replica is charged with the time it spent not responding
+        assertEquals(1, slowLatencies.size());
+        assertTrue(slowLatencies.getFirst().toMillis() >= 10);
+    }
+
+    @Test
+    public void testHedgedQueryHasRemainingBudget() throws Exception {
+        var slow = new StreamingPartition(1, 2);
+        slow.awaitThreshold = true;
+        var fast = new StreamingPartition(1, 2);
+
+        var query = RpcIndexQuery.newBuilder()
+                .setQueryLimits(RpcQueryLimits.newBuilder().setTimeoutMs(1000))
+                .build();
+
+        var merger = new IndexResultStreamMerger(10, _ -> false);
+        merger.query(List.of(
+                        new IndexResultStreamMerger.Replica(channel(slow), errors::add),
+                        new IndexResultStreamMerger.Replica(channel(fast), errors::add)),
+                Duration.ofMillis(50), executor, deadline(), query);
+
+        assertTrue(merger.await(Instant.now().plusSeconds(5)));
+
+        assertEquals(1000, slow.receivedQuery.get(1, TimeUnit.SECONDS).getQueryLimits().getTimeoutMs());
+
+        // The hedged query is sent after the hedge delay, and is given what is left of the budget
+        int hedgedTimeout = fast.receivedQuery.get(1, TimeUnit.SECONDS).getQueryLimits().getTimeoutMs();
+        assertTrue(hedgedTimeout <= 950, "Timeout " + hedgedTimeout);
+        assertTrue(hedgedTimeout > 0, "Timeout " + hedgedTimeout);
+    }
+
+    @Test
+    public void testFailoverToReplica() throws Exception {
+        var replica = new StreamingPartition(1, 2);
+        List<Throwable> primaryErrors = new CopyOnWriteArrayList<>();
+
+        var merger = new IndexResultStreamMerger(10, _ -> false);
+        merger.query(List.of(
+                        new IndexResultStreamMerger.Replica(channel(new UnavailablePartition()), primaryErrors::add),
+                        new IndexResultStreamMerger.Replica(channel(replica), errors::add)),
+                null, executor, deadline(), RpcIndexQuery.getDefaultInstance());
+
+        assertTrue(merger.await(Instant.now().plusSeconds(5)));
+
+        assertEquals(List.of(1L, 2L), ids(merger.results()));
+        assertEquals(1, primaryErrors.size());
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        var slow = new StreamingPartition(1);
+        slow.awaitThreshold = true;
+
+        var merger = new IndexResultStreamMerger(10, _ -> false);
+        merger.query(channel(slow), executor, deadline(), RpcIndexQuery.getDefaultInstance(), errors::add);
+
+        assertFalse(merger.await(Instant.now().plusMillis(100)));
+        assertEquals(List.of(), merger.results());
+    }
+
+    private static Deadline deadline() {
+        return Deadline.after(10, TimeUnit.SECONDS);
+    }
+
+    private static List<Long> ids(List<RpcDecoratedResultItem> items) {
+        return items.stream().map(item -> item.getRawItem().getCombinedId()).toList();
+    }
+
+    private ManagedChannel channel(BindableService service) throws IOException {
+        String name = InProcessServerBuilder.generateName();
+        servers.add(InProcessServerBuilder.forName(name).addService(service).build().start());
+
+        ManagedChannel channel = InProcessChannelBuilder.forName(name).build();
+        channels.add(channel);
+        return channel;
+    }
+
+    /** Result item with the same id and ranking score */
+    private static RpcDecoratedResultItem item(long id) {
+        return RpcDecoratedResultItem.newBuilder()
+                .setRawItem(RpcRawResultItem.newBuilder().setCombinedId(id))
+                .setRankingScore(id)
+                .build();
+    }
+
+    private static class StreamingPartition extends IndexApiGrpc.IndexApiImplBase {
+        private final long[] ids;
+
+        /** Wait for a threshold before responding, and withhold results worse than it */
+        boolean awaitThreshold = false;
+        final CompletableFuture<Double> receivedThreshold = new CompletableFuture<>();
+        final CompletableFuture<RpcIndexQuery> receivedQuery = new CompletableFuture<>();
+
+        StreamingPartition(long... ids) {
+            this.ids = ids;
+        }
+
+        @Override
+        public StreamObserver<RpcIndexQueryStreamRequest> queryStream(StreamObserver<RpcIndexQueryResponse> responseObserver) {
+            return new StreamObserver<>() {
+                @Override
+                public void onNext(RpcIndexQueryStreamRequest request) {
+                    if (request.hasThreshold()) {
+                        receivedThreshold.complete(request.getThreshold().getRankingScore());
+                    }
+                    if (request.hasQuery()) {
+                        receivedQuery.complete(request.getQuery());
+                    }
+
+                    if (request.hasQuery() && !awaitThreshold) {
+                        respond(Double.POSITIVE_INFINITY);
+                    }
+                    else if (request.hasThreshold() && awaitThreshold) {
+                        respond(request.getThreshold().getRankingScore());
+                    }
+                }
+
+                private void respond(double threshold) {
+                    int withheld = 0;
+
+                    for (long id : ids) {
+                        if (id > threshold) withheld++;
+                        else responseObserver.onNext(RpcIndexQueryResponse.newBuilder().addResults(item(id)).build());
+                    }
+
+                    responseObserver.onNext(RpcIndexQueryResponse.newBuilder().setFinished(true).setResultsWithheld(withheld).build());
+                    responseObserver.onCompleted();
+                }
+
+                @Override
+                public void onError(Throwable t) {}
+
+                @Override
+                public void onCompleted() {}
+            };
+        }
+    }
+
+    private static class UnavailablePartition extends IndexApiGrpc.IndexApiImplBase {
+        @Override
+        public StreamObserver<RpcIndexQueryStreamRequest> queryStream(StreamObserver<RpcIndexQueryResponse> responseObserver) {
+            responseObserver.onError(Status.UNAVAILABLE.asRuntimeException());
+
+            return new StreamObserver<>() {
+                @Override
+                public void onNext(RpcIndexQueryStreamRequest value) {}
+
+                @Override
+                public void onError(Throwable t) {}
+
+                @Override
+                public void onCompleted() {}
+            };
+        }
+    }
+
+    /** A partition that only implements the unary query */
+    private static class UnaryPartition extends IndexApiGrpc.IndexApiImplBase {
+        private final long[] ids;
+
+        UnaryPartition(long... ids) {
+            this.ids = ids;
+        }
+
+        @Override
+        public void query(RpcIndexQuery request, StreamObserver<RpcIndexQueryResponse> responseObserver) {
+            var response = RpcIndexQueryResponse.newBuilder();
+            for (long id : ids) {
+                response.addResults(item(id));
+            }
+            responseObserver.onNext(response.build());
+            responseObserver.onCompleted();
+        }
+    }
+}
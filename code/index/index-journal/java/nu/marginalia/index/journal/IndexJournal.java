@@ -4,11 +4,17 @@ import nu.marginalia.language.model.LanguageDefinition;
 import nu.marginalia.slop.SlopTable;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
 
-public record IndexJournal(Path journalDir) {
+/** The index journal for a language.
+ *
+ * @param journalDir the directory holding the journal pages
+ * @param firstPage the first page that is visible through this instance, see {@link #fromPage(int)}
+ */
+public record IndexJournal(Path journalDir, int firstPage) {
 
     public static final String JOURNAL_FILE_NAME = "index-journal";
 
@@ -42,20 +48,87 @@ public record IndexJournal(Path journalDir) {
         if (!journalDir.toFile().isDirectory()) {
             throw new IllegalArgumentException("Invalid journal directory: " + journalDir);
         }
+        if (firstPage < 0) {
+            throw new IllegalArgumentException("Invalid first page: " + firstPage);
+        }
+    }
+
+    public IndexJournal(Path journalDir) {
+        this(journalDir, 0);
+    }
+
+    /** Returns a view of the journal that only contains the pages from the given page and on,
+     * which is used to construct a delta index from the pages that have been written since
+     * the last full index construction.
+     */
+    public IndexJournal fromPage(int page) {
+        return new IndexJournal(journalDir, page);
+    }
+
+    /** Returns the total number of pages in the journal, including any pages before firstPage */
+    public int numPages() {
+        return numPages(journalDir);
     }
 
     public List<IndexJournalPage> pages() {
         int pages = numPages(journalDir);
 
-        List<IndexJournalPage> instances = new ArrayList<>(pages);
+        List<IndexJournalPage> instances = new ArrayList<>(Math.max(0, pages - firstPage));
 
-        for (int version = 0; version < pages; version++) {
+        for (int version = firstPage; version < pages; version++) {
             instances.add(new IndexJournalPage(journalDir, version));
         }
 
         return instances;
     }
 
+    /** Estimate the size on disk of the pages visible through this instance.  The pages are
+     * assumed to be of similar size, which is the case as the loader writes them in fixed batches.
+     */
+    public long estimatedSize() {
+        int pages = numPages();
+        if (pages <= firstPage)
+            return 0;
+
+        long totalSize = 0;
+        try (var files = Files.list(journalDir)) {
+            for (Path file : files.filter(Files::isRegularFile).toList()) {
+                totalSize += Files.size(file);
+            }
+        }
+        catch (IOException ex) {
+            throw new UncheckedIOException("Failed to estimate the size of the index journal", ex);
+        }
+
+        return totalSize * (pages - firstPage) / pages;
+    }
+
+    /** Record the number of pages in each journal to a file, so that a later delta index construction
+     * knows which pages have already been indexed. */
+    public static void writePageCounts(Path file, Map<String, IndexJournal> journalsByLanguage) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (var entry : new TreeMap<>(journalsByLanguage).entrySet()) {
+            sb.append(entry.getKey()).append(' ').append(entry.getValue().numPages()).append('\n');
+        }
+        Files.writeString(file, sb.toString());
+    }
+
+    /** Read the page counts written by {@link #writePageCounts(Path, Map)}.  Languages that are
+     * not present in the file had no journal at the time it was written, and have a page count of 0.
+     */
+    public static Map<String, Integer> readPageCounts(Path file) throws IOException {
+        Map<String, Integer> ret = new HashMap<>();
+
+        for (String line : Files.readAllLines(file)) {
+            String[] parts = line.trim().split(" ");
+            if (parts.length != 2)
+                continue;
+            ret.put(parts[0], Integer.parseInt(parts[1]));
+        }
+
+        return ret;
+    }
+
     public Set<String> languages() {
         try {
             Set<String> languages = new HashSet<>();
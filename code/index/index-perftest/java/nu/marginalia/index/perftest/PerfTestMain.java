@@ -86,6 +86,7 @@ public class PerfTestMain {
         return new CombinedIndexReader(
                 new ForwardIndexReader(
                         indexDir.resolve("ir/fwd-doc-id.dat"),
+                        indexDir.resolve("ir/fwd-doc-id-lookup.dat"),
                         indexDir.resolve("ir/fwd-doc-data.dat"),
                         indexDir.resolve("ir/fwd-spans.dat")
                 ),
@@ -5,6 +5,7 @@ import it.unimi.dsi.fastutil.longs.*;
 import nu.marginalia.api.searchquery.model.compiled.aggregate.CompiledQueryAggregates;
 import nu.marginalia.api.searchquery.model.query.SpecificationLimitType;
 import nu.marginalia.array.page.LongQueryBuffer;
+import nu.marginalia.array.pool.BufferPool;
 import nu.marginalia.index.forward.ForwardIndexReader;
 import nu.marginalia.index.forward.spans.DecodableDocumentSpans;
 import nu.marginalia.index.model.*;
@@ -13,6 +14,7 @@ import nu.marginalia.index.reverse.IndexLanguageContext;
 import nu.marginalia.index.reverse.PrioReverseIndexReader;
 import nu.marginalia.index.reverse.query.IndexQuery;
 import nu.marginalia.index.reverse.query.IndexSearchBudget;
+import nu.marginalia.index.reverse.query.ReverseIndexRejectDomainFilter;
 import nu.marginalia.index.reverse.query.filter.QueryFilterStepIf;
 import nu.marginalia.model.id.UrlIdCodec;
 import nu.marginalia.model.idx.DocumentMetadata;
@@ -78,6 +80,29 @@ public class CombinedIndexReader {
         return reverseIndexFullReader.numDocuments(languageContext, term);
     }
 
+    /** Returns the buffer pool counters of the full index, or null if it is not loaded */
+    @Nullable
+    public BufferPool.PoolStats getBufferPoolStats() {
+        return reverseIndexFullReader.getPoolStats();
+    }
+
+    /** Batch-read the leading skip list blocks of every full index term in the query into the
+     * buffer pool, ahead of query evaluation.
+     *
+     * @return the number of pages read
+     */
+    public int prefetchTermBlocks(SearchContext context) {
+        if (!isLoaded())
+            return 0;
+
+        LongOpenHashSet termIds = new LongOpenHashSet(context.termIdsAll.array);
+        termIds.addAll(context.termIdsRequire);
+        termIds.addAll(context.termIdsExcludes);
+        termIds.addAll(context.termIdsDomain);
+
+        return reverseIndexFullReader.prefetch(context.languageContext, termIds.toLongArray());
+    }
+
     /** Reset caches and buffers */
     public void reset() {
         reverseIndexFullReader.reset();
@@ -180,6 +205,7 @@ public class CombinedIndexReader {
         for (var query : queryHeads) {
 
             if (excludedDocumentRanges != null) query.rejectingDomains(excludedDocumentRanges);
+            if (!context.excludedDomainSet.isEmpty()) query.addInclusionFilter(new ReverseIndexRejectDomainFilter(context.excludedDomainSet));
 
             // Require terms are a special case, mandatory but not ranked, and exempt from re-writing
             for (long termId : context.termIdsRequire) {
@@ -0,0 +1,40 @@
+package nu.marginalia.index;
+
+import nu.marginalia.linkdb.docs.DocumentDbReader;
+import org.roaringbitmap.RoaringBitmap;
+
+/** The delta index holds the documents that have been loaded since the index was last
+ * constructed.  It is a small forward, full and prio index built from only the newest
+ * index journal pages, along with a document database holding the details of its documents.
+ * <p></p>
+ * The delta index is queried alongside the index, and the results are merged, see
+ * {@link IndexResultMerger}.  It is dropped when the index is switched, as the full
+ * index construction covers every journal page.
+ * <p></p>
+ * The converter processes a domain in its entirety, so the documents of a domain in the delta
+ * index replace all of that domain's documents in the index.  The domains are excluded from
+ * the query against the index, which also drops the documents that have since disappeared
+ * from the domain, and not just those with a newer copy in the delta index.
+ * <p></p>
+ * This class does not deal with the lifecycle of the delta index,
+ * that is the responsibility of {@link StatefulIndex}.
+ */
+public record DeltaIndex(CombinedIndexReader index, DocumentDbReader documentDbReader, RoaringBitmap domainIds) {
+
+    /** Close the delta index.  This blocks the calling thread until all users are finished. */
+    public boolean close() {
+        boolean closed = index.close();
+        documentDbReader.close();
+        return closed;
+    }
+
+    public boolean isLoaded() {
+        return index.isLoaded();
+    }
+
+    /** Returns the domains to exclude from a query against the index, which are the
+     * domains of the delta index in addition to the given domains */
+    public RoaringBitmap maskIndexDomains(RoaringBitmap excludedDomains) {
+        return RoaringBitmap.or(excludedDomains, domainIds);
+    }
+}
@@ -0,0 +1,95 @@
+package nu.marginalia.index;
+
+import it.unimi.dsi.fastutil.ints.IntHeapPriorityQueue;
+import nu.marginalia.index.reverse.positions.PositionCodec;
+import nu.marginalia.skiplist.SkipListBlockFilter;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Dynamic top-k threshold for block-max pruning of the full index.
+ * <p></p>
+ * The ranking function depends on positions, spans and document metadata that are not
+ * available when the skip list blocks are read, so pruning is done on a term "impact"
+ * that can be bounded from the block summaries instead: the number of term flags and
+ * the (log) size of the term's position data.  The ranking stage offers the impact of each
+ * ranked document, and once k documents have been ranked, blocks whose best possible
+ * document impact can not beat the k:th best impact seen so far are skipped.
+ * <p></p>
+ * Since impact only correlates with the final score, this is an approximate (unsafe)
+ * form of dynamic pruning, and is only enabled with -Dindex.blockMaxPruning=true
+ */
+public class ImpactThreshold implements SkipListBlockFilter {
+    /** Largest impact a single term can contribute to a document */
+    public static final int MAX_TERM_IMPACT = termImpact(0xFF, 0xFFFF);
+
+    private final int k;
+    private final int otherTermsBound;
+
+    private final IntHeapPriorityQueue topImpacts;
+    private volatile int threshold = 0;
+
+    private final AtomicInteger skippedBlocks = new AtomicInteger();
+
+    /**
+     * @param k the number of results the query is looking for
+     * @param numTerms the number of terms contributing to a document's impact
+     */
+    public ImpactThreshold(int k, int numTerms) {
+        this.k = Math.max(1, k);
+        this.otherTermsBound = Math.max(0, numTerms - 1) * MAX_TERM_IMPACT;
+        this.topImpacts = new IntHeapPriorityQueue(this.k);
+    }
+
+    /** The impact of a term in a document, given its term flags and the size of its position data.
+     * The size is clamped to 255 to match the block summary, so that the bound holds.
+     */
+    public static int termImpact(long flags, int positionsSize) {
+        return 8 * Long.bitCount(flags & 0xFF) + (32 - Integer.numberOfLeadingZeros(Math.min(255, positionsSize)));
+    }
+
+    /** The impact of a document, summed over all query terms */
+    public static int documentImpact(long[] termFlags, long[] positionOffsets) {
+        int impact = 0;
+        for (int i = 0; i < termFlags.length; i++) {
+            impact += termImpact(termFlags[i], PositionCodec.decodeSize(positionOffsets[i]));
+        }
+        return impact;
+    }
+
+    /** Offer the impact of a ranked document, possibly raising the threshold */
+    public synchronized void offer(int impact) {
+        if (topImpacts.size() < k) {
+            topImpacts.enqueue(impact);
+        }
+        else if (impact > topImpacts.firstInt()) {
+            topImpacts.dequeueInt();
+            topImpacts.enqueue(impact);
+        }
+
+        if (topImpacts.size() >= k) {
+            threshold = topImpacts.firstInt();
+        }
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public int getSkippedBlocks() {
+        return skippedBlocks.get();
+    }
+
+    @Override
+    public boolean skipBlock(int valueFlagsUnion, int maxValueTag) {
+        final int currentThreshold = threshold;
+        if (currentThreshold == 0)
+            return false;
+
+        if (termImpact(valueFlagsUnion, maxValueTag) + otherTermsBound < currentThreshold) {
+            skippedBlocks.incrementAndGet();
+            return true;
+        }
+
+        return false;
+    }
+}
@@ -2,14 +2,22 @@ package nu.marginalia.index;
 
 import com.google.inject.Guice;
 import com.google.inject.Inject;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import nu.marginalia.IndexLocations;
 import nu.marginalia.index.config.IndexFileName;
 import nu.marginalia.index.forward.construction.ForwardIndexConverter;
 import nu.marginalia.index.journal.IndexJournal;
+import nu.marginalia.index.journal.IndexJournalPage;
+import nu.marginalia.index.reverse.construction.LanguageConstructionScheduler;
+import nu.marginalia.index.reverse.construction.PositionsFileConstructor;
 import nu.marginalia.index.reverse.construction.full.FullIndexConstructor;
 import nu.marginalia.index.reverse.construction.prio.PrioIndexConstructor;
 import nu.marginalia.ranking.DomainRankings;
 import nu.marginalia.language.config.LanguageConfiguration;
+import nu.marginalia.linkdb.docs.DocumentDbReader;
+import nu.marginalia.linkdb.docs.DocumentDbWriter;
 import nu.marginalia.model.gson.GsonFactory;
 import nu.marginalia.model.id.UrlIdCodec;
 import nu.marginalia.mq.MessageQueueFactory;
@@ -21,6 +29,7 @@ import nu.marginalia.process.ProcessConfigurationModule;
 import nu.marginalia.process.ProcessMainClass;
 import nu.marginalia.process.control.ProcessHeartbeatImpl;
 import nu.marginalia.service.module.DatabaseModule;
+import nu.marginalia.slop.SlopTable;
 import nu.marginalia.storage.FileStorageService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,14 +37,22 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
 
+import static nu.marginalia.linkdb.LinkdbFileNames.DOCDB_FILE_NAME;
+
 public class IndexConstructorMain extends ProcessMainClass {
     private final FileStorageService fileStorageService;
     private final ProcessHeartbeatImpl heartbeat;
     private final LanguageConfiguration languageConfiguration;
     private final DomainRankings domainRankings;
+    private final LanguageConstructionScheduler constructionScheduler = new LanguageConstructionScheduler();
 
     private static final Logger logger = LoggerFactory.getLogger(IndexConstructorMain.class);
 
@@ -85,13 +102,14 @@ public class IndexConstructorMain extends ProcessMainClass {
         this.domainRankings = domainRankings;
     }
 
-    private void run(CreateIndexRequest instructions) throws IOException {
+    private void run(CreateIndexRequest instructions) throws IOException, SQLException {
         heartbeat.start();
 
         switch (instructions.indexName()) {
             case IndexName.FORWARD      -> createForwardIndex();
             case IndexName.REVERSE_FULL -> createFullReverseIndex();
             case IndexName.REVERSE_PRIO -> createPrioReverseIndex();
+            case IndexName.DELTA        -> createDeltaIndex();
         }
 
         heartbeat.shutDown();
@@ -112,11 +130,20 @@ public class IndexConstructorMain extends ProcessMainClass {
         }
     }
 
+    private Map<String, IndexJournal> findJournals() {
+        Path workDir = IndexLocations.getIndexConstructionArea(fileStorageService);
+        return IndexJournal.findJournals(workDir, languageConfiguration.languages());
+    }
+
     private void createFullReverseIndex() throws IOException {
+        createFullReverseIndex(IndexLocations.getCurrentIndex(fileStorageService), findJournals());
+    }
+
+    private void createFullReverseIndex(Path indexDir, Map<String, IndexJournal> journalsByLanguage) throws IOException {
 
-        Path outputFileDocs = findNextFile(new IndexFileName.FullDocs());
-        Path outputFileDocsValues = findNextFile(new IndexFileName.FullDocsValues());
-        Path outputFilePositions = findNextFile(new IndexFileName.FullPositions());
+        Path outputFileDocs = findNextFile(indexDir, new IndexFileName.FullDocs());
+        Path outputFileDocsValues = findNextFile(indexDir, new IndexFileName.FullDocsValues());
+        Path outputFilePositions = findNextFile(indexDir, new IndexFileName.FullPositions());
 
         Files.deleteIfExists(outputFileDocs);
         Files.deleteIfExists(outputFileDocsValues);
@@ -128,32 +155,53 @@ public class IndexConstructorMain extends ProcessMainClass {
         if (!Files.isDirectory(tmpDir)) Files.createDirectories(tmpDir);
         else cleanWorkDir(tmpDir);
 
-        Map<String, IndexJournal> journalsByLanguage = IndexJournal.findJournals(workDir, languageConfiguration.languages());
-
-        for (Map.Entry<String, IndexJournal> entry : journalsByLanguage.entrySet()) {
-            String languageIsoCode = entry.getKey();
-
-            Path outputFileWords = findNextFile(new IndexFileName.FullWords(languageIsoCode));
+        Map<String, FullIndexConstructor> constructors = new HashMap<>();
+        for (String languageIsoCode : journalsByLanguage.keySet()) {
+            Path outputFileWords = findNextFile(indexDir, new IndexFileName.FullWords(languageIsoCode));
+            Path outputFileTermStatistics = findNextFile(indexDir, new IndexFileName.TermStatistics(languageIsoCode));
 
-            FullIndexConstructor constructor = new FullIndexConstructor(
+            constructors.put(languageIsoCode, new FullIndexConstructor(
                     outputFileDocs,
                     outputFileDocsValues,
                     outputFileWords,
                     outputFilePositions,
+                    outputFileTermStatistics,
                     this::addRankToIdEncoding,
-                    tmpDir);
-
-            String processName = "createReverseIndexFull[%s]".formatted(languageIsoCode);
+                    tmpDir));
+        }
 
-            constructor.createReverseIndex(heartbeat, processName, entry.getValue());
+        // The preindexes of the languages are constructed concurrently, but are finalized one at a time
+        // as the languages share the docs files; the positions file is shared as well, but its constructor
+        // is thread-safe
+        try (var posConstructor = new PositionsFileConstructor(outputFilePositions)) {
+            var preindexes = constructionScheduler.runAll(heartbeat, "createReverseIndexFull", journalsByLanguage,
+                    (languageIsoCode, journal) -> constructors.get(languageIsoCode).constructPreindex(heartbeat,
+                            "createReverseIndexFull[%s]".formatted(languageIsoCode),
+                            journal,
+                            posConstructor)
+            );
+
+            for (var entry : new TreeMap<>(preindexes).entrySet()) {
+                String languageIsoCode = entry.getKey();
+
+                entry.getValue().ifPresent(preindex ->
+                        constructors.get(languageIsoCode).finalizeIndex(heartbeat,
+                                "createReverseIndexFull[%s]".formatted(languageIsoCode),
+                                preindex)
+                );
+            }
         }
 
         cleanWorkDir(tmpDir);
     }
 
     private void createPrioReverseIndex() throws IOException {
+        createPrioReverseIndex(IndexLocations.getCurrentIndex(fileStorageService), findJournals());
+    }
+
+    private void createPrioReverseIndex(Path indexDir, Map<String, IndexJournal> journalsByLanguage) throws IOException {
 
-        Path outputFileDocs = findNextFile(new IndexFileName.PrioDocs());
+        Path outputFileDocs = findNextFile(indexDir, new IndexFileName.PrioDocs());
         Files.deleteIfExists(outputFileDocs);
 
         Path workDir = IndexLocations.getIndexConstructionArea(fileStorageService);
@@ -162,49 +210,179 @@ public class IndexConstructorMain extends ProcessMainClass {
         if (!Files.isDirectory(tmpDir)) Files.createDirectories(tmpDir);
         else cleanWorkDir(tmpDir);
 
-        Map<String, IndexJournal> journalsByLanguage = IndexJournal.findJournals(workDir, languageConfiguration.languages());
-
-        for (Map.Entry<String, IndexJournal> entry : journalsByLanguage.entrySet()) {
-            String languageIsoCode = entry.getKey();
-
-            Path outputFileWords = findNextFile(new IndexFileName.PrioWords(languageIsoCode));
+        Map<String, PrioIndexConstructor> constructors = new HashMap<>();
+        for (String languageIsoCode : journalsByLanguage.keySet()) {
+            Path outputFileWords = findNextFile(indexDir, new IndexFileName.PrioWords(languageIsoCode));
             Files.deleteIfExists(outputFileWords);
 
-            PrioIndexConstructor constructor = new PrioIndexConstructor(
+            constructors.put(languageIsoCode, new PrioIndexConstructor(
                     outputFileDocs,
                     outputFileWords,
                     this::addRankToIdEncoding,
-                    tmpDir);
+                    tmpDir));
+        }
+
+        // The preindexes of the languages are constructed concurrently, but are finalized
+        // one at a time as the languages share the docs file
+        var preindexes = constructionScheduler.runAll(heartbeat, "createReverseIndexPrio", journalsByLanguage,
+                (languageIsoCode, journal) -> constructors.get(languageIsoCode).constructPreindex(heartbeat,
+                        "createReverseIndexPrio[%s]".formatted(languageIsoCode),
+                        journal)
+        );
 
-            String processName = "createReverseIndexPrio[%s]".formatted(languageIsoCode);
+        for (var entry : new TreeMap<>(preindexes).entrySet()) {
+            String languageIsoCode = entry.getKey();
 
-            constructor.createReverseIndex(heartbeat, processName, entry.getValue(), workDir);
+            entry.getValue().ifPresent(preindex ->
+                    constructors.get(languageIsoCode).finalizeIndex(heartbeat,
+                            "createReverseIndexPrio[%s]".formatted(languageIsoCode),
+                            preindex)
+            );
         }
 
         cleanWorkDir(tmpDir);
     }
 
     private void createForwardIndex() throws IOException {
+        Path indexDir = IndexLocations.getCurrentIndex(fileStorageService);
+        Map<String, IndexJournal> journalsByLanguage = findJournals();
 
-        Path workDir = IndexLocations.getIndexConstructionArea(fileStorageService);
+        createForwardIndex(indexDir, journalsByLanguage);
+
+        // Record which journal pages went into the index, so that a delta index
+        // can later be constructed from the pages that are added after this point
+        IndexJournal.writePageCounts(findNextFile(indexDir, new IndexFileName.JournalPages()), journalsByLanguage);
+    }
 
-        Path outputFileDocsId = findNextFile(new IndexFileName.ForwardDocIds());
-        Path outputFileDocsData = findNextFile(new IndexFileName.ForwardDocData());
-        Path outputFileSpansData = findNextFile(new IndexFileName.ForwardSpansData());
+    private void createForwardIndex(Path indexDir, Map<String, IndexJournal> journalsByLanguage) throws IOException {
+
+        Path outputFileDocsId = findNextFile(indexDir, new IndexFileName.ForwardDocIds());
+        Path outputFileDocsIdLookup = findNextFile(indexDir, new IndexFileName.ForwardDocIdsLookup());
+        Path outputFileDocsData = findNextFile(indexDir, new IndexFileName.ForwardDocData());
+        Path outputFileSpansData = findNextFile(indexDir, new IndexFileName.ForwardSpansData());
 
         ForwardIndexConverter converter = new ForwardIndexConverter(heartbeat,
                 outputFileDocsId,
+                outputFileDocsIdLookup,
                 outputFileDocsData,
                 outputFileSpansData,
-                IndexJournal.findJournals(workDir, languageConfiguration.languages()).values(),
+                journalsByLanguage.values(),
                 domainRankings
         );
 
         converter.convert();
     }
 
-    private Path findNextFile(IndexFileName fileName) {
-        return IndexFileName.resolve(IndexLocations.getCurrentIndex(fileStorageService), fileName, IndexFileName.Version.NEXT);
+    /** Construct a delta index from the journal pages that have been added since the current
+     * index was constructed.  This is a forward, full and prio index in the delta directory
+     * of the index, along with a document database for the documents in these pages.
+     */
+    private void createDeltaIndex() throws IOException, SQLException {
+        Path indexDir = IndexLocations.getCurrentIndex(fileStorageService);
+        Path deltaDir = IndexFileName.deltaDirectory(indexDir);
+
+        Path pageCountsFile = IndexFileName.resolve(indexDir, new IndexFileName.JournalPages(), IndexFileName.Version.CURRENT);
+        if (!Files.exists(pageCountsFile)) {
+            throw new IllegalStateException("The current index has no record of its journal pages, a full index construction is needed");
+        }
+
+        Map<String, Integer> indexedPages = IndexJournal.readPageCounts(pageCountsFile);
+        Map<String, IndexJournal> deltaJournals = new HashMap<>();
+
+        for (Map.Entry<String, IndexJournal> entry : findJournals().entrySet()) {
+            IndexJournal journal = entry.getValue().fromPage(indexedPages.getOrDefault(entry.getKey(), 0));
+
+            if (!journal.pages().isEmpty()) {
+                deltaJournals.put(entry.getKey(), journal);
+            }
+        }
+
+        if (deltaJournals.isEmpty()) {
+            logger.info("No journal pages have been added since the index was constructed");
+            return;
+        }
+
+        Files.createDirectories(deltaDir);
+
+        // The document database goes first, as it checks the document ids
+        createDeltaDocumentDb(deltaDir, deltaJournals);
+        createForwardIndex(deltaDir, deltaJournals);
+        createFullReverseIndex(deltaDir, deltaJournals);
+        createPrioReverseIndex(deltaDir, deltaJournals);
+    }
+
+    /** Write the document database of the delta index.  The documents are looked up in the document
+     * database written by the loader, and for documents loaded in an earlier batch, which the loader
+     * no longer has, in the document database of the current delta index.
+     */
+    private void createDeltaDocumentDb(Path deltaDir, Map<String, IndexJournal> journalsByLanguage) throws IOException, SQLException {
+        Path outputFile = deltaDir.resolve(DOCDB_FILE_NAME + ".next");
+        Files.deleteIfExists(outputFile);
+
+        LongArrayList docIds = new LongArrayList();
+        LongOpenHashSet seenIds = new LongOpenHashSet();
+        int collisions = 0;
+
+        for (IndexJournal journal : journalsByLanguage.values()) {
+            for (IndexJournalPage page : journal.pages()) {
+                try (var slopTable = new SlopTable(page.baseDir(), page.page())) {
+                    var idReader = page.openCombinedId(slopTable);
+                    while (idReader.hasRemaining()) {
+                        long id = idReader.get();
+                        if (seenIds.add(id)) docIds.add(id);
+                        else collisions++;
+                    }
+                }
+            }
+        }
+
+        // Each delta load numbers its documents from an ordinal range of its own, so the same id
+        // appearing twice means the documents of different loads would be mixed up in the index
+        if (collisions > 0) {
+            throw new IllegalStateException(collisions + " document ids appear more than once in the delta journal pages, a regular load is needed");
+        }
+
+        List<DocumentDbReader> sources = new ArrayList<>();
+        for (Path sourceFile : List.of(
+                IndexLocations.getLinkdbWritePath(fileStorageService).resolve(DOCDB_FILE_NAME),
+                deltaDir.resolve(DOCDB_FILE_NAME)))
+        {
+            if (Files.isRegularFile(sourceFile)) {
+                sources.add(new DocumentDbReader(sourceFile));
+            }
+        }
+
+        DocumentDbWriter writer = new DocumentDbWriter(outputFile);
+        int missing = 0;
+
+        try {
+            for (int start = 0; start < docIds.size(); start += 1000) {
+                LongList batch = new LongArrayList(docIds.subList(start, Math.min(docIds.size(), start + 1000)));
+
+                for (DocumentDbReader source : sources) {
+                    var details = source.getUrlDetails(batch);
+                    writer.add(new ArrayList<>(details.values()));
+                    batch.removeIf((long id) -> details.containsKey(id));
+
+                    if (batch.isEmpty())
+                        break;
+                }
+
+                missing += batch.size();
+            }
+        }
+        finally {
+            writer.close();
+            sources.forEach(DocumentDbReader::close);
+        }
+
+        if (missing > 0) {
+            logger.warn("{} documents in the delta index were not found in any document database", missing);
+        }
+    }
+
+    private Path findNextFile(Path indexDir, IndexFileName fileName) {
+        return IndexFileName.resolve(indexDir, fileName, IndexFileName.Version.NEXT);
     }
 
     /** Append the domain's ranking to the high bits of a document ID
@@ -10,7 +10,10 @@ import nu.marginalia.index.reverse.PrioReverseIndexReader;
 import nu.marginalia.index.reverse.WordLexicon;
 import nu.marginalia.language.config.LanguageConfiguration;
 import nu.marginalia.language.model.LanguageDefinition;
+import nu.marginalia.linkdb.docs.DocumentDbMmapReader;
+import nu.marginalia.linkdb.docs.DocumentDbReader;
 import nu.marginalia.storage.FileStorageService;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -18,9 +21,12 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
 
+import static nu.marginalia.linkdb.LinkdbFileNames.DOCDB_FILE_NAME;
+
 @Singleton
 public class IndexFactory {
     private final FileStorageService fileStorageService;
@@ -44,25 +50,55 @@ public class IndexFactory {
         );
     }
 
+    /** Returns the delta index, or null if there is no delta index */
+    @Nullable
+    public DeltaIndex getDeltaIndex() throws IOException, SQLException {
+        Path deltaDir = IndexFileName.deltaDirectory(liveStorage);
+
+        if (!Files.exists(IndexFileName.resolve(deltaDir, new IndexFileName.ForwardDocIds(), IndexFileName.Version.CURRENT))) {
+            return null;
+        }
+
+        var forwardIndexReader = getForwardIndexReader(deltaDir);
+        var index = new CombinedIndexReader(
+                forwardIndexReader,
+                getReverseIndexReader(deltaDir),
+                getReverseIndexPrioReader(deltaDir)
+        );
+
+        return new DeltaIndex(index,
+                new DocumentDbReader(deltaDir.resolve(DOCDB_FILE_NAME)),
+                forwardIndexReader.getDomainIds());
+    }
+
+    /** Returns the term statistics of the current index for the language, see TermFrequencySketch */
+    public Path getTermStatisticsFile(String languageIsoCode) {
+        return getCurrentPath(liveStorage, new IndexFileName.TermStatistics(languageIsoCode));
+    }
+
     public Path getSearchSetsBase() {
         return IndexLocations.getSearchSetsPath(fileStorageService);
     }
 
     public FullReverseIndexReader getReverseIndexReader() throws IOException {
+        return getReverseIndexReader(liveStorage);
+    }
 
-        Path docsFile = getCurrentPath(new IndexFileName.FullDocs());
-        Path docsValuesFile = getCurrentPath(new IndexFileName.FullDocsValues());
-        Path positionsFile = getCurrentPath(new IndexFileName.FullPositions());
+    private FullReverseIndexReader getReverseIndexReader(Path indexDir) throws IOException {
+
+        Path docsFile = getCurrentPath(indexDir, new IndexFileName.FullDocs());
+        Path docsValuesFile = getCurrentPath(indexDir, new IndexFileName.FullDocsValues());
+        Path positionsFile = getCurrentPath(indexDir, new IndexFileName.FullPositions());
 
         List<WordLexicon> wordLexicons = new ArrayList<>();
 
         for (LanguageDefinition languageDefinition : languageConfiguration.languages()) {
             String languageIsoCode = languageDefinition.isoCode();
-            Path wordsFile = getCurrentPath(new IndexFileName.FullWords(languageIsoCode));
+            Path wordsFile = getCurrentPath(indexDir, new IndexFileName.FullWords(languageIsoCode));
             if (Files.exists(wordsFile)) {
                 wordLexicons.add(new WordLexicon(languageIsoCode, wordsFile));
             }
-            else if ("en".equalsIgnoreCase(languageIsoCode)) {
+            else if ("en".equalsIgnoreCase(languageIsoCode) && indexDir.equals(liveStorage)) {
                 // FIXME:  Backward compatibility, remove after ~ dec 2025
                 wordsFile = liveStorage.resolve("rev-words.dat");
                 wordLexicons.add(new WordLexicon("en", wordsFile));
@@ -79,37 +115,46 @@ public class IndexFactory {
     }
 
     public PrioReverseIndexReader getReverseIndexPrioReader() throws IOException {
+        return getReverseIndexPrioReader(liveStorage);
+    }
+
+    private PrioReverseIndexReader getReverseIndexPrioReader(Path indexDir) throws IOException {
 
         List<WordLexicon> wordLexicons = new ArrayList<>();
 
         for (LanguageDefinition languageDefinition : languageConfiguration.languages()) {
             String languageIsoCode = languageDefinition.isoCode();
-            Path wordsFile = getCurrentPath(new IndexFileName.PrioWords(languageIsoCode));
+            Path wordsFile = getCurrentPath(indexDir, new IndexFileName.PrioWords(languageIsoCode));
             if (Files.exists(wordsFile)) {
                 wordLexicons.add(new WordLexicon(languageIsoCode, wordsFile));
             }
-            else if ("en".equalsIgnoreCase(languageIsoCode)) {
+            else if ("en".equalsIgnoreCase(languageIsoCode) && indexDir.equals(liveStorage)) {
                 // FIXME:  Backward compatibility, remove after ~ dec 2025
                 wordsFile = liveStorage.resolve("rev-prio-words.dat");
                 wordLexicons.add(new WordLexicon("en", wordsFile));
             }
         }
 
-        Path docsFile = getCurrentPath(new IndexFileName.PrioDocs());
+        Path docsFile = getCurrentPath(indexDir, new IndexFileName.PrioDocs());
 
         return new PrioReverseIndexReader("prio", wordLexicons, docsFile);
     }
 
     public ForwardIndexReader getForwardIndexReader() throws IOException {
-        Path docIdsFile = getCurrentPath(new IndexFileName.ForwardDocIds());
-        Path docDataFile = getCurrentPath(new IndexFileName.ForwardDocData());
-        Path spansFile = getCurrentPath(new IndexFileName.ForwardSpansData());
+        return getForwardIndexReader(liveStorage);
+    }
+
+    private ForwardIndexReader getForwardIndexReader(Path indexDir) throws IOException {
+        Path docIdsFile = getCurrentPath(indexDir, new IndexFileName.ForwardDocIds());
+        Path docIdsLookupFile = getCurrentPath(indexDir, new IndexFileName.ForwardDocIdsLookup());
+        Path docDataFile = getCurrentPath(indexDir, new IndexFileName.ForwardDocData());
+        Path spansFile = getCurrentPath(indexDir, new IndexFileName.ForwardSpansData());
 
-        return new ForwardIndexReader(docIdsFile, docDataFile, spansFile);
+        return new ForwardIndexReader(docIdsFile, docIdsLookupFile, docDataFile, spansFile);
     }
 
-    private Path getCurrentPath(IndexFileName fileName) {
-        return IndexFileName.resolve(liveStorage, fileName, IndexFileName.Version.CURRENT);
+    private Path getCurrentPath(Path indexDir, IndexFileName fileName) {
+        return IndexFileName.resolve(indexDir, fileName, IndexFileName.Version.CURRENT);
     }
 
     /** Switches the current index to the next index */
@@ -137,6 +182,48 @@ public class IndexFactory {
         }
     }
 
+    /** Switches the current delta index to the next delta index */
+    public void switchDeltaFiles() throws IOException {
+        Path deltaDir = IndexFileName.deltaDirectory(liveStorage);
+
+        List<IndexFileName> files = new ArrayList<>(IndexFileName.forwardIndexFiles());
+        files.addAll(IndexFileName.revPrioIndexFiles(languageConfiguration));
+        files.addAll(IndexFileName.revFullIndexFiles(languageConfiguration));
+
+        for (IndexFileName file : files) {
+            Path next = IndexFileName.resolve(deltaDir, file, IndexFileName.Version.NEXT);
+            Path current = IndexFileName.resolve(deltaDir, file, IndexFileName.Version.CURRENT);
+
+            // A language may be missing from the next delta index, in which case we must not
+            // keep its words file from the previous one
+            if (Files.exists(next)) switchFile(next, current);
+            else Files.deleteIfExists(current);
+        }
+
+        Path nextDocDb = deltaDir.resolve(DOCDB_FILE_NAME + ".next");
+        Path currentDocDb = deltaDir.resolve(DOCDB_FILE_NAME);
+
+        switchFile(nextDocDb, currentDocDb);
+        switchFile(DocumentDbMmapReader.companionFile(nextDocDb), DocumentDbMmapReader.companionFile(currentDocDb));
+    }
+
+    /** Removes the delta index, which is done when the index is switched, as the
+     * index then contains the documents of the delta index */
+    public void deleteDeltaFiles() throws IOException {
+        Path deltaDir = IndexFileName.deltaDirectory(liveStorage);
+        if (!Files.isDirectory(deltaDir))
+            return;
+
+        // Only the current files are removed, as a next delta index may be under construction
+        try (var files = Files.list(deltaDir)) {
+            for (Path file : files.filter(Files::isRegularFile).toList()) {
+                if (!file.getFileName().toString().contains(".next")) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
     public void switchFile(Path from, Path to) throws IOException {
         if (Files.exists(from)) {
             logger.info("Switching {} -> {} ({}b)", from.getFileName(), to.getFileName(), Files.size(from));
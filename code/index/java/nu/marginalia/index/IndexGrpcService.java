@@ -2,8 +2,10 @@ package nu.marginalia.index;
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.google.protobuf.ByteString;
 import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import io.prometheus.metrics.core.metrics.Counter;
 import io.prometheus.metrics.core.metrics.Histogram;
@@ -11,10 +13,13 @@ import nu.marginalia.api.searchquery.*;
 import nu.marginalia.index.model.SearchContext;
 import nu.marginalia.index.model.UnrankedSearchContext;
 import nu.marginalia.index.results.IndexResultRankingService;
+import nu.marginalia.index.reverse.query.IndexSearchBudget;
 import nu.marginalia.ranking.set.SearchSet;
 import nu.marginalia.index.searchset.SearchSetsService;
 import nu.marginalia.ranking.set.SmallSearchSet;
 import nu.marginalia.index.searchset.ConnectivitySets;
+import nu.marginalia.index.searchset.ExcludedDomainSets;
+import nu.marginalia.index.statistics.GlobalTermStatistics;
 import nu.marginalia.ranking.connectivity.ConnectivityView;
 import nu.marginalia.language.config.LanguageConfiguration;
 import nu.marginalia.language.keywords.KeywordHasher;
@@ -22,14 +27,22 @@ import nu.marginalia.language.model.LanguageDefinition;
 import nu.marginalia.linkdb.docs.DocumentDbReader;
 import nu.marginalia.service.module.ServiceConfiguration;
 import nu.marginalia.service.server.DiscoverableService;
+import org.roaringbitmap.RoaringBitmap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.Marker;
 import org.slf4j.MarkerFactory;
 
+import javax.annotation.Nullable;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 @Singleton
 public class IndexGrpcService
@@ -56,6 +69,23 @@ public class IndexGrpcService
             .help("Index-side query time")
             .register();
 
+    // Number of results per message in a streamed query response
+    private static final int streamBatchSize = Integer.getInteger("index.query.streamBatchSize", 25);
+
+    // Streamed queries run on their own threads, see queryStream(); the pool is bounded, as
+    // past the query limiter's limit the excess queries would only be rejected anyway
+    private static final int streamThreads = Integer.getInteger("index.query.streamThreads", 64);
+    private static final ThreadPoolExecutor streamExecutor = new ThreadPoolExecutor(
+            streamThreads, streamThreads,
+            60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(streamThreads),
+            Thread.ofPlatform().name("index-query-stream-", 0).daemon().factory());
+    static {
+        streamExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private static final int termStatisticsChunkSize = 1024 * 1024;
+
     private final StatefulIndex statefulIndex;
     private final SearchSetsService searchSetsService;
 
@@ -64,6 +94,11 @@ public class IndexGrpcService
     private final int nodeId;
     private final DocumentDbReader documentDbReader;
     private final ConnectivitySets connectivitySets;
+    private final IndexQueryResultCache resultCache;
+    private final IndexQueryLimiter queryLimiter;
+    private final ExcludedDomainSets excludedDomainSets;
+    private final GlobalTermStatistics termStatistics;
+    private final IndexFactory indexFactory;
 
     @Inject
     public IndexGrpcService(ServiceConfiguration serviceConfiguration,
@@ -72,7 +107,12 @@ public class IndexGrpcService
                             DocumentDbReader documentDbReader,
                             ConnectivitySets connectivitySets,
                             SearchSetsService searchSetsService,
-                            IndexResultRankingService rankingService)
+                            IndexResultRankingService rankingService,
+                            IndexQueryResultCache resultCache,
+                            IndexQueryLimiter queryLimiter,
+                            ExcludedDomainSets excludedDomainSets,
+                            GlobalTermStatistics termStatistics,
+                            IndexFactory indexFactory)
     {
         this.nodeId = serviceConfiguration.node();
         this.documentDbReader = documentDbReader;
@@ -81,6 +121,11 @@ public class IndexGrpcService
         this.statefulIndex = statefulIndex;
         this.searchSetsService = searchSetsService;
         this.rankingService = rankingService;
+        this.resultCache = resultCache;
+        this.queryLimiter = queryLimiter;
+        this.excludedDomainSets = excludedDomainSets;
+        this.termStatistics = termStatistics;
+        this.indexFactory = indexFactory;
         this.keywordHasherByLangIso = new HashMap<>();
 
         for (LanguageDefinition definition : languageConfiguration.languages()) {
@@ -95,59 +140,124 @@ public class IndexGrpcService
 
         try {
             long endTime = System.currentTimeMillis() + request.getQueryLimits().getTimeoutMs();
-            KeywordHasher hasher = findHasher(request.getLangIsoCode());
 
-            List<RpcDecoratedResultItem> results = wmsa_query_time
+            QueryResults results = wmsa_query_time
                     .labelValues(nodeName, "GRPC")
-                    .time(() -> {
-                        // Perform the search
-                        try (StatefulIndex.IndexReference indexReference = statefulIndex.get()) {
-                            if (!indexReference.isAvailable()) {
-                                return List.of();
-                            }
-
-                            final SearchSet set = getSearchSet(request);
-                            final ConnectivityView connectivityView;
-
-                            if (!set.imposesConstraint()
-                                && "en".equalsIgnoreCase(request.getLangIsoCode())
-                                && !hasSiteTerm(request.getTerms())
-                            ) {
-                                connectivityView = connectivitySets.getView();
-                            }
-                            else {
-                                connectivityView = ConnectivityView.empty();
-                            }
-
-                            CombinedIndexReader index = indexReference.get();
-
-                            SearchContext rankingContext = SearchContext.create(index, hasher, request, set, connectivityView);
-                            IndexQueryExecution queryExecution = new IndexQueryExecution(index, documentDbReader, rankingService, rankingContext, nodeId);
-                            return queryExecution.run();
+                    .time(() -> executeQuery(request, null));
 
+            if (System.currentTimeMillis() >= endTime) {
+                wmsa_query_timeouts
+                        .labelValues(nodeName, "GRPC")
+                        .inc();
+            }
+
+            responseObserver.onNext(RpcIndexQueryResponse.newBuilder()
+                            .addAllResults(results.results())
+                            .build());
+
+            responseObserver.onCompleted();
+        }
+        catch (StatusRuntimeException ex) {
+            responseObserver.onError(ex);
+        }
+        catch (Exception ex) {
+            logger.error("Error in handling request", ex);
+            responseObserver.onError(Status.INTERNAL.withCause(ex).asRuntimeException());
+        }
+    }
+
+    /** Streaming variant of {@link #query}.  The client sends the query, and may then send score
+     * thresholds as it merges the results of all partitions, see {@link ScoreThreshold}.  Results
+     * worse than the threshold are dropped while ranking, and withheld from the response stream.
+     */
+    @Override
+    public StreamObserver<RpcIndexQueryStreamRequest> queryStream(StreamObserver<RpcIndexQueryResponse> responseObserver) {
+        final var serverObserver = (ServerCallStreamObserver<RpcIndexQueryResponse>) responseObserver;
+        final ScoreThreshold threshold = new ScoreThreshold();
+
+        return new StreamObserver<>() {
+            private boolean started = false;
+
+            @Override
+            public void onNext(RpcIndexQueryStreamRequest message) {
+                switch (message.getRequestCase()) {
+                    case QUERY -> {
+                        if (started) {
+                            logger.warn("Ignoring repeated query in query stream");
+                            return;
                         }
-                        catch (IndexQueryExecution.TooManySimultaneousQueriesException ex) {
-                            logger.warn("Rejected request execution due to overload");
-                            throw Status.RESOURCE_EXHAUSTED
-                                    .withDescription("Too many simultaneous queries in index partition")
-                                    .asRuntimeException();
+                        started = true;
+
+                        // Execute off the gRPC thread, so that threshold updates are received while the query runs
+                        try {
+                            streamExecutor.execute(() -> streamQuery(message.getQuery(), threshold, serverObserver));
                         }
-                        catch (Exception ex) {
-                            logger.error("Error in handling request", ex);
-                            return List.of();
+                        catch (RejectedExecutionException ex) {
+                            logger.warn("Rejected streamed request execution due to overload");
+                            serverObserver.onError(Status.RESOURCE_EXHAUSTED
+                                    .withDescription("Too many simultaneous streamed queries in index partition")
+                                    .asRuntimeException());
                         }
-                    });
+                    }
+                    case THRESHOLD -> threshold.offer(message.getThreshold().getRankingScore());
+                    default -> {}
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                // The client went away, the query execution will notice when it attempts to respond
+            }
+
+            @Override
+            public void onCompleted() {}
+        };
+    }
+
+    private void streamQuery(RpcIndexQuery request,
+                             ScoreThreshold threshold,
+                             ServerCallStreamObserver<RpcIndexQueryResponse> responseObserver)
+    {
+        try {
+            long endTime = System.currentTimeMillis() + request.getQueryLimits().getTimeoutMs();
+
+            QueryResults queryResults = wmsa_query_time
+                    .labelValues(nodeName, "GRPC-STREAM")
+                    .time(() -> executeQuery(request, threshold));
 
             if (System.currentTimeMillis() >= endTime) {
                 wmsa_query_timeouts
-                        .labelValues(nodeName, "GRPC")
+                        .labelValues(nodeName, "GRPC-STREAM")
                         .inc();
             }
 
-            responseObserver.onNext(RpcIndexQueryResponse.newBuilder()
-                            .addAllResults(results)
-                            .build());
+            List<RpcDecoratedResultItem> results = queryResults.results();
+            int withheld = queryResults.belowThreshold();
+
+            for (int start = 0; start < results.size(); start += streamBatchSize) {
+                if (responseObserver.isCancelled())
+                    return;
+
+                var batch = RpcIndexQueryResponse.newBuilder();
 
+                // The threshold may have tightened since ranking, as other partitions reported their results
+                for (var item : results.subList(start, Math.min(results.size(), start + streamBatchSize))) {
+                    if (threshold.excludes(item.getRankingScore())) withheld++;
+                    else batch.addResults(item);
+                }
+
+                if (batch.getResultsCount() > 0) {
+                    responseObserver.onNext(batch.build());
+                }
+            }
+
+            if (responseObserver.isCancelled())
+                return;
+
+            responseObserver.onNext(RpcIndexQueryResponse.newBuilder()
+                    .setFinished(true)
+                    .setResultsWithheld(withheld)
+                    .build());
             responseObserver.onCompleted();
         }
         catch (StatusRuntimeException ex) {
@@ -159,6 +269,127 @@ public class IndexGrpcService
         }
     }
 
+    /** Results of a query, and the number of results that were dropped for being
+     * worse than the score threshold of a streaming query */
+    private record QueryResults(List<RpcDecoratedResultItem> results, int belowThreshold) {
+        static final QueryResults EMPTY = new QueryResults(List.of(), 0);
+    }
+
+    private QueryResults executeQuery(RpcIndexQuery request, @Nullable ScoreThreshold threshold) {
+        KeywordHasher hasher = findHasher(request.getLangIsoCode());
+
+        // Perform the search
+        try (StatefulIndex.IndexReference indexReference = statefulIndex.get()) {
+            if (!indexReference.isAvailable()) {
+                return QueryResults.EMPTY;
+            }
+
+            final long indexGeneration = statefulIndex.getGeneration();
+
+            List<RpcDecoratedResultItem> cachedResults = resultCache.get(indexGeneration, request);
+            if (cachedResults != null) {
+                return new QueryResults(cachedResults, 0);
+            }
+
+            final SearchSet set = getSearchSet(request);
+            final ConnectivityView connectivityView;
+
+            if (!set.imposesConstraint()
+                && "en".equalsIgnoreCase(request.getLangIsoCode())
+                && !hasSiteTerm(request.getTerms())
+            ) {
+                connectivityView = connectivitySets.getView();
+            }
+            else {
+                connectivityView = ConnectivityView.empty();
+            }
+
+            CombinedIndexReader index = indexReference.get();
+
+            // Blacklisted and NSFW domains are dropped by the index query itself, rather than
+            // after ranking and decoration
+            RoaringBitmap excludedDomains = excludedDomainSets.forTier(request.getNsfwFilterTierValue());
+
+            // Terms are weighted by their frequencies in the entire cluster when available, so that
+            // the scores of all partitions are comparable
+            GlobalTermStatistics.Snapshot globalStatistics = termStatistics.get();
+
+            // This may ask for more results than the request, so that follow-up requests for deeper
+            // result lists can be served from the cache
+            RpcIndexQuery executedRequest = resultCache.executionRequest(request);
+
+            DeltaIndex delta = indexReference.getDelta();
+
+            List<RpcDecoratedResultItem> queryResults;
+            int belowThreshold;
+            boolean budgetExhausted;
+
+            if (delta == null) {
+                SearchContext rankingContext = SearchContext.create(index, null, hasher, executedRequest, set, connectivityView, excludedDomains, globalStatistics);
+                IndexQueryExecution queryExecution = new IndexQueryExecution(index, documentDbReader, rankingService, rankingContext, nodeId);
+                queryExecution.setScoreThreshold(threshold);
+
+                try (var permit = acquirePermit(request.getQueryLimits(), rankingContext.budget)) {
+                    queryResults = queryExecution.run();
+                    permit.reportWork(queryExecution.itemsProcessed());
+                }
+
+                belowThreshold = queryExecution.itemsBelowThreshold();
+                budgetExhausted = queryExecution.isBudgetExhausted();
+            }
+            else {
+                // Each context gets the term statistics of the other index, so that the
+                // results of the two queries are ranked on the same terms and can be merged.
+                // The domains of the delta index are excluded from the index, as they've been reloaded
+                SearchContext rankingContext = SearchContext.create(index, delta.index(), hasher, executedRequest, set, connectivityView, delta.maskIndexDomains(excludedDomains), globalStatistics);
+                SearchContext deltaRankingContext = SearchContext.create(delta.index(), index, hasher, executedRequest, set, connectivityView, excludedDomains, globalStatistics);
+
+                IndexQueryExecution queryExecution = new IndexQueryExecution(index, documentDbReader, rankingService, rankingContext, nodeId);
+                IndexQueryExecution deltaQueryExecution = new IndexQueryExecution(delta.index(), delta.documentDbReader(), rankingService, deltaRankingContext, nodeId);
+                queryExecution.setScoreThreshold(threshold);
+                deltaQueryExecution.setScoreThreshold(threshold);
+
+                try (var permit = acquirePermit(request.getQueryLimits(), rankingContext.budget)) {
+                    // The delta index is small, so it's queried first to leave the remainder
+                    // of the budget to the index
+                    List<RpcDecoratedResultItem> deltaResults = deltaQueryExecution.run();
+                    List<RpcDecoratedResultItem> indexResults = queryExecution.run();
+                    permit.reportWork(deltaQueryExecution.itemsProcessed() + queryExecution.itemsProcessed());
+
+                    queryResults = IndexResultMerger.merge(indexResults, deltaResults,
+                            rankingContext.limitByDomain, rankingContext.limitTotal);
+                }
+
+                belowThreshold = queryExecution.itemsBelowThreshold() + deltaQueryExecution.itemsBelowThreshold();
+                budgetExhausted = queryExecution.isBudgetExhausted() || deltaQueryExecution.isBudgetExhausted();
+            }
+
+            // Results from a query that ran out of its ranking budget may be incomplete, and should not be
+            // cached, and neither should results that were cut short by the threshold of a streaming query
+            if (!budgetExhausted && belowThreshold == 0) {
+                resultCache.put(indexGeneration, executedRequest, queryResults);
+            }
+
+            int resultsTotal = request.getQueryLimits().getResultsTotal();
+            if (queryResults.size() > resultsTotal) {
+                return new QueryResults(queryResults.subList(0, resultsTotal), belowThreshold);
+            }
+
+            return new QueryResults(queryResults, belowThreshold);
+
+        }
+        catch (IndexQueryLimiter.TooManySimultaneousQueriesException ex) {
+            logger.warn("Rejected request execution due to overload");
+            throw Status.RESOURCE_EXHAUSTED
+                    .withDescription("Too many simultaneous queries in index partition")
+                    .asRuntimeException();
+        }
+        catch (Exception ex) {
+            logger.error("Error in handling request", ex);
+            return QueryResults.EMPTY;
+        }
+    }
+
     @Override
     public void unrankedQuery(RpcIndexUnrankedQuery request, StreamObserver<RpcIndexQueryResponse> responseObserver) {
 
@@ -194,7 +425,10 @@ public class IndexGrpcService
 
                 IndexUnrankedQueryExecution queryExecution =
                         new IndexUnrankedQueryExecution(index, documentDbReader, rankingService, rankingContext, nodeId);
-                results = queryExecution.run();
+
+                try (var _ = acquirePermit(request.getQueryLimits(), rankingContext.budget)) {
+                    results = queryExecution.run();
+                }
 
                 lastId = queryExecution.getLastId();
                 isFinished = queryExecution.isFinished();
@@ -208,6 +442,12 @@ public class IndexGrpcService
 
             responseObserver.onCompleted();
         }
+        catch (IndexQueryLimiter.TooManySimultaneousQueriesException ex) {
+            logger.warn("Rejected unranked request execution due to overload");
+            responseObserver.onError(Status.RESOURCE_EXHAUSTED
+                    .withDescription("Too many simultaneous queries in index partition")
+                    .asRuntimeException());
+        }
         catch (StatusRuntimeException ex) {
             responseObserver.onError(ex);
         }
@@ -217,6 +457,62 @@ public class IndexGrpcService
         }
     }
 
+    /** Send the term statistics of the current index, see GlobalTermStatistics.  The version
+     * of the statistics is the modification time of their file, which changes when the index
+     * is switched.  If the client already has the current version, no data is sent.
+     */
+    @Override
+    public void getTermStatistics(RpcTermStatisticsRequest request,
+                                  StreamObserver<RpcTermStatisticsChunk> responseObserver) {
+        Path statisticsFile = indexFactory.getTermStatisticsFile(request.getLangIsoCode());
+
+        try (StatefulIndex.IndexReference indexReference = statefulIndex.get()) {
+            if (!indexReference.isAvailable() || !Files.exists(statisticsFile)) {
+                responseObserver.onError(Status.NOT_FOUND
+                        .withDescription("No term statistics for language " + request.getLangIsoCode())
+                        .asRuntimeException());
+                return;
+            }
+
+            long version = Files.getLastModifiedTime(statisticsFile).toMillis();
+            int docCount = indexReference.get().totalDocCount();
+
+            var chunk = RpcTermStatisticsChunk.newBuilder()
+                    .setVersion(version)
+                    .setDocCount(docCount);
+
+            if (version == request.getKnownVersion()) {
+                responseObserver.onNext(chunk.build());
+                responseObserver.onCompleted();
+                return;
+            }
+
+            try (var is = Files.newInputStream(statisticsFile)) {
+                byte[] buffer = new byte[termStatisticsChunkSize];
+                int n;
+
+                while ((n = is.readNBytes(buffer, 0, buffer.length)) > 0) {
+                    responseObserver.onNext(chunk.setData(ByteString.copyFrom(buffer, 0, n)).build());
+                }
+            }
+
+            responseObserver.onCompleted();
+        }
+        catch (Exception ex) {
+            logger.error("Error in sending term statistics", ex);
+            responseObserver.onError(Status.INTERNAL.withCause(ex).asRuntimeException());
+        }
+    }
+
+    /** Wait for admission to execute a query.  As with the query itself, the time spent waiting
+     * counts against the query budget, and the query is rejected if it would have to wait for more
+     * than half of what remains of it. */
+    private IndexQueryLimiter.Permit acquirePermit(RpcQueryLimits limits, IndexSearchBudget budget)
+            throws IndexQueryLimiter.TooManySimultaneousQueriesException, InterruptedException
+    {
+        return queryLimiter.acquire(limits.getPriority(), budget.timeLeft() / 2);
+    }
+
     private boolean hasSiteTerm(RpcQueryTerms terms) {
         for (var term : terms.getTermsRequireList()) {
             if (term.startsWith("site:"))
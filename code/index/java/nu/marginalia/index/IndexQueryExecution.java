@@ -14,6 +14,7 @@ import nu.marginalia.api.searchquery.model.compiled.CqDataLong;
 import nu.marginalia.api.searchquery.model.results.SearchResultItem;
 import nu.marginalia.api.searchquery.model.results.debug.DebugRankingFactors;
 import nu.marginalia.array.page.LongQueryBuffer;
+import nu.marginalia.array.pool.BufferPool;
 import nu.marginalia.index.forward.spans.DecodableDocumentSpans;
 import nu.marginalia.index.forward.spans.DocumentSpans;
 import nu.marginalia.index.model.CombinedDocIdList;
@@ -46,12 +47,12 @@ import java.util.concurrent.locks.Lock;
 
 /** Performs an index query */
 public class IndexQueryExecution {
+    private static final Logger logger = LoggerFactory.getLogger(IndexQueryExecution.class);
 
     private static final boolean printDebugSummary = Boolean.getBoolean("index.printDebugSummary");
     private static final boolean disableViabilityPrecheck = Boolean.getBoolean("index.disableViabilityPrecheck");
-
-    private static final int maxSimultaneousQueries = Integer.getInteger("index.maxSimultaneousQueries", 8);
-    private static final Semaphore simultaneousRequests = new Semaphore(maxSimultaneousQueries);
+    private static final boolean prefetchSkipListBlocks = Boolean.getBoolean("index.prefetchSkipListBlocks");
+    private static final boolean blockMaxPruning = Boolean.getBoolean("index.blockMaxPruning");
 
     private static final int lookupBatchSize = 512;
 
@@ -68,6 +69,15 @@ public class IndexQueryExecution {
     private final IndexSearchBudget budget;
     private final ResultPriorityQueue resultHeap;
 
+    @Nullable
+    private final ImpactThreshold impactThreshold;
+
+    @Nullable
+    private ScoreThreshold scoreThreshold;
+
+    /** Set when the budget ran out before every query was exhausted, meaning the results may be incomplete */
+    private volatile boolean budgetExhausted = false;
+
     private final int limitTotal;
     private final int limitByDomain;
 
@@ -77,18 +87,47 @@ public class IndexQueryExecution {
             .help("Number of documents ranked")
             .register();
 
-    private static final Gauge index_execution_rejected_queries = Gauge.builder()
+    private static final Gauge metric_index_pruned_blocks = Gauge.builder()
             .labelNames("node")
-            .name("index_execution_rejected_queries")
-            .help("Number of queries rejected to avoid backpressure")
+            .name("index_exec_pruned_blocks")
+            .help("Number of full index blocks skipped by block-max pruning")
             .register();
 
-    public static class TooManySimultaneousQueriesException extends Exception {
-        @Override
-        public StackTraceElement[] getStackTrace() {
-            return new StackTraceElement[0];
-        }
-    }
+    private static final Gauge metric_index_buffer_pool_hits = Gauge.builder()
+            .labelNames("node", "policy")
+            .name("index_buffer_pool_hits")
+            .help("Number of full index buffer pool reads served from the pool")
+            .register();
+
+    private static final Gauge metric_index_buffer_pool_misses = Gauge.builder()
+            .labelNames("node", "policy")
+            .name("index_buffer_pool_misses")
+            .help("Number of full index buffer pool reads that went to disk")
+            .register();
+
+    private static final Gauge metric_index_buffer_pool_evictions = Gauge.builder()
+            .labelNames("node", "policy")
+            .name("index_buffer_pool_evictions")
+            .help("Number of full index buffer pool pages evicted to make room for another page")
+            .register();
+
+    private static final Gauge metric_index_buffer_pool_prefetch_batches = Gauge.builder()
+            .labelNames("node")
+            .name("index_buffer_pool_prefetch_batches")
+            .help("Number of batched io_uring reads issued to prefetch skip list blocks")
+            .register();
+
+    private static final Gauge metric_index_buffer_pool_prefetched_pages = Gauge.builder()
+            .labelNames("node")
+            .name("index_buffer_pool_prefetched_pages")
+            .help("Number of skip list blocks read into the buffer pool by prefetching")
+            .register();
+
+    private static final Gauge metric_index_buffer_pool_prefetch_saved_syscalls = Gauge.builder()
+            .labelNames("node")
+            .name("index_buffer_pool_prefetch_saved_syscalls")
+            .help("Number of read syscalls avoided by batching the prefetch reads")
+            .register();
 
     public IndexQueryExecution(CombinedIndexReader currentIndex,
                                DocumentDbReader documentDbReader,
@@ -109,15 +148,28 @@ public class IndexQueryExecution {
 
         queries = currentIndex.createQueries(rankingContext);
 
+        if (blockMaxPruning) {
+            impactThreshold = new ImpactThreshold(limitTotal, rankingContext.termIdsAll.size());
+            for (IndexQuery query : queries) {
+                query.setBlockFilter(impactThreshold);
+            }
+        }
+        else {
+            impactThreshold = null;
+        }
     }
 
-    public List<RpcDecoratedResultItem> run() throws InterruptedException, SQLException, TooManySimultaneousQueriesException {
+    /** Drop results that are worse than the threshold as they are ranked,
+     * must be called before {@link #run()}. */
+    public void setScoreThreshold(@Nullable ScoreThreshold scoreThreshold) {
+        this.scoreThreshold = scoreThreshold;
+        resultHeap.setThreshold(scoreThreshold);
+    }
 
-        if (!simultaneousRequests.tryAcquire(budget.timeLeft() / 2, TimeUnit.MILLISECONDS)) {
-            index_execution_rejected_queries
-                    .labelValues(nodeName)
-                    .inc();
-            throw new TooManySimultaneousQueriesException();
+    public List<RpcDecoratedResultItem> run() throws InterruptedException, SQLException {
+
+        if (prefetchSkipListBlocks) {
+            prefetchTermBlocks();
         }
 
         try (BufferPipe<IndexQuery> processingPipe = BufferPipe.<IndexQuery>builder(threadPool, Duration.ofSeconds(1))
@@ -128,18 +180,18 @@ public class IndexQueryExecution {
         {
 
             for (IndexQuery query : queries) {
-                processingPipe.offer(query, Duration.ofMillis(budget.timeLeft()));
+                if (!processingPipe.offer(query, Duration.ofMillis(budget.timeLeft()))) {
+                    budgetExhausted = true;
+                }
             }
 
             processingPipe.stopFeeding();
 
             if (!processingPipe.join(budget.timeLeft())) {
+                budgetExhausted = true;
                 processingPipe.stop();
             }
         }
-        finally {
-            simultaneousRequests.release();
-        }
 
         if (printDebugSummary) {
             for (var query : queries) {
@@ -151,6 +203,14 @@ public class IndexQueryExecution {
                 .labelValues(nodeName)
                 .inc(1000. * resultHeap.getItemsProcessed() / budget.getLimitTime());
 
+        if (impactThreshold != null) {
+            metric_index_pruned_blocks
+                    .labelValues(nodeName)
+                    .inc(impactThreshold.getSkippedBlocks());
+        }
+
+        updatePoolMetrics();
+
         // Final result selection
         List<RankableDocument> resultsList = new ArrayList<>(resultHeap.size());
         LongList idsList = new LongArrayList(limitTotal);
@@ -227,6 +287,10 @@ public class IndexQueryExecution {
                 if (!output.accept(new CombinedDocIdList(buffer)))
                     break;
             }
+
+            if (query.hasMore()) {
+                budgetExhausted = true;
+            }
         }
 
         @Override
@@ -412,6 +476,7 @@ public class IndexQueryExecution {
             if (!indexLock.tryLock()) {
                 throw new IllegalStateException("Index lock could not be acquired");
             }
+            localResults.setThreshold(scoreThreshold);
         }
 
         @Override
@@ -432,6 +497,10 @@ public class IndexQueryExecution {
                 if (null != resultItem) {
                     rankableDocument.item = resultItem;
                     localResults.add(rankableDocument);
+
+                    if (impactThreshold != null) {
+                        impactThreshold.offer(ImpactThreshold.documentImpact(rankableDocument.termFlags, rankableDocument.positionOffsets));
+                    }
                 }
             }
             finally {
@@ -479,10 +548,52 @@ public class IndexQueryExecution {
         }
     }
 
+    /** Warm the buffer pool with the leading skip list blocks of every query term,
+     * so that the lookup and filtering stages don't each stall on their own preads */
+    private void prefetchTermBlocks() {
+        final Lock indexLock = currentIndex.useLock();
+        if (!indexLock.tryLock())
+            return;
+
+        try {
+            currentIndex.prefetchTermBlocks(rankingContext);
+        }
+        catch (RuntimeException ex) {
+            logger.warn("Failed to prefetch term blocks", ex);
+        }
+        finally {
+            indexLock.unlock();
+        }
+    }
+
+    private void updatePoolMetrics() {
+        BufferPool.PoolStats stats = currentIndex.getBufferPoolStats();
+        if (stats == null)
+            return;
+
+        metric_index_buffer_pool_hits.labelValues(nodeName, stats.policy()).set(stats.hits());
+        metric_index_buffer_pool_misses.labelValues(nodeName, stats.policy()).set(stats.misses());
+        metric_index_buffer_pool_evictions.labelValues(nodeName, stats.policy()).set(stats.evictions());
+        metric_index_buffer_pool_prefetch_batches.labelValues(nodeName).set(stats.prefetchBatches());
+        metric_index_buffer_pool_prefetched_pages.labelValues(nodeName).set(stats.prefetchedPages());
+        metric_index_buffer_pool_prefetch_saved_syscalls.labelValues(nodeName).set(stats.savedSyscalls());
+    }
+
     public int itemsProcessed() {
         return resultHeap.getItemsProcessed();
     }
 
+    public int itemsBelowThreshold() {
+        return resultHeap.getItemsBelowThreshold();
+    }
+
+    /** Returns true if the query was cut short by its time budget, and the results
+     * may be missing documents that a complete execution would have found.
+     * Only meaningful after {@link #run()} has returned. */
+    public boolean isBudgetExhausted() {
+        return budgetExhausted;
+    }
+
     /** Rank the results again, gathering detailed ranking information */
     private void performDebugRanking(SearchContext searchContext, List<RankableDocument> results) {
 
@@ -0,0 +1,314 @@
+package nu.marginalia.index;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import io.prometheus.metrics.core.metrics.Gauge;
+import io.prometheus.metrics.core.metrics.Histogram;
+import nu.marginalia.api.searchquery.RpcQueryLimits;
+import nu.marginalia.service.module.ServiceConfiguration;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/** Admission control for index queries, shared by the ranked and unranked query paths.
+ * <p></p>
+ * Queries over the limit wait in a queue until a permit frees up or their deadline passes,
+ * in which case they are rejected.  Interactive queries are always admitted ahead of API queries.
+ * <p></p>
+ * The limit is index.maxSimultaneousQueries.  With -Dindex.adaptiveQueryLimit=true, it is instead
+ * adjusted from how long the queries take per document they rank, and kept between
+ * index.minSimultaneousQueries and index.maxSimultaneousQueriesCeiling.
+ * <p></p>
+ * The latency of a query doesn't work as the signal, as ranked queries keep ranking until their
+ * time budget runs out even on an idle node.  The time per ranked document on the other hand rises
+ * when the queries compete for the CPU and the disk.  A short-term average of it is compared against
+ * a long-term average, and the limit is scaled down by their ratio when the short-term average
+ * rises beyond what the long-term average tolerates.  When it's stable and the limit is in use, the
+ * limit grows by roughly the square root of itself per adjustment.  Queries that don't report the
+ * number of documents they ranked, see {@link Permit#reportWork(long)}, don't affect the limit.
+ */
+@Singleton
+public class IndexQueryLimiter {
+    private static final int initialLimit = Integer.getInteger("index.maxSimultaneousQueries", 8);
+    private static final boolean enableAdaptiveLimit = Boolean.getBoolean("index.adaptiveQueryLimit");
+    private static final int minLimit = Integer.getInteger("index.minSimultaneousQueries", 2);
+    private static final int maxLimit = Integer.getInteger("index.maxSimultaneousQueriesCeiling", 4 * initialLimit);
+
+    /** How much the short-term time per document may exceed the long-term average before the limit is lowered */
+    private static final double costTolerance = 1.5;
+
+    private static final double shortTermWeight = 0.1;
+    private static final double longTermWeight = 0.005;
+    private static final double smoothing = 0.2;
+    private static final double minGradient = 0.5;
+
+    private static final Gauge metric_query_limit = Gauge.builder()
+            .labelNames("node")
+            .name("index_query_limit")
+            .help("Current limit on the number of simultaneous index queries")
+            .register();
+
+    private static final Gauge metric_queries_in_flight = Gauge.builder()
+            .labelNames("node")
+            .name("index_queries_in_flight")
+            .help("Number of index queries currently executing")
+            .register();
+
+    private static final Gauge metric_queries_queued = Gauge.builder()
+            .labelNames("node")
+            .name("index_queries_queued")
+            .help("Number of index queries waiting for admission")
+            .register();
+
+    private static final Gauge metric_rejected_queries = Gauge.builder()
+            .labelNames("node")
+            .name("index_execution_rejected_queries")
+            .help("Number of queries rejected to avoid backpressure")
+            .register();
+
+    private static final Histogram metric_queue_time = Histogram.builder()
+            .name("index_query_queue_time")
+            .classicLinearUpperBounds(0.005, 0.005, 20)
+            .labelNames("node", "priority")
+            .help("Time index queries spend waiting for admission")
+            .register();
+
+    public static class TooManySimultaneousQueriesException extends Exception {
+        @Override
+        public StackTraceElement[] getStackTrace() {
+            return new StackTraceElement[0];
+        }
+    }
+
+    private final String nodeName;
+    private final boolean adaptive;
+    private final int lowerBound;
+    private final int upperBound;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<Waiter> interactiveQueue = new ArrayDeque<>();
+    private final ArrayDeque<Waiter> apiQueue = new ArrayDeque<>();
+
+    // guarded by lock
+    private double limit;
+    private int inFlight;
+    private double shortTermCost = -1;
+    private double longTermCost = -1;
+
+    @Inject
+    public IndexQueryLimiter(ServiceConfiguration serviceConfiguration) {
+        this(Integer.toString(serviceConfiguration.node()), initialLimit,
+                enableAdaptiveLimit ? Math.min(minLimit, initialLimit) : initialLimit,
+                enableAdaptiveLimit ? Math.max(maxLimit, initialLimit) : initialLimit);
+    }
+
+    IndexQueryLimiter(String nodeName, int initialLimit, int lowerBound, int upperBound) {
+        this.nodeName = nodeName;
+        this.lowerBound = Math.max(1, lowerBound);
+        this.upperBound = Math.max(this.lowerBound, upperBound);
+        this.adaptive = this.lowerBound != this.upperBound;
+        this.limit = Math.clamp(initialLimit, this.lowerBound, this.upperBound);
+
+        metric_query_limit.labelValues(nodeName).set(limit);
+    }
+
+    /** Wait for a permit to execute a query.  The permit must be closed when the query finishes.
+     *
+     * @param priority the admission priority of the query
+     * @param maxWaitMs how long to wait in the queue before rejecting the query
+     *
+     * @throws TooManySimultaneousQueriesException if no permit was available before the deadline
+     */
+    public Permit acquire(RpcQueryLimits.PRIORITY priority, long maxWaitMs)
+            throws TooManySimultaneousQueriesException, InterruptedException
+    {
+        final boolean isInteractive = priority != RpcQueryLimits.PRIORITY.API;
+        final ArrayDeque<Waiter> queue = isInteractive ? interactiveQueue : apiQueue;
+        final long startTime = System.nanoTime();
+
+        lock.lock();
+        try {
+            // Don't overtake queries that are already waiting with the same or higher priority
+            boolean mayOvertake = interactiveQueue.isEmpty() && (isInteractive || apiQueue.isEmpty());
+
+            if (!mayOvertake || inFlight >= currentLimit()) {
+                Waiter waiter = new Waiter(lock.newCondition());
+                queue.addLast(waiter);
+                updateQueueMetric();
+
+                long remaining = TimeUnit.MILLISECONDS.toNanos(maxWaitMs);
+                try {
+                    while (!waiter.granted) {
+                        if (remaining <= 0) {
+                            queue.remove(waiter);
+                            updateQueueMetric();
+
+                            metric_rejected_queries.labelValues(nodeName).inc();
+                            throw new TooManySimultaneousQueriesException();
+                        }
+                        remaining = waiter.condition.awaitNanos(remaining);
+                    }
+                }
+                catch (InterruptedException ex) {
+                    if (waiter.granted) {
+                        inFlight--;
+                        grantWaiting();
+                    }
+                    else {
+                        queue.remove(waiter);
+                        updateQueueMetric();
+                    }
+                    throw ex;
+                }
+            }
+            else {
+                inFlight++;
+            }
+
+            metric_queries_in_flight.labelValues(nodeName).set(inFlight);
+        }
+        finally {
+            lock.unlock();
+        }
+
+        metric_queue_time
+                .labelValues(nodeName, isInteractive ? "interactive" : "api")
+                .observe((System.nanoTime() - startTime) / 1_000_000_000.);
+
+        return new Permit();
+    }
+
+    /** Release a permit, and adjust the limit from the time per document of the query that held it
+     *
+     * @param latencyNanos how long the permit was held
+     * @param documentsRanked the number of documents the query ranked, or 0 if not known
+     */
+    void release(long latencyNanos, long documentsRanked) {
+        lock.lock();
+        try {
+            inFlight--;
+
+            if (adaptive && documentsRanked > 0) {
+                updateLimit(latencyNanos / (double) documentsRanked);
+            }
+
+            grantWaiting();
+
+            metric_queries_in_flight.labelValues(nodeName).set(inFlight);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private void updateLimit(double cost) {
+        if (longTermCost < 0) {
+            shortTermCost = longTermCost = cost;
+            return;
+        }
+
+        shortTermCost += shortTermWeight * (cost - shortTermCost);
+        longTermCost += longTermWeight * (cost - longTermCost);
+
+        // If the cost has dropped and stayed down, let the long-term average catch up faster,
+        // or the limit will be held back by a past overload
+        if (longTermCost > 2 * shortTermCost) {
+            longTermCost *= 0.95;
+        }
+
+        double gradient = costTolerance * longTermCost / shortTermCost;
+        gradient = Math.clamp(gradient, minGradient, 1.0);
+
+        double newLimit = limit * gradient;
+
+        // Only probe for a higher limit when the current limit is actually in use,
+        // counting the query that is being released
+        if (gradient >= 1.0 && inFlight + 1 >= limit / 2) {
+            newLimit += Math.sqrt(limit);
+        }
+
+        limit = Math.clamp(limit * (1 - smoothing) + newLimit * smoothing, lowerBound, upperBound);
+
+        metric_query_limit.labelValues(nodeName).set(limit);
+    }
+
+    /** Hand out permits freed up by a release or a raised limit, interactive queries first */
+    private void grantWaiting() {
+        while (inFlight < currentLimit()) {
+            Waiter next = interactiveQueue.pollFirst();
+            if (next == null) next = apiQueue.pollFirst();
+            if (next == null) break;
+
+            next.granted = true;
+            inFlight++;
+            next.condition.signal();
+        }
+
+        updateQueueMetric();
+    }
+
+    private int currentLimit() {
+        return (int) limit;
+    }
+
+    private void updateQueueMetric() {
+        metric_queries_queued.labelValues(nodeName).set(interactiveQueue.size() + apiQueue.size());
+    }
+
+    /** The current limit on simultaneous queries */
+    public int getLimit() {
+        lock.lock();
+        try {
+            return currentLimit();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /** The number of queries currently holding a permit */
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private static final class Waiter {
+        final Condition condition;
+        boolean granted = false;
+
+        Waiter(Condition condition) {
+            this.condition = condition;
+        }
+    }
+
+    /** A permit to execute a query, which must be closed when the query finishes */
+    public class Permit implements AutoCloseable {
+        private final long startTime = System.nanoTime();
+        private long documentsRanked = 0;
+        private boolean closed = false;
+
+        private Permit() {}
+
+        /** Report the number of documents the query ranked, which the adaptive limit
+         * is evaluated from.  Must be called before the permit is closed. */
+        public void reportWork(long documentsRanked) {
+            this.documentsRanked += documentsRanked;
+        }
+
+        @Override
+        public void close() {
+            if (closed)
+                return;
+            closed = true;
+
+            release(System.nanoTime() - startTime, documentsRanked);
+        }
+    }
+}
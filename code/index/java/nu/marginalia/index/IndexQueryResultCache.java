@@ -0,0 +1,167 @@
+package nu.marginalia.index;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.protobuf.ByteString;
+import io.prometheus.metrics.core.metrics.Counter;
+import nu.marginalia.api.searchquery.RpcDecoratedResultItem;
+import nu.marginalia.api.searchquery.RpcIndexQuery;
+import nu.marginalia.service.module.ServiceConfiguration;
+
+import javax.annotation.Nullable;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Bounded cache of ranked query results, to avoid re-running the full query
+ * pipeline for repeated queries.
+ * <p></p>
+ * Queries are keyed on a canonical form of the request, that excludes the parts that don't
+ * affect the ranking (the human readable query, the timeout, the number of results and the priority).
+ * An entry computed for a larger number of results can serve any request for fewer results,
+ * as the results are ordered by rank.  Since pagination happens in the client by requesting the
+ * same top-k from the index, paginated requests are served from the same entry.
+ * <p></p>
+ * Entries are tagged with the generation of the index they were computed from,
+ * see {@link StatefulIndex#getGeneration()}, and are dropped when the index is switched.
+ * The cache size is bounded by the total number of cached result items.
+ */
+@Singleton
+public class IndexQueryResultCache {
+    private static final boolean enabled = !Boolean.getBoolean("index.disableResultCache");
+    private static final long maxCachedResults = Long.getLong("index.resultCacheMaxResults", 250_000);
+    private static final int ttlSeconds = Integer.getInteger("index.resultCacheTtlSeconds", 300);
+
+    /** Queries are executed for at least this many results when the result is to be cached,
+     * so that later requests for a deeper result list can be served from the cache */
+    private static final int minCachedTopK = Integer.getInteger("index.resultCacheMinTopK", 0);
+
+    private static final Counter metric_cache_hits = Counter.builder()
+            .name("index_result_cache_hits")
+            .help("Number of index queries served from the result cache")
+            .labelNames("node")
+            .register();
+    private static final Counter metric_cache_misses = Counter.builder()
+            .name("index_result_cache_misses")
+            .help("Number of index queries not found in the result cache")
+            .labelNames("node")
+            .register();
+    private static final Counter metric_cache_evictions = Counter.builder()
+            .name("index_result_cache_evictions")
+            .help("Number of entries evicted from the result cache")
+            .labelNames("node")
+            .register();
+
+    private final String nodeName;
+    private final Cache<Key, Entry> cache;
+    private final AtomicLong lastGeneration = new AtomicLong(Long.MIN_VALUE);
+
+    private record Key(long generation, ByteString canonicalQuery) {}
+    private record Entry(int resultsTotal, List<RpcDecoratedResultItem> results) {}
+
+    @Inject
+    public IndexQueryResultCache(ServiceConfiguration serviceConfiguration) {
+        this(Integer.toString(serviceConfiguration.node()), maxCachedResults, ttlSeconds);
+    }
+
+    IndexQueryResultCache(String nodeName, long maxCachedResults, int ttlSeconds) {
+        this.nodeName = nodeName;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxCachedResults)
+                .weigher((Key key, Entry entry) -> 1 + entry.results().size())
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .<Key, Entry>removalListener(notification -> {
+                    if (notification.wasEvicted()) {
+                        metric_cache_evictions.labelValues(this.nodeName).inc();
+                    }
+                })
+                .build();
+    }
+
+    /** Returns the cached results for the request, truncated to the number of results requested,
+     * or null if they are not cached */
+    @Nullable
+    public List<RpcDecoratedResultItem> get(long generation, RpcIndexQuery request) {
+        if (!enabled || !isCacheable(request))
+            return null;
+
+        dropStaleGenerations(generation);
+
+        Entry entry = cache.getIfPresent(new Key(generation, canonicalize(request)));
+
+        int resultsTotal = request.getQueryLimits().getResultsTotal();
+        if (entry == null || entry.resultsTotal() < resultsTotal) {
+            metric_cache_misses.labelValues(nodeName).inc();
+            return null;
+        }
+
+        metric_cache_hits.labelValues(nodeName).inc();
+
+        return entry.results().subList(0, Math.min(resultsTotal, entry.results().size()));
+    }
+
+    /** Returns the request that should be executed to populate the cache for the given request,
+     * which may ask for more results than the original request */
+    public RpcIndexQuery executionRequest(RpcIndexQuery request) {
+        if (!enabled || !isCacheable(request) || request.getQueryLimits().getResultsTotal() >= minCachedTopK)
+            return request;
+
+        var builder = request.toBuilder();
+        builder.getQueryLimitsBuilder().setResultsTotal(minCachedTopK);
+        return builder.build();
+    }
+
+    /** Cache the results of an executed request.  The results must not have been truncated due to a timeout
+     *
+     * @param executedRequest the request as it was executed, see executionRequest()
+     */
+    public void put(long generation, RpcIndexQuery executedRequest, List<RpcDecoratedResultItem> results) {
+        if (!enabled || !isCacheable(executedRequest))
+            return;
+
+        // An empty result is more likely to be the result of an error than a real empty result set,
+        // so we err on the side of not caching it
+        if (results.isEmpty())
+            return;
+
+        dropStaleGenerations(generation);
+
+        cache.put(new Key(generation, canonicalize(executedRequest)),
+                new Entry(executedRequest.getQueryLimits().getResultsTotal(), List.copyOf(results)));
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    private boolean isCacheable(RpcIndexQuery request) {
+        // Debug data is only exported when re-ranking, and shouldn't be served from the cache
+        return !request.getParameters().getExportDebugData();
+    }
+
+    private void dropStaleGenerations(long generation) {
+        long previous = lastGeneration.getAndAccumulate(generation, Math::max);
+        if (previous != Long.MIN_VALUE && previous < generation) {
+            cache.invalidateAll();
+        }
+    }
+
+    /** Reduce the request to the parts that affect which results are returned and in which order */
+    static ByteString canonicalize(RpcIndexQuery request) {
+        var builder = request.toBuilder()
+                .clearHumanQuery();
+
+        builder.getQueryLimitsBuilder()
+                .clearTimeoutMs()
+                .clearResultsTotal()
+                .clearPriority();
+
+        return builder.build().toByteString();
+    }
+}
@@ -0,0 +1,81 @@
+package nu.marginalia.index;
+
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import nu.marginalia.api.searchquery.RpcDecoratedResultItem;
+import nu.marginalia.model.id.UrlIdCodec;
+
+import java.util.*;
+
+/** Merges the results of a query against the index with the results of the
+ * same query against the delta index, see {@link DeltaIndex}.
+ * <p></p>
+ * Both result lists must be ranked with the same term statistics for their
+ * scores to be comparable.  The domains of the delta index are excluded from
+ * the query against the index, so the two lists never hold the same document.
+ */
+public class IndexResultMerger {
+
+    private IndexResultMerger() {}
+
+    /** Merge the results by ranking score, best first.
+     *
+     * @param indexResults results from the index
+     * @param deltaResults results from the delta index
+     * @param limitByDomain the maximum number of results from the same domain
+     * @param limitTotal the maximum number of results
+     */
+    public static List<RpcDecoratedResultItem> merge(List<RpcDecoratedResultItem> indexResults,
+                                                     List<RpcDecoratedResultItem> deltaResults,
+                                                     int limitByDomain,
+                                                     int limitTotal)
+    {
+        if (deltaResults.isEmpty())
+            return indexResults;
+
+        List<RpcDecoratedResultItem> candidates = new ArrayList<>(indexResults.size() + deltaResults.size());
+        candidates.addAll(deltaResults);
+        candidates.addAll(indexResults);
+
+        candidates.sort(Comparator.comparingDouble(RpcDecoratedResultItem::getRankingScore));
+
+        // The number of results from the domain is counted by each query on its own,
+        // so the counts of the two queries are added up
+        Int2IntOpenHashMap resultsFromDomain = countResultsFromDomain(indexResults);
+        for (var entry : countResultsFromDomain(deltaResults).int2IntEntrySet()) {
+            resultsFromDomain.addTo(entry.getIntKey(), entry.getIntValue());
+        }
+
+        Int2IntOpenHashMap resultsPerDomain = new Int2IntOpenHashMap();
+        List<RpcDecoratedResultItem> merged = new ArrayList<>(Math.min(limitTotal, candidates.size()));
+
+        for (var item : candidates) {
+            if (merged.size() >= limitTotal)
+                break;
+
+            int domainId = UrlIdCodec.getDomainId(item.getRawItem().getCombinedId());
+            if (resultsPerDomain.addTo(domainId, 1) >= limitByDomain)
+                continue;
+
+            int count = resultsFromDomain.get(domainId);
+            if (item.getResultsFromDomain() != count) {
+                item = item.toBuilder().setResultsFromDomain(count).build();
+            }
+
+            merged.add(item);
+        }
+
+        return merged;
+    }
+
+    /** The number of results each domain had in a query, which is the same for every result of the domain */
+    private static Int2IntOpenHashMap countResultsFromDomain(List<RpcDecoratedResultItem> results) {
+        Int2IntOpenHashMap ret = new Int2IntOpenHashMap();
+
+        for (var item : results) {
+            int domainId = UrlIdCodec.getDomainId(item.getRawItem().getCombinedId());
+            ret.put(domainId, Math.max(ret.get(domainId), item.getResultsFromDomain()));
+        }
+
+        return ret;
+    }
+}
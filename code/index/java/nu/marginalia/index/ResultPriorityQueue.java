@@ -5,6 +5,7 @@ import nu.marginalia.index.model.RankableDocument;
 import nu.marginalia.model.id.UrlIdCodec;
 import org.jetbrains.annotations.NotNull;
 
+import javax.annotation.Nullable;
 import java.util.*;
 
 /** A priority queue for search results. This class is not thread-safe.
@@ -18,10 +19,17 @@ public class ResultPriorityQueue implements Iterable<RankableDocument> {
     /** The number of results currently held from each domain */
     private final Int2IntOpenHashMap resultsPerDomainHeld;
 
+    /** The number of results from each domain counted in itemsBelowThreshold */
+    private final Int2IntOpenHashMap resultsPerDomainWithheld;
+
     private int itemsProcessed = 0;
+    private int itemsBelowThreshold = 0;
     private final int limit;
     private final int domainLimit;
 
+    @Nullable
+    private ScoreThreshold threshold;
+
     public ResultPriorityQueue(int limit, int domainLimit) {
         this.queue = new TreeSet<>(Comparator.naturalOrder());
 
@@ -31,10 +39,18 @@ public class ResultPriorityQueue implements Iterable<RankableDocument> {
         this.resultsPerDomainSeen = new Int2IntOpenHashMap(2_500);
         this.resultsPerDomainSeen.defaultReturnValue(0);
 
+        this.resultsPerDomainWithheld = new Int2IntOpenHashMap();
+        this.resultsPerDomainWithheld.defaultReturnValue(0);
+
         this.limit = limit;
         this.domainLimit = domainLimit;
     }
 
+    /** Reject results with a worse score than the threshold, see {@link ScoreThreshold} */
+    public void setThreshold(@Nullable ScoreThreshold threshold) {
+        this.threshold = threshold;
+    }
+
     public @NotNull Iterator<RankableDocument> iterator() {
         return queue.iterator();
     }
@@ -50,6 +66,7 @@ public class ResultPriorityQueue implements Iterable<RankableDocument> {
             resultsPerDomainSeen.addTo(entry.getIntKey(), entry.getIntValue());
         });
         itemsProcessed += otherQueue.itemsProcessed;
+        itemsBelowThreshold += otherQueue.itemsBelowThreshold;
     }
 
     public boolean add(@NotNull RankableDocument document) {
@@ -67,6 +84,15 @@ public class ResultPriorityQueue implements Iterable<RankableDocument> {
             itemsProcessed++;
         }
 
+        // Short circuit if the client has already found enough results that are better than this one
+        if (threshold != null && threshold.excludes(document.item.getScore())) {
+            if (updateStats && wouldBeQueued(document, domainId)) {
+                itemsBelowThreshold++;
+                resultsPerDomainWithheld.addTo(domainId, 1);
+            }
+            return false;
+        }
+
         // Short circuit if we're already at the limit and this item is worse than the last one
         if (queue.size() >= limit) {
             var last = queue.last();
@@ -86,6 +112,16 @@ public class ResultPriorityQueue implements Iterable<RankableDocument> {
     }
 
 
+    /** Whether the document would have been kept if it weren't for the threshold, so that only
+     * results the client could have been sent are counted as withheld.  The withheld results
+     * count against the domain limit as if they had been kept. */
+    private boolean wouldBeQueued(RankableDocument document, int domainId) {
+        if (queue.size() >= limit && queue.last().item.compareTo(document.item) <= 0)
+            return false;
+
+        return resultsPerDomainHeld.get(domainId) + resultsPerDomainWithheld.get(domainId) < domainLimit;
+    }
+
     private void removeExcessItems() {
 
         while (queue.size() > limit) {
@@ -127,6 +163,11 @@ public class ResultPriorityQueue implements Iterable<RankableDocument> {
     public int getItemsProcessed() {
         return itemsProcessed;
     }
+    /** The number of items rejected because of the score threshold, that would otherwise
+     * have been kept, at most the limit of the queue */
+    public int getItemsBelowThreshold() {
+        return Math.min(itemsBelowThreshold, limit);
+    }
     public boolean isEmpty() {
         return queue.isEmpty();
     }
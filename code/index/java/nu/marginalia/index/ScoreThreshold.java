@@ -0,0 +1,32 @@
+package nu.marginalia.index;
+
+/** Ranking score bound pushed to the index by the client of a streaming query.
+ * <p></p>
+ * The client merges the results of all index partitions, and once it holds as many
+ * results as it needs, the score of the worst of them is the worst score any result can
+ * have and still be of use.  The bound only ever improves (decreases, since lower scores
+ * are better), and results with a strictly worse score can be dropped by the partition.
+ */
+public class ScoreThreshold {
+    private volatile double threshold = Double.POSITIVE_INFINITY;
+
+    /** Offer a new bound from the client, keeping it if it is tighter than the current one */
+    public synchronized void offer(double score) {
+        if (score < threshold) {
+            threshold = score;
+        }
+    }
+
+    /** Returns true if a result with this score is of no use to the client */
+    public boolean excludes(double score) {
+        return score > threshold;
+    }
+
+    public boolean isSet() {
+        return threshold != Double.POSITIVE_INFINITY;
+    }
+
+    public double get() {
+        return threshold;
+    }
+}
@@ -8,6 +8,8 @@ import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReadWriteLock;
@@ -15,6 +17,9 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /** This class holds {@link CombinedIndexReader} and deals with the stateful nature of the index,
  * i.e. it may be possible to reconstruct the index and load a new set of data.
+ * <p></p>
+ * It also holds the {@link DeltaIndex}, if there is one, which is replaced independently of the index
+ * when a new delta index is constructed, and is dropped when the index is switched.
  */
 @Singleton
 public class StatefulIndex {
@@ -28,6 +33,10 @@ public class StatefulIndex {
     private final ServiceEventLog eventLog;
 
     private volatile CombinedIndexReader combinedIndexReader;
+    private volatile DeltaIndex deltaIndex;
+
+    /** Incremented every time the index is switched, used to invalidate derived state such as cached results */
+    private final AtomicLong generation = new AtomicLong();
 
     /** The index has entered a degraded state and needs to be restarted
      * to resolve its issues. */
@@ -60,6 +69,13 @@ public class StatefulIndex {
             if (combinedIndexReader == null) {
                 combinedIndexReader = servicesFactory.getCombinedIndexReader();
                 eventLog.logEvent("INDEX-INIT", "Index loaded");
+
+                try {
+                    deltaIndex = servicesFactory.getDeltaIndex();
+                }
+                catch (Exception ex) {
+                    logger.error("Failed to load delta index", ex);
+                }
             }
             else {
                 eventLog.logEvent("INDEX-INIT", "No index loaded");
@@ -96,6 +112,10 @@ public class StatefulIndex {
 
             CombinedIndexReader oldIndex = combinedIndexReader;
 
+            // The new index contains every journal page, including those of the delta index,
+            // so the delta index is no longer needed
+            dropDeltaIndex();
+
             // We've been unable to close the index,
             // switch the files anyway and enter a degraded state,
             // that should provoke a restart.
@@ -110,6 +130,7 @@ public class StatefulIndex {
                     logger.error("Failed to perform additional work", ex);
                 }
                 combinedIndexReader = null;
+                generation.incrementAndGet();
                 degradedState = true;
                 return false;
             }
@@ -122,6 +143,7 @@ public class StatefulIndex {
                 LockSupport.parkNanos(100_000);
             }
             combinedIndexReader = nextIndex;
+            generation.incrementAndGet();
 
             try {
                 additionalWork.call();
@@ -150,6 +172,69 @@ public class StatefulIndex {
         return switchIndex(() -> {});
     }
 
+    /** Replaces the delta index with the next delta index.  Returns true if the delta index
+     * was successfully switched.
+     * <p></p>
+     * Unlike when switching the index, queries are not held back while the delta index is switched,
+     * as they can run without it.  Queries that start while the switch is in progress don't see
+     * a delta index.
+     */
+    public boolean switchDeltaIndex() {
+        eventLog.logEvent("INDEX-SWITCH-DELTA-BEGIN", "");
+
+        try {
+            DeltaIndex oldDelta = deltaIndex;
+
+            // Clearing the reference stops new queries from using the old delta index, and
+            // closing it waits for the queries that are using it to finish
+            deltaIndex = null;
+            generation.incrementAndGet();
+
+            if (oldDelta != null && !oldDelta.close()) {
+                eventLog.logEvent("INDEX-SWITCH-DELTA-ERR", "Failed to close old delta index");
+                return false;
+            }
+
+            servicesFactory.switchDeltaFiles();
+
+            DeltaIndex nextDelta = servicesFactory.getDeltaIndex();
+            if (nextDelta != null) {
+                while (!nextDelta.isLoaded()) {
+                    LockSupport.parkNanos(100_000);
+                }
+            }
+
+            deltaIndex = nextDelta;
+            generation.incrementAndGet();
+
+            eventLog.logEvent("INDEX-SWITCH-DELTA-OK", "");
+        }
+        catch (Exception ex) {
+            eventLog.logEvent("INDEX-SWITCH-DELTA-ERR", "");
+            logger.error("Uncaught exception", ex);
+            return false;
+        }
+
+        return true;
+    }
+
+    /** Close and remove the delta index */
+    private void dropDeltaIndex() {
+        DeltaIndex oldDelta = deltaIndex;
+        deltaIndex = null;
+
+        if (oldDelta != null && !oldDelta.close()) {
+            logger.error("Failed to close delta index");
+        }
+
+        try {
+            servicesFactory.deleteDeltaFiles();
+        }
+        catch (IOException ex) {
+            logger.error("Failed to remove delta index files", ex);
+        }
+    }
+
     /** Returns true if the service has initialized */
     public boolean isAvailable() {
         return combinedIndexReader != null;
@@ -180,6 +265,14 @@ public class StatefulIndex {
 
             Lock instanceUseLock = currentCIR.useLock();
             if (instanceUseLock.tryLock()) {
+                var currentDelta = deltaIndex;
+                if (currentDelta != null && currentDelta.isLoaded()) {
+                    Lock deltaUseLock = currentDelta.index().useLock();
+                    if (deltaUseLock.tryLock()) {
+                        return new IndexReference(currentCIR, instanceUseLock, currentDelta, deltaUseLock);
+                    }
+                }
+
                 return new IndexReference(currentCIR, instanceUseLock);
             } else {
                 // indexReadLock.readLock being held means this shouldn't be possible,
@@ -192,6 +285,12 @@ public class StatefulIndex {
         }
     }
 
+    /** Returns the generation of the current index.  This is stable for as long as
+     * an {@link IndexReference} to the index is held. */
+    public long getGeneration() {
+        return generation.get();
+    }
+
     public boolean isDegraded() {
         return degradedState;
     }
@@ -201,12 +300,26 @@ public class StatefulIndex {
         private final CombinedIndexReader index;
         @Nullable
         private final Lock useLock;
+        @Nullable
+        private final DeltaIndex delta;
+        @Nullable
+        private final Lock deltaUseLock;
 
         public IndexReference(
                 @Nullable CombinedIndexReader index,
                 @Nullable Lock useLock) {
+            this(index, useLock, null, null);
+        }
+
+        public IndexReference(
+                @Nullable CombinedIndexReader index,
+                @Nullable Lock useLock,
+                @Nullable DeltaIndex delta,
+                @Nullable Lock deltaUseLock) {
             this.index = index;
             this.useLock = useLock;
+            this.delta = delta;
+            this.deltaUseLock = deltaUseLock;
         }
 
         public boolean isAvailable() {
@@ -221,7 +334,16 @@ public class StatefulIndex {
             return index;
         }
 
+        /** Returns the delta index, or null if there is none */
+        @Nullable
+        public DeltaIndex getDelta() {
+            return delta;
+        }
+
         public void close() {
+            if (deltaUseLock != null) {
+                deltaUseLock.unlock();
+            }
             if (useLock != null) {
                 useLock.unlock();
             }
@@ -17,13 +17,20 @@ public sealed interface IndexFileName {
     record FullDocsValues() implements IndexFileName {}
     record FullPositions() implements IndexFileName {}
 
+    /** Estimated document frequencies of the terms in the full index, see TermFrequencySketch */
+    record TermStatistics(String languageIsoCode) implements IndexFileName {}
+
     record PrioWords(String languageIsoCode) implements IndexFileName {}
     record PrioDocs() implements IndexFileName {}
 
     record ForwardDocIds() implements IndexFileName { }
+    record ForwardDocIdsLookup() implements IndexFileName { }
     record ForwardDocData() implements IndexFileName { }
     record ForwardSpansData() implements IndexFileName { }
 
+    /** The number of index journal pages per language that went into the index */
+    record JournalPages() implements IndexFileName { }
+
     static List<IndexFileName> revFullIndexFiles(LanguageConfiguration languageConfiguration) {
         List<IndexFileName> ret = new ArrayList<>();
 
@@ -33,6 +40,7 @@ public sealed interface IndexFileName {
 
         for (LanguageDefinition ld : languageConfiguration.languages()) {
             ret.add(new FullWords(ld.isoCode()));
+            ret.add(new TermStatistics(ld.isoCode()));
         }
 
         return ret;
@@ -54,10 +62,20 @@ public sealed interface IndexFileName {
         return List.of(
                 new ForwardDocData(),
                 new ForwardDocIds(),
-                new ForwardSpansData()
+                new ForwardDocIdsLookup(),
+                new ForwardSpansData(),
+                new JournalPages()
         );
     }
 
+    /** Returns the directory of the delta index within the index directory.  The delta index
+     * holds the documents loaded since the index was last constructed, and uses the same file names
+     * as the index.
+     */
+    static Path deltaDirectory(Path basePath) {
+        return basePath.resolve("delta");
+    }
+
     static Path resolve(Path basePath, IndexFileName fileName, Version version) {
         return switch (fileName) {
             case FullWords(String isoCode) -> switch (version) {
@@ -76,6 +94,10 @@ public sealed interface IndexFileName {
                 case CURRENT -> basePath.resolve("rev-positions.dat");
                 case NEXT -> basePath.resolve("rev-positions.dat.next");
             };
+            case TermStatistics(String languageIsoCode) -> switch (version) {
+                case CURRENT -> basePath.resolve("term-stats-%s.dat".formatted(languageIsoCode));
+                case NEXT -> basePath.resolve("term-stats-%s.dat.next".formatted(languageIsoCode));
+            };
             case PrioWords(String languageIsoCode) -> switch (version) {
                 case CURRENT -> basePath.resolve("rev-prio-words-%s.dat".formatted(languageIsoCode));
                 case NEXT -> basePath.resolve("rev-prio-words-%s.dat.next".formatted(languageIsoCode));
@@ -88,6 +110,10 @@ public sealed interface IndexFileName {
                 case CURRENT -> basePath.resolve("fwd-doc-id.dat");
                 case NEXT -> basePath.resolve("fwd-doc-id.dat.next");
             };
+            case ForwardDocIdsLookup() -> switch (version) {
+                case CURRENT -> basePath.resolve("fwd-doc-id-lookup.dat");
+                case NEXT -> basePath.resolve("fwd-doc-id-lookup.dat.next");
+            };
             case ForwardDocData() -> switch (version) {
                 case CURRENT -> basePath.resolve("fwd-doc-data.dat");
                 case NEXT -> basePath.resolve("fwd-doc-data.dat.next");
@@ -96,6 +122,10 @@ public sealed interface IndexFileName {
                 case CURRENT -> basePath.resolve("fwd-spans.dat");
                 case NEXT -> basePath.resolve("fwd-spans.dat.next");
             };
+            case JournalPages() -> switch (version) {
+                case CURRENT -> basePath.resolve("journal-pages.dat");
+                case NEXT -> basePath.resolve("journal-pages.dat.next");
+            };
         };
     }
 
@@ -2,8 +2,14 @@ package nu.marginalia.index.config;
 
 import nu.marginalia.btree.model.BTreeBlockSize;
 import nu.marginalia.btree.model.BTreeContext;
+import nu.marginalia.skiplist.SkipListValueFormat;
 
 public class ReverseIndexParameters
 {
     public static final BTreeContext wordsBTreeContext = new BTreeContext(5, 2, BTreeBlockSize.BS_512);
+
+    /** Format of the full index' document values file.  Readers handle both formats,
+     * so this can be toggled back to PLAIN without invalidating existing indexes. */
+    public static final SkipListValueFormat fullIndexValueFormat =
+            Boolean.getBoolean("index.plainSkipListValues") ? SkipListValueFormat.PLAIN : SkipListValueFormat.COMPRESSED;
 }
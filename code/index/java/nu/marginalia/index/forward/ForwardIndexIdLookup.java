@@ -0,0 +1,127 @@
+package nu.marginalia.index.forward;
+
+import nu.marginalia.array.LongArray;
+import nu.marginalia.array.LongArrayFactory;
+import nu.marginalia.ffi.LinuxSystemCalls;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/** Memory mapped directory over the sorted forward index document ids, used to find
+ * the position of a document id in the forward index without building an on-heap hash map.
+ * <p></p>
+ * The id range is divided into a power-of-two number of equally wide buckets, and the file
+ * holds the position of the first id in each bucket.  A lookup finds the bucket with a shift,
+ * and then binary searches the (typically handful of) ids within that bucket.
+ * <p></p>
+ * Layout, as longs:
+ * <pre>
+ * MAGIC
+ * minId
+ * maxId
+ * shift
+ * numBuckets
+ * bucketStart[numBuckets + 1]
+ * </pre>
+ */
+public class ForwardIndexIdLookup implements AutoCloseable {
+    private static final long MAGIC = 0x4657_4449_4458_0001L;
+    private static final int HEADER_SIZE = 5;
+
+    /** Target average number of ids per bucket */
+    private static final int IDS_PER_BUCKET = 4;
+
+    private final LongArray ids;
+    private final LongArray directory;
+
+    private final long minId;
+    private final long maxId;
+    private final int shift;
+
+    public ForwardIndexIdLookup(Path lookupFile, LongArray ids) throws IOException {
+        this.ids = ids;
+        this.directory = LongArrayFactory.mmapForReadingShared(lookupFile);
+
+        if (directory.size() < HEADER_SIZE || directory.get(0) != MAGIC) {
+            directory.close();
+            throw new IOException("Invalid forward index id lookup file " + lookupFile);
+        }
+
+        minId = directory.get(1);
+        maxId = directory.get(2);
+        shift = (int) directory.get(3);
+        long numBuckets = directory.get(4);
+
+        if (directory.size() != HEADER_SIZE + numBuckets + 1
+         || directory.get(HEADER_SIZE + numBuckets) != ids.size()) {
+            directory.close();
+            throw new IOException("Forward index id lookup file " + lookupFile + " does not match the ids file");
+        }
+
+        LinuxSystemCalls.madviseRandom(directory.getMemorySegment());
+    }
+
+    /** Return the position of the id in the ids array, or -1 if it is not present */
+    public int idxOf(long id) {
+        if (id < minId || id > maxId)
+            return -1;
+
+        long bucket = HEADER_SIZE + ((id - minId) >>> shift);
+
+        long start = directory.get(bucket);
+        long end = directory.get(bucket + 1);
+
+        long pos = ids.binarySearch2(id, start, end);
+        if (pos >= end || ids.get(pos) != id)
+            return -1;
+
+        return (int) pos;
+    }
+
+    /** Write a lookup file for the provided sorted ids array */
+    public static void write(LongArray sortedIds, Path lookupFile) throws IOException {
+        Files.deleteIfExists(lookupFile);
+
+        final long n = sortedIds.size();
+
+        final long minId = n > 0 ? sortedIds.get(0) : 0;
+        final long maxId = n > 0 ? sortedIds.get(n - 1) : -1;
+
+        final long targetBuckets = Long.highestOneBit(Math.max(1, n / IDS_PER_BUCKET));
+
+        // Smallest shift that makes the id range fit in the target number of buckets
+        int shift = 0;
+        if (n > 0) {
+            long range = maxId - minId;
+            while ((range >>> shift) >= targetBuckets) {
+                shift++;
+            }
+        }
+
+        final long numBuckets = n > 0 ? ((maxId - minId) >>> shift) + 1 : 1;
+
+        try (LongArray directory = LongArrayFactory.mmapForWritingConfined(lookupFile, HEADER_SIZE + numBuckets + 1)) {
+            directory.set(0, MAGIC);
+            directory.set(1, minId);
+            directory.set(2, maxId);
+            directory.set(3, shift);
+            directory.set(4, numBuckets);
+
+            long pos = 0;
+            for (long bucket = 0; bucket < numBuckets; bucket++) {
+                directory.set(HEADER_SIZE + bucket, pos);
+                while (pos < n && ((sortedIds.get(pos) - minId) >>> shift) == bucket) {
+                    pos++;
+                }
+            }
+            directory.set(HEADER_SIZE + numBuckets, n);
+
+            directory.force();
+        }
+    }
+
+    public void close() {
+        directory.close();
+    }
+}
@@ -1,6 +1,5 @@
 package nu.marginalia.index.forward;
 
-import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
 import nu.marginalia.array.LongArray;
 import nu.marginalia.array.LongArrayFactory;
 import nu.marginalia.ffi.LinuxSystemCalls;
@@ -10,6 +9,7 @@ import nu.marginalia.index.forward.spans.SpansCodec;
 import nu.marginalia.index.model.FeaturesCodec;
 import nu.marginalia.ranking.DomainRankings;
 import nu.marginalia.model.id.UrlIdCodec;
+import org.roaringbitmap.RoaringBitmap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -27,7 +27,8 @@ import static nu.marginalia.index.config.ForwardIndexParameters.*;
  * The forward index is constructed of a staggered array
  * called 'data' containing domains and document level metadata,
  * and a mapping between document identifiers to the index into the
- * data array.
+ * data array.  The mapping is a sorted array of ids, with a memory mapped
+ * lookup directory ({@link ForwardIndexIdLookup}) to speed up the search.
  * <p/>
  * The metadata is a binary encoding of {@see nu.marginalia.idx.DocumentMetadata}
  */
@@ -35,7 +36,8 @@ public class ForwardIndexReader {
     private final LongArray ids;
     private final LongArray data;
 
-    private volatile Long2IntOpenHashMap idsMap;
+    @Nullable
+    private final ForwardIndexIdLookup idsLookup;
 
     private final DomainRankings domainRankings;
 
@@ -46,11 +48,13 @@ public class ForwardIndexReader {
     private static ForwardIndexVersion version;
 
     public ForwardIndexReader(Path idsFile,
+                              Path idsLookupFile,
                               Path dataFile,
                               Path spansFile) throws IOException {
         if (!Files.exists(dataFile)) {
             logger.warn("Failed to create ForwardIndexReader, {} is absent", dataFile);
             ids = null;
+            idsLookup = null;
             data = null;
             domainRankings = null;
             spansFd = -1;
@@ -60,6 +64,7 @@ public class ForwardIndexReader {
         else if (!Files.exists(idsFile)) {
             logger.warn("Failed to create ForwardIndexReader, {} is absent", idsFile);
             ids = null;
+            idsLookup = null;
             data = null;
             domainRankings = null;
             spansFd = -1;
@@ -69,6 +74,7 @@ public class ForwardIndexReader {
         else if (!Files.exists(spansFile)) {
             logger.warn("Failed to create ForwardIndexReader, {} is absent", spansFile);
             ids = null;
+            idsLookup = null;
             data = null;
             domainRankings = null;
             spansFd = -1;
@@ -92,16 +98,23 @@ public class ForwardIndexReader {
         spansFd = LinuxSystemCalls.openBuffered(spansFile);
         LinuxSystemCalls.fadviseWillneed(spansFd);
 
-        Thread.ofPlatform().start(this::createIdsMap);
+        idsLookup = loadIdsLookup(idsLookupFile, ids);
     }
 
-    private void createIdsMap() {
-        Long2IntOpenHashMap idsMap = new Long2IntOpenHashMap((int) ids.size());
-        for (int i = 0; i < ids.size(); i++) {
-            idsMap.put(ids.get(i), i);
+    @Nullable
+    private ForwardIndexIdLookup loadIdsLookup(Path idsLookupFile, LongArray ids) {
+        if (!Files.exists(idsLookupFile)) {
+            logger.warn("{} is absent, falling back to binary search of document ids", idsLookupFile);
+            return null;
+        }
+
+        try {
+            return new ForwardIndexIdLookup(idsLookupFile, ids);
+        }
+        catch (IOException ex) {
+            logger.error("Failed to load forward index id lookup, falling back to binary search of document ids", ex);
+            return null;
         }
-        this.idsMap = idsMap;
-        logger.info("Forward index loaded into RAM");
     }
 
     private static LongArray loadIds(Path idsFile) throws IOException {
@@ -169,8 +182,8 @@ public class ForwardIndexReader {
 
         final long strippedId = UrlIdCodec.removeRank(combinedDocId);
 
-        if (idsMap != null) {
-            int ret = idsMap.getOrDefault(strippedId, -1);
+        if (idsLookup != null) {
+            int ret = idsLookup.idxOf(strippedId);
 
             if (ret == -1) {
                 logger.warn("Could not find offset for doc {} ({}:{}:{})", combinedDocId,
@@ -221,6 +234,20 @@ public class ForwardIndexReader {
         return (int) ids.size();
     }
 
+    /** Returns the ids of the domains that have documents in the forward index.  This scans
+     * every document id, and is intended for small indexes such as the delta index. */
+    public RoaringBitmap getDomainIds() {
+        RoaringBitmap domainIds = new RoaringBitmap();
+        if (ids == null)
+            return domainIds;
+
+        for (long i = 0; i < ids.size(); i++) {
+            domainIds.add(UrlIdCodec.getDomainId(ids.get(i)));
+        }
+
+        return domainIds;
+    }
+
     public void close() {
         try {
             if (spansFd >= 0)
@@ -245,6 +272,14 @@ public class ForwardIndexReader {
         catch (RuntimeException ex) {
             logger.error("Error closing 'ids'", ex);
         }
+
+        try {
+            if (idsLookup != null)
+                idsLookup.close();
+        }
+        catch (RuntimeException ex) {
+            logger.error("Error closing 'idsLookup'", ex);
+        }
     }
 
     public boolean isLoaded() {
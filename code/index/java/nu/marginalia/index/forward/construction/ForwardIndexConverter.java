@@ -4,6 +4,7 @@ import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
 import nu.marginalia.array.LongArray;
 import nu.marginalia.array.LongArrayFactory;
 import nu.marginalia.index.config.ForwardIndexParameters;
+import nu.marginalia.index.forward.ForwardIndexIdLookup;
 import nu.marginalia.index.forward.spans.IndexSpansWriter;
 import nu.marginalia.index.journal.IndexJournal;
 import nu.marginalia.index.journal.IndexJournalPage;
@@ -35,6 +36,7 @@ public class ForwardIndexConverter {
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
     private final Path outputFileDocsId;
+    private final Path outputFileDocsIdLookup;
     private final Path outputFileDocsData;
     private final Collection<IndexJournal> journals;
     private final DomainRankings domainRankings;
@@ -43,6 +45,7 @@ public class ForwardIndexConverter {
 
     public ForwardIndexConverter(ProcessHeartbeat heartbeat,
                                  Path outputFileDocsId,
+                                 Path outputFileDocsIdLookup,
                                  Path outputFileDocsData,
                                  Path outputFileSpansData,
                                  Collection<IndexJournal> journals,
@@ -50,6 +53,7 @@ public class ForwardIndexConverter {
                                  ) {
         this.heartbeat = heartbeat;
         this.outputFileDocsId = outputFileDocsId;
+        this.outputFileDocsIdLookup = outputFileDocsIdLookup;
         this.outputFileDocsData = outputFileDocsData;
         this.outputFileSpansData = outputFileSpansData;
         this.journals = journals;
@@ -77,6 +81,9 @@ public class ForwardIndexConverter {
 
             LongArray docsFileId = getDocIds(outputFileDocsId, journals);
 
+            // sorted list of ids -> mmapped lookup directory, so the reader doesn't have to build a hash map
+            ForwardIndexIdLookup.write(docsFileId, outputFileDocsIdLookup);
+
             progress.progress(TaskSteps.GATHER_OFFSETS);
 
             // doc ids -> sorted list of ids
@@ -199,6 +206,7 @@ public class ForwardIndexConverter {
 
     private void deleteOldFiles() throws IOException {
         Files.deleteIfExists(outputFileDocsId);
+        Files.deleteIfExists(outputFileDocsIdLookup);
         Files.deleteIfExists(outputFileDocsData);
     }
 
@@ -18,9 +18,13 @@ import nu.marginalia.api.searchquery.model.results.PrototypeRankingParameters;
 import nu.marginalia.index.CombinedIndexReader;
 import nu.marginalia.index.reverse.IndexLanguageContext;
 import nu.marginalia.index.reverse.query.IndexSearchBudget;
+import nu.marginalia.index.statistics.GlobalTermStatistics;
+import nu.marginalia.index.statistics.TermFrequencySketch;
 import nu.marginalia.ranking.set.SearchSet;
 import nu.marginalia.ranking.connectivity.ConnectivityView;
 import nu.marginalia.language.keywords.KeywordHasher;
+import org.jetbrains.annotations.Nullable;
+import org.roaringbitmap.RoaringBitmap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -79,6 +83,10 @@ public class SearchContext {
     public final Long2ObjectOpenHashMap<String> termIdToString;
     public final IntList mandatoryDomainIds;
     public final IntList excludedDomainIds;
+
+    /** Domains excluded by the blacklist and the NSFW filter tier of the query, see ExcludedDomainSets */
+    public final RoaringBitmap excludedDomainSet;
+
     public final Int2FloatMap priorityDomainIds;
 
     public final ConnectivityView connectivityView;
@@ -89,6 +97,38 @@ public class SearchContext {
                                        SearchSet searchSet,
                                        ConnectivityView connectivityView
                                        ) {
+        return create(currentIndex, null, keywordHasher, request, searchSet, connectivityView);
+    }
+
+    /** Create a search context for the given index, where the term frequencies and the document
+     * count also include those of the statistics segment.  This is used when a query runs against both
+     * the index and the delta index, so that the terms are weighted the same in both, and the
+     * scores of their results are comparable.
+     */
+    public static SearchContext create(CombinedIndexReader currentIndex,
+                                       @Nullable CombinedIndexReader statisticsSegment,
+                                       KeywordHasher keywordHasher,
+                                       RpcIndexQuery request,
+                                       SearchSet searchSet,
+                                       ConnectivityView connectivityView
+                                       ) {
+        return create(currentIndex, statisticsSegment, keywordHasher, request, searchSet, connectivityView, new RoaringBitmap(), null);
+    }
+
+    /** Create a search context that excludes the documents of the domains in excludedDomainSet,
+     * in addition to those listed in the request.  If globalStatistics is not null, the term
+     * frequencies and the document count are those of the entire cluster, rather than only
+     * those of the local index.
+     */
+    public static SearchContext create(CombinedIndexReader currentIndex,
+                                       @Nullable CombinedIndexReader statisticsSegment,
+                                       KeywordHasher keywordHasher,
+                                       RpcIndexQuery request,
+                                       SearchSet searchSet,
+                                       ConnectivityView connectivityView,
+                                       RoaringBitmap excludedDomainSet,
+                                       @Nullable GlobalTermStatistics.Snapshot globalStatistics
+                                       ) {
 
         var limits = request.getQueryLimits();
         var queryTerms = request.getTerms();
@@ -108,11 +148,14 @@ public class SearchContext {
                 connectivityView,
                 request.getLangIsoCode(),
                 currentIndex,
+                statisticsSegment,
+                globalStatistics,
                 queryTerms.getCompiledQuery(),
                 queryParams,
                 queryTerms,
                 rankingParams,
                 request.getExcludedDomainIdsList(),
+                excludedDomainSet,
                 request.getPriorityDomainIdsList(),
                 request.getPriorityDomainIdsWeightsList(),
                 limits);
@@ -123,25 +166,45 @@ public class SearchContext {
             ConnectivityView connectivityView,
             String langIsoCode,
             CombinedIndexReader currentIndex,
+            @Nullable CombinedIndexReader statisticsSegment,
+            @Nullable GlobalTermStatistics.Snapshot globalStatistics,
             String queryExpression,
             QueryParams queryParams,
             RpcQueryTerms query,
             RpcResultRankingParameters rankingParams,
             List<Integer> excludedDomainIdsList,
+            RoaringBitmap excludedDomainSet,
             List<Integer> priorityDomainIdsList,
             List<Float> priorityDomainIdsAmountsList,
             RpcQueryLimits limits)
     {
         this.connectivityView = connectivityView;
-        this.docCount = currentIndex.totalDocCount();
         this.languageContext = currentIndex.createLanguageContext(langIsoCode);
 
+        IndexLanguageContext statisticsLanguageContext = null;
+        int localDocCount = currentIndex.totalDocCount();
+        if (statisticsSegment != null) {
+            localDocCount += statisticsSegment.totalDocCount();
+            statisticsLanguageContext = statisticsSegment.createLanguageContext(langIsoCode);
+        }
+
+        // The cluster-wide statistics may lag behind the local index, so the local counts
+        // are used as a lower bound
+        TermFrequencySketch globalCounts = globalStatistics != null ? globalStatistics.forLanguage(langIsoCode) : null;
+        if (globalCounts != null) {
+            this.docCount = Math.clamp(globalStatistics.docCount(), localDocCount, Integer.MAX_VALUE);
+        }
+        else {
+            this.docCount = localDocCount;
+        }
+
         this.budget = new IndexSearchBudget(Math.max(limits.getTimeoutMs()/2, limits.getTimeoutMs()-10));
         this.queryTerms = query;
         this.params = rankingParams;
         this.queryParams = queryParams;
         this.mandatoryDomainIds = queryParams.searchSet().domainIds();
         this.excludedDomainIds = new IntArrayList(excludedDomainIdsList);
+        this.excludedDomainSet = excludedDomainSet;
 
         if (priorityDomainIdsList.isEmpty()) {
             this.priorityDomainIds = Int2FloatMaps.EMPTY_MAP;
@@ -169,6 +232,15 @@ public class SearchContext {
             full[idx] = currentIndex.numHits(this.languageContext, id);
             prio[idx] = currentIndex.numHitsPrio(this.languageContext, id);
 
+            if (statisticsLanguageContext != null) {
+                full[idx] += statisticsSegment.numHits(statisticsLanguageContext, id);
+                prio[idx] += statisticsSegment.numHitsPrio(statisticsLanguageContext, id);
+            }
+
+            if (globalCounts != null) {
+                full[idx] = Math.clamp(globalCounts.estimate(id), full[idx], docCount);
+            }
+
             if (compiledQuery.at(idx).contains("_")) {
                 ngramsMask.set(idx);
             }
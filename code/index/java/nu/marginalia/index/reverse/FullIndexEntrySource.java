@@ -2,6 +2,7 @@ package nu.marginalia.index.reverse;
 
 import nu.marginalia.array.page.LongQueryBuffer;
 import nu.marginalia.index.reverse.query.EntrySource;
+import nu.marginalia.skiplist.SkipListBlockFilter;
 import nu.marginalia.skiplist.SkipListReader;
 
 public class FullIndexEntrySource implements EntrySource {
@@ -19,6 +20,10 @@ public class FullIndexEntrySource implements EntrySource {
         this.reader = reader;
     }
 
+    public void setBlockFilter(SkipListBlockFilter filter) {
+        reader.setBlockFilter(filter);
+    }
+
     @Override
     public void read(LongQueryBuffer buffer) {
         readEntries += reader.getKeys(buffer);
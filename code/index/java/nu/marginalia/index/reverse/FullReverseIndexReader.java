@@ -1,5 +1,6 @@
 package nu.marginalia.index.reverse;
 
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import it.unimi.dsi.fastutil.longs.LongList;
 import nu.marginalia.array.LongArray;
 import nu.marginalia.array.LongArrayFactory;
@@ -71,10 +72,14 @@ public class FullReverseIndexReader {
 
         valueReader = new SkipListValueReader(documentValues);
 
-        dataPool = new BufferPool(documents, SkipListConstants.BLOCK_SIZE,
-                (int) (Long.getLong("index.bufferPoolSize", 512*1024*1024L) / SkipListConstants.BLOCK_SIZE)
+        // There is no use in a pool larger than the documents file, which matters for small indexes such as the delta index
+        long poolSizeBlocks = Math.min(
+                Long.getLong("index.bufferPoolSize", 512*1024*1024L) / SkipListConstants.BLOCK_SIZE,
+                Files.size(documents) / SkipListConstants.BLOCK_SIZE + 1
         );
 
+        dataPool = new BufferPool(documents, SkipListConstants.BLOCK_SIZE, (int) poolSizeBlocks);
+
     }
 
     public boolean isLoaded() {
@@ -83,7 +88,8 @@ public class FullReverseIndexReader {
 
     private boolean validateDocumentsFooter(Path documents) {
         try {
-            SkipListWriter.validateFooter(documents, "skplist-docs-file");
+            var valueFormat = SkipListWriter.validateFooter(documents, "skplist-docs-file");
+            logger.info("Reverse index values format: {}", valueFormat);
             return true;
         }
         catch (IllegalArgumentException|IOException ex) {
@@ -92,6 +98,13 @@ public class FullReverseIndexReader {
         }
     }
 
+    @Nullable
+    public BufferPool.PoolStats getPoolStats() {
+        if (dataPool == null)
+            return null;
+        return dataPool.getStats();
+    }
+
     public void reset() {
         try {
             dataPool.reset();
@@ -102,6 +115,29 @@ public class FullReverseIndexReader {
     }
 
 
+    private static final int prefetchBlocksPerTerm = Integer.getInteger("index.prefetchBlocksPerTerm", 2);
+
+    /** Read the leading skip list blocks for the given terms into the buffer pool
+     * using batched io_uring reads, so that the subsequent query evaluation finds
+     * them in memory instead of issuing one pread per block.
+     *
+     * @return the number of pages read
+     */
+    public int prefetch(IndexLanguageContext languageContext, long[] termIds) {
+        if (dataPool == null || null == languageContext.wordLexiconFull)
+            return 0;
+
+        LongArrayList blockStarts = new LongArrayList(termIds.length);
+        for (long termId : termIds) {
+            long offset = languageContext.wordLexiconFull.wordOffset(termId);
+            if (offset >= 0) {
+                blockStarts.add(offset);
+            }
+        }
+
+        return SkipListReader.prefetch(dataPool, blockStarts.toLongArray(), prefetchBlocksPerTerm);
+    }
+
     public EntrySource documents(IndexLanguageContext languageContext, String term, long termId) {
         if (null == languageContext.wordLexiconFull) {
             logger.warn("Reverse index is not ready, dropping query");
@@ -0,0 +1,123 @@
+package nu.marginalia.index.reverse.construction;
+
+import nu.marginalia.index.journal.IndexJournal;
+import nu.marginalia.process.control.ProcessHeartbeat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Runs a construction task for each language's index journal concurrently.
+ * <p></p>
+ * The number of languages constructed at the same time is bounded both by a thread count
+ * and by a memory budget.  Each task is charged an estimate of its memory use, based on the
+ * size of its journal, and does not start until the budget has room for it.  A journal larger
+ * than the budget is charged the entire budget, and runs alone.  The largest journals are
+ * started first, as they determine how long the construction takes.
+ * <p></p>
+ * The parallelism is configured with index.construction.parallelLanguages,
+ * and the budget in megabytes with index.construction.memoryBudgetMb.
+ */
+public class LanguageConstructionScheduler {
+    private static final Logger logger = LoggerFactory.getLogger(LanguageConstructionScheduler.class);
+
+    private static final int defaultParallelism = Integer.getInteger("index.construction.parallelLanguages", 4);
+    private static final int defaultMemoryBudgetMb = Integer.getInteger("index.construction.memoryBudgetMb",
+            (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 2 / (1024 * 1024)));
+
+    private final int parallelism;
+    private final int memoryBudgetMb;
+
+    public LanguageConstructionScheduler() {
+        this(defaultParallelism, defaultMemoryBudgetMb);
+    }
+
+    public LanguageConstructionScheduler(int parallelism, int memoryBudgetMb) {
+        this.parallelism = Math.max(1, parallelism);
+        this.memoryBudgetMb = Math.max(1, memoryBudgetMb);
+    }
+
+    public interface LanguageTask<T> {
+        T run(String languageIsoCode, IndexJournal journal) throws IOException;
+    }
+
+    /** Run the task for each journal, and wait for all of them to finish.
+     *
+     * @return the result of the task for each language
+     * @throws IOException if any of the tasks failed, after the other tasks have finished
+     */
+    public <T> Map<String, T> runAll(ProcessHeartbeat processHeartbeat,
+                                     String processName,
+                                     Map<String, IndexJournal> journalsByLanguage,
+                                     LanguageTask<T> task) throws IOException
+    {
+        List<Map.Entry<String, IndexJournal>> entries = new ArrayList<>(journalsByLanguage.entrySet());
+        Map<String, Integer> costs = new HashMap<>();
+        for (var entry : entries) {
+            costs.put(entry.getKey(), estimateCostMb(entry.getValue()));
+        }
+        entries.sort(Comparator.comparing((Map.Entry<String, IndexJournal> e) -> costs.get(e.getKey())).reversed());
+
+        // The semaphore is fair, so that a large task waiting for the budget isn't starved by smaller ones
+        Semaphore budget = new Semaphore(memoryBudgetMb, true);
+        AtomicInteger finished = new AtomicInteger(0);
+
+        Map<String, Future<T>> futures = new LinkedHashMap<>();
+
+        try (var heartbeat = processHeartbeat.createAdHocTaskHeartbeat(processName);
+             var executor = Executors.newFixedThreadPool(Math.min(parallelism, Math.max(1, entries.size())))
+        ) {
+            for (var entry : entries) {
+                String languageIsoCode = entry.getKey();
+                int cost = costs.get(languageIsoCode);
+
+                futures.put(languageIsoCode, executor.submit(() -> {
+                    budget.acquire(cost);
+                    try {
+                        return task.run(languageIsoCode, entry.getValue());
+                    }
+                    finally {
+                        budget.release(cost);
+                        heartbeat.progress("LANGUAGES", finished.incrementAndGet(), entries.size());
+                    }
+                }));
+            }
+
+            Map<String, T> results = new HashMap<>();
+            Throwable failure = null;
+
+            for (var entry : futures.entrySet()) {
+                try {
+                    results.put(entry.getKey(), entry.getValue().get());
+                }
+                catch (ExecutionException ex) {
+                    logger.error("Construction failed for language " + entry.getKey(), ex.getCause());
+                    if (failure == null) {
+                        failure = ex.getCause();
+                    }
+                }
+            }
+
+            if (failure instanceof IOException ex) throw ex;
+            if (failure instanceof UncheckedIOException ex) throw ex.getCause();
+            if (failure instanceof RuntimeException ex) throw ex;
+            if (failure instanceof Error err) throw err;
+            if (failure != null) throw new RuntimeException(failure);
+
+            return results;
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private int estimateCostMb(IndexJournal journal) {
+        long sizeMb = journal.estimatedSize() / (1024 * 1024);
+        return (int) Math.clamp(sizeMb, 1, memoryBudgetMb);
+    }
+}
@@ -6,6 +6,7 @@ import nu.marginalia.index.reverse.construction.DocIdRewriter;
 import nu.marginalia.index.reverse.construction.IndexMergeOrdering;
 import nu.marginalia.index.reverse.construction.PositionsFileConstructor;
 import nu.marginalia.process.control.ProcessHeartbeat;
+import javax.annotation.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -14,6 +15,7 @@ import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.List;
+import java.util.Optional;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class FullIndexConstructor {
@@ -31,6 +33,8 @@ public class FullIndexConstructor {
     private final Path outputFileDocsValues;
     private final Path outputFileWords;
     private final Path outputFilePositions;
+    @Nullable
+    private final Path outputFileTermStatistics;
     private final DocIdRewriter docIdRewriter;
     private final Path tmpDir;
 
@@ -40,10 +44,23 @@ public class FullIndexConstructor {
                                 Path outputFilePositions,
                                 DocIdRewriter docIdRewriter,
                                 Path tmpDir) {
+        this(outputFileDocs, outputFileDocsValues, outputFileWords, outputFilePositions, null, docIdRewriter, tmpDir);
+    }
+
+    /** Create a constructor that also writes the term statistics of the index
+     * to outputFileTermStatistics, if it is not null. */
+    public FullIndexConstructor( Path outputFileDocs,
+                                Path outputFileDocsValues,
+                                Path outputFileWords,
+                                Path outputFilePositions,
+                                @Nullable Path outputFileTermStatistics,
+                                DocIdRewriter docIdRewriter,
+                                Path tmpDir) {
         this.outputFileDocs = outputFileDocs;
         this.outputFileDocsValues = outputFileDocsValues;
         this.outputFileWords = outputFileWords;
         this.outputFilePositions = outputFilePositions;
+        this.outputFileTermStatistics = outputFileTermStatistics;
         this.docIdRewriter = docIdRewriter;
         this.tmpDir = tmpDir;
     }
@@ -51,10 +68,29 @@ public class FullIndexConstructor {
     public void createReverseIndex(ProcessHeartbeat processHeartbeat,
                                    String processName,
                                    IndexJournal journal) throws IOException
+    {
+        try (var posConstructor = new PositionsFileConstructor(outputFilePositions)) {
+            var preindex = constructPreindex(processHeartbeat, processName, journal, posConstructor);
+            if (preindex.isPresent()) {
+                finalizeIndex(processHeartbeat, processName, preindex.get());
+            }
+        }
+    }
+
+    /** Construct and merge the preindexes of the journal, without writing the index files.
+     * This step may run concurrently for several journals, as long as they share the
+     * positions file constructor.  The result is passed to
+     * {@link #finalizeIndex(ProcessHeartbeat, String, FullPreindexReference)}.
+     *
+     * @return the merged preindex, or empty if the journal has no pages
+     */
+    public Optional<FullPreindexReference> constructPreindex(ProcessHeartbeat processHeartbeat,
+                                                             String processName,
+                                                             IndexJournal journal,
+                                                             PositionsFileConstructor posConstructor)
     {
         try (var heartbeat = processHeartbeat.createProcessTaskHeartbeat(CreateReverseIndexSteps.class, processName);
-             var preindexHeartbeat = processHeartbeat.createAdHocTaskHeartbeat("constructPreindexes");
-             var posConstructor = new PositionsFileConstructor(outputFilePositions)
+             var preindexHeartbeat = processHeartbeat.createAdHocTaskHeartbeat("constructPreindexes[" + processName + "]")
         ) {
             heartbeat.progress(CreateReverseIndexSteps.CONSTRUCT);
 
@@ -72,13 +108,27 @@ public class FullIndexConstructor {
 
             heartbeat.progress(CreateReverseIndexSteps.MERGE);
 
-            IndexMergeOrdering.mergeAll(preindexes, this::merge)
-                .ifPresent((index) -> {
-                    heartbeat.progress(CreateReverseIndexSteps.FINALIZE);
-                    finalizeIndex(index);
-                    heartbeat.progress(CreateReverseIndexSteps.FINISHED);
-                });
+            AtomicInteger merges = new AtomicInteger(0);
+            int totalMerges = Math.max(0, preindexes.size() - 1);
+
+            return IndexMergeOrdering.mergeAll(preindexes, (left, right) -> {
+                var merged = merge(left, right);
+                preindexHeartbeat.progress("MERGE", merges.incrementAndGet(), totalMerges);
+                return merged;
+            });
+        }
+    }
 
+    /** Write the merged preindex to the index files.  The docs files are shared between
+     * the languages, so this step must not run concurrently with another finalization
+     * to the same files. */
+    public void finalizeIndex(ProcessHeartbeat processHeartbeat,
+                              String processName,
+                              FullPreindexReference preindex)
+    {
+        try (var heartbeat = processHeartbeat.createProcessTaskHeartbeat(CreateReverseIndexSteps.class, processName)) {
+            heartbeat.progress(CreateReverseIndexSteps.FINALIZE);
+            finalizeIndex(preindex);
             heartbeat.progress(CreateReverseIndexSteps.FINISHED);
         }
     }
@@ -118,6 +168,11 @@ public class FullIndexConstructor {
     private void finalizeIndex(FullPreindexReference finalPR) {
         try {
             var finalP = finalPR.open();
+
+            if (outputFileTermStatistics != null) {
+                finalP.createTermFrequencySketch().write(outputFileTermStatistics);
+            }
+
             finalP.finalizeIndex(
                     outputFileDocs,
                     outputFileDocsValues,
@@ -2,6 +2,7 @@ package nu.marginalia.index.reverse.construction.full;
 
 import nu.marginalia.array.LongArray;
 import nu.marginalia.array.algo.LongArrayTransformations;
+import nu.marginalia.index.config.ReverseIndexParameters;
 import nu.marginalia.skiplist.SkipListWriter;
 
 import java.io.IOException;
@@ -18,7 +19,7 @@ public class FullIndexSkipListTransformer implements LongArrayTransformations.Lo
                                         Path docsValuesOutputFile,
                                         LongArray documentsArray) throws IOException {
         this.documentsArray = documentsArray;
-        this.writer = new SkipListWriter(docsOutputFile, docsValuesOutputFile);
+        this.writer = new SkipListWriter(docsOutputFile, docsValuesOutputFile, ReverseIndexParameters.fullIndexValueFormat);
     }
 
     @Override
@@ -8,6 +8,7 @@ import nu.marginalia.index.journal.IndexJournalPage;
 import nu.marginalia.index.reverse.construction.CountToOffsetTransformer;
 import nu.marginalia.index.reverse.construction.DocIdRewriter;
 import nu.marginalia.index.reverse.construction.PositionsFileConstructor;
+import nu.marginalia.index.statistics.TermFrequencySketch;
 import nu.marginalia.skiplist.SkipListWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -72,6 +73,16 @@ public class FullPreindex {
         }
     }
 
+    /** Estimate the document frequencies of the terms in the preindex.  This must be done
+     * before {@link #finalizeIndex}, which turns the document counts into offsets.  The width of
+     * the sketch is sized to the number of terms in the preindex that aren't counted exactly.
+     */
+    public TermFrequencySketch createTermFrequencySketch() {
+        return TermFrequencySketch.build(segments.wordIds, segments.counts,
+                TermFrequencySketch.DEFAULT_EXACT_TERMS,
+                TermFrequencySketch.DEFAULT_DEPTH);
+    }
+
     /** Transform the preindex into a reverse index */
     public void finalizeIndex(Path outputFileDocs,
                               Path outputFileDocsValues,
@@ -93,7 +104,7 @@ public class FullPreindex {
             offsets.transformEachIO(0, offsets.size(), transformer);
         }
 
-        SkipListWriter.writeFooter(outputFileDocs, "skplist-docs-file");
+        SkipListWriter.writeFooter(outputFileDocs, "skplist-docs-file", ReverseIndexParameters.fullIndexValueFormat);
 
         LongArray wordIds = segments.wordIds;
 
@@ -13,6 +13,7 @@ import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.List;
+import java.util.Optional;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class PrioIndexConstructor {
@@ -43,11 +44,26 @@ public class PrioIndexConstructor {
 
     public void createReverseIndex(ProcessHeartbeat processHeartbeat,
                                    String processName,
-                                   IndexJournal journal,
-                                   Path sourceBaseDir) throws IOException
+                                   IndexJournal journal) throws IOException
+    {
+        var preindex = constructPreindex(processHeartbeat, processName, journal);
+        if (preindex.isPresent()) {
+            finalizeIndex(processHeartbeat, processName, preindex.get());
+        }
+    }
+
+    /** Construct and merge the preindexes of the journal, without writing the index files.
+     * This step may run concurrently for several journals.  The result is passed to
+     * {@link #finalizeIndex(ProcessHeartbeat, String, PrioPreindexReference)}.
+     *
+     * @return the merged preindex, or empty if the journal has no pages
+     */
+    public Optional<PrioPreindexReference> constructPreindex(ProcessHeartbeat processHeartbeat,
+                                                             String processName,
+                                                             IndexJournal journal)
     {
         try (var heartbeat = processHeartbeat.createProcessTaskHeartbeat(CreateReverseIndexSteps.class, processName);
-             var preindexHeartbeat = processHeartbeat.createAdHocTaskHeartbeat("constructPreindexes")
+             var preindexHeartbeat = processHeartbeat.createAdHocTaskHeartbeat("constructPreindexes[" + processName + "]")
         ) {
             heartbeat.progress(CreateReverseIndexSteps.CONSTRUCT);
 
@@ -65,13 +81,27 @@ public class PrioIndexConstructor {
 
             heartbeat.progress(CreateReverseIndexSteps.MERGE);
 
-            IndexMergeOrdering.mergeAll(preindexes, this::merge)
-                .ifPresent((index) -> {
-                    heartbeat.progress(CreateReverseIndexSteps.FINALIZE);
-                    finalizeIndex(index);
-                    heartbeat.progress(CreateReverseIndexSteps.FINISHED);
-                });
+            AtomicInteger merges = new AtomicInteger(0);
+            int totalMerges = Math.max(0, preindexes.size() - 1);
 
+            return IndexMergeOrdering.mergeAll(preindexes, (left, right) -> {
+                var merged = merge(left, right);
+                preindexHeartbeat.progress("MERGE", merges.incrementAndGet(), totalMerges);
+                return merged;
+            });
+        }
+    }
+
+    /** Write the merged preindex to the index files.  The docs file is shared between
+     * the languages, so this step must not run concurrently with another finalization
+     * to the same file. */
+    public void finalizeIndex(ProcessHeartbeat processHeartbeat,
+                              String processName,
+                              PrioPreindexReference preindex)
+    {
+        try (var heartbeat = processHeartbeat.createProcessTaskHeartbeat(CreateReverseIndexSteps.class, processName)) {
+            heartbeat.progress(CreateReverseIndexSteps.FINALIZE);
+            finalizeIndex(preindex);
             heartbeat.progress(CreateReverseIndexSteps.FINISHED);
         }
     }
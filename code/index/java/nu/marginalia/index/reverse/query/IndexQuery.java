@@ -1,8 +1,10 @@
 package nu.marginalia.index.reverse.query;
 
 import nu.marginalia.array.page.LongQueryBuffer;
+import nu.marginalia.index.reverse.FullIndexEntrySource;
 import nu.marginalia.index.reverse.FullIndexEntrySourceWithRangeFilter;
 import nu.marginalia.index.reverse.query.filter.QueryFilterStepIf;
+import nu.marginalia.skiplist.SkipListBlockFilter;
 import nu.marginalia.skiplist.SkipListReader;
 import nu.marginalia.skiplist.SkipListValueRanges;
 
@@ -43,6 +45,17 @@ public class IndexQuery {
         inclusionFilter.add(filter);
     }
 
+    /** Attach a block filter to the sources that are able to skip blocks,
+     * see {@link SkipListBlockFilter}.  Other sources are read in full.
+     */
+    public void setBlockFilter(SkipListBlockFilter filter) {
+        for (var source : sources) {
+            if (source instanceof FullIndexEntrySource fullSource) {
+                fullSource.setBlockFilter(filter);
+            }
+        }
+    }
+
     private int si = 0;
     private int dataCost;
 
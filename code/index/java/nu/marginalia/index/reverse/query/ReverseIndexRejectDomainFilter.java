@@ -0,0 +1,40 @@
+package nu.marginalia.index.reverse.query;
+
+import nu.marginalia.array.page.LongQueryBuffer;
+import nu.marginalia.index.reverse.query.filter.QueryFilterStepIf;
+import nu.marginalia.model.id.UrlIdCodec;
+import org.roaringbitmap.RoaringBitmap;
+
+/** Rejects documents whose domain is in the bitmap.  Unlike {@link ReverseIndexRejectDocumentRangeFilter},
+ * the cost of this filter does not depend on the number of excluded domains, which makes it suitable
+ * for the blacklist and NSFW domain sets, which may hold hundreds of thousands of domains.
+ * <p></p>
+ * The bitmap is shared between queries and must not be modified.
+ */
+public record ReverseIndexRejectDomainFilter(RoaringBitmap domainIds) implements QueryFilterStepIf
+{
+
+    @Override
+    public void apply(LongQueryBuffer buffer) {
+        while (buffer.hasMore()) {
+            if (domainIds.contains(UrlIdCodec.getDomainId(buffer.currentValue()))) {
+                buffer.rejectAndAdvance();
+            }
+            else {
+                buffer.retainAndAdvance();
+            }
+        }
+
+        buffer.finalizeFiltering();
+    }
+
+    @Override
+    public double cost() {
+        return 1;
+    }
+
+    @Override
+    public String describe() {
+        return "Reject domains";
+    }
+}
@@ -0,0 +1,111 @@
+package nu.marginalia.index.searchset;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import gnu.trove.set.hash.TIntHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import nu.marginalia.db.DomainBlacklist;
+import nu.marginalia.nsfw.domain.NsfwDomainFilter;
+import org.roaringbitmap.RoaringBitmap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/** The domains that are excluded from the results of a query at each NSFW filter tier,
+ * compiled from the domain blacklist and the NSFW domain lists into bitmaps that are
+ * applied as a filter step during query execution.
+ * <p></p>
+ * The source lists are reloaded on their own schedules, and the bitmaps are rebuilt
+ * when a reload is noticed.
+ */
+@Singleton
+public class ExcludedDomainSets {
+    private static final Logger logger = LoggerFactory.getLogger(ExcludedDomainSets.class);
+
+    private static final int refreshIntervalSeconds = Integer.getInteger("index.excludedDomains.refreshInterval", 60);
+
+    private final DomainBlacklist blacklist;
+    private final NsfwDomainFilter nsfwDomainFilter;
+
+    /** Excluded domains by NSFW filter tier, where each tier also contains the domains of the tiers below it */
+    private volatile RoaringBitmap[] excludedByTier = new RoaringBitmap[] {
+            new RoaringBitmap(), new RoaringBitmap(), new RoaringBitmap()
+    };
+
+    // The source sets the bitmaps were last built from.  The sources replace rather than modify
+    // their sets when reloaded, so a change of identity means the bitmaps need to be rebuilt
+    private TIntHashSet builtFromBlacklist;
+    private IntSet builtFromTier1;
+    private IntSet builtFromTier2;
+
+    @Inject
+    public ExcludedDomainSets(DomainBlacklist blacklist,
+                              NsfwDomainFilter nsfwDomainFilter) {
+        this.blacklist = blacklist;
+        this.nsfwDomainFilter = nsfwDomainFilter;
+
+        refresh();
+
+        Thread.ofPlatform().daemon().name("ExcludedDomainSetsUpdater").start(() -> {
+            for (;;) {
+                try {
+                    TimeUnit.SECONDS.sleep(refreshIntervalSeconds);
+                }
+                catch (InterruptedException ex) {
+                    break;
+                }
+
+                refresh();
+            }
+        });
+    }
+
+    /** Returns the domains to exclude at the given NSFW filter tier.  The bitmap is shared
+     * and must not be modified. */
+    public RoaringBitmap forTier(int nsfwFilterTier) {
+        var sets = excludedByTier;
+
+        return sets[Math.clamp(nsfwFilterTier, 0, sets.length - 1)];
+    }
+
+    /** Rebuild the bitmaps if any of the source lists have been reloaded since they were last built.
+     *
+     * @return true if the bitmaps were rebuilt
+     */
+    synchronized boolean refresh() {
+        TIntHashSet spamDomains = blacklist.getLoadedSpamDomains();
+        IntSet tier1 = nsfwDomainFilter.getBlockedDomains(NsfwDomainFilter.NSFW_BLOCK_DANGER);
+        IntSet tier2 = nsfwDomainFilter.getBlockedDomains(NsfwDomainFilter.NSFW_BLOCK_SMUT);
+
+        if (spamDomains == builtFromBlacklist
+         && tier1 == builtFromTier1
+         && tier2 == builtFromTier2)
+        {
+            return false;
+        }
+
+        RoaringBitmap tier0Bitmap = RoaringBitmap.bitmapOf(spamDomains.toArray());
+
+        RoaringBitmap tier1Bitmap = tier0Bitmap.clone();
+        tier1Bitmap.add(tier1.toIntArray());
+
+        RoaringBitmap tier2Bitmap = tier1Bitmap.clone();
+        tier2Bitmap.add(tier2.toIntArray());
+
+        tier0Bitmap.runOptimize();
+        tier1Bitmap.runOptimize();
+        tier2Bitmap.runOptimize();
+
+        excludedByTier = new RoaringBitmap[] { tier0Bitmap, tier1Bitmap, tier2Bitmap };
+
+        builtFromBlacklist = spamDomains;
+        builtFromTier1 = tier1;
+        builtFromTier2 = tier2;
+
+        logger.info("Rebuilt excluded domain sets: {} blacklisted, {} at tier 1, {} at tier 2",
+                tier0Bitmap.getCardinality(), tier1Bitmap.getCardinality(), tier2Bitmap.getCardinality());
+
+        return true;
+    }
+}
@@ -0,0 +1,242 @@
+package nu.marginalia.index.statistics;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import nu.marginalia.api.searchquery.IndexApiGrpc;
+import nu.marginalia.api.searchquery.RpcTermStatisticsChunk;
+import nu.marginalia.api.searchquery.RpcTermStatisticsRequest;
+import nu.marginalia.index.IndexQueryResultCache;
+import nu.marginalia.language.config.LanguageConfiguration;
+import nu.marginalia.language.model.LanguageDefinition;
+import nu.marginalia.service.client.GrpcChannelPoolFactoryIf;
+import nu.marginalia.service.client.GrpcMultiNodeChannelPool;
+import nu.marginalia.service.discovery.property.ServiceKey;
+import nu.marginalia.service.discovery.property.ServicePartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/** Term statistics for the entire cluster, combined from the term statistics of each
+ * index partition.
+ * <p></p>
+ * Each partition otherwise ranks its results by the document frequencies of its own
+ * index, which makes the scores of a term differ between partitions depending on how
+ * the documents happened to be distributed.  With the cluster-wide statistics, the same
+ * document gets the same score regardless of which partition holds it, and the results
+ * of the partitions can be compared directly when they are merged.
+ * <p></p>
+ * The statistics are fetched from each partition over gRPC, and checked for changes periodically.
+ * They are only transferred again when some partition has switched to a new index.
+ */
+@Singleton
+public class GlobalTermStatistics {
+    private static final Logger logger = LoggerFactory.getLogger(GlobalTermStatistics.class);
+
+    private static final int refreshIntervalSeconds = Integer.getInteger("index.termStatistics.refreshInterval", 300);
+    private static final boolean disabled = Boolean.getBoolean("index.termStatistics.disable");
+
+    private final GrpcMultiNodeChannelPool<IndexApiGrpc.IndexApiBlockingStub> channelPool;
+    private final List<String> languageIsoCodes;
+    private final IndexQueryResultCache resultCache;
+
+    /** The versions of the statistics of each partition that the snapshot was built from */
+    private Map<PartitionKey, Long> snapshotVersions = Map.of();
+
+    private volatile Snapshot snapshot = null;
+
+    @Inject
+    public GlobalTermStatistics(GrpcChannelPoolFactoryIf channelPoolFactory,
+                                LanguageConfiguration languageConfiguration,
+                                IndexQueryResultCache resultCache) {
+        this.channelPool = channelPoolFactory.createMulti(
+                ServiceKey.forGrpcApi(IndexApiGrpc.class, ServicePartition.multi()),
+                IndexApiGrpc::newBlockingStub);
+        this.resultCache = resultCache;
+        this.languageIsoCodes = new ArrayList<>();
+
+        for (LanguageDefinition definition : languageConfiguration.languages()) {
+            languageIsoCodes.add(definition.isoCode());
+        }
+
+        if (disabled) {
+            logger.info("Cluster-wide term statistics are disabled");
+            return;
+        }
+
+        Thread.ofPlatform().daemon().name("GlobalTermStatisticsUpdater").start(() -> {
+            for (;;) {
+                refresh();
+
+                try {
+                    TimeUnit.SECONDS.sleep(refreshIntervalSeconds);
+                }
+                catch (InterruptedException ex) {
+                    break;
+                }
+            }
+        });
+    }
+
+    /** Returns the current cluster-wide statistics, or null if they are not available
+     * and the statistics of the local index should be used instead */
+    @Nullable
+    public Snapshot get() {
+        return snapshot;
+    }
+
+    /** Fetch the statistics of all partitions, and replace the snapshot if any of them have changed.
+     * <p></p>
+     * The statistics of each partition are merged into the new snapshot as they arrive rather
+     * than kept around, so when some partitions have changed, the statistics of the others are
+     * fetched again.  This only happens when a partition switches to a new index.
+     * <p></p>
+     * If a partition can't be reached, or a partition the snapshot was built from is no longer
+     * among the eligible nodes, the snapshot is left as it is rather than built from the remaining
+     * partitions, as that would give the terms of the missing partition's documents different
+     * weights than before, which is what the statistics are meant to prevent.
+     *
+     * @return true if the snapshot was replaced
+     */
+    synchronized boolean refresh() {
+        Map<PartitionKey, Long> versions = new HashMap<>();
+        Map<Integer, Integer> docCountByNode = new HashMap<>();
+        Map<String, TermFrequencySketch> sketches = new HashMap<>();
+
+        List<PartitionKey> unchanged = new ArrayList<>();
+
+        try {
+            List<Integer> nodes = channelPool.getEligibleNodes();
+
+            for (var key : snapshotVersions.keySet()) {
+                if (!nodes.contains(key.node())) {
+                    logger.warn("Partition {} is not available, keeping previous term statistics", key.node());
+                    return false;
+                }
+            }
+
+            for (int node : nodes) {
+                for (String languageIsoCode : languageIsoCodes) {
+                    var key = new PartitionKey(node, languageIsoCode);
+
+                    FetchResult result = fetch(key, snapshotVersions.getOrDefault(key, 0L), sketches);
+                    if (result == null)
+                        continue;
+
+                    versions.put(key, result.version());
+                    // The document count is that of the partition's entire index, not of the language
+                    docCountByNode.put(node, result.docCount());
+
+                    if (!result.hasData()) {
+                        unchanged.add(key);
+                    }
+                }
+            }
+
+            if (versions.equals(snapshotVersions))
+                return false;
+
+            for (var key : unchanged) {
+                FetchResult result = fetch(key, 0, sketches);
+                if (result != null) {
+                    versions.put(key, result.version());
+                }
+            }
+        }
+        catch (Exception ex) {
+            logger.warn("Failed to fetch term statistics, keeping previous statistics: {}", ex.getMessage());
+            return false;
+        }
+
+        long docCount = docCountByNode.values().stream().mapToLong(Integer::longValue).sum();
+
+        snapshot = new Snapshot(docCount, sketches);
+        snapshotVersions = versions;
+
+        // Cached results were ranked with the previous statistics
+        resultCache.invalidateAll();
+
+        logger.info("Updated cluster-wide term statistics: {} documents in {} partitions",
+                docCount, docCountByNode.size());
+
+        return true;
+    }
+
+    /** Fetch the statistics of a partition, and merge them into the sketch of their language
+     * unless they are of the known version.
+     *
+     * @return the version and document count of the partition's statistics, or null if
+     * the partition has no statistics for the language
+     */
+    @Nullable
+    private FetchResult fetch(PartitionKey key,
+                              long knownVersion,
+                              Map<String, TermFrequencySketch> sketches) throws IOException
+    {
+        var request = RpcTermStatisticsRequest.newBuilder()
+                .setLangIsoCode(key.languageIsoCode())
+                .setKnownVersion(knownVersion)
+                .build();
+
+        long version = 0;
+        int docCount = 0;
+        var data = new ByteArrayOutputStream();
+
+        try {
+            Iterator<RpcTermStatisticsChunk> response = channelPool
+                    .call(IndexApiGrpc.IndexApiBlockingStub::getTermStatistics)
+                    .forNode(key.node())
+                    .run(request);
+
+            while (response.hasNext()) {
+                RpcTermStatisticsChunk chunk = response.next();
+                version = chunk.getVersion();
+                docCount = chunk.getDocCount();
+                chunk.getData().writeTo(data);
+            }
+        }
+        catch (StatusRuntimeException ex) {
+            if (ex.getStatus().getCode() == Status.Code.NOT_FOUND)
+                return null;
+            throw ex;
+        }
+
+        if (data.size() == 0) {
+            return new FetchResult(version, docCount, false);
+        }
+
+        var sketch = TermFrequencySketch.read(new DataInputStream(new ByteArrayInputStream(data.toByteArray())));
+
+        var existing = sketches.putIfAbsent(key.languageIsoCode(), sketch);
+        if (existing != null) {
+            existing.merge(sketch);
+        }
+
+        return new FetchResult(version, docCount, true);
+    }
+
+    private record PartitionKey(int node, String languageIsoCode) {}
+    private record FetchResult(long version, int docCount, boolean hasData) {}
+
+    /** Cluster-wide term statistics at a point in time */
+    public record Snapshot(long docCount, Map<String, TermFrequencySketch> sketches) {
+
+        /** Returns the statistics for the language, or null if there are none */
+        @Nullable
+        public TermFrequencySketch forLanguage(String languageIsoCode) {
+            return sketches.get(languageIsoCode);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package nu.marginalia.index.statistics;
+
+import com.github.prasanthj.cmsketch.CountMinSketch;
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import nu.marginalia.array.LongArray;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/** Compact estimate of the number of documents each term appears in, for an index partition,
+ * or once merged, for all partitions.
+ * <p></p>
+ * The most frequent terms are counted exactly, and the remainder in a count-min sketch.  The bulk
+ * of the postings in an index belong to a small number of very common terms, and keeping these
+ * out of the sketch keeps down the overestimate it adds to the rare terms, which are the terms whose
+ * inverse document frequency is the most sensitive to errors.  For the same reason, the terms are
+ * added to the sketch with a conservative update, which about halves the overestimate of the rare
+ * terms.  The sketches of different partitions are merged by adding them up, which is still an
+ * upper bound of the sum of their counts.
+ * <p></p>
+ * The overestimate grows with the number of terms in the sketch relative to its width, so the width
+ * is chosen when the sketch is built, as the power of two at or above the number of terms in the sketch,
+ * up to index.termStatistics.maxSketchWidth.  Sketches of different widths are merged at the larger
+ * width, by repeating the counters of the narrower sketch, which the power of two widths allow.
+ */
+public class TermFrequencySketch {
+    private static final int FORMAT_VERSION = 1;
+
+    public static final int MIN_WIDTH = 1 << 16;
+    public static final int MAX_WIDTH = Integer.highestOneBit(Math.max(MIN_WIDTH,
+            Integer.getInteger("index.termStatistics.maxSketchWidth", 1 << 23)));
+    public static final int DEFAULT_DEPTH = Integer.getInteger("index.termStatistics.sketchDepth", 4);
+    public static final int DEFAULT_EXACT_TERMS = Integer.getInteger("index.termStatistics.exactTerms", 65536);
+
+    private final Long2IntOpenHashMap exactCounts;
+    private CountMinSketch sketch;
+
+    public TermFrequencySketch(int width, int depth) {
+        this(new Long2IntOpenHashMap(), new CountMinSketch(width, depth));
+    }
+
+    private TermFrequencySketch(Long2IntOpenHashMap exactCounts, CountMinSketch sketch) {
+        this.exactCounts = exactCounts;
+        this.sketch = sketch;
+    }
+
+    /** Create a sketch from the sorted term ids of an index, and the number of documents for each term,
+     * with a width sized to the number of terms that aren't counted exactly.
+     *
+     * @param exactTerms the upper bound for the number of terms that are counted exactly
+     */
+    public static TermFrequencySketch build(LongArray termIds, LongArray counts, int exactTerms, int depth) {
+        long exactThreshold = exactThreshold(counts, exactTerms);
+
+        long sketchedTerms = 0;
+        for (long i = 0; i < counts.size(); i++) {
+            long count = counts.get(i);
+            if (count > 0 && count < exactThreshold) {
+                sketchedTerms++;
+            }
+        }
+
+        return build(termIds, counts, exactThreshold, widthFor(sketchedTerms), depth);
+    }
+
+    /** Create a sketch from the sorted term ids of an index, and the number of documents for each term.
+     *
+     * @param exactTerms the upper bound for the number of terms that are counted exactly
+     */
+    public static TermFrequencySketch build(LongArray termIds, LongArray counts, int exactTerms, int width, int depth) {
+        return build(termIds, counts, exactThreshold(counts, exactTerms), width, depth);
+    }
+
+    private static TermFrequencySketch build(LongArray termIds, LongArray counts, long exactThreshold, int width, int depth) {
+        if (termIds.size() != counts.size())
+            throw new IllegalArgumentException("Term ids and counts of different size");
+
+        TermFrequencySketch ret = new TermFrequencySketch(width, depth);
+
+        for (long i = 0; i < termIds.size(); i++) {
+            long count = counts.get(i);
+
+            if (count >= exactThreshold) {
+                ret.exactCounts.put(termIds.get(i), (int) count);
+            }
+            else if (count > 0) {
+                ret.sketch.addLongConservative(termIds.get(i), (int) count);
+            }
+        }
+
+        return ret;
+    }
+
+    /** The width of a sketch of the number of terms; the power of two at or above it, between
+     * MIN_WIDTH and MAX_WIDTH */
+    static int widthFor(long terms) {
+        if (terms >= MAX_WIDTH)
+            return MAX_WIDTH;
+
+        return Math.max(MIN_WIDTH, Integer.highestOneBit((int) Math.max(1, terms - 1)) << 1);
+    }
+
+    /** Find the smallest power of two such that no more than maxTerms terms have at least
+     * that many documents.
+     */
+    static long exactThreshold(LongArray counts, int maxTerms) {
+        long[] termsByMagnitude = new long[64];
+
+        for (long i = 0; i < counts.size(); i++) {
+            long count = counts.get(i);
+            if (count > 0) {
+                termsByMagnitude[63 - Long.numberOfLeadingZeros(count)]++;
+            }
+        }
+
+        long threshold = Long.MAX_VALUE;
+        long terms = 0;
+
+        for (int magnitude = 63; magnitude >= 0; magnitude--) {
+            terms += termsByMagnitude[magnitude];
+            if (terms > maxTerms)
+                break;
+
+            if (termsByMagnitude[magnitude] > 0) {
+                threshold = 1L << magnitude;
+            }
+        }
+
+        return threshold;
+    }
+
+    /** Returns the estimated number of documents the term appears in.  The estimate is never
+     * lower than the true count, and is exact for the most frequent terms. */
+    public int estimate(long termId) {
+        long ret = (long) exactCounts.get(termId) + sketch.getEstimatedCountLong(termId);
+
+        return (int) Math.min(Integer.MAX_VALUE, ret);
+    }
+
+    /** Add the counts of the other sketch to this one.  The sketches must have the same depth,
+     * and the width of one must be a multiple of the other, which power of two widths always are.
+     * The merged sketch has the larger of the two widths. */
+    public void merge(TermFrequencySketch other) {
+        int width = sketch.getWidth();
+        int otherWidth = other.sketch.getWidth();
+
+        if (sketch.getDepth() != other.sketch.getDepth()
+         || Math.max(width, otherWidth) % Math.min(width, otherWidth) != 0) {
+            throw new IllegalArgumentException("Sketch dimensions differ: %dx%d vs %dx%d".formatted(
+                    width, sketch.getDepth(), otherWidth, other.sketch.getDepth()));
+        }
+
+        for (Long2IntMap.Entry entry : other.exactCounts.long2IntEntrySet()) {
+            exactCounts.addTo(entry.getLongKey(), entry.getIntValue());
+        }
+
+        if (otherWidth > width) {
+            sketch = sketch.widen(otherWidth);
+        }
+        sketch.merge(other.sketch);
+    }
+
+    public int width() {
+        return sketch.getWidth();
+    }
+
+    /** Returns an empty sketch with the same dimensions as this one */
+    public TermFrequencySketch emptyCopy() {
+        return new TermFrequencySketch(sketch.getWidth(), sketch.getDepth());
+    }
+
+    public int exactTermCount() {
+        return exactCounts.size();
+    }
+
+    public void write(Path file) throws IOException {
+        try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            write(out);
+        }
+    }
+
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(FORMAT_VERSION);
+
+        out.writeInt(exactCounts.size());
+        for (Long2IntMap.Entry entry : exactCounts.long2IntEntrySet()) {
+            out.writeLong(entry.getLongKey());
+            out.writeInt(entry.getIntValue());
+        }
+
+        byte[] sketchBytes = CountMinSketch.serialize(sketch);
+        out.writeInt(sketchBytes.length);
+        out.write(sketchBytes);
+    }
+
+    public static TermFrequencySketch read(Path file) throws IOException {
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            return read(in);
+        }
+    }
+
+    public static TermFrequencySketch read(DataInputStream in) throws IOException {
+        int version = in.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported term statistics format version " + version);
+        }
+
+        int exactSize = in.readInt();
+        Long2IntOpenHashMap exactCounts = new Long2IntOpenHashMap(exactSize);
+        for (int i = 0; i < exactSize; i++) {
+            long termId = in.readLong();
+            exactCounts.put(termId, in.readInt());
+        }
+
+        byte[] sketchBytes = new byte[in.readInt()];
+        in.readFully(sketchBytes);
+
+        return new TermFrequencySketch(exactCounts, CountMinSketch.deserialize(sketchBytes));
+    }
+}
@@ -0,0 +1,235 @@
+package nu.marginalia.index.reverse.query;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import nu.marginalia.array.LongArray;
+import nu.marginalia.array.LongArrayFactory;
+import nu.marginalia.array.page.LongQueryBuffer;
+import nu.marginalia.array.pool.BufferPool;
+import nu.marginalia.btree.BTreeWriter;
+import nu.marginalia.index.config.ReverseIndexParameters;
+import nu.marginalia.index.reverse.WordLexicon;
+import nu.marginalia.model.id.UrlIdCodec;
+import nu.marginalia.skiplist.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+
+import static nu.marginalia.skiplist.SkipListConstants.RECORD_SIZE;
+
+/** This benchmark measures the query filter steps of the reverse index, and the term lookups
+ * in the word lexicon, on synthetic posting lists with a skewed distribution of documents
+ * over domains.
+ * <p></p>
+ * The buffer pool is large enough to hold every block, so the benchmark measures the CPU
+ * cost of the filters rather than the IO.
+ */
+public class IndexFilterBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class FilterState {
+        static final int numDomains = 20_000;
+        static final int docsPerDomainMax = 50_000;
+        static final int numTerms = 1_000_000;
+
+        Path dir;
+
+        BufferPool pool;
+        SkipListValueReader valueReader;
+
+        /** Offsets of posting lists for terms with a document frequency of 25%, 5% and 1% */
+        long[] termOffsets = new long[3];
+
+        long[] candidates;
+        long[] domainStarts;
+        long[] domainEnds;
+
+        LongQueryBuffer buffer;
+
+        WordLexicon lexicon;
+        long[] lexiconKeys = new long[1000];
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            dir = Files.createTempDirectory("index-filter-benchmark");
+
+            Random r = new Random(42);
+
+            double[] frequencies = { 0.25, 0.05, 0.01 };
+            LongArrayList[] postings = { new LongArrayList(), new LongArrayList(), new LongArrayList() };
+            LongArrayList candidateList = new LongArrayList();
+
+            // Pareto distributed domain sizes, a few very large domains and a long tail of small ones
+            for (int domain = 0; domain < numDomains; domain++) {
+                int size = (int) Math.min(docsPerDomainMax, 10 / Math.pow(1 - r.nextDouble(), 1.2));
+
+                // The candidate term clusters in some domains, as most terms do
+                double candidateProbability = r.nextDouble() < 0.05 ? 0.1 : 0.002;
+
+                for (int ordinal = 0; ordinal < size; ordinal++) {
+                    long id = UrlIdCodec.encodeId(domain, ordinal);
+
+                    for (int t = 0; t < frequencies.length; t++) {
+                        if (r.nextDouble() < frequencies[t]) postings[t].add(id);
+                    }
+                    if (r.nextDouble() < candidateProbability) candidateList.add(id);
+                }
+            }
+
+            candidates = candidateList.toLongArray();
+
+            Path docsFile = dir.resolve("docs.dat");
+            Path valuesFile = dir.resolve("values.dat");
+            try (var writer = new SkipListWriter(docsFile, valuesFile)) {
+                for (int t = 0; t < postings.length; t++) {
+                    termOffsets[t] = writer.writeList(createArray(postings[t].toLongArray()), postings[t].size());
+                }
+            }
+
+            int numPages = (int) (Files.size(docsFile) / SkipListConstants.BLOCK_SIZE) + 1;
+            pool = new BufferPool(docsFile, SkipListConstants.BLOCK_SIZE, numPages);
+            valueReader = new SkipListValueReader(valuesFile);
+
+            // Every 50th domain, as from a domain filter
+            LongArrayList starts = new LongArrayList();
+            LongArrayList ends = new LongArrayList();
+            for (int domain = 0; domain < numDomains; domain += 50) {
+                starts.add(UrlIdCodec.encodeId(domain, 0));
+                ends.add(UrlIdCodec.encodeId(domain + 1, 0));
+            }
+            domainStarts = starts.toLongArray();
+            domainEnds = ends.toLongArray();
+
+            buffer = new LongQueryBuffer(candidates.length);
+
+            lexicon = createLexicon(dir.resolve("words.dat"), r);
+        }
+
+        private WordLexicon createLexicon(Path wordsFile, Random r) throws IOException {
+            long[] termIds = r.longs(numTerms).sorted().distinct().toArray();
+
+            var ctx = ReverseIndexParameters.wordsBTreeContext;
+            try (LongArray wordsArray = LongArrayFactory.mmapForWritingConfined(wordsFile, ctx.calculateSize(termIds.length))) {
+                new BTreeWriter(wordsArray, ctx).write(0, termIds.length, slice -> {
+                    for (int i = 0; i < termIds.length; i++) {
+                        slice.set(2L * i, termIds[i]);
+                        slice.set(2L * i + 1, i);
+                    }
+                });
+                wordsArray.force();
+            }
+
+            // Nine in ten lookups are for terms that exist
+            for (int i = 0; i < lexiconKeys.length; i++) {
+                lexiconKeys[i] = i % 10 == 0 ? r.nextLong() : termIds[r.nextInt(termIds.length)];
+            }
+
+            return new WordLexicon("en", wordsFile);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            pool.close();
+            valueReader.close();
+            lexicon.close();
+
+            for (var file : List.of("docs.dat", "values.dat", "words.dat")) {
+                Files.deleteIfExists(dir.resolve(file));
+            }
+            Files.deleteIfExists(dir);
+        }
+
+        LongQueryBuffer candidates() {
+            buffer.data.set(0, candidates);
+            buffer.reset();
+            return buffer;
+        }
+
+        SkipListReader reader(int term) {
+            return new SkipListReader(pool, valueReader, termOffsets[term]);
+        }
+
+        static LongArray createArray(long[] keys) {
+            LongArray array = LongArrayFactory.onHeapConfined((long) keys.length * RECORD_SIZE);
+            for (int i = 0; i < keys.length; i++) {
+                array.set((long) RECORD_SIZE * i, keys[i]);
+                for (int vi = 1; vi < RECORD_SIZE; vi++) {
+                    array.set((long) RECORD_SIZE * i + vi, i);
+                }
+            }
+            return array;
+        }
+    }
+
+    private static IndexSearchBudget budget() {
+        return new IndexSearchBudget(10_000);
+    }
+
+    @Fork(value = 1, warmups = 1)
+    @Warmup(iterations = 3)
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public int retainCommonTerm(FilterState state) {
+        var buffer = state.candidates();
+        new ReverseIndexRetainFilter(state.reader(0), "full", "common", budget()).apply(buffer);
+        return buffer.end;
+    }
+
+    @Fork(value = 1, warmups = 1)
+    @Warmup(iterations = 3)
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public int retainRareTerm(FilterState state) {
+        var buffer = state.candidates();
+        new ReverseIndexRetainFilter(state.reader(2), "full", "rare", budget()).apply(buffer);
+        return buffer.end;
+    }
+
+    @Fork(value = 1, warmups = 1)
+    @Warmup(iterations = 3)
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public int retainAnyTerm(FilterState state) {
+        var buffer = state.candidates();
+        new ReverseIndexMultiTermRetainFilter(
+                List.of(state.reader(1), state.reader(2)),
+                "full", List.of("medium", "rare"), budget()
+        ).apply(buffer);
+        return buffer.end;
+    }
+
+    @Fork(value = 1, warmups = 1)
+    @Warmup(iterations = 3)
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public int rejectTerm(FilterState state) {
+        var buffer = state.candidates();
+        new ReverseIndexRejectFilter(state.reader(1), "medium", budget()).apply(buffer);
+        return buffer.end;
+    }
+
+    @Fork(value = 1, warmups = 1)
+    @Warmup(iterations = 3)
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public int retainDocumentRange(FilterState state) {
+        var buffer = state.candidates();
+        new ReverseIndexRetainDocumentRangeFilter(new SkipListValueRanges(state.domainStarts, state.domainEnds)).apply(buffer);
+        return buffer.end;
+    }
+
+    @Fork(value = 1, warmups = 1)
+    @Warmup(iterations = 3)
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public long lexiconLookup(FilterState state) {
+        long ret = 0;
+        for (long key : state.lexiconKeys) {
+            ret += state.lexicon.wordOffset(key);
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,70 @@
+package nu.marginalia.index;
+
+import nu.marginalia.index.reverse.positions.PositionCodec;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class ImpactThresholdTest {
+
+    @Test
+    void testNoPruningUntilFull() {
+        ImpactThreshold threshold = new ImpactThreshold(3, 1);
+
+        threshold.offer(50);
+        threshold.offer(60);
+
+        Assertions.assertEquals(0, threshold.getThreshold());
+        Assertions.assertFalse(threshold.skipBlock(0, 1));
+    }
+
+    @Test
+    void testThresholdIsKthBestImpact() {
+        ImpactThreshold threshold = new ImpactThreshold(3, 1);
+
+        threshold.offer(10);
+        threshold.offer(50);
+        threshold.offer(30);
+        Assertions.assertEquals(10, threshold.getThreshold());
+
+        threshold.offer(40);
+        Assertions.assertEquals(30, threshold.getThreshold());
+
+        threshold.offer(5);
+        Assertions.assertEquals(30, threshold.getThreshold());
+    }
+
+    @Test
+    void testSkipBlock() {
+        ImpactThreshold threshold = new ImpactThreshold(1, 1);
+        threshold.offer(ImpactThreshold.termImpact(0b111, 100));
+
+        // Weaker block is skipped
+        Assertions.assertTrue(threshold.skipBlock(0b1, 10));
+        // A block that could contain an equal document is not
+        Assertions.assertFalse(threshold.skipBlock(0b111, 100));
+        Assertions.assertFalse(threshold.skipBlock(0xFF, 1));
+
+        Assertions.assertEquals(1, threshold.getSkippedBlocks());
+    }
+
+    @Test
+    void testOtherTermsWidenBound() {
+        ImpactThreshold threshold = new ImpactThreshold(1, 2);
+        threshold.offer(ImpactThreshold.termImpact(0b111, 100) + ImpactThreshold.termImpact(0b1, 1));
+
+        // The other term could contribute up to MAX_TERM_IMPACT, so this block can't be skipped
+        Assertions.assertFalse(threshold.skipBlock(0b1, 10));
+    }
+
+    @Test
+    void testDocumentImpactBoundedByBlockSummary() {
+        long[] flags = new long[] { 0b101 };
+        long[] positions = new long[] { PositionCodec.encode(1000, 64) };
+
+        int docImpact = ImpactThreshold.documentImpact(flags, positions);
+
+        // The block summary clamps the size to 255
+        Assertions.assertEquals(ImpactThreshold.termImpact(0b101, 255), docImpact);
+        Assertions.assertTrue(docImpact <= ImpactThreshold.MAX_TERM_IMPACT);
+    }
+}
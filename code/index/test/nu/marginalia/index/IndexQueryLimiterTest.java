@@ -0,0 +1,146 @@
+package nu.marginalia.index;
+
+import nu.marginalia.api.searchquery.RpcQueryLimits;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+class IndexQueryLimiterTest {
+
+    @Test
+    void testRejectAfterDeadline() throws Exception {
+        var limiter = new IndexQueryLimiter("0", 2, 2, 2);
+
+        var first = limiter.acquire(RpcQueryLimits.PRIORITY.INTERACTIVE, 10);
+        var second = limiter.acquire(RpcQueryLimits.PRIORITY.INTERACTIVE, 10);
+        Assertions.assertEquals(2, limiter.getInFlight());
+
+        Assertions.assertThrows(IndexQueryLimiter.TooManySimultaneousQueriesException.class,
+                () -> limiter.acquire(RpcQueryLimits.PRIORITY.INTERACTIVE, 10));
+
+        first.close();
+        // Closing twice must not release two permits
+        first.close();
+        Assertions.assertEquals(1, limiter.getInFlight());
+
+        limiter.acquire(RpcQueryLimits.PRIORITY.INTERACTIVE, 10).close();
+        second.close();
+
+        Assertions.assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    void testInteractiveBeforeApi() throws Exception {
+        var limiter = new IndexQueryLimiter("0", 1, 1, 1);
+        var executor = Executors.newFixedThreadPool(2);
+
+        try {
+            List<String> order = new CopyOnWriteArrayList<>();
+
+            var held = limiter.acquire(RpcQueryLimits.PRIORITY.INTERACTIVE, 10);
+
+            Future<?> api = executor.submit(() -> awaitPermit(limiter, RpcQueryLimits.PRIORITY.API, order, "api"));
+            waitForQueue(limiter, api);
+            Future<?> interactive = executor.submit(() -> awaitPermit(limiter, RpcQueryLimits.PRIORITY.INTERACTIVE, order, "interactive"));
+            // Give the interactive query time to enter the queue behind the API query
+            Thread.sleep(100);
+
+            held.close();
+
+            interactive.get(5, TimeUnit.SECONDS);
+            api.get(5, TimeUnit.SECONDS);
+
+            Assertions.assertEquals(List.of("interactive", "api"), order);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void testLimitAdapts() throws Exception {
+        var limiter = new IndexQueryLimiter("0", 8, 2, 32);
+
+        // A steady time per document with the limit in use should raise the limit
+        for (int i = 0; i < 100; i++) {
+            List<IndexQueryLimiter.Permit> permits = new ArrayList<>();
+            for (int j = 0; j < limiter.getLimit(); j++) {
+                permits.add(limiter.acquire(RpcQueryLimits.PRIORITY.INTERACTIVE, 10));
+            }
+            for (int j = 0; j < permits.size(); j++) {
+                limiter.release(ms(100), 10_000);
+            }
+        }
+        int raisedLimit = limiter.getLimit();
+        Assertions.assertTrue(raisedLimit > 8, "Limit " + raisedLimit);
+
+        // Queries that get far less done in the same time should lower it again
+        for (int i = 0; i < 100; i++) {
+            limiter.acquire(RpcQueryLimits.PRIORITY.INTERACTIVE, 10);
+            limiter.release(ms(100), 1_000);
+        }
+        Assertions.assertTrue(limiter.getLimit() < raisedLimit, "Limit " + limiter.getLimit());
+        Assertions.assertTrue(limiter.getLimit() >= 2);
+    }
+
+    @Test
+    void testLimitHoldsWhenIdle() throws Exception {
+        var limiter = new IndexQueryLimiter("0", 8, 2, 32);
+
+        // One query at a time, each running until its budget is exhausted, as ranked queries do
+        for (int i = 0; i < 1000; i++) {
+            limiter.acquire(RpcQueryLimits.PRIORITY.INTERACTIVE, 10);
+            limiter.release(ms(100), 10_000 + (i % 7) * 100);
+        }
+
+        Assertions.assertEquals(8, limiter.getLimit());
+    }
+
+    @Test
+    void testUnreportedWorkIsIgnored() throws Exception {
+        var limiter = new IndexQueryLimiter("0", 8, 2, 32);
+
+        for (int i = 0; i < 100; i++) {
+            limiter.acquire(RpcQueryLimits.PRIORITY.INTERACTIVE, 10).close();
+        }
+
+        Assertions.assertEquals(8, limiter.getLimit());
+    }
+
+    @Test
+    void testFixedLimit() throws Exception {
+        var limiter = new IndexQueryLimiter("0", 4, 4, 4);
+
+        for (int i = 0; i < 100; i++) {
+            limiter.acquire(RpcQueryLimits.PRIORITY.INTERACTIVE, 10);
+            limiter.release(ms(100), 1);
+        }
+
+        Assertions.assertEquals(4, limiter.getLimit());
+    }
+
+    private static long ms(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    private void awaitPermit(IndexQueryLimiter limiter, RpcQueryLimits.PRIORITY priority, List<String> order, String name) {
+        try (var _ = limiter.acquire(priority, 5000)) {
+            order.add(name);
+        }
+        catch (Exception ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private void waitForQueue(IndexQueryLimiter limiter, Future<?> task) throws InterruptedException {
+        // The limiter doesn't expose its queue, so give the task a moment to block on it
+        for (int i = 0; i < 10 && !task.isDone(); i++) {
+            Thread.sleep(10);
+        }
+        Assertions.assertFalse(task.isDone());
+        Assertions.assertEquals(1, limiter.getInFlight());
+    }
+}
@@ -0,0 +1,97 @@
+package nu.marginalia.index;
+
+import nu.marginalia.api.searchquery.RpcDecoratedResultItem;
+import nu.marginalia.api.searchquery.RpcIndexQuery;
+import nu.marginalia.api.searchquery.RpcQueryLimits;
+import nu.marginalia.api.searchquery.RpcQueryTerms;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+class IndexQueryResultCacheTest {
+
+    RpcIndexQuery createRequest(String term, int resultsTotal) {
+        return RpcIndexQuery.newBuilder()
+                .setTerms(RpcQueryTerms.newBuilder().addTermsQuery(term).build())
+                .setHumanQuery(term)
+                .setLangIsoCode("en")
+                .setQueryLimits(RpcQueryLimits.newBuilder()
+                        .setResultsTotal(resultsTotal)
+                        .setResultsByDomain(2)
+                        .setTimeoutMs(150)
+                        .build())
+                .build();
+    }
+
+    List<RpcDecoratedResultItem> createResults(int n) {
+        List<RpcDecoratedResultItem> ret = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            ret.add(RpcDecoratedResultItem.newBuilder().setUrl("https://www.example.com/" + i).build());
+        }
+        return ret;
+    }
+
+    @Test
+    void testHitAndMiss() {
+        var cache = new IndexQueryResultCache("0", 1000, 60);
+        var request = createRequest("hello", 10);
+
+        Assertions.assertNull(cache.get(1, request));
+
+        var results = createResults(10);
+        cache.put(1, request, results);
+
+        Assertions.assertEquals(results, cache.get(1, request));
+        Assertions.assertNull(cache.get(1, createRequest("world", 10)));
+    }
+
+    @Test
+    void testNearIdenticalRequestsShareEntry() {
+        var cache = new IndexQueryResultCache("0", 1000, 60);
+        var results = createResults(10);
+
+        cache.put(1, createRequest("hello", 10), results);
+
+        var otherRequest = createRequest("hello", 10).toBuilder()
+                .setHumanQuery("Hello")
+                .setQueryLimits(RpcQueryLimits.newBuilder().setResultsTotal(10).setResultsByDomain(2).setTimeoutMs(250))
+                .build();
+
+        Assertions.assertEquals(results, cache.get(1, otherRequest));
+    }
+
+    @Test
+    void testServesSmallerTopK() {
+        var cache = new IndexQueryResultCache("0", 1000, 60);
+        var results = createResults(20);
+
+        cache.put(1, createRequest("hello", 20), results);
+
+        Assertions.assertEquals(results.subList(0, 5), cache.get(1, createRequest("hello", 5)));
+        Assertions.assertNull(cache.get(1, createRequest("hello", 50)));
+    }
+
+    @Test
+    void testGenerationChangeInvalidates() {
+        var cache = new IndexQueryResultCache("0", 1000, 60);
+        var request = createRequest("hello", 10);
+
+        cache.put(1, request, createResults(10));
+        Assertions.assertNotNull(cache.get(1, request));
+
+        Assertions.assertNull(cache.get(2, request));
+        Assertions.assertEquals(0, cache.size());
+    }
+
+    @Test
+    void testEmptyResultsNotCached() {
+        var cache = new IndexQueryResultCache("0", 1000, 60);
+        var request = createRequest("hello", 10);
+
+        cache.put(1, request, List.of());
+
+        Assertions.assertNull(cache.get(1, request));
+    }
+}
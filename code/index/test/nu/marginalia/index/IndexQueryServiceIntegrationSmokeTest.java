@@ -2,6 +2,7 @@ package nu.marginalia.index;
 
 import com.google.inject.Guice;
 import com.google.inject.Inject;
+import io.grpc.stub.StreamObserver;
 import nu.marginalia.IndexLocations;
 import nu.marginalia.api.searchquery.*;
 import nu.marginalia.index.config.IndexFileName;
@@ -79,6 +80,9 @@ IndexQueryServiceIntegrationSmokeTest {
     @Inject
     ProcessHeartbeat processHeartbeat;
 
+    @Inject
+    IndexQueryResultCache resultCache;
+
     @BeforeEach
     public void setUp() throws IOException {
 
@@ -217,6 +221,137 @@ IndexQueryServiceIntegrationSmokeTest {
                 "Results not unique");
     }
 
+    @Test
+    public void testTruncatedQueryIsNotCached() throws Exception {
+        var linkdbWriter = new DocumentDbWriter(
+                IndexLocations.getLinkdbLivePath(fileStorageService)
+                        .resolve(DOCDB_FILE_NAME)
+        );
+        for (int i = 1; i < 512; i++) {
+            loadData(linkdbWriter, i);
+        }
+        linkdbWriter.close();
+        documentDbReader.reconnect();
+
+        indexJournalWriter.close();
+        constructIndex();
+        statefulIndex.switchIndex();
+
+        var request = RpcIndexQuery.newBuilder()
+                .setLangIsoCode("en")
+                .setSearchSetIdentifier("NONE")
+                .setHumanQuery("2")
+                .setTerms(RpcQueryTerms.newBuilder()
+                        .setCompiledQuery("2")
+                        .addAllTermsQuery(List.of("2"))
+                );
+
+        // A timeout this short leaves no ranking budget at all, so the query is cut short
+        var truncatedRequest = request.setQueryLimits(defaultLimits.toBuilder().setTimeoutMs(1)).build();
+        queryService.query(truncatedRequest, new CollectingObserver());
+        Assertions.assertNull(resultCache.get(statefulIndex.getGeneration(), truncatedRequest),
+                "Expected results of a truncated query not to be cached");
+
+        var completeRequest = request.setQueryLimits(defaultLimits).build();
+        queryService.query(completeRequest, new CollectingObserver());
+        Assertions.assertNotNull(resultCache.get(statefulIndex.getGeneration(), completeRequest),
+                "Expected results of a complete query to be cached");
+    }
+
+    @Test
+    public void testDeltaIndex() throws Exception {
+        var linkdbWriter = new DocumentDbWriter(
+                IndexLocations.getLinkdbLivePath(fileStorageService)
+                        .resolve(DOCDB_FILE_NAME)
+        );
+        for (int i = 1; i < 512; i++) {
+            loadData(linkdbWriter, i);
+        }
+        linkdbWriter.close();
+        documentDbReader.reconnect();
+
+        indexJournalWriter.close();
+        constructIndex();
+        statefulIndex.switchIndex();
+
+        // Reload the domain of document 1 with three documents, numbered from an ordinal range of
+        // their own as the loader does for a delta load, in the next page of the journal
+        final int reloadedDomain = UrlIdCodec.getDomainId(fullId(1));
+        final int firstDeltaOrdinal = 1 << 24;
+
+        Path workDir = IndexLocations.getIndexConstructionArea(fileStorageService);
+        IndexJournal journal = IndexJournal.findJournal(workDir, "en").orElseThrow();
+        Path deltaDir = IndexFileName.deltaDirectory(IndexLocations.getCurrentIndex(fileStorageService));
+        Files.createDirectories(deltaDir);
+
+        var deltaDocDbWriter = new DocumentDbWriter(deltaDir.resolve(DOCDB_FILE_NAME + ".next"));
+        var deltaJournalWriter = new IndexJournalSlopWriter(journal.journalDir(), 1);
+        for (int i = 1; i <= 3; i++) {
+            loadData(deltaDocDbWriter, deltaJournalWriter, UrlIdCodec.encodeId(reloadedDomain, firstDeltaOrdinal + i), i);
+        }
+        deltaJournalWriter.close();
+        deltaDocDbWriter.close();
+
+        constructIndex(deltaDir, journal.fromPage(1));
+        Assertions.assertTrue(statefulIndex.switchDeltaIndex());
+
+        // Every document has the keyword 1, so the query finds every document of the reloaded domain
+        var observer = new CollectingObserver();
+        queryService.query(
+                RpcIndexQuery.newBuilder()
+                        .setQueryLimits(defaultLimits.toBuilder().setResultsByDomain(100).setResultsTotal(1000))
+                        .setLangIsoCode("en")
+                        .setSearchSetIdentifier("NONE")
+                        .setHumanQuery("1")
+                        .setTerms(RpcQueryTerms.newBuilder()
+                                .setCompiledQuery("1")
+                                .addAllTermsQuery(List.of("1"))
+                        )
+                        .build(),
+                observer
+        );
+
+        List<RpcDecoratedResultItem> rsp = observer.responses.stream()
+                .flatMap(response -> response.getResultsList().stream())
+                .toList();
+
+        List<Long> reloadedDomainOrdinals = rsp.stream()
+                .map(item -> item.getRawItem().getCombinedId())
+                .filter(id -> UrlIdCodec.getDomainId(id) == reloadedDomain)
+                .map(id -> (long) UrlIdCodec.getDocumentOrdinal(id))
+                .sorted()
+                .toList();
+
+        // Only the delta index versions of the reloaded domain are found, and none of its 16 documents in the index
+        assertEquals(List.of(firstDeltaOrdinal + 1L, firstDeltaOrdinal + 2L, firstDeltaOrdinal + 3L), reloadedDomainOrdinals);
+        Assertions.assertTrue(rsp.stream()
+                .filter(item -> UrlIdCodec.getDomainId(item.getRawItem().getCombinedId()) == reloadedDomain)
+                .allMatch(item -> item.getResultsFromDomain() == 3));
+        assertEquals(511 - 16 + 3, rsp.size());
+
+        // Switching the index drops the delta index, as the new index is constructed from every journal page
+        statefulIndex.switchIndex();
+        Assertions.assertFalse(Files.exists(IndexFileName.resolve(deltaDir, new IndexFileName.ForwardDocIds(), IndexFileName.Version.CURRENT)));
+        Assertions.assertFalse(Files.exists(deltaDir.resolve(DOCDB_FILE_NAME)));
+    }
+
+    private static class CollectingObserver implements StreamObserver<RpcIndexQueryResponse> {
+        final List<RpcIndexQueryResponse> responses = new ArrayList<>();
+
+        @Override
+        public void onNext(RpcIndexQueryResponse value) {
+            responses.add(value);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            Assertions.fail(t);
+        }
+
+        @Override
+        public void onCompleted() {}
+    }
+
     @Test
     @Disabled
     public void testDomainQuery() throws Exception {
@@ -337,17 +472,25 @@ IndexQueryServiceIntegrationSmokeTest {
 
 
     private void constructIndex() throws SQLException, IOException {
-        createForwardIndex();
-        createFullReverseIndex();
-        createPrioReverseIndex();
+        Path workDir = IndexLocations.getIndexConstructionArea(fileStorageService);
+
+        constructIndex(IndexLocations.getCurrentIndex(fileStorageService), IndexJournal.findJournal(workDir, "en").orElseThrow());
+    }
+
+    private void constructIndex(Path indexDir, IndexJournal journal) throws IOException {
+        Files.createDirectories(indexDir);
+
+        createForwardIndex(indexDir, journal);
+        createFullReverseIndex(indexDir, journal);
+        createPrioReverseIndex(indexDir, journal);
     }
 
-    private void createFullReverseIndex() throws IOException {
+    private void createFullReverseIndex(Path indexDir, IndexJournal journal) throws IOException {
 
-        Path outputFileDocs = IndexFileName.resolve(IndexLocations.getCurrentIndex(fileStorageService), new IndexFileName.FullDocs(), IndexFileName.Version.NEXT);
-        Path outputFileDocsValues = IndexFileName.resolve(IndexLocations.getCurrentIndex(fileStorageService), new IndexFileName.FullDocsValues(), IndexFileName.Version.NEXT);
-        Path outputFileWords = IndexFileName.resolve(IndexLocations.getCurrentIndex(fileStorageService), new IndexFileName.FullWords("en"), IndexFileName.Version.NEXT);
-        Path outputFilePositions = IndexFileName.resolve(IndexLocations.getCurrentIndex(fileStorageService), new IndexFileName.FullPositions(), IndexFileName.Version.NEXT);
+        Path outputFileDocs = IndexFileName.resolve(indexDir, new IndexFileName.FullDocs(), IndexFileName.Version.NEXT);
+        Path outputFileDocsValues = IndexFileName.resolve(indexDir, new IndexFileName.FullDocsValues(), IndexFileName.Version.NEXT);
+        Path outputFileWords = IndexFileName.resolve(indexDir, new IndexFileName.FullWords("en"), IndexFileName.Version.NEXT);
+        Path outputFilePositions = IndexFileName.resolve(indexDir, new IndexFileName.FullPositions(), IndexFileName.Version.NEXT);
 
         Path workDir = IndexLocations.getIndexConstructionArea(fileStorageService);
         Path tmpDir = workDir.resolve("tmp");
@@ -362,14 +505,14 @@ IndexQueryServiceIntegrationSmokeTest {
                 DocIdRewriter.identity(),
                 tmpDir);
 
-        constructor.createReverseIndex(new FakeProcessHeartbeat(), "createReverseIndexFull", IndexJournal.findJournal(workDir, "en").orElseThrow());
+        constructor.createReverseIndex(new FakeProcessHeartbeat(), "createReverseIndexFull", journal);
 
     }
 
-    private void createPrioReverseIndex() throws IOException {
+    private void createPrioReverseIndex(Path indexDir, IndexJournal journal) throws IOException {
 
-        Path outputFileDocs = IndexFileName.resolve(IndexLocations.getCurrentIndex(fileStorageService), new IndexFileName.PrioDocs(), IndexFileName.Version.NEXT);
-        Path outputFileWords = IndexFileName.resolve(IndexLocations.getCurrentIndex(fileStorageService), new IndexFileName.PrioWords("en"), IndexFileName.Version.NEXT);
+        Path outputFileDocs = IndexFileName.resolve(indexDir, new IndexFileName.PrioDocs(), IndexFileName.Version.NEXT);
+        Path outputFileWords = IndexFileName.resolve(indexDir, new IndexFileName.PrioWords("en"), IndexFileName.Version.NEXT);
 
         Path workDir = IndexLocations.getIndexConstructionArea(fileStorageService);
         Path tmpDir = workDir.resolve("tmp");
@@ -380,21 +523,22 @@ IndexQueryServiceIntegrationSmokeTest {
                 DocIdRewriter.identity(),
                 tmpDir);
 
-        constructor.createReverseIndex(new FakeProcessHeartbeat(), "createReverseIndexPrio", IndexJournal.findJournal(workDir, "en").orElseThrow(), workDir);
+        constructor.createReverseIndex(new FakeProcessHeartbeat(), "createReverseIndexPrio", journal);
     }
 
-    private void createForwardIndex() throws IOException {
+    private void createForwardIndex(Path indexDir, IndexJournal journal) throws IOException {
 
-        Path workDir = IndexLocations.getIndexConstructionArea(fileStorageService);
-        Path outputFileDocsId = IndexFileName.resolve(IndexLocations.getCurrentIndex(fileStorageService), new IndexFileName.ForwardDocIds(), IndexFileName.Version.NEXT);
-        Path outputFileDocsData = IndexFileName.resolve(IndexLocations.getCurrentIndex(fileStorageService), new IndexFileName.ForwardDocData(), IndexFileName.Version.NEXT);
-        Path outputFileSpansData = IndexFileName.resolve(IndexLocations.getCurrentIndex(fileStorageService), new IndexFileName.ForwardSpansData(), IndexFileName.Version.NEXT);
+        Path outputFileDocsId = IndexFileName.resolve(indexDir, new IndexFileName.ForwardDocIds(), IndexFileName.Version.NEXT);
+        Path outputFileDocsIdLookup = IndexFileName.resolve(indexDir, new IndexFileName.ForwardDocIdsLookup(), IndexFileName.Version.NEXT);
+        Path outputFileDocsData = IndexFileName.resolve(indexDir, new IndexFileName.ForwardDocData(), IndexFileName.Version.NEXT);
+        Path outputFileSpansData = IndexFileName.resolve(indexDir, new IndexFileName.ForwardSpansData(), IndexFileName.Version.NEXT);
 
         ForwardIndexConverter converter = new ForwardIndexConverter(new FakeProcessHeartbeat(),
                 outputFileDocsId,
+                outputFileDocsIdLookup,
                 outputFileDocsData,
                 outputFileSpansData,
-                IndexJournal.findJournal(workDir, "en").stream().toList(),
+                List.of(journal),
                 domainRankings
         );
 
@@ -406,13 +550,15 @@ IndexQueryServiceIntegrationSmokeTest {
     }
 
     public void loadData(DocumentDbWriter ldbw, int id) throws Exception {
+        loadData(ldbw, indexJournalWriter, fullId(id), id);
+    }
+
+    public void loadData(DocumentDbWriter ldbw, IndexJournalSlopWriter journalWriter, long fullId, int id) throws Exception {
         int[] factors = IntStream
                 .rangeClosed(1, id)
                 .filter(v -> (id % v) == 0)
                 .toArray();
 
-        long fullId = fullId(id);
-
         ldbw.add(new DocdbUrlDetail(
                 fullId, new EdgeUrl("https://www.example.com/"+id),
                 "test", "test", "en", 0., "HTML5", 0, null, fullId, 10
@@ -431,7 +577,7 @@ IndexQueryServiceIntegrationSmokeTest {
             positions.add(VarintCodedSequence.generate(factors));
         }
 
-        indexJournalWriter.put(fullId,
+        journalWriter.put(fullId,
                 new SlopDocumentRecord.KeywordsProjection(
                         "",
                         -1,
@@ -5,7 +5,9 @@ import nu.marginalia.IndexLocations;
 import nu.marginalia.index.journal.IndexJournal;
 import nu.marginalia.index.journal.IndexJournalSlopWriter;
 import nu.marginalia.ranking.set.SearchSetAny;
+import nu.marginalia.index.searchset.ExcludedDomainSets;
 import nu.marginalia.index.searchset.SearchSetsService;
+import nu.marginalia.index.statistics.GlobalTermStatistics;
 import nu.marginalia.linkdb.docs.DocumentDbReader;
 import nu.marginalia.process.control.FakeProcessHeartbeat;
 import nu.marginalia.process.control.ProcessHeartbeat;
@@ -21,6 +23,7 @@ import nu.marginalia.storage.model.FileStorageBase;
 import nu.marginalia.storage.model.FileStorageBaseType;
 import nu.marginalia.test.TestUtil;
 import org.mockito.Mockito;
+import org.roaringbitmap.RoaringBitmap;
 
 import java.io.IOException;
 import java.nio.file.Files;
@@ -80,6 +83,14 @@ public class IndexQueryServiceIntegrationTestModule extends AbstractModule {
             when(setsServiceMock.getSearchSetByName("NONE")).thenReturn(new SearchSetAny());
             bind(SearchSetsService.class).toInstance(setsServiceMock);
 
+            ExcludedDomainSets excludedDomainSetsMock = Mockito.mock(ExcludedDomainSets.class);
+            when(excludedDomainSetsMock.forTier(Mockito.anyInt())).thenReturn(new RoaringBitmap());
+            bind(ExcludedDomainSets.class).toInstance(excludedDomainSetsMock);
+
+            GlobalTermStatistics termStatisticsMock = Mockito.mock(GlobalTermStatistics.class);
+            when(termStatisticsMock.get()).thenReturn(null);
+            bind(GlobalTermStatistics.class).toInstance(termStatisticsMock);
+
             bind(ServiceEventLog.class).toInstance(Mockito.mock(ServiceEventLog.class));
 
             bind(IndexJournalSlopWriter.class).toInstance(new IndexJournalSlopWriter(IndexJournal.allocateName(fastDir.resolve("iw"), "en"), 0));
@@ -0,0 +1,73 @@
+package nu.marginalia.index;
+
+import nu.marginalia.api.searchquery.RpcDecoratedResultItem;
+import nu.marginalia.api.searchquery.RpcRawResultItem;
+import nu.marginalia.model.id.UrlIdCodec;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class IndexResultMergerTest {
+
+    @Test
+    public void testMergeByScore() {
+        var merged = IndexResultMerger.merge(
+                List.of(item(1, 1, "a", 1.0), item(2, 2, "b", 3.0)),
+                List.of(item(3, 3, "c", 2.0), item(4, 4, "d", 4.0)),
+                10, 10);
+
+        assertEquals(List.of("a", "c", "b", "d"), urls(merged));
+    }
+
+    @Test
+    public void testResultsFromDomain() {
+        var merged = IndexResultMerger.merge(
+                List.of(item(1, 1, "a", 1.0, 3), item(2, 2, "b", 2.0, 1)),
+                List.of(item(1, 5, "c", 3.0, 2), item(3, 6, "d", 4.0, 1)),
+                10, 10);
+
+        assertEquals(List.of("a", "b", "c", "d"), urls(merged));
+
+        // Domain 1 has results in both queries, and the counts are added up
+        assertEquals(List.of(5, 1, 5, 1), merged.stream().map(RpcDecoratedResultItem::getResultsFromDomain).toList());
+    }
+
+    @Test
+    public void testLimits() {
+        var merged = IndexResultMerger.merge(
+                List.of(item(1, 1, "a", 1.0), item(1, 2, "b", 2.0), item(2, 3, "c", 5.0)),
+                List.of(item(1, 4, "d", 1.5), item(3, 5, "e", 3.0), item(4, 6, "f", 4.0)),
+                2, 3);
+
+        assertEquals(List.of("a", "d", "e"), urls(merged));
+    }
+
+    @Test
+    public void testEmptyDelta() {
+        var indexResults = List.of(item(1, 1, "a", 1.0));
+
+        assertSame(indexResults, IndexResultMerger.merge(indexResults, List.of(), 10, 10));
+    }
+
+    private RpcDecoratedResultItem item(int domainId, int documentOrdinal, String url, double score) {
+        return item(domainId, documentOrdinal, url, score, 1);
+    }
+
+    private RpcDecoratedResultItem item(int domainId, int documentOrdinal, String url, double score, int resultsFromDomain) {
+        return RpcDecoratedResultItem.newBuilder()
+                .setRawItem(RpcRawResultItem.newBuilder()
+                        .setCombinedId(UrlIdCodec.encodeId(domainId, documentOrdinal))
+                        .build())
+                .setUrl(url)
+                .setRankingScore(score)
+                .setResultsFromDomain(resultsFromDomain)
+                .build();
+    }
+
+    private List<String> urls(List<RpcDecoratedResultItem> items) {
+        return items.stream().map(RpcDecoratedResultItem::getUrl).toList();
+    }
+}
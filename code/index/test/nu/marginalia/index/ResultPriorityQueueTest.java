@@ -54,6 +54,71 @@ public class ResultPriorityQueueTest {
         assertEquals(List.of(4.0, 5.0, 6.0), scoresInOrder(q));
     }
 
+    @Test
+    public void testRejectBelowThreshold() {
+        var q = new ResultPriorityQueue(5, 5);
+        var threshold = new ScoreThreshold();
+        q.setThreshold(threshold);
+
+        assertTrue(q.add(doc(1, 1, 3.0)));
+
+        threshold.offer(2.0);
+
+        assertTrue(q.add(doc(2, 1, 1.0)));
+        assertTrue(q.add(doc(3, 1, 2.0)));
+        assertFalse(q.add(doc(4, 1, 2.5)));
+
+        // Items added before the threshold was set are kept
+        assertEquals(List.of(1.0, 2.0, 3.0), scoresInOrder(q));
+        assertEquals(1, q.getItemsBelowThreshold());
+        assertEquals(4, q.getItemsProcessed());
+    }
+
+    @Test
+    public void testItemsBelowThresholdOnlyCountsQueueable() {
+        var q = new ResultPriorityQueue(3, 2);
+        var threshold = new ScoreThreshold();
+        q.setThreshold(threshold);
+
+        q.add(doc(1, 1, 1.0));
+        q.add(doc(1, 2, 2.0));
+        q.add(doc(2, 1, 3.0));
+
+        threshold.offer(0.5);
+
+        // Worse than the worst result of the full queue, so it would not have been kept anyway
+        assertFalse(q.add(doc(3, 1, 4.0)));
+        assertEquals(0, q.getItemsBelowThreshold());
+
+        // Domain 1 is already at its limit
+        assertFalse(q.add(doc(1, 3, 1.5)));
+        assertEquals(0, q.getItemsBelowThreshold());
+
+        // Would have been kept
+        assertFalse(q.add(doc(2, 2, 2.5)));
+        assertEquals(1, q.getItemsBelowThreshold());
+
+        // ... but now domain 2 is at its limit, counting the withheld result
+        assertFalse(q.add(doc(2, 3, 2.5)));
+        assertEquals(1, q.getItemsBelowThreshold());
+
+        assertEquals(7, q.getItemsProcessed());
+    }
+
+    @Test
+    public void testItemsBelowThresholdCappedAtLimit() {
+        var q = new ResultPriorityQueue(3, 5);
+        var threshold = new ScoreThreshold();
+        q.setThreshold(threshold);
+        threshold.offer(0.5);
+
+        for (int i = 1; i <= 10; i++) {
+            assertFalse(q.add(doc(i, 1, i)));
+        }
+
+        assertEquals(3, q.getItemsBelowThreshold());
+    }
+
     @Test
     public void testRejectWhenFull() {
         var q = new ResultPriorityQueue(3, 5);
@@ -34,6 +34,7 @@ class ForwardIndexConverterTest {
 
     Path dataDir;
     private Path docsFileId;
+    private Path docsFileIdLookup;
     private Path docsFileData;
     private Path docsSpanData;
 
@@ -59,6 +60,7 @@ class ForwardIndexConverterTest {
         }
 
         docsFileId = dataDir.resolve("docs-i.dat");
+        docsFileIdLookup = dataDir.resolve("docs-il.dat");
         docsFileData = dataDir.resolve("docs-d.dat");
         docsSpanData = dataDir.resolve("docs-s.dat");
     }
@@ -100,12 +102,13 @@ class ForwardIndexConverterTest {
 
         new ForwardIndexConverter(new FakeProcessHeartbeat(),
                 docsFileId,
+                docsFileIdLookup,
                 docsFileData,
                 docsSpanData,
                 IndexJournal.findJournal(workDir, "en").stream().toList(),
                 new DomainRankings()).convert();
 
-        var forwardReader = new ForwardIndexReader(docsFileId, docsFileData, docsSpanData);
+        var forwardReader = new ForwardIndexReader(docsFileId, docsFileIdLookup, docsFileData, docsSpanData);
 
         for (int i = 36; i < workSetSize; i++) {
             long docId = createId(i, i/20);
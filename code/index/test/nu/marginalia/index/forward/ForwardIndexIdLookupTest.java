@@ -0,0 +1,85 @@
+package nu.marginalia.index.forward;
+
+import nu.marginalia.array.LongArray;
+import nu.marginalia.array.LongArrayFactory;
+import nu.marginalia.model.id.UrlIdCodec;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ForwardIndexIdLookupTest {
+    Path lookupFile;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        lookupFile = Files.createTempFile(getClass().getSimpleName(), ".dat");
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(lookupFile);
+    }
+
+    @Test
+    public void testLookup() throws IOException {
+        // A few large domains and many small ones, to get an uneven distribution over the buckets
+        Random r = new Random(42);
+        TreeSet<Long> idSet = new TreeSet<>();
+        for (int i = 0; i < 5000; i++) {
+            idSet.add(UrlIdCodec.encodeId(r.nextInt(0, 1_000_000), r.nextInt(0, 100)));
+        }
+        for (int i = 0; i < 5000; i++) {
+            idSet.add(UrlIdCodec.encodeId(17, r.nextInt(0, 1 << 20)));
+        }
+
+        LongArray ids = LongArrayFactory.onHeapShared(idSet.stream().mapToLong(Long::longValue).toArray());
+
+        ForwardIndexIdLookup.write(ids, lookupFile);
+
+        try (var lookup = new ForwardIndexIdLookup(lookupFile, ids)) {
+            for (int i = 0; i < ids.size(); i++) {
+                assertEquals(i, lookup.idxOf(ids.get(i)));
+            }
+
+            for (int i = 0; i < 10_000; i++) {
+                long id = UrlIdCodec.encodeId(r.nextInt(0, 1_000_001), r.nextInt(0, 1 << 20));
+                if (!idSet.contains(id)) {
+                    assertEquals(-1, lookup.idxOf(id));
+                }
+            }
+
+            assertEquals(-1, lookup.idxOf(ids.get(0) - 1));
+            assertEquals(-1, lookup.idxOf(ids.get(ids.size() - 1) + 1));
+        }
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        LongArray ids = LongArrayFactory.onHeapShared(0);
+
+        ForwardIndexIdLookup.write(ids, lookupFile);
+
+        try (var lookup = new ForwardIndexIdLookup(lookupFile, ids)) {
+            assertEquals(-1, lookup.idxOf(0));
+            assertEquals(-1, lookup.idxOf(12345));
+        }
+    }
+
+    @Test
+    public void testMismatchedIdsFile() throws IOException {
+        LongArray ids = LongArrayFactory.onHeapShared(new long[] { 1, 5, 9 });
+        LongArray otherIds = LongArrayFactory.onHeapShared(new long[] { 1, 5 });
+
+        ForwardIndexIdLookup.write(ids, lookupFile);
+
+        assertThrows(IOException.class, () -> new ForwardIndexIdLookup(lookupFile, otherIds));
+    }
+}
@@ -0,0 +1,97 @@
+package nu.marginalia.index.reverse.construction;
+
+import nu.marginalia.index.journal.IndexJournal;
+import nu.marginalia.process.control.FakeProcessHeartbeat;
+import nu.marginalia.test.TestUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LanguageConstructionSchedulerTest {
+    Path tempDir;
+    Map<String, IndexJournal> journals;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        tempDir = Files.createTempDirectory(getClass().getSimpleName());
+        journals = new HashMap<>();
+
+        for (String lang : new String[] { "en", "sv", "de", "fr" }) {
+            journals.put(lang, new IndexJournal(Files.createDirectory(tempDir.resolve(lang))));
+        }
+    }
+
+    @AfterEach
+    public void tearDown() {
+        TestUtil.clearTempDir(tempDir);
+    }
+
+    @Test
+    public void testRunsConcurrently() throws IOException {
+        var scheduler = new LanguageConstructionScheduler(4, 100);
+        var allStarted = new CountDownLatch(journals.size());
+
+        var results = scheduler.runAll(new FakeProcessHeartbeat(), "test", journals, (lang, journal) -> {
+            allStarted.countDown();
+            try {
+                return allStarted.await(10, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        assertEquals(journals.keySet(), results.keySet());
+        assertTrue(results.values().stream().allMatch(Boolean::booleanValue));
+    }
+
+    @Test
+    public void testMemoryBudget() throws IOException {
+        // Every journal costs at least 1 MB, so a budget of 1 MB allows only one language at a time
+        var scheduler = new LanguageConstructionScheduler(4, 1);
+        var running = new AtomicInteger();
+        var maxRunning = new AtomicInteger();
+
+        scheduler.runAll(new FakeProcessHeartbeat(), "test", journals, (lang, journal) -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(10);
+            }
+            catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            running.decrementAndGet();
+            return lang;
+        });
+
+        assertEquals(1, maxRunning.get());
+    }
+
+    @Test
+    public void testFailure() {
+        var scheduler = new LanguageConstructionScheduler(4, 100);
+        var finished = new AtomicInteger();
+
+        assertThrows(IOException.class, () ->
+            scheduler.runAll(new FakeProcessHeartbeat(), "test", journals, (lang, journal) -> {
+                if (lang.equals("sv"))
+                    throw new IOException("Test");
+                return finished.incrementAndGet();
+            })
+        );
+
+        // The other languages should run to completion
+        assertEquals(3, finished.get());
+    }
+}
@@ -0,0 +1,47 @@
+package nu.marginalia.index.reverse.query;
+
+import nu.marginalia.array.page.LongQueryBuffer;
+import nu.marginalia.model.id.UrlIdCodec;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.roaringbitmap.RoaringBitmap;
+
+class ReverseIndexRejectDomainFilterTest {
+
+    @Test
+    public void rejectNone() {
+        long[] ids = new long[] { UrlIdCodec.encodeId(1, 1), UrlIdCodec.encodeId(2, 1), UrlIdCodec.encodeId(3, 1) };
+        LongQueryBuffer lqb = new LongQueryBuffer(ids.clone(), ids.length);
+
+        var filter = new ReverseIndexRejectDomainFilter(new RoaringBitmap());
+        filter.apply(lqb);
+        Assertions.assertArrayEquals(ids, lqb.copyData());
+    }
+
+    @Test
+    public void rejectDomains() {
+        LongQueryBuffer lqb = new LongQueryBuffer(new long[] {
+                UrlIdCodec.encodeId(1, 1),
+                UrlIdCodec.encodeId(2, 1),
+                UrlIdCodec.encodeId(2, 2),
+                UrlIdCodec.encodeId(3, 1),
+                UrlIdCodec.encodeId(4, 1)
+        }, 5);
+
+        var filter = new ReverseIndexRejectDomainFilter(RoaringBitmap.bitmapOf(2, 4));
+        filter.apply(lqb);
+        Assertions.assertArrayEquals(new long[] { UrlIdCodec.encodeId(1, 1), UrlIdCodec.encodeId(3, 1) }, lqb.copyData());
+    }
+
+    @Test
+    public void rejectRankEncoded() {
+        LongQueryBuffer lqb = new LongQueryBuffer(new long[] {
+                UrlIdCodec.encodeId(5, 1, 1),
+                UrlIdCodec.encodeId(10, 2, 1),
+        }, 2);
+
+        var filter = new ReverseIndexRejectDomainFilter(RoaringBitmap.bitmapOf(1));
+        filter.apply(lqb);
+        Assertions.assertArrayEquals(new long[] { UrlIdCodec.encodeId(10, 2, 1) }, lqb.copyData());
+    }
+}
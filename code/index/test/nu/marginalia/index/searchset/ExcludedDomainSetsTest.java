@@ -0,0 +1,57 @@
+package nu.marginalia.index.searchset;
+
+import gnu.trove.set.hash.TIntHashSet;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import nu.marginalia.db.DomainBlacklist;
+import nu.marginalia.nsfw.domain.NsfwDomainFilter;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.roaringbitmap.RoaringBitmap;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.when;
+
+class ExcludedDomainSetsTest {
+    private final DomainBlacklist blacklist = Mockito.mock(DomainBlacklist.class);
+    private final NsfwDomainFilter nsfwDomainFilter = Mockito.mock(NsfwDomainFilter.class);
+
+    @Test
+    public void testTiers() {
+        when(blacklist.getLoadedSpamDomains()).thenReturn(new TIntHashSet(new int[] { 1 }));
+        when(nsfwDomainFilter.getBlockedDomains(NsfwDomainFilter.NSFW_BLOCK_DANGER)).thenReturn(new IntOpenHashSet(new int[] { 2 }));
+        when(nsfwDomainFilter.getBlockedDomains(NsfwDomainFilter.NSFW_BLOCK_SMUT)).thenReturn(new IntOpenHashSet(new int[] { 3 }));
+
+        var sets = new ExcludedDomainSets(blacklist, nsfwDomainFilter);
+
+        assertEquals(RoaringBitmap.bitmapOf(1), sets.forTier(NsfwDomainFilter.NSFW_DISABLE));
+        assertEquals(RoaringBitmap.bitmapOf(1, 2), sets.forTier(NsfwDomainFilter.NSFW_BLOCK_DANGER));
+        assertEquals(RoaringBitmap.bitmapOf(1, 2, 3), sets.forTier(NsfwDomainFilter.NSFW_BLOCK_SMUT));
+
+        // Unknown tiers are treated as the nearest known tier
+        assertEquals(RoaringBitmap.bitmapOf(1, 2, 3), sets.forTier(5));
+        assertEquals(RoaringBitmap.bitmapOf(1), sets.forTier(-1));
+    }
+
+    @Test
+    public void testRebuildOnReload() {
+        var tier1 = new IntOpenHashSet(new int[] { 2 });
+        var tier2 = new IntOpenHashSet();
+
+        when(blacklist.getLoadedSpamDomains()).thenReturn(new TIntHashSet());
+        when(nsfwDomainFilter.getBlockedDomains(NsfwDomainFilter.NSFW_BLOCK_DANGER)).thenReturn(tier1);
+        when(nsfwDomainFilter.getBlockedDomains(NsfwDomainFilter.NSFW_BLOCK_SMUT)).thenReturn(tier2);
+
+        var sets = new ExcludedDomainSets(blacklist, nsfwDomainFilter);
+
+        // Nothing has been reloaded
+        assertFalse(sets.refresh());
+        assertEquals(RoaringBitmap.bitmapOf(2), sets.forTier(NsfwDomainFilter.NSFW_BLOCK_DANGER));
+
+        // The blacklist is reloaded
+        when(blacklist.getLoadedSpamDomains()).thenReturn(new TIntHashSet(new int[] { 7 }));
+
+        assertTrue(sets.refresh());
+        assertEquals(RoaringBitmap.bitmapOf(7), sets.forTier(NsfwDomainFilter.NSFW_DISABLE));
+        assertEquals(RoaringBitmap.bitmapOf(2, 7), sets.forTier(NsfwDomainFilter.NSFW_BLOCK_DANGER));
+    }
+}
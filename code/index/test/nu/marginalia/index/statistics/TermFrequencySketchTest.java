@@ -0,0 +1,192 @@
+package nu.marginalia.index.statistics;
+
+import com.github.prasanthj.cmsketch.CountMinSketch;
+import nu.marginalia.array.LongArray;
+import nu.marginalia.array.LongArrayFactory;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TermFrequencySketchTest {
+
+    @Test
+    void testExactThreshold() {
+        LongArray counts = LongArrayFactory.onHeapShared(new long[] { 1, 1, 2, 3, 5, 100, 1000, 0 });
+
+        // Room for every term
+        assertEquals(1, TermFrequencySketch.exactThreshold(counts, 10));
+
+        // 1000 and 100 fit, but the terms in [4,8) would make it three
+        assertEquals(64, TermFrequencySketch.exactThreshold(counts, 2));
+
+        // Nothing fits
+        assertEquals(Long.MAX_VALUE, TermFrequencySketch.exactThreshold(counts, 0));
+    }
+
+    @Test
+    void testBuildAndEstimate() {
+        LongArray termIds = LongArrayFactory.onHeapShared(new long[] { 10, 20, 30, 40 });
+        LongArray counts = LongArrayFactory.onHeapShared(new long[] { 1, 3, 500, 2000 });
+
+        var sketch = TermFrequencySketch.build(termIds, counts, 2, 1024, 4);
+
+        assertEquals(2, sketch.exactTermCount());
+
+        assertEquals(500, sketch.estimate(30));
+        assertEquals(2000, sketch.estimate(40));
+
+        // The sketch never underestimates
+        assertTrue(sketch.estimate(10) >= 1);
+        assertTrue(sketch.estimate(20) >= 3);
+    }
+
+    /** Measure the overestimate of the rare terms, with a power law distribution of document
+     * counts over a realistic number of terms, against a plain count-min sketch */
+    @Test
+    void testRareTermError() {
+        int numTerms = 2_000_000;
+        int exactTerms = 65536;
+        int width = 1 << 20;
+        int depth = 4;
+
+        Random random = new Random(42);
+
+        long[] termIds = new long[numTerms];
+        long[] counts = new long[numTerms];
+        for (int i = 0; i < numTerms; i++) {
+            termIds[i] = i;
+            // P(count >= k) = 1/k
+            counts[i] = (long) Math.min(10_000_000, Math.floor(1. / (1. - random.nextDouble())));
+        }
+
+        LongArray countsArray = LongArrayFactory.onHeapShared(counts);
+        var sketch = TermFrequencySketch.build(LongArrayFactory.onHeapShared(termIds), countsArray, exactTerms, width, depth);
+
+        long exactThreshold = TermFrequencySketch.exactThreshold(countsArray, exactTerms);
+        var plainSketch = new CountMinSketch(width, depth);
+        for (int i = 0; i < numTerms; i++) {
+            if (counts[i] < exactThreshold) {
+                plainSketch.addLong(termIds[i], (int) counts[i]);
+            }
+        }
+
+        double error = 0;
+        double plainError = 0;
+        int rareTerms = 0;
+
+        for (int i = 0; i < numTerms; i++) {
+            int estimate = sketch.estimate(termIds[i]);
+            assertTrue(estimate >= counts[i]);
+
+            if (counts[i] <= 2) {
+                error += (estimate - counts[i]) / (double) counts[i];
+                plainError += (plainSketch.getEstimatedCountLong(termIds[i]) - counts[i]) / (double) counts[i];
+                rareTerms++;
+            }
+        }
+
+        error /= rareTerms;
+        plainError /= rareTerms;
+
+        System.out.printf("Mean relative error of %d rare terms: %.3f, plain count-min: %.3f%n", rareTerms, error, plainError);
+
+        assertTrue(error < 0.5, "Error " + error);
+        assertTrue(error < plainError * 0.6, "Error " + error + " vs " + plainError);
+    }
+
+    @Test
+    void testMerge() {
+        LongArray termIds = LongArrayFactory.onHeapShared(new long[] { 10, 20, 30 });
+
+        var a = TermFrequencySketch.build(termIds,
+                LongArrayFactory.onHeapShared(new long[] { 1, 5, 100 }), 1, 1024, 4);
+        var b = TermFrequencySketch.build(termIds,
+                LongArrayFactory.onHeapShared(new long[] { 2, 100, 5 }), 1, 1024, 4);
+
+        var merged = a.emptyCopy();
+        merged.merge(a);
+        merged.merge(b);
+
+        // A term may be exact in one partition and in the sketch of another
+        assertTrue(merged.estimate(10) >= 3);
+        assertTrue(merged.estimate(20) >= 105);
+        assertTrue(merged.estimate(30) >= 105);
+
+        assertThrows(IllegalArgumentException.class, () -> a.merge(new TermFrequencySketch(1024, 2)));
+        assertThrows(IllegalArgumentException.class, () -> a.merge(new TermFrequencySketch(768, 4)));
+    }
+
+    @Test
+    void testMergeDifferentWidths() {
+        int numTerms = 5000;
+        Random random = new Random(42);
+
+        long[] termIds = new long[numTerms];
+        long[] countsA = new long[numTerms];
+        long[] countsB = new long[numTerms];
+        for (int i = 0; i < numTerms; i++) {
+            termIds[i] = random.nextLong();
+            countsA[i] = 1 + random.nextInt(10);
+            countsB[i] = 1 + random.nextInt(10);
+        }
+
+        var narrow = TermFrequencySketch.build(LongArrayFactory.onHeapShared(termIds),
+                LongArrayFactory.onHeapShared(countsA), 0, 1024, 4);
+        var wide = TermFrequencySketch.build(LongArrayFactory.onHeapShared(termIds),
+                LongArrayFactory.onHeapShared(countsB), 0, 8192, 4);
+
+        // Merged at the larger width either way round
+        var narrowFirst = narrow.emptyCopy();
+        narrowFirst.merge(narrow);
+        narrowFirst.merge(wide);
+
+        var wideFirst = wide.emptyCopy();
+        wideFirst.merge(wide);
+        wideFirst.merge(narrow);
+
+        assertEquals(8192, narrowFirst.width());
+        assertEquals(8192, wideFirst.width());
+
+        for (int i = 0; i < numTerms; i++) {
+            assertTrue(narrowFirst.estimate(termIds[i]) >= countsA[i] + countsB[i]);
+            assertEquals(narrowFirst.estimate(termIds[i]), wideFirst.estimate(termIds[i]));
+        }
+    }
+
+    @Test
+    void testWidthForTerms() {
+        assertEquals(TermFrequencySketch.MIN_WIDTH, TermFrequencySketch.widthFor(0));
+        assertEquals(TermFrequencySketch.MIN_WIDTH, TermFrequencySketch.widthFor(1000));
+        assertEquals(1 << 20, TermFrequencySketch.widthFor(1 << 20));
+        assertEquals(1 << 21, TermFrequencySketch.widthFor((1 << 20) + 1));
+        assertEquals(TermFrequencySketch.MAX_WIDTH, TermFrequencySketch.widthFor(10_000_000_000L));
+    }
+
+    @Test
+    void testWriteRead() throws IOException {
+        LongArray termIds = LongArrayFactory.onHeapShared(new long[] { 10, 20, 30, 40 });
+        LongArray counts = LongArrayFactory.onHeapShared(new long[] { 1, 3, 500, 2000 });
+
+        var sketch = TermFrequencySketch.build(termIds, counts, 2, 1024, 4);
+
+        Path file = Files.createTempFile(getClass().getSimpleName(), ".dat");
+        try {
+            sketch.write(file);
+
+            var read = TermFrequencySketch.read(file);
+
+            assertEquals(sketch.exactTermCount(), read.exactTermCount());
+            for (long termId : new long[] { 10, 20, 30, 40, 50 }) {
+                assertEquals(sketch.estimate(termId), read.estimate(termId));
+            }
+        }
+        finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package nu.marginalia.array.algo;
+
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+
+/** Vector API implementation of {@link SortedSearch}.  This class must only be
+ * loaded when the jdk.incubator.vector module is present.
+ * <p></p>
+ * It's compiled in a source set of its own, so that the rest of the module doesn't depend on
+ * the incubator module, and can't use the main source set, so the scalar tail is repeated here.
+ * <p></p>
+ * The search first scans one vector's worth of values with scalar compares, as the next
+ * match is typically close by.  If the key is beyond them, the search gallops ahead by doubling
+ * the stride until it finds a value that is not less than the key, binary searches the
+ * last stride down to a few vectors, and then finishes with vector compares.  Since
+ * the values are sorted, the lanes less than the key form a prefix of the vector,
+ * so the position is the count of true lanes in the comparison mask.
+ * <p></p>
+ * The gain is in intersections where the candidates are sparse relative to the values
+ * searched, e.g. a rare term against a common one.  When the lists are of similar density,
+ * the probe and the galloping cost more than a plain scan, see SortedSearchBenchmark.
+ */
+final class VectorizedSortedSearch {
+    private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+
+    /** Windows smaller than this are searched with vector compares rather than binary search */
+    private static final int LINEAR_WINDOW = 4 * LANES;
+
+    private VectorizedSortedSearch() {}
+
+    static int lanes() {
+        return LANES;
+    }
+
+    static int lowerBound(long[] values, long key, int from, int to) {
+        // Most keys in a dense intersection are within a few positions of the start,
+        // where a scalar scan is cheaper than a vector load and mask extraction
+        final int probeEnd = Math.min(to, from + LANES);
+        for (int i = from; i < probeEnd; i++) {
+            if (values[i] >= key) return i;
+        }
+        if (probeEnd == to) {
+            return to;
+        }
+
+        // Gallop to find a window [lo, hi) whose end is not less than the key
+        int lo = probeEnd;
+        int stride = LANES;
+        int hi;
+        for (;;) {
+            hi = lo + stride;
+            if (hi >= to) {
+                hi = to;
+                break;
+            }
+            if (values[hi - 1] >= key) {
+                break;
+            }
+            lo = hi;
+            stride <<= 1;
+        }
+
+        // Narrow the window
+        while (hi - lo > LINEAR_WINDOW) {
+            int mid = (lo + hi) >>> 1;
+            if (values[mid - 1] < key) lo = mid;
+            else hi = mid;
+        }
+
+        int i = lo;
+        for (; i + LANES <= hi; i += LANES) {
+            int lt = LongVector.fromArray(SPECIES, values, i).compare(VectorOperators.LT, key).trueCount();
+            if (lt < LANES) {
+                return i + lt;
+            }
+        }
+
+        while (i < hi && values[i] < key) {
+            i++;
+        }
+        return i;
+    }
+
+    static int lowerBound(MemorySegment segment, long baseOffset, long key, int from, int to) {
+        // Vector loads from heap segments are only supported for byte[] backed segments
+        if (!segment.isNative()) {
+            return scalarLowerBound(segment, baseOffset, key, from, to);
+        }
+
+        final int probeEnd = Math.min(to, from + LANES);
+        for (int i = from; i < probeEnd; i++) {
+            if (valueAt(segment, baseOffset, i) >= key) return i;
+        }
+        if (probeEnd == to) {
+            return to;
+        }
+
+        int lo = probeEnd;
+        int stride = LANES;
+        int hi;
+        for (;;) {
+            hi = lo + stride;
+            if (hi >= to) {
+                hi = to;
+                break;
+            }
+            if (valueAt(segment, baseOffset, hi - 1) >= key) {
+                break;
+            }
+            lo = hi;
+            stride <<= 1;
+        }
+
+        while (hi - lo > LINEAR_WINDOW) {
+            int mid = (lo + hi) >>> 1;
+            if (valueAt(segment, baseOffset, mid - 1) < key) lo = mid;
+            else hi = mid;
+        }
+
+        int i = lo;
+        for (; i + LANES <= hi; i += LANES) {
+            int lt = vectorAt(segment, baseOffset, i).compare(VectorOperators.LT, key).trueCount();
+            if (lt < LANES) {
+                return i + lt;
+            }
+        }
+
+        return scalarLowerBound(segment, baseOffset, key, i, hi);
+    }
+
+    private static int scalarLowerBound(MemorySegment segment, long baseOffset, long key, int from, int to) {
+        int i = from;
+        while (i < to && valueAt(segment, baseOffset, i) < key) {
+            i++;
+        }
+        return i;
+    }
+
+    private static LongVector vectorAt(MemorySegment segment, long baseOffset, int idx) {
+        return LongVector.fromMemorySegment(SPECIES, segment, baseOffset + 8L * idx, ByteOrder.nativeOrder());
+    }
+
+    private static long valueAt(MemorySegment segment, long baseOffset, int idx) {
+        return segment.get(ValueLayout.JAVA_LONG_UNALIGNED, baseOffset + 8L * idx);
+    }
+}
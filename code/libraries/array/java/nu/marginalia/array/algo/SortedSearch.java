@@ -0,0 +1,87 @@
+package nu.marginalia.array.algo;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+/** Search for the lower bound of a key in a sorted run of longs, which is the inner
+ * operation of merge-style intersection and rejection of sorted lists.
+ * <p></p>
+ * By default this is a scalar linear scan.  A vectorized implementation that gallops ahead
+ * to find the window containing the key, and then compares a full vector of values at a time,
+ * is enabled with -Dsystem.vectorizedSortedSearch=true, which also requires the JVM to be started
+ * with --add-modules=jdk.incubator.vector.  It is much faster when the keys are sparse relative
+ * to the values searched, but slower when they are of similar density, see SortedSearchBenchmark.
+ */
+public class SortedSearch {
+    /** Indicates whether the vectorized implementation is in use */
+    public static final boolean isVectorized;
+
+    /** Indicates whether the Vector API module has been loaded, regardless of whether
+     * the vectorized implementation is enabled */
+    static final boolean isVectorApiAvailable = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+
+    private static final Logger logger = LoggerFactory.getLogger(SortedSearch.class);
+
+    static {
+        boolean vectorized = false;
+
+        if (Boolean.getBoolean("system.vectorizedSortedSearch")) {
+            if (!isVectorApiAvailable) {
+                logger.warn("Vectorized sorted search requires --add-modules=jdk.incubator.vector, using scalar sorted search");
+            }
+            else {
+                try {
+                    logger.info("Using vectorized sorted search with {} lanes", VectorizedSortedSearch.lanes());
+                    vectorized = true;
+                }
+                catch (LinkageError ex) {
+                    logger.warn("Vector API unavailable, using scalar sorted search", ex);
+                }
+            }
+        }
+
+        isVectorized = vectorized;
+    }
+
+    /** Return the index of the first value in values[from, to) that is greater than or equal to key,
+     * or to if there is no such value.  The values must be sorted in ascending order.
+     */
+    public static int lowerBound(long[] values, long key, int from, int to) {
+        if (isVectorized) {
+            return VectorizedSortedSearch.lowerBound(values, key, from, to);
+        }
+
+        return scalarLowerBound(values, key, from, to);
+    }
+
+    /** Return the index of the first long in segment[baseOffset + 8*from, baseOffset + 8*to) that is
+     * greater than or equal to key, or to if there is no such value.  The values must be sorted in
+     * ascending order, and stored in native byte order.
+     */
+    public static int lowerBound(MemorySegment segment, long baseOffset, long key, int from, int to) {
+        if (isVectorized) {
+            return VectorizedSortedSearch.lowerBound(segment, baseOffset, key, from, to);
+        }
+
+        return scalarLowerBound(segment, baseOffset, key, from, to);
+    }
+
+    public static int scalarLowerBound(long[] values, long key, int from, int to) {
+        int i = from;
+        while (i < to && values[i] < key) {
+            i++;
+        }
+        return i;
+    }
+
+    public static int scalarLowerBound(MemorySegment segment, long baseOffset, long key, int from, int to) {
+        int i = from;
+        while (i < to && segment.get(ValueLayout.JAVA_LONG_UNALIGNED, baseOffset + 8L * i) < key) {
+            i++;
+        }
+        return i;
+    }
+}
@@ -1,6 +1,7 @@
 package nu.marginalia.array.pool;
 
 import nu.marginalia.ffi.LinuxSystemCalls;
+import nu.marginalia.uring.UringFileReader;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -12,7 +13,10 @@ import java.lang.foreign.MemorySegment;
 import java.lang.foreign.ValueLayout;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -22,14 +26,25 @@ public class BufferPool implements AutoCloseable {
     private final MemoryPage[] pages;
     private Thread monitorThread;
 
+    private final Path filename;
     private final long fileSize;
     private final Arena arena;
     private final int fd;
     private final int pageSizeBytes;
-    private PoolLru poolLru;
+    private PoolReplacementPolicy poolPolicy;
 
     private final AtomicLong diskReadCount = new AtomicLong();
     private final AtomicLong cacheReadCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong prefetchBatchCount = new AtomicLong();
+    private final AtomicLong prefetchPageCount = new AtomicLong();
+    private final AtomicLong prefetchBatchedPageCount = new AtomicLong();
+
+    private static final long PREFETCH_TIMEOUT_MS = 50;
+
+    /** Lazily opened on the first call to prefetch() */
+    private volatile UringFileReader prefetchReader;
+    private volatile boolean prefetchDisabled = false;
 
     private volatile boolean running = true;
 
@@ -39,15 +54,16 @@ public class BufferPool implements AutoCloseable {
             page.pageAddress(-1);
         }
         try {
-            poolLru.stop();
+            poolPolicy.stop();
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
         }
-        poolLru = new PoolLru(pages);
+        poolPolicy = PoolReplacementPolicy.create(pages);
     }
 
 
     public BufferPool(Path filename, int pageSizeBytes, int poolSize) {
+        this.filename = filename;
         this.fd = LinuxSystemCalls.openDirect(filename);
         this.pageSizeBytes = pageSizeBytes;
         try {
@@ -68,7 +84,7 @@ public class BufferPool implements AutoCloseable {
             }
         }
 
-        this.poolLru = new PoolLru(pages);
+        this.poolPolicy = PoolReplacementPolicy.create(pages);
         this.monitorThread = Thread.ofPlatform().start(this::statsThread);
     }
 
@@ -98,11 +114,11 @@ public class BufferPool implements AutoCloseable {
             }
 
             if (diskRead != diskReadOld || cacheRead != cacheReadOld) {
-                logger.info("[#{}:{}] Disk/Cached: {}/{}, heldCount={}/{}, fqs={}, rcc={}",
+                logger.info("[#{}:{}] Disk/Cached: {}/{}, evicted={}, heldCount={}/{}, fqs={}, rcc={}",
                         hashCode(), pageSizeBytes,
-                        diskRead, cacheRead,
+                        diskRead, cacheRead, evictionCount.get(),
                         heldCount, pages.length,
-                        poolLru.getFreeQueueSize(), poolLru.getReclaimCycles());
+                        poolPolicy.getFreeQueueSize(), poolPolicy.getReclaimCycles());
             }
         }
     }
@@ -111,7 +127,7 @@ public class BufferPool implements AutoCloseable {
         running = false;
 
         try {
-            poolLru.stop();
+            poolPolicy.stop();
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
         }
@@ -120,6 +136,10 @@ public class BufferPool implements AutoCloseable {
 
             LinuxSystemCalls.closeFd(fd);
 
+            if (prefetchReader != null) {
+                prefetchReader.close();
+            }
+
             System.out.println("Disk read count: " + diskReadCount.get());
             System.out.println("Cached read count: " + cacheReadCount.get());
 
@@ -143,9 +163,142 @@ public class BufferPool implements AutoCloseable {
         return cacheReadCount.get();
     }
 
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /** Snapshot of the pool's cumulative counters, for exporting as metrics */
+    public PoolStats getStats() {
+        return new PoolStats(PoolReplacementPolicy.selectedName(),
+                cacheReadCount.get(),
+                diskReadCount.get(),
+                evictionCount.get(),
+                prefetchBatchCount.get(),
+                prefetchPageCount.get(),
+                prefetchBatchedPageCount.get());
+    }
+
+    /**
+     * @param prefetchBatches number of batched io_uring reads issued through prefetch()
+     * @param prefetchedPages number of pages read through prefetch()
+     * @param batchedPages number of pages read through prefetch() in batched reads; small prefetches
+     *                     are read with one pread per page and are not included
+     */
+    public record PoolStats(String policy, long hits, long misses, long evictions,
+                            long prefetchBatches, long prefetchedPages, long batchedPages)
+    {
+        /** The number of read syscalls avoided by batching, assuming each page of a batched
+         * read would otherwise have been read with a separate pread */
+        public long savedSyscalls() {
+            return Math.max(0, batchedPages - prefetchBatches);
+        }
+    }
+
+    /** Read the pages at the given addresses into the pool with a single batched io_uring read,
+     * skipping any page that is already present.  This is a best-effort operation, failures
+     * are logged and the affected pages are simply left out of the pool.
+     * <p></p>
+     * At most a quarter of the pool is claimed by a single call, so that concurrent readers
+     * are never starved of free pages.
+     *
+     * @return the number of pages that were read
+     */
+    public int prefetch(long[] addresses) {
+        if (addresses.length == 0 || !running)
+            return 0;
+
+        UringFileReader reader = getPrefetchReader();
+        if (reader == null)
+            return 0;
+
+        final int maxPages = Math.max(1, pages.length / 4);
+
+        List<MemoryPage> claimedPages = new ArrayList<>(Math.min(addresses.length, maxPages));
+        List<MemorySegment> destinations = new ArrayList<>(claimedPages.size());
+        List<Long> offsets = new ArrayList<>(claimedPages.size());
+
+        for (long address : addresses) {
+            if (claimedPages.size() >= maxPages)
+                break;
+            if (address < 0 || (address & 511) != 0 || address + pageSizeBytes > fileSize)
+                continue;
+            if (offsets.contains(address))
+                continue;
+
+            MemoryPage existing = poolPolicy.get(address);
+            if (existing != null && existing.pageAddress() == address)
+                continue;
+
+            MemoryPage page = acquireFreePage(address);
+            poolPolicy.register(page);
+
+            claimedPages.add(page);
+            destinations.add(page.getMemorySegment());
+            offsets.add(address);
+        }
+
+        if (claimedPages.isEmpty())
+            return 0;
+
+        boolean success = false;
+        try {
+            reader.read(destinations, offsets, PREFETCH_TIMEOUT_MS);
+            success = true;
+        }
+        catch (TimeoutException ex) {
+            logger.debug("Prefetch of {} pages timed out", claimedPages.size());
+        }
+        catch (RuntimeException ex) {
+            logger.warn("Prefetch of {} pages failed", claimedPages.size(), ex);
+        }
+        finally {
+            for (var page : claimedPages) {
+                if (!success) {
+                    page.pageAddress(-1);
+                }
+                if (!page.pinCount().compareAndSet(-1, 0)) {
+                    throw new IllegalStateException("Panic! Write lock was not held during prefetch!");
+                }
+                page.dirty(false);
+            }
+        }
+
+        if (!success)
+            return 0;
+
+        int batches = UringFileReader.batchCount(claimedPages.size());
+        if (batches > 0) {
+            prefetchBatchCount.addAndGet(batches);
+            prefetchBatchedPageCount.addAndGet(claimedPages.size());
+        }
+        prefetchPageCount.addAndGet(claimedPages.size());
+
+        return claimedPages.size();
+    }
+
+    @Nullable
+    private UringFileReader getPrefetchReader() {
+        var reader = prefetchReader;
+        if (reader != null || prefetchDisabled)
+            return reader;
+
+        synchronized (this) {
+            if (prefetchReader == null && !prefetchDisabled) {
+                try {
+                    prefetchReader = new UringFileReader(filename, true);
+                }
+                catch (Throwable ex) {
+                    logger.warn("Could not open io_uring reader for {}, prefetching disabled", filename, ex);
+                    prefetchDisabled = true;
+                }
+            }
+            return prefetchReader;
+        }
+    }
+
     @Nullable
     public MemoryPage getExistingBufferForReading(long address) {
-        MemoryPage cachedBuffer = poolLru.get(address);
+        MemoryPage cachedBuffer = poolPolicy.get(address);
         if (cachedBuffer != null && cachedBuffer.pageAddress() == address) {
 
             // Try to acquire the page normally
@@ -190,7 +343,7 @@ public class BufferPool implements AutoCloseable {
             throw new  RuntimeException("Address " + address + " not aligned");
         }
         MemoryPage buffer = acquireFreePage(address);
-        poolLru.register(buffer);
+        poolPolicy.register(buffer);
         populateBuffer(buffer);
 
         if (!buffer.pinCount().compareAndSet(-1, 1)) {
@@ -203,8 +356,15 @@ public class BufferPool implements AutoCloseable {
 
     private MemoryPage acquireFreePage(long address) {
         for (;;) {
-            var free = poolLru.getFree();
-            if (free != null && free.acquireForWriting(address)) {
+            var free = poolPolicy.getFree();
+            if (free == null)
+                continue;
+
+            long previousAddress = free.pageAddress();
+            if (free.acquireForWriting(address)) {
+                if (previousAddress >= 0) {
+                    evictionCount.incrementAndGet();
+                }
                 return free;
             }
         }
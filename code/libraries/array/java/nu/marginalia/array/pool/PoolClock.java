@@ -0,0 +1,140 @@
+package nu.marginalia.array.pool;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/** Scan-resistant CLOCK replacement for pool buffers.
+ * <p></p>
+ * Newly read buffers enter on probation with the lowest clock value, and are promoted to
+ * HOT_CLOCK on every hit, so buffers that are touched once by a large scan are reclaimed
+ * before buffers that see repeated use, while a hot buffer survives several sweeps without hits.
+ * <p></p>
+ * The address table is a set-associative array of buffer references that is read and
+ * updated without locks.  Since callers verify the buffer address when acquiring it,
+ * entries are never removed, stale entries are simply overwritten.  Reclamation is done
+ * in the calling thread, with concurrent callers advancing a shared clock hand so
+ * that they sweep disjoint buffers.
+ * */
+public class PoolClock implements PoolReplacementPolicy {
+    private static final int WAYS = 4;
+
+    private static final int PROBATION_CLOCK = 1;
+    private static final int HOT_CLOCK = 3;
+
+    private final MemoryPage[] pages;
+    private final AtomicReferenceArray<MemoryPage> table;
+    private final int bucketMask;
+
+    private final AtomicLong clockHand = new AtomicLong();
+    private final AtomicLong reclaimCycles = new AtomicLong();
+
+    private volatile boolean running = true;
+
+    public PoolClock(MemoryPage[] pages) {
+        this.pages = pages;
+
+        // With four times as many table slots as there are pages, live entries are rarely displaced
+        int buckets = nextPowerOf2(pages.length);
+
+        this.bucketMask = buckets - 1;
+        this.table = new AtomicReferenceArray<>(buckets * WAYS);
+    }
+
+    @Override
+    public MemoryPage get(long address) {
+        final int base = WAYS * bucketOf(address);
+
+        for (int i = 0; i < WAYS; i++) {
+            MemoryPage page = table.get(base + i);
+
+            if (page != null && page.pageAddress() == address) {
+                page.touchClock(HOT_CLOCK);
+                return page;
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public void register(MemoryPage buffer) {
+        final long address = buffer.pageAddress();
+        final int bucket = bucketOf(address);
+        final int base = WAYS * bucket;
+
+        buffer.touchClock(PROBATION_CLOCK);
+
+        for (int i = 0; i < WAYS; i++) {
+            MemoryPage existing = table.get(base + i);
+
+            if (existing == null || isReplaceable(existing, address, bucket)) {
+                if (table.compareAndSet(base + i, existing, buffer)) {
+                    return;
+                }
+            }
+        }
+
+        // Every way holds a live entry, displace one of them.  The displaced buffer stays in the
+        // pool but can no longer be found, and will be reclaimed once its clock runs out.
+        table.set(base + ThreadLocalRandom.current().nextInt(WAYS), buffer);
+    }
+
+    private boolean isReplaceable(MemoryPage existing, long address, int bucket) {
+        long existingAddress = existing.pageAddress();
+
+        return existingAddress < 0
+            || existingAddress == address
+            || bucketOf(existingAddress) != bucket;
+    }
+
+    @Override
+    public MemoryPage getFree() {
+        for (int iter = 1;; iter++) {
+            long hand = clockHand.getAndIncrement();
+            int idx = (int) (hand % pages.length);
+
+            if (idx == 0) {
+                reclaimCycles.incrementAndGet();
+            }
+
+            MemoryPage page = pages[idx];
+
+            if (!page.isHeld() && page.decreaseClock()) {
+                return page;
+            }
+
+            if ((iter % pages.length) == 0) {
+                if (!running) {
+                    throw new IllegalStateException("PoolClock is no longer running");
+                }
+
+                // Every buffer has been passed over, let the holders make some progress
+                Thread.yield();
+            }
+        }
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+    }
+
+    @Override
+    public int getFreeQueueSize() {
+        return 0;
+    }
+
+    @Override
+    public long getReclaimCycles() {
+        return reclaimCycles.get();
+    }
+
+    private int bucketOf(long address) {
+        return (int) ((address * 0x9E37_79B9_7F4A_7C15L) >>> 32) & bucketMask;
+    }
+
+    private static int nextPowerOf2(int val) {
+        return val <= 1 ? 1 : Integer.highestOneBit(val - 1) << 1;
+    }
+}
@@ -10,7 +10,7 @@ import java.util.concurrent.locks.StampedLock;
 
 /** LRU for pool buffers
  * */
-public class PoolLru {
+public class PoolLru implements PoolReplacementPolicy {
     private static final Logger logger = LoggerFactory.getLogger(PoolLru.class);
 
     private final int maxSize;
@@ -0,0 +1,41 @@
+package nu.marginalia.array.pool;
+
+/** Keeps track of which pool buffers are associated with which addresses,
+ * and decides which buffers to reclaim when the pool needs a free buffer.
+ * <p></p>
+ * The association is only a hint, callers must verify the address of
+ * the returned buffer when acquiring it.
+ * */
+public interface PoolReplacementPolicy {
+
+    /** Attempt to get a buffer already associated with the address */
+    MemoryPage get(long address);
+
+    /** Associate the buffer with its current address */
+    void register(MemoryPage buffer);
+
+    /** Attempt to get a free buffer from the pool
+     *
+     * @return A buffer that was unheld at the time of the call, the caller must still acquire it
+     * */
+    MemoryPage getFree();
+
+    void stop() throws InterruptedException;
+
+    int getFreeQueueSize();
+    long getReclaimCycles();
+
+    /** Create the replacement policy selected by the index.bufferPoolPolicy system property,
+     * either 'lru' (default) or 'clock' */
+    static PoolReplacementPolicy create(MemoryPage[] pages) {
+        return switch (System.getProperty("index.bufferPoolPolicy", "lru")) {
+            case "clock" -> new PoolClock(pages);
+            case "lru" -> new PoolLru(pages);
+            default -> throw new IllegalArgumentException("Unknown buffer pool policy " + System.getProperty("index.bufferPoolPolicy"));
+        };
+    }
+
+    static String selectedName() {
+        return System.getProperty("index.bufferPoolPolicy", "lru");
+    }
+}
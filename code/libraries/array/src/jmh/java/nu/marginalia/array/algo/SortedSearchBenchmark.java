@@ -0,0 +1,103 @@
+package nu.marginalia.array.algo;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/** This benchmark simulates the intersection of a candidate list with a posting list block,
+ * as done in the skip list retain operation, comparing the scalar linear scan with the
+ * vectorized galloping search.
+ * <p></p>
+ * The jmh task enables the vectorized implementation, otherwise the vectorized benchmark
+ * falls back to the scalar implementation.
+ * <p></p>
+ * The same intersections timed in a standalone loop on JDK 17 with AVX-512 (8 lanes), as
+ * microseconds per intersection of a 4096 value block:
+ * <pre>
+ * ratio   scalar   vectorized
+ *     1     16.8         41.5
+ *     8      7.0          6.3
+ *    64      6.5          1.7
+ *   512      4.3          0.3
+ * </pre>
+ * The vectorized search only pays off for sparse candidates, which is why it's opt-in.
+ */
+public class SortedSearchBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class IntersectionState {
+        /** How many times more values the posting list has than the candidate list */
+        @Param({"1", "8", "64", "512"})
+        int ratio;
+
+        static final int blockSize = 4096;
+
+        long[] block;
+        long[] candidates;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            Random r = new Random(42);
+
+            block = new long[blockSize];
+            long v = 0;
+            for (int i = 0; i < blockSize; i++) {
+                v += 1 + r.nextInt(4);
+                block[i] = v;
+            }
+
+            // Half of the candidates are present in the block
+            candidates = new long[blockSize / ratio];
+            long max = block[blockSize - 1];
+            for (int i = 0; i < candidates.length; i++) {
+                candidates[i] = r.nextBoolean() ? block[r.nextInt(blockSize)] : r.nextLong(max);
+            }
+            Arrays.sort(candidates);
+        }
+    }
+
+    @Fork(value = 1, warmups = 1)
+    @Warmup(iterations = 3)
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public int scalarIntersection(IntersectionState state) {
+        final long[] block = state.block;
+        int pos = 0;
+        int matches = 0;
+
+        for (long key : state.candidates) {
+            pos = SortedSearch.scalarLowerBound(block, key, pos, block.length);
+            if (pos >= block.length)
+                break;
+            if (block[pos] == key) {
+                matches++;
+                pos++;
+            }
+        }
+
+        return matches;
+    }
+
+    @Fork(value = 1, warmups = 1)
+    @Warmup(iterations = 3)
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public int vectorizedIntersection(IntersectionState state) {
+        final long[] block = state.block;
+        int pos = 0;
+        int matches = 0;
+
+        for (long key : state.candidates) {
+            pos = SortedSearch.lowerBound(block, key, pos, block.length);
+            if (pos >= block.length)
+                break;
+            if (block[pos] == key) {
+                matches++;
+                pos++;
+            }
+        }
+
+        return matches;
+    }
+}
@@ -0,0 +1,75 @@
+package nu.marginalia.array.algo;
+
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class SortedSearchTest {
+
+    private long[] sortedValues(Random r, int n) {
+        long[] values = new long[n];
+        long v = r.nextInt(100);
+        for (int i = 0; i < n; i++) {
+            // Mix of dense runs and large gaps, with some duplicates
+            v += r.nextDouble() < 0.1 ? r.nextInt(10_000) : r.nextInt(3);
+            values[i] = v;
+        }
+        return values;
+    }
+
+    @Test
+    void testScalarLowerBound() {
+        long[] values = new long[] { 1, 3, 3, 5, 9 };
+
+        assertEquals(0, SortedSearch.scalarLowerBound(values, 0, 0, 5));
+        assertEquals(0, SortedSearch.scalarLowerBound(values, 1, 0, 5));
+        assertEquals(1, SortedSearch.scalarLowerBound(values, 2, 0, 5));
+        assertEquals(1, SortedSearch.scalarLowerBound(values, 3, 0, 5));
+        assertEquals(3, SortedSearch.scalarLowerBound(values, 3, 3, 5));
+        assertEquals(4, SortedSearch.scalarLowerBound(values, 6, 0, 5));
+        assertEquals(5, SortedSearch.scalarLowerBound(values, 10, 0, 5));
+        assertEquals(4, SortedSearch.scalarLowerBound(values, 10, 0, 4));
+    }
+
+    @Test
+    void testVectorizedMatchesScalar() {
+        Assumptions.assumeTrue(SortedSearch.isVectorApiAvailable, "Vector API not available");
+
+        Random r = new Random(42);
+
+        for (int n : new int[] { 0, 1, 3, 7, 8, 9, 16, 33, 100, 1000, 10_000 }) {
+            long[] values = sortedValues(r, n);
+
+            try (var arena = Arena.ofConfined()) {
+                MemorySegment segment = arena.allocate(8L * n + 16, 8);
+                // Offset the data to exercise unaligned vector loads
+                long baseOffset = 8;
+                MemorySegment.copy(values, 0, segment, ValueLayout.JAVA_LONG, baseOffset, n);
+
+                for (int trial = 0; trial < 2000; trial++) {
+                    int from = n == 0 ? 0 : r.nextInt(n + 1);
+                    int to = from + (n == from ? 0 : r.nextInt(n - from + 1));
+
+                    long key = switch (trial % 3) {
+                        case 0 -> n == 0 ? 0 : values[r.nextInt(n)];
+                        case 1 -> n == 0 ? 0 : values[r.nextInt(n)] + 1;
+                        default -> r.nextLong(-10, 1_000_000);
+                    };
+
+                    int expected = SortedSearch.scalarLowerBound(values, key, from, to);
+
+                    assertEquals(expected, VectorizedSortedSearch.lowerBound(values, key, from, to),
+                            "array n=" + n + " from=" + from + " to=" + to + " key=" + key);
+                    assertEquals(expected, VectorizedSortedSearch.lowerBound(segment, baseOffset, key, from, to),
+                            "segment n=" + n + " from=" + from + " to=" + to + " key=" + key);
+                }
+            }
+        }
+    }
+}
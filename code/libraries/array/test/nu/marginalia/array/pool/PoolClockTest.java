@@ -0,0 +1,90 @@
+package nu.marginalia.array.pool;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+
+class PoolClockTest {
+    private static final int PAGE_SIZE = 4096;
+
+    MemoryPage[] createPages(int n) {
+        MemorySegment ms = Arena.ofAuto().allocate((long) n * PAGE_SIZE);
+        MemoryPage[] pages = new MemoryPage[n];
+        for (int i = 0; i < n; i++) {
+            pages[i] = new SegmentMemoryPage(ms.asSlice((long) i * PAGE_SIZE, PAGE_SIZE), i);
+        }
+        return pages;
+    }
+
+    /** Mimic the way BufferPool reads a page into the pool */
+    void load(PoolClock policy, long address) {
+        MemoryPage page;
+        do {
+            page = policy.getFree();
+        } while (!page.acquireForWriting(address));
+
+        policy.register(page);
+        page.dirty(false);
+        Assertions.assertTrue(page.pinCount().compareAndSet(-1, 1));
+        page.close();
+    }
+
+    @Test
+    void testGetRegistered() {
+        PoolClock policy = new PoolClock(createPages(8));
+
+        Assertions.assertNull(policy.get(PAGE_SIZE));
+
+        load(policy, PAGE_SIZE);
+        load(policy, 2 * PAGE_SIZE);
+
+        Assertions.assertEquals(PAGE_SIZE, policy.get(PAGE_SIZE).pageAddress());
+        Assertions.assertEquals(2 * PAGE_SIZE, policy.get(2 * PAGE_SIZE).pageAddress());
+        Assertions.assertNull(policy.get(3 * PAGE_SIZE));
+    }
+
+    @Test
+    void testScanDoesNotEvictHotPages() {
+        PoolClock policy = new PoolClock(createPages(8));
+
+        long hot1 = PAGE_SIZE;
+        long hot2 = 2 * PAGE_SIZE;
+
+        load(policy, hot1);
+        load(policy, hot2);
+
+        Assertions.assertNotNull(policy.get(hot1));
+        Assertions.assertNotNull(policy.get(hot2));
+
+        // Read half again as many pages as the pool holds, once each
+        for (int i = 0; i < 12; i++) {
+            load(policy, (100L + i) * PAGE_SIZE);
+        }
+
+        Assertions.assertNotNull(policy.get(hot1));
+        Assertions.assertNotNull(policy.get(hot2));
+
+        // The oldest scanned pages have been reclaimed, the newest remain
+        Assertions.assertNull(policy.get(100L * PAGE_SIZE));
+        Assertions.assertNotNull(policy.get(111L * PAGE_SIZE));
+    }
+
+    @Test
+    void testHeldPagesAreNotReclaimed() {
+        MemoryPage[] pages = createPages(4);
+        PoolClock policy = new PoolClock(pages);
+
+        load(policy, PAGE_SIZE);
+
+        MemoryPage held = policy.get(PAGE_SIZE);
+        Assertions.assertTrue(held.acquireAsReader(PAGE_SIZE));
+
+        for (int i = 0; i < 16; i++) {
+            Assertions.assertNotSame(held, policy.getFree());
+        }
+
+        held.close();
+    }
+}
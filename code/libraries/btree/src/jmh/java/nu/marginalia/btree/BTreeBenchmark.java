@@ -0,0 +1,125 @@
+package nu.marginalia.btree;
+
+import nu.marginalia.array.LongArray;
+import nu.marginalia.array.LongArrayFactory;
+import nu.marginalia.array.page.LongQueryBuffer;
+import nu.marginalia.btree.model.BTreeBlockSize;
+import nu.marginalia.btree.model.BTreeContext;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/** This benchmark simulates the term lookups in the word lexicon of the reverse index,
+ * which is a btree keyed on term id hashes */
+public class BTreeBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class LexiconState {
+        /** Same context as ReverseIndexParameters.wordsBTreeContext */
+        static final BTreeContext ctx = new BTreeContext(5, 2, BTreeBlockSize.BS_512);
+        static final int numTerms = 2_000_000;
+
+        LongArray array;
+        BTreeReader reader;
+
+        long[] presentKeys = new long[1000];
+        long[] absentKeys = new long[1000];
+        long[] sortedQueryKeys;
+
+        LongQueryBuffer buffer;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            Random r = new Random(42);
+
+            long[] termIds = r.longs(numTerms).sorted().distinct().toArray();
+
+            array = LongArrayFactory.onHeapShared(ctx.calculateSize(termIds.length));
+            new BTreeWriter(array, ctx).write(0, termIds.length, slice -> {
+                for (int i = 0; i < termIds.length; i++) {
+                    slice.set(2L * i, termIds[i]);
+                    slice.set(2L * i + 1, i);
+                }
+            });
+
+            reader = new BTreeReader(array, ctx, 0);
+
+            for (int i = 0; i < presentKeys.length; i++) {
+                presentKeys[i] = termIds[r.nextInt(termIds.length)];
+            }
+            for (int i = 0; i < absentKeys.length; i++) {
+                long key;
+                do {
+                    key = r.nextLong();
+                } while (Arrays.binarySearch(termIds, key) >= 0);
+                absentKeys[i] = key;
+            }
+
+            sortedQueryKeys = new long[presentKeys.length + absentKeys.length];
+            System.arraycopy(presentKeys, 0, sortedQueryKeys, 0, presentKeys.length);
+            System.arraycopy(absentKeys, 0, sortedQueryKeys, presentKeys.length, absentKeys.length);
+            sortedQueryKeys = Arrays.stream(sortedQueryKeys).sorted().distinct().toArray();
+
+            buffer = new LongQueryBuffer(sortedQueryKeys.length);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            array.close();
+        }
+
+        LongQueryBuffer queryKeys() {
+            buffer.data.set(0, sortedQueryKeys);
+            buffer.reset();
+            return buffer;
+        }
+    }
+
+    @Fork(value = 1, warmups = 1)
+    @Warmup(iterations = 3)
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public long findPresentEntry(LexiconState state) {
+        long ret = 0;
+        for (long key : state.presentKeys) {
+            ret += state.reader.findEntry(key);
+        }
+        return ret;
+    }
+
+    @Fork(value = 1, warmups = 1)
+    @Warmup(iterations = 3)
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public long findAbsentEntry(LexiconState state) {
+        long ret = 0;
+        for (long key : state.absentKeys) {
+            ret += state.reader.findEntry(key);
+        }
+        return ret;
+    }
+
+    @Fork(value = 1, warmups = 1)
+    @Warmup(iterations = 3)
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public int retainEntries(LexiconState state) {
+        var buffer = state.queryKeys();
+        state.reader.retainEntries(buffer);
+        buffer.finalizeFiltering();
+        return buffer.end;
+    }
+
+    @Fork(value = 1, warmups = 1)
+    @Warmup(iterations = 3)
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public int rejectEntries(LexiconState state) {
+        var buffer = state.queryKeys();
+        state.reader.rejectEntries(buffer);
+        buffer.finalizeFiltering();
+        return buffer.end;
+    }
+}
@@ -23,6 +23,9 @@ public class UringFileReader implements AutoCloseable {
 
     private static final int QUEUE_SIZE = 2048;
 
+    /** Reads of fewer pages than this are done with one pread each rather than through the ring */
+    public static final int MIN_BATCH_SIZE = 5;
+
     public UringFileReader(Path filename, boolean direct) throws IOException {
 
         rings = new UringQueue[Integer.getInteger("system.uringQueueCount", 2)];
@@ -44,12 +47,20 @@ public class UringFileReader implements AutoCloseable {
         }
     }
 
+    /** Returns the number of batches submitted to the ring by a read of the given number of pages,
+     * zero if they are read one at a time */
+    public static int batchCount(int reads) {
+        if (reads < MIN_BATCH_SIZE)
+            return 0;
+        return (reads + QUEUE_SIZE - 1) / QUEUE_SIZE;
+    }
+
     public void fadviseWillneed() {
         LinuxSystemCalls.fadviseWillneed(fd);
     }
 
     public void read(List<MemorySegment> destinations, List<Long> offsets) {
-        if (destinations.size() < 5) {
+        if (destinations.size() < MIN_BATCH_SIZE) {
             for (int  i = 0; i < destinations.size(); i++) {
                 var ms = destinations.get(i);
                 long offset = offsets.get(i);
@@ -82,7 +93,7 @@ public class UringFileReader implements AutoCloseable {
     }
 
     public void read(List<MemorySegment> destinations, List<Long> offsets, long timeoutMs) throws TimeoutException {
-        if (destinations.size() < 5) {
+        if (destinations.size() < MIN_BATCH_SIZE) {
             for (int  i = 0; i < destinations.size(); i++) {
                 var ms = destinations.get(i);
                 long offset = offsets.get(i);
@@ -0,0 +1,13 @@
+package nu.marginalia.skiplist;
+
+/** Decides whether a data block can be skipped when reading keys, based on the
+ * summary of the block's values that is stored in the block header.
+ * <p></p>
+ * The summary holds the union of the low 8 bits of the second value of each record,
+ * and the largest 16 bit tag (highest 16 bits) of the first value of each record,
+ * clamped to 255.  A block where both are zero carries no summary information and
+ * is never offered to the filter.
+ */
+public interface SkipListBlockFilter {
+    boolean skipBlock(int valueFlagsUnion, int maxValueTag);
+}
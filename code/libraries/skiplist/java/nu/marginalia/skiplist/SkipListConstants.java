@@ -18,6 +18,7 @@ public class SkipListConstants {
     static final byte FLAG_VALUE_BLOCK = 1<<2;
     static final byte FLAG_FOOTER_BLOCK = 1<<3;
     static final byte FLAG_COMPRESSED_BLOCK = 1<<4;
+    static final byte FLAG_COMPRESSED_VALUES = 1<<5;
 
     static int skipOffsetForPointer(int pointerIdx) {
         final int linearPart = 16;
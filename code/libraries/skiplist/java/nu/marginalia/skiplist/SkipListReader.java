@@ -2,12 +2,15 @@ package nu.marginalia.skiplist;
 
 import it.unimi.dsi.fastutil.longs.LongArrayList;
 import it.unimi.dsi.fastutil.longs.LongList;
+import nu.marginalia.array.algo.SortedSearch;
 import nu.marginalia.array.page.LongQueryBuffer;
 import nu.marginalia.array.pool.BufferPool;
 import nu.marginalia.array.pool.MemoryPage;
 import nu.marginalia.skiplist.compression.DocIdCompressor;
+import nu.marginalia.skiplist.compression.ValueBlockCodec;
 import nu.marginalia.skiplist.compression.output.SegmentCompressorBuffer;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.lang.foreign.Arena;
@@ -41,6 +44,10 @@ public class SkipListReader {
     public int[] __stats_match_histo_retain = new int[512];
     public int[] __stats_match_histo_reject = new int[512];
 
+    @Nullable
+    private SkipListBlockFilter blockFilter;
+    private int skippedBlocks = 0;
+
     public SkipListReader(BufferPool indexPool,
                           SkipListValueReader valuesReader,
                           long blockStart) {
@@ -68,6 +75,17 @@ public class SkipListReader {
         return atEnd;
     }
 
+    /** Set a filter that getKeys(LongQueryBuffer) consults before reading each data block,
+     * allowing whole blocks to be skipped based on the summary of their values */
+    public void setBlockFilter(@Nullable SkipListBlockFilter blockFilter) {
+        this.blockFilter = blockFilter;
+    }
+
+    /** The number of blocks skipped by the block filter */
+    public int getSkippedBlocks() {
+        return skippedBlocks;
+    }
+
     public int estimateSize() {
         try (var page = indexPool.get(currentBlock)) {
             int fc = headerForwardCount(page, currentBlockOffset);
@@ -174,24 +192,21 @@ public class SkipListReader {
             }
         }
 
-        outer:
         while (data.hasMore()) {
             long bv = data.currentValue();
 
-            for (; currentBlockIdx < n; currentBlockIdx++) {
-                long pv = page.getLong( dataOffset + currentBlockIdx * 8);
-                if (bv < pv) {
-                    data.rejectAndAdvance();
-                    continue outer;
-                }
-                else if (bv == pv) {
-                    data.retainAndAdvance();
-                    matches++;
-                    currentBlockIdx++;
-                    continue outer;
-                }
+            currentBlockIdx = SortedSearch.lowerBound(page.getMemorySegment(), dataOffset, bv, currentBlockIdx, n);
+            if (currentBlockIdx >= n)
+                break;
+
+            if (bv < page.getLong(dataOffset + currentBlockIdx * 8)) {
+                data.rejectAndAdvance();
+            }
+            else {
+                data.retainAndAdvance();
+                matches++;
+                currentBlockIdx++;
             }
-            break;
         }
 
         __stats_match_histo_retain[Math.min(matches, __stats_match_histo_retain.length-1)]++;
@@ -216,24 +231,21 @@ public class SkipListReader {
             }
         }
 
-        outer:
         while (data.hasMore()) {
             long bv = data.currentValue();
 
-            for (; currentBlockIdx < n; currentBlockIdx++) {
-                long pv = decompressedData[currentBlockIdx];
-                if (bv < pv) {
-                    data.rejectAndAdvance();
-                    continue outer;
-                }
-                else if (bv == pv) {
-                    data.retainAndAdvance();
-                    matches++;
-                    currentBlockIdx++;
-                    continue outer;
-                }
+            currentBlockIdx = SortedSearch.lowerBound(decompressedData, bv, currentBlockIdx, n);
+            if (currentBlockIdx >= n)
+                break;
+
+            if (bv < decompressedData[currentBlockIdx]) {
+                data.rejectAndAdvance();
+            }
+            else {
+                data.retainAndAdvance();
+                matches++;
+                currentBlockIdx++;
             }
-            break;
         }
 
         __stats_match_histo_retain[Math.min(matches, __stats_match_histo_retain.length-1)]++;
@@ -337,24 +349,21 @@ public class SkipListReader {
             }
         }
 
-        outer:
         while (data.hasMore()) {
             long bv = data.currentValue();
 
-            for (; currentBlockIdx < n; currentBlockIdx++) {
-                long pv = decompressedData[currentBlockIdx];
-                if (bv < pv) {
-                    data.retainAndAdvance();
-                    continue outer;
-                }
-                else if (bv == pv) {
-                    data.rejectAndAdvance();
-                    matches++;
-                    currentBlockIdx++;
-                    continue outer;
-                }
+            currentBlockIdx = SortedSearch.lowerBound(decompressedData, bv, currentBlockIdx, n);
+            if (currentBlockIdx >= n)
+                break;
+
+            if (bv < decompressedData[currentBlockIdx]) {
+                data.retainAndAdvance();
+            }
+            else {
+                data.rejectAndAdvance();
+                matches++;
+                currentBlockIdx++;
             }
-            break;
         }
 
         __stats_match_histo_reject[Math.min(matches, __stats_match_histo_reject.length-1)]++;
@@ -378,32 +387,42 @@ public class SkipListReader {
             }
         }
 
-        outer:
         while (data.hasMore()) {
             long bv = data.currentValue();
 
-            for (; currentBlockIdx < n; currentBlockIdx++) {
-                long pv = page.getLong( dataOffset + currentBlockIdx * 8);
-                if (bv < pv) {
-                    data.retainAndAdvance();
-                    continue outer;
-                }
-                else if (bv == pv) {
-                    data.rejectAndAdvance();
-                    matches++;
-                    currentBlockIdx++;
-                    continue outer;
-                }
+            currentBlockIdx = SortedSearch.lowerBound(page.getMemorySegment(), dataOffset, bv, currentBlockIdx, n);
+            if (currentBlockIdx >= n)
+                break;
+
+            if (bv < page.getLong(dataOffset + currentBlockIdx * 8)) {
+                data.retainAndAdvance();
+            }
+            else {
+                data.rejectAndAdvance();
+                matches++;
+                currentBlockIdx++;
             }
-            break;
         }
 
         __stats_match_histo_reject[Math.min(matches, __stats_match_histo_reject.length-1)]++;
         return currentBlockIdx >= n;
     }
 
+    private boolean shouldSkipBlock(MemoryPage page, int blockOffset) {
+        int flagsUnion = headerSummaryFlags(page, blockOffset);
+        int maxTag = headerSummaryMaxTag(page, blockOffset);
+
+        // Blocks written before the summary was introduced have zeroes here
+        if (flagsUnion == 0 && maxTag == 0)
+            return false;
+
+        return blockFilter.skipBlock(flagsUnion, maxTag);
+    }
+
     /** Fills the buffer with keys from the index.  The caller should use
      * atEnd() to decide when the index has been exhausted.
+     * <p></p>
+     * If a block filter is set, blocks it rejects are skipped entirely.
      *
      * @return the number of items added to the index
      * */
@@ -428,6 +447,16 @@ public class SkipListReader {
                 assert fc >= 0;
                 byte flags = (byte) headerFlags(page, currentBlockOffset);
 
+                if (currentBlockIdx == 0 && blockFilter != null && shouldSkipBlock(page, currentBlockOffset)) {
+                    skippedBlocks++;
+                    atEnd = (flags & FLAG_END_BLOCK) != 0;
+                    if (!atEnd) {
+                        currentBlock += BLOCK_STRIDE;
+                        currentBlockOffset = 0;
+                    }
+                    continue;
+                }
+
                 int dataOffset = pageDataOffset(currentBlockOffset, fc);
 
                 if (FLAG_COMPRESSED_BLOCK == (flags & FLAG_COMPRESSED_BLOCK)) {
@@ -601,14 +630,24 @@ public class SkipListReader {
 
         private final MemorySegment valueSegment = Arena.ofAuto().allocate(VALUE_BLOCK_SIZE, 8);
 
+        // Used for compressed value blocks that do not fit in valueSegment
+        private MemorySegment largeValueSegment = valueSegment;
+
         private final long[] inputKeys;
         private int iPos = -1;
         private int offsetPos = 0;
 
+        /** For plain values, the offset of the values in the values file,
+         * for compressed values, the offset of the value block */
         private final long[] valueOffsets;
+        /** The index of the entry within its compressed value block, or -1 for plain values */
+        private final int[] valueBlockIndices;
         private int vPos = 0;
         private int vLen = 0;
 
+        private long lastDecodedValueBlock = -1;
+        private long[] decodedValues = new long[0];
+
         private final long[] outValues;
         private int oPos = -entrySize;
         private int oLen = 0;
@@ -616,12 +655,14 @@ public class SkipListReader {
         ValueReader() {
             inputKeys = new long[0];
             valueOffsets = new long[0];
+            valueBlockIndices = new int[0];
             outValues = new long[0];
         }
 
         ValueReader(long[] inputKeys) {
             this.inputKeys = inputKeys;
             this.valueOffsets = new long[inputKeys.length];
+            this.valueBlockIndices = new int[inputKeys.length];
             this.outValues = new long[inputKeys.length * (RECORD_SIZE-1)];
 
         }
@@ -663,6 +704,9 @@ public class SkipListReader {
                     oLen+=entrySize;
                     vPos++;
                 }
+                else if (valueBlockIndices[vPos] >= 0) {
+                    copyValuesFromCompressedBlock();
+                }
                 else {
                     long valBlock = valueOffsets[vPos] & -VALUE_BLOCK_SIZE;
 
@@ -675,7 +719,7 @@ public class SkipListReader {
                         }
                         else {
                             long nextBlock = valueOffsets[vPos] & -VALUE_BLOCK_SIZE;
-                            if (nextBlock != valBlock) {
+                            if (nextBlock != valBlock || valueBlockIndices[vPos] >= 0) {
                                 break;
                             }
 
@@ -691,6 +735,61 @@ public class SkipListReader {
 
         }
 
+        /** Copy values for the run of entries that share the compressed value block at vPos */
+        private void copyValuesFromCompressedBlock() throws IOException {
+            long blockOffset = valueOffsets[vPos];
+
+            if (blockOffset != lastDecodedValueBlock) {
+                decodeValueBlock(blockOffset);
+            }
+
+            for (; vPos < vLen; vPos++) {
+                if (valueOffsets[vPos] < 0) {
+                    Arrays.fill(outValues, oLen, oLen + entrySize, 0);
+                }
+                else if (valueOffsets[vPos] != blockOffset) {
+                    break;
+                }
+                else {
+                    int idx = valueBlockIndices[vPos];
+                    for (int j = 0; j < RECORD_SIZE - 1; j++) {
+                        outValues[oLen + j] = decodedValues[2 * idx + j];
+                    }
+                }
+                oLen += entrySize;
+            }
+        }
+
+        private void decodeValueBlock(long blockOffset) throws IOException {
+            long valBlock = blockOffset & -VALUE_BLOCK_SIZE;
+            int offsetBase = (int) (blockOffset & (VALUE_BLOCK_SIZE - 1));
+
+            valuesReader.read(valueSegment, valBlock);
+
+            MemorySegment source = valueSegment;
+
+            int encodedSize = ValueBlockCodec.encodedSize(valueSegment, offsetBase);
+            if (offsetBase + encodedSize > VALUE_BLOCK_SIZE) {
+                // The block straddles a page boundary, read all of it in one go.  The values file
+                // is padded to VALUE_BLOCK_SIZE, so aligned reads never run past the end of the file
+                int readSize = (offsetBase + encodedSize + VALUE_BLOCK_SIZE - 1) & -VALUE_BLOCK_SIZE;
+                if (largeValueSegment.byteSize() < readSize) {
+                    largeValueSegment = Arena.ofAuto().allocate(readSize, 8);
+                }
+                source = largeValueSegment.asSlice(0, readSize);
+
+                valuesReader.read(source, valBlock);
+            }
+
+            int n = ValueBlockCodec.numEntries(source, offsetBase);
+            if (decodedValues.length < 2 * n) {
+                decodedValues = new long[2 * n];
+            }
+
+            ValueBlockCodec.decode(source, offsetBase, decodedValues);
+            lastDecodedValueBlock = blockOffset;
+        }
+
         private void readOffsets() {
 
             final int vLen0 = vLen;
@@ -721,10 +820,10 @@ public class SkipListReader {
                             lastDecompressedBlock = currentBlock;
                         }
 
-                        readOffsetsForBlock_Compressed(n, valuesOffset);
+                        readOffsetsForBlock_Compressed(n, valuesOffset, flags);
                     }
                     else {
-                        readOffsetsForBlock_Plain(page, n, dataOffset, valuesOffset);
+                        readOffsetsForBlock_Plain(page, n, dataOffset, valuesOffset, flags);
                     }
 
                     if (currentBlockIdx >= n) {
@@ -758,7 +857,9 @@ public class SkipListReader {
             }
         }
 
-        private void readOffsetsForBlock_Compressed(int n, long valuesOffset) {
+        private void readOffsetsForBlock_Compressed(int n, long valuesOffset, byte flags) {
+            final boolean compressedValues = (flags & FLAG_COMPRESSED_VALUES) != 0;
+
             int searchStart = currentBlockIdx;
             int remainingToRead = n - currentBlockIdx;
 
@@ -773,8 +874,15 @@ public class SkipListReader {
                         valueOffsets[vLen++] = -1;
                         continue outer;
                     } else if (kv == pv) {
-                        long val = valuesOffset + 8L * (currentBlockIdx - searchStart) * (RECORD_SIZE - 1);
-                        valueOffsets[vLen++] = val;
+                        if (compressedValues) {
+                            valueOffsets[vLen] = valuesOffset;
+                            valueBlockIndices[vLen] = currentBlockIdx;
+                        }
+                        else {
+                            valueOffsets[vLen] = valuesOffset + 8L * (currentBlockIdx - searchStart) * (RECORD_SIZE - 1);
+                            valueBlockIndices[vLen] = -1;
+                        }
+                        vLen++;
                         offsetPos++;
 
                         continue outer;
@@ -784,7 +892,9 @@ public class SkipListReader {
             }
         }
 
-        private void readOffsetsForBlock_Plain(MemoryPage page, int n, int dataOffset, long valuesOffset) {
+        private void readOffsetsForBlock_Plain(MemoryPage page, int n, int dataOffset, long valuesOffset, byte flags) {
+            final boolean compressedValues = (flags & FLAG_COMPRESSED_VALUES) != 0;
+
             int remainingToRead = n - currentBlockIdx;
 
             int searchStart = currentBlockIdx;
@@ -800,8 +910,15 @@ public class SkipListReader {
                         valueOffsets[vLen++] = -1;
                         continue outer;
                     } else if (kv == pv) {
-                        long val = valuesOffset + 8L * (currentBlockIdx - searchStart) * (RECORD_SIZE - 1);
-                        valueOffsets[vLen++] = val;
+                        if (compressedValues) {
+                            valueOffsets[vLen] = valuesOffset;
+                            valueBlockIndices[vLen] = currentBlockIdx;
+                        }
+                        else {
+                            valueOffsets[vLen] = valuesOffset + 8L * (currentBlockIdx - searchStart) * (RECORD_SIZE - 1);
+                            valueBlockIndices[vLen] = -1;
+                        }
+                        vLen++;
                         offsetPos++;
 
                         continue outer;
@@ -1086,6 +1203,52 @@ public class SkipListReader {
     }
 
 
+    /** Prefetch the first blocks of the skip lists starting at the given offsets into the pool.
+     * <p></p>
+     * This is done in two batched reads: first the root blocks of every list, and then up to
+     * maxSuccessors of the blocks each root block points to, which are the blocks a subsequent
+     * retain or lookup operation is most likely to visit next.
+     *
+     * @return the number of pages read
+     */
+    public static int prefetch(BufferPool pool, long[] blockStarts, int maxSuccessors) {
+        if (blockStarts.length == 0)
+            return 0;
+
+        long[] rootBlocks = new long[blockStarts.length];
+        for (int i = 0; i < blockStarts.length; i++) {
+            rootBlocks[i] = blockStarts[i] & -BLOCK_SIZE;
+        }
+
+        int readPages = pool.prefetch(rootBlocks);
+
+        if (maxSuccessors <= 0)
+            return readPages;
+
+        LongArrayList successorBlocks = new LongArrayList();
+        for (long blockStart : blockStarts) {
+            try (var page = pool.get(blockStart & -BLOCK_SIZE)) {
+                int offset = (int) (blockStart & (BLOCK_SIZE - 1));
+                int flags = headerFlags(page, offset);
+                if ((flags & FLAG_END_BLOCK) != 0)
+                    continue;
+
+                // The block immediately following the root is always present if the root isn't the end block,
+                // even if the root has no forward pointers
+                int fc = headerForwardCount(page, offset);
+                int count = Math.max(1, Math.min(fc, maxSuccessors));
+
+                for (int i = 0; i < count; i++) {
+                    successorBlocks.add((blockStart & -BLOCK_SIZE) + (long) BLOCK_STRIDE * skipOffsetForPointer(i));
+                }
+            }
+        }
+
+        readPages += pool.prefetch(successorBlocks.toLongArray());
+
+        return readPages;
+    }
+
     public static int headerNumRecords(MemoryPage buffer, int offset) {
         return buffer.getInt(offset);
     }
@@ -1110,6 +1273,14 @@ public class SkipListReader {
         return block.get(ValueLayout.JAVA_BYTE, offset + 5);
     }
 
+    public static int headerSummaryFlags(MemoryPage buffer, int offset) {
+        return buffer.getByte(offset + 6) & 0xFF;
+    }
+
+    public static int headerSummaryMaxTag(MemoryPage buffer, int offset) {
+        return buffer.getByte(offset + 7) & 0xFF;
+    }
+
     public static long headerValueOffset(MemoryPage block, int offset) {
         return block.getLong(offset + 8);
     }
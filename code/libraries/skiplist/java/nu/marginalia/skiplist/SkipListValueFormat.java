@@ -0,0 +1,28 @@
+package nu.marginalia.skiplist;
+
+/** Layout of the values file associated with a skip list documents file.
+ * <p></p>
+ * The format version is recorded in the documents file footer.  Since each data
+ * block also flags whether its values are compressed, readers handle files of
+ * any known version transparently.
+ * */
+public enum SkipListValueFormat {
+    /** Two raw longs per entry */
+    PLAIN((byte) 0),
+    /** One ValueBlockCodec block per data block */
+    COMPRESSED((byte) 1);
+
+    public final byte version;
+
+    SkipListValueFormat(byte version) {
+        this.version = version;
+    }
+
+    public static SkipListValueFormat fromVersion(int version) {
+        for (var format : values()) {
+            if (format.version == version)
+                return format;
+        }
+        throw new IllegalArgumentException("Unknown skip list format version " + version);
+    }
+}
@@ -3,6 +3,7 @@ package nu.marginalia.skiplist;
 import it.unimi.dsi.fastutil.longs.LongArrayList;
 import nu.marginalia.array.LongArray;
 import nu.marginalia.skiplist.compression.DocIdCompressor;
+import nu.marginalia.skiplist.compression.ValueBlockCodec;
 import nu.marginalia.skiplist.compression.output.ByteBufferCompressorBuffer;
 
 import java.io.IOException;
@@ -31,9 +32,21 @@ public class SkipListWriter implements AutoCloseable {
 
     private final LongArrayList maxValuesList = new LongArrayList();
 
+    private final SkipListValueFormat valueFormat;
+
+    // Scratch space for compressed value blocks, grown on demand
+    private long[] valuesScratch = new long[0];
+    private ByteBuffer encodedValuesBuffer = ByteBuffer.allocate(0);
+
     private long valueBlockOffset;
 
     public SkipListWriter(Path dataFileName, Path valuesFileName) throws IOException {
+        this(dataFileName, valuesFileName, SkipListValueFormat.PLAIN);
+    }
+
+    public SkipListWriter(Path dataFileName, Path valuesFileName, SkipListValueFormat valueFormat) throws IOException {
+        this.valueFormat = valueFormat;
+
         documentsChannel = (FileChannel) Files.newByteChannel(dataFileName, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
         documentsChannel.position(documentsChannel.size());
 
@@ -80,6 +93,10 @@ public class SkipListWriter implements AutoCloseable {
     }
 
     public static void writeFooter(Path documentsFileName, String magicWord) throws IOException {
+        writeFooter(documentsFileName, magicWord, SkipListValueFormat.PLAIN);
+    }
+
+    public static void writeFooter(Path documentsFileName, String magicWord, SkipListValueFormat valueFormat) throws IOException {
 
         ByteBuffer buffer = ByteBuffer.allocateDirect(BLOCK_SIZE).order(ByteOrder.nativeOrder());
 
@@ -104,7 +121,7 @@ public class SkipListWriter implements AutoCloseable {
 
         buffer.put(magicWordBytes);
 
-        buffer.put((byte) 0);    // reserved for future use
+        buffer.put(valueFormat.version);
         buffer.put((byte) 0);    // reserved for future use
         buffer.put((byte) 0);    // reserved for future use
 
@@ -123,7 +140,12 @@ public class SkipListWriter implements AutoCloseable {
         }
     }
 
-    public static void validateFooter(Path documentsFileName, String expectedMagicWord) throws IOException {
+    /** Validate the footer of a documents file
+     *
+     * @return the value format recorded in the footer
+     * @throws IllegalArgumentException if the footer is invalid or of an unknown version
+     * */
+    public static SkipListValueFormat validateFooter(Path documentsFileName, String expectedMagicWord) throws IOException {
 
         ByteBuffer buffer = ByteBuffer.allocateDirect(BLOCK_SIZE).order(ByteOrder.nativeOrder());
 
@@ -151,10 +173,11 @@ public class SkipListWriter implements AutoCloseable {
 
         buffer.get(actualMagicWordBytes);
 
+        int formatVersion = buffer.get();
+
         // reserved space
         buffer.get();
         buffer.get();
-        buffer.get();
 
         int magicStringLength = buffer.get();
         int blockSize = buffer.getInt();
@@ -162,6 +185,8 @@ public class SkipListWriter implements AutoCloseable {
 
         if (!Arrays.equals(expectedMagicWordBytes, actualMagicWordBytes) || magicStringLength != expectedMagicWord.length()) throw new IllegalArgumentException("Invalid skip list footer, mismatching magic word bytes: + " + Arrays.toString(actualMagicWordBytes));
         if (blockSize != BLOCK_SIZE) throw new IllegalArgumentException("Incompatible skip list, block size mismatch: " + blockSize + ", expected " + BLOCK_SIZE);
+
+        return SkipListValueFormat.fromVersion(formatVersion);
     }
 
 
@@ -184,15 +209,19 @@ public class SkipListWriter implements AutoCloseable {
     }
 
 
-    private void writeCompactBlockHeader(ByteBuffer buffer, int nItems, byte fc, byte flags) {
+    private void writeCompactBlockHeader(ByteBuffer buffer, LongArray input, long inputOffset, int nItems, byte fc, byte flags) {
         assert nItems >= 0;
         // assert nItems <= MAX_RECORDS_PER_BLOCK;
         assert fc >= 0;
 
+        if (valueFormat == SkipListValueFormat.COMPRESSED) {
+            flags |= FLAG_COMPRESSED_VALUES;
+        }
+
         buffer.putInt(nItems);
         buffer.put(fc); // number of records
         buffer.put(flags); // forward count = 0
-        buffer.putShort((short) 0);
+        writeBlockSummary(buffer, input, inputOffset, nItems);
 
         long valueBufferPosition = valueBlockOffset + valuesBuffer.position();
         assert (valueBufferPosition & 15) == 0;
@@ -202,17 +231,30 @@ public class SkipListWriter implements AutoCloseable {
         assert (buffer.position() % 8) == 0;
     }
 
+    /** Write a two byte summary of the block's values, used to skip blocks when reading, see SkipListBlockFilter */
+    private void writeBlockSummary(ByteBuffer buffer, LongArray input, long inputOffset, int nItems) {
+        int flagsUnion = 0;
+        int maxTag = 0;
+
+        for (int i = 0; i < nItems; i++) {
+            long recordOffset = inputOffset + (long) RECORD_SIZE * i;
+            maxTag = Math.max(maxTag, (int) (input.get(recordOffset + 1) >>> 48));
+            flagsUnion |= (int) (input.get(recordOffset + 2) & 0xFF);
+        }
+
+        buffer.put((byte) flagsUnion);
+        buffer.put((byte) Math.min(255, maxTag));
+    }
+
     private void copyValues(LongArray input, long inputOffset, int n) throws IOException {
+        if (valueFormat == SkipListValueFormat.COMPRESSED) {
+            copyValuesCompressed(input, inputOffset, n);
+            return;
+        }
 
         for (int i = 0; i < n; i++) {
             if (valuesBuffer.remaining() < 8*(RECORD_SIZE-1)) {
-                valuesBuffer.flip();
-                while (valuesBuffer.hasRemaining()) {
-                    int wb = valuesChannel.write(valuesBuffer);
-                    if (wb > 0)
-                        valueBlockOffset += wb;
-                }
-                valuesBuffer.clear();
+                flushValuesBuffer();
             }
 
             long valuePairOffset = inputOffset + (long) RECORD_SIZE * i;
@@ -222,6 +264,50 @@ public class SkipListWriter implements AutoCloseable {
         }
     }
 
+    /** Encode the values of one data block as a single ValueBlockCodec block */
+    private void copyValuesCompressed(LongArray input, long inputOffset, int n) throws IOException {
+        if (valuesScratch.length < 2 * n) {
+            valuesScratch = new long[2 * n];
+        }
+
+        int maxSize = ValueBlockCodec.maxEncodedSize(n);
+        if (encodedValuesBuffer.capacity() < maxSize) {
+            encodedValuesBuffer = ByteBuffer.allocate(maxSize).order(ByteOrder.nativeOrder());
+        }
+
+        for (int i = 0; i < n; i++) {
+            long valuePairOffset = inputOffset + (long) RECORD_SIZE * i;
+            valuesScratch[2*i] = input.get(valuePairOffset + 1);
+            valuesScratch[2*i + 1] = input.get(valuePairOffset + 2);
+        }
+
+        encodedValuesBuffer.clear();
+        ValueBlockCodec.encode(valuesScratch, n, encodedValuesBuffer);
+        encodedValuesBuffer.flip();
+
+        // The encoded block is padded to 16 bytes, so the values buffer stays 16 byte aligned
+        while (encodedValuesBuffer.hasRemaining()) {
+            if (!valuesBuffer.hasRemaining()) {
+                flushValuesBuffer();
+            }
+
+            int len = Math.min(valuesBuffer.remaining(), encodedValuesBuffer.remaining());
+            valuesBuffer.put(valuesBuffer.position(), encodedValuesBuffer, encodedValuesBuffer.position(), len);
+            valuesBuffer.position(valuesBuffer.position() + len);
+            encodedValuesBuffer.position(encodedValuesBuffer.position() + len);
+        }
+    }
+
+    private void flushValuesBuffer() throws IOException {
+        valuesBuffer.flip();
+        while (valuesBuffer.hasRemaining()) {
+            int wb = valuesChannel.write(valuesBuffer);
+            if (wb > 0)
+                valueBlockOffset += wb;
+        }
+        valuesBuffer.clear();
+    }
+
     public long writeList(LongArray input, int n) throws IOException {
         long startPos = documentsChannel.position();
         assert (startPos % 8) == 0 : "Not long aligned?!" + startPos;
@@ -239,7 +325,7 @@ public class SkipListWriter implements AutoCloseable {
 
             /** THE ENTIRE DATA FITS IN THE CURRENT BLOCK */
 
-            writeCompactBlockHeader(docsBuffer, n, (byte) 0, (byte) (FLAG_END_BLOCK | FLAG_COMPRESSED_BLOCK | FLAG_COMPACT_BLOCK));
+            writeCompactBlockHeader(docsBuffer, input, 0, n, (byte) 0, (byte) (FLAG_END_BLOCK | FLAG_COMPRESSED_BLOCK | FLAG_COMPACT_BLOCK));
 
             writeDocIds(compressorInput, n);
             copyValues(input, 0, n);
@@ -258,7 +344,7 @@ public class SkipListWriter implements AutoCloseable {
 
             /** THE ENTIRE DATA FITS IN THE CURRENT BLOCK */
 
-            writeCompactBlockHeader(docsBuffer, n, (byte) 0, (byte) (FLAG_END_BLOCK | FLAG_COMPACT_BLOCK));
+            writeCompactBlockHeader(docsBuffer, input, 0, n, (byte) 0, (byte) (FLAG_END_BLOCK | FLAG_COMPACT_BLOCK));
 
             // Write the keys
             for (int i = 0; i < n; i++) {
@@ -312,7 +398,7 @@ public class SkipListWriter implements AutoCloseable {
 
             if (isLastBlock) flags |= FLAG_END_BLOCK;
 
-            writeCompactBlockHeader(docsBuffer, rootBlockCapacity, (byte) rootBlockPointerCount, flags);
+            writeCompactBlockHeader(docsBuffer, input, valueOffset, rootBlockCapacity, (byte) rootBlockPointerCount, flags);
 
             findBlockHighestValues(compressorInput, maxValuesList,  rootBlockCapacity, numBlocks, n - rootBlockCapacity);
 
@@ -369,7 +455,7 @@ public class SkipListWriter implements AutoCloseable {
 
             if (isLastBlock) flags |= FLAG_END_BLOCK;
 
-            writeCompactBlockHeader(docsBuffer, blockSize, (byte) forwardPointers, flags);
+            writeCompactBlockHeader(docsBuffer, input, valueOffset, blockSize, (byte) forwardPointers, flags);
 
             for (int pi = 0; pi < forwardPointers; pi++) {
                 docsBuffer.putLong(maxValuesList.getLong(blockIdx + skipOffsetForPointer(pi)));
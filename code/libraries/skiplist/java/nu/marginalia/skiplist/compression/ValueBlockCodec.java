@@ -0,0 +1,175 @@
+package nu.marginalia.skiplist.compression;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+
+/** Codec for the values associated with one skip list data block.
+ * <p></p>
+ * The values are two longs per entry.  The first value is expected to be a size-tagged offset
+ * with a small tag in the highest 16 bits, and an offset that tends to increase in the lower 48 bits.
+ * The low part is delta-coded and zigzag encoded, and both parts are written as LEB128 varints.
+ * The second value is typically a small set of flags, and is byte-packed if every value
+ * in the block fits in a byte, otherwise it is stored as raw longs.
+ * <p></p>
+ * Any long value round-trips losslessly, the layout assumptions only affect the compression ratio.
+ * <p></p>
+ * Layout:
+ * <pre>
+ * int  n
+ * int  payload size in bytes (excluding the header and padding)
+ * byte second column mode
+ * varint[2n]  first column
+ * byte[n] | long[n]  second column
+ * padding to BLOCK_ALIGNMENT
+ * </pre>
+ * */
+public class ValueBlockCodec {
+    public static final int HEADER_SIZE = 8;
+    public static final int BLOCK_ALIGNMENT = 16;
+
+    private static final byte MODE_BYTE_PACKED = 0;
+    private static final byte MODE_RAW = 1;
+
+    private static final long LOW_MASK = 0x0000_FFFF_FFFF_FFFFL;
+
+    /** Upper bound for the encoded size of a block with n entries, including padding */
+    public static int maxEncodedSize(int n) {
+        // 7 bytes for a zigzag 49 bit delta, 3 bytes for the 16 bit tag, 8 bytes for a raw second value
+        return HEADER_SIZE + 1 + n * (7 + 3 + 8) + BLOCK_ALIGNMENT;
+    }
+
+    /** Encode n entries of interleaved value pairs [a0, b0, a1, b1, ...] into the output buffer,
+     * starting at its current position.  The output buffer is left positioned after the padding.
+     *
+     * @return the number of bytes written, including padding
+     * */
+    public static int encode(long[] values, int n, ByteBuffer output) {
+        assert values.length >= 2 * n;
+
+        final int start = output.position();
+
+        output.putInt(n);
+        output.putInt(0); // placeholder for payload size
+
+        boolean bytePacked = true;
+        for (int i = 0; i < n && bytePacked; i++) {
+            bytePacked = (values[2 * i + 1] & ~0xFFL) == 0;
+        }
+
+        output.put(bytePacked ? MODE_BYTE_PACKED : MODE_RAW);
+
+        long prev = 0;
+        for (int i = 0; i < n; i++) {
+            long value = values[2 * i];
+            long low = value & LOW_MASK;
+
+            putVarint(output, zigzag(low - prev));
+            putVarint(output, value >>> 48);
+
+            prev = low;
+        }
+
+        if (bytePacked) {
+            for (int i = 0; i < n; i++) {
+                output.put((byte) values[2 * i + 1]);
+            }
+        }
+        else {
+            for (int i = 0; i < n; i++) {
+                output.putLong(values[2 * i + 1]);
+            }
+        }
+
+        int payloadSize = output.position() - start - HEADER_SIZE;
+        output.putInt(start + 4, payloadSize);
+
+        while (((output.position() - start) & (BLOCK_ALIGNMENT - 1)) != 0) {
+            output.put((byte) 0);
+        }
+
+        return output.position() - start;
+    }
+
+    /** Read the number of entries in the block at the given offset */
+    public static int numEntries(MemorySegment segment, long offset) {
+        return segment.get(ValueLayout.JAVA_INT_UNALIGNED, offset);
+    }
+
+    /** Read the total size of the block at the given offset, including header and padding */
+    public static int encodedSize(MemorySegment segment, long offset) {
+        int payloadSize = segment.get(ValueLayout.JAVA_INT_UNALIGNED, offset + 4);
+        int size = HEADER_SIZE + payloadSize;
+        return (size + BLOCK_ALIGNMENT - 1) & -BLOCK_ALIGNMENT;
+    }
+
+    /** Decode the block at the given offset into the output array as interleaved
+     * value pairs [a0, b0, a1, b1, ...]
+     *
+     * @return the number of entries decoded
+     * */
+    public static int decode(MemorySegment segment, long offset, long[] output) {
+        final int n = numEntries(segment, offset);
+
+        assert output.length >= 2 * n : "Output array too small, need " + 2 * n + ", have " + output.length;
+
+        long pos = offset + HEADER_SIZE;
+
+        byte mode = segment.get(ValueLayout.JAVA_BYTE, pos++);
+
+        long prev = 0;
+        for (int i = 0; i < n; i++) {
+            long delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = segment.get(ValueLayout.JAVA_BYTE, pos++);
+                delta |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+
+            long tag = 0;
+            shift = 0;
+            do {
+                b = segment.get(ValueLayout.JAVA_BYTE, pos++);
+                tag |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+
+            prev = (prev + unzigzag(delta)) & LOW_MASK;
+            output[2 * i] = (tag << 48) | prev;
+        }
+
+        switch (mode) {
+            case MODE_BYTE_PACKED -> {
+                for (int i = 0; i < n; i++) {
+                    output[2 * i + 1] = segment.get(ValueLayout.JAVA_BYTE, pos++) & 0xFFL;
+                }
+            }
+            case MODE_RAW -> {
+                for (int i = 0; i < n; i++, pos += 8) {
+                    output[2 * i + 1] = segment.get(ValueLayout.JAVA_LONG_UNALIGNED, pos);
+                }
+            }
+            default -> throw new IllegalStateException("Unknown value block mode " + mode);
+        }
+
+        return n;
+    }
+
+    private static void putVarint(ByteBuffer output, long value) {
+        while ((value & ~0x7FL) != 0) {
+            output.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        output.put((byte) value);
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,182 @@
+package nu.marginalia.skiplist;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import nu.marginalia.array.LongArray;
+import nu.marginalia.array.LongArrayFactory;
+import nu.marginalia.array.page.LongQueryBuffer;
+import nu.marginalia.array.pool.BufferPool;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static nu.marginalia.skiplist.SkipListConstants.RECORD_SIZE;
+
+/** This benchmark simulates the skip list operations performed during index querying,
+ * on synthetic posting lists with a skewed distribution of documents over domains.
+ * <p></p>
+ * The pool is large enough to hold every block, so the benchmark measures the
+ * CPU cost of the operations rather than the IO.
+ */
+public class SkipListBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class SkipListState {
+        /** Document ids are (domain << 26) | ordinal, like combined ids in the index */
+        static final int numDomains = 20_000;
+        static final int docsPerDomainMax = 50_000;
+
+        Path docsFile;
+        Path valuesFile;
+
+        BufferPool pool;
+        SkipListValueReader valueReader;
+
+        long commonOffset;
+        long rareOffset;
+
+        long[] rareKeys;
+        long[] rangeStarts;
+        long[] rangeEnds;
+
+        LongQueryBuffer buffer;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            docsFile = Files.createTempFile("skiplist-benchmark", ".docs.dat");
+            valuesFile = Files.createTempFile("skiplist-benchmark", ".values.dat");
+
+            Random r = new Random(42);
+
+            LongArrayList common = new LongArrayList();
+            LongArrayList rare = new LongArrayList();
+
+            // Pareto distributed domain sizes, a few very large domains and a long tail of small ones
+            for (int domain = 0; domain < numDomains; domain++) {
+                int size = (int) Math.min(docsPerDomainMax, 10 / Math.pow(1 - r.nextDouble(), 1.2));
+
+                // Terms cluster within domains, so the rare term is far more frequent in some domains
+                double rareProbability = r.nextDouble() < 0.05 ? 0.05 : 0.0005;
+
+                for (int ordinal = 0; ordinal < size; ordinal++) {
+                    long id = ((long) domain << 26) | ordinal;
+
+                    if (r.nextDouble() < 0.25) common.add(id);
+                    if (r.nextDouble() < rareProbability) rare.add(id);
+                }
+            }
+
+            rareKeys = rare.toLongArray();
+
+            try (var writer = new SkipListWriter(docsFile, valuesFile)) {
+                commonOffset = writer.writeList(createArray(common.toLongArray()), common.size());
+                rareOffset = writer.writeList(createArray(rareKeys), rareKeys.length);
+            }
+
+            // Every 50th domain, as from a domain filter
+            LongArrayList starts = new LongArrayList();
+            LongArrayList ends = new LongArrayList();
+            for (long domain = 0; domain < numDomains; domain += 50) {
+                starts.add(domain << 26);
+                ends.add((domain + 1) << 26);
+            }
+            rangeStarts = starts.toLongArray();
+            rangeEnds = ends.toLongArray();
+
+            int numPages = (int) (Files.size(docsFile) / SkipListConstants.BLOCK_SIZE) + 1;
+            pool = new BufferPool(docsFile, SkipListConstants.BLOCK_SIZE, numPages);
+            valueReader = new SkipListValueReader(valuesFile);
+
+            buffer = new LongQueryBuffer(rareKeys.length);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            pool.close();
+            valueReader.close();
+            Files.deleteIfExists(docsFile);
+            Files.deleteIfExists(valuesFile);
+        }
+
+        /** Fill the buffer with the rare term's documents, as the candidates of an intersection */
+        LongQueryBuffer candidates() {
+            buffer.data.set(0, rareKeys);
+            buffer.reset();
+            return buffer;
+        }
+
+        static LongArray createArray(long[] keys) {
+            LongArray array = LongArrayFactory.onHeapConfined((long) keys.length * RECORD_SIZE);
+            for (int i = 0; i < keys.length; i++) {
+                array.set((long) RECORD_SIZE * i, keys[i]);
+                for (int vi = 1; vi < RECORD_SIZE; vi++) {
+                    array.set((long) RECORD_SIZE * i + vi, i);
+                }
+            }
+            return array;
+        }
+    }
+
+    @Fork(value = 1, warmups = 1)
+    @Warmup(iterations = 3)
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public int getKeys(SkipListState state) {
+        var reader = new SkipListReader(state.pool, state.valueReader, state.commonOffset);
+        var dest = new LongQueryBuffer(4096);
+
+        int total = 0;
+        while (!reader.atEnd()) {
+            dest.zero();
+            total += reader.getKeys(dest);
+        }
+        return total;
+    }
+
+    @Fork(value = 1, warmups = 1)
+    @Warmup(iterations = 3)
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public int getKeysWithRanges(SkipListState state) {
+        var reader = new SkipListReader(state.pool, state.valueReader, state.commonOffset);
+        var ranges = new SkipListValueRanges(state.rangeStarts, state.rangeEnds);
+        var dest = new LongQueryBuffer(4096);
+
+        int total = 0;
+        while (!reader.atEnd()) {
+            dest.zero();
+            total += reader.getKeys(dest, ranges);
+        }
+        return total;
+    }
+
+    @Fork(value = 1, warmups = 1)
+    @Warmup(iterations = 3)
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public int retainData(SkipListState state) {
+        var reader = new SkipListReader(state.pool, state.valueReader, state.commonOffset);
+        var buffer = state.candidates();
+
+        reader.retainData(buffer);
+        buffer.finalizeFiltering();
+
+        return buffer.end;
+    }
+
+    @Fork(value = 1, warmups = 1)
+    @Warmup(iterations = 3)
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public int rejectData(SkipListState state) {
+        var reader = new SkipListReader(state.pool, state.valueReader, state.commonOffset);
+        var buffer = state.candidates();
+
+        reader.rejectData(buffer);
+        buffer.finalizeFiltering();
+
+        return buffer.end;
+    }
+}
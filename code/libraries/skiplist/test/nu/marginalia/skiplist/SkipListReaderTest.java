@@ -5,6 +5,7 @@ import nu.marginalia.array.LongArray;
 import nu.marginalia.array.LongArrayFactory;
 import nu.marginalia.array.page.LongQueryBuffer;
 import nu.marginalia.array.pool.BufferPool;
+import nu.marginalia.uring.UringFileReader;
 import org.junit.jupiter.api.*;
 
 import java.io.IOException;
@@ -306,6 +307,94 @@ public class SkipListReaderTest {
 
     }
 
+    @Test
+    public void testPrefetchTenBlocks() throws IOException {
+        long[] keys = LongStream.range(0, 32000).toArray();
+        long[] vals = LongStream.range(0, 32000).map(v -> -v).toArray();
+
+        try (var writer = new SkipListWriter(docsFile, valuesFile)) {
+            writer.writeList(createArray(keys, vals),  keys.length);
+        }
+
+        LongSet actualKeys = new LongArraySet(keys.length);
+        LongSet expectedKeys = new LongArraySet(LongList.of(keys));
+
+        try (var indexPool = new BufferPool(docsFile, SkipListConstants.BLOCK_SIZE, 32);
+             var valueReader = new SkipListValueReader(valuesFile)) {
+
+            // Prefetching is best effort, and may read nothing if io_uring is unavailable
+            int prefetched = SkipListReader.prefetch(indexPool, new long[] { 0 }, 4);
+            Assertions.assertTrue(prefetched <= 5);
+
+            long cacheReadsBefore = indexPool.getCacheReadCount();
+
+            var reader = new SkipListReader(indexPool, valueReader,  0);
+            LongQueryBuffer lqb = new LongQueryBuffer(20);
+            while (!reader.atEnd()) {
+                reader.getKeys(lqb);
+                actualKeys.addAll(LongList.of(lqb.copyData()));
+                if (!lqb.fitsMore()) {
+                    lqb.zero();
+                }
+            }
+
+            if (prefetched > 0) {
+                Assertions.assertTrue(indexPool.getCacheReadCount() > cacheReadsBefore);
+                Assertions.assertEquals(prefetched, indexPool.getStats().prefetchedPages());
+
+                // Only reads that went through the ring as a batch save any syscalls
+                var stats = indexPool.getStats();
+                if (prefetched < UringFileReader.MIN_BATCH_SIZE) {
+                    Assertions.assertEquals(0, stats.prefetchBatches());
+                    Assertions.assertEquals(0, stats.savedSyscalls());
+                }
+                else {
+                    Assertions.assertEquals(1, stats.prefetchBatches());
+                    Assertions.assertEquals(prefetched - 1, stats.savedSyscalls());
+                }
+            }
+        }
+
+        Assertions.assertEquals(expectedKeys, actualKeys);
+    }
+
+    @Test
+    public void testGetKeys__blockFilter() throws IOException {
+        long[] keys = LongStream.range(0, 32000).toArray();
+        // The low byte of the second value is summarized per block, 1 in the first half and 2 in the second
+        long[] vals = LongStream.range(0, 32000).map(v -> v < 16000 ? 1 : 2).toArray();
+
+        try (var writer = new SkipListWriter(docsFile, valuesFile)) {
+            writer.writeList(createArray(keys, vals),  keys.length);
+        }
+
+        LongSet actualKeys = new LongOpenHashSet(keys.length);
+
+        try (var indexPool = new BufferPool(docsFile, SkipListConstants.BLOCK_SIZE, 8);
+             var valueReader = new SkipListValueReader(valuesFile)) {
+            var reader = new SkipListReader(indexPool, valueReader,  0);
+            reader.setBlockFilter((flagsUnion, maxTag) -> (flagsUnion & 2) == 0);
+
+            LongQueryBuffer lqb = new LongQueryBuffer(20);
+            while (!reader.atEnd()) {
+                reader.getKeys(lqb);
+                actualKeys.addAll(LongList.of(lqb.copyData()));
+                if (!lqb.fitsMore()) {
+                    lqb.zero();
+                }
+            }
+
+            Assertions.assertTrue(reader.getSkippedBlocks() > 0);
+        }
+
+        // Every key in a block with a 2 must be present, and the blocks with only 1s must be gone
+        for (long key = 16000; key < 32000; key++) {
+            Assertions.assertTrue(actualKeys.contains(key), "Missing key " + key);
+        }
+        Assertions.assertFalse(actualKeys.contains(0));
+        Assertions.assertTrue(actualKeys.size() < keys.length);
+    }
+
     @Test
     public void testRetainTenBlocks() throws IOException {
         long[] keys = LongStream.range(0, 320000).map(v -> 2*v).toArray();
@@ -814,4 +903,67 @@ public class SkipListReaderTest {
             Assertions.assertArrayEquals(expected, actual);
         }
     }
+
+    @Test
+    public void testGetAllValues__compressedValues() throws IOException {
+        long[] keys = LongStream.range(0, 32000).map(v -> 2*v).toArray();
+        long[] posOffsets = LongStream.range(0, 32000).map(v -> ((v % 37) << 48) | (100 * v)).toArray();
+        long[] meta = LongStream.range(0, 32000).map(v -> v % 251).toArray();
+
+        long[] keys2 = LongStream.range(0, 500).map(v -> 3*v).toArray();
+        long[] meta2 = LongStream.range(0, 500).map(v -> -v).toArray();
+
+        long offset1, offset2;
+        try (var writer = new SkipListWriter(docsFile, valuesFile, SkipListValueFormat.COMPRESSED);
+             Arena arena = Arena.ofConfined()) {
+            offset1 = writer.writeList(createArray(arena, keys, posOffsets, meta), keys.length);
+            offset2 = writer.writeList(createArray(arena, keys2, keys2, meta2), keys2.length);
+        }
+
+        SkipListWriter.writeFooter(docsFile, "test123", SkipListValueFormat.COMPRESSED);
+        Assertions.assertEquals(SkipListValueFormat.COMPRESSED, SkipListWriter.validateFooter(docsFile, "test123"));
+
+        // Compressed values should take up a fraction of the plain 16 bytes per entry
+        Assertions.assertTrue(Files.size(valuesFile) < 16L * (keys.length + keys2.length) / 2);
+
+        try (var indexPool = new BufferPool(docsFile, SkipListConstants.BLOCK_SIZE, 8);
+             var valueReader = new SkipListValueReader(valuesFile)) {
+
+            Random r = new Random(0);
+
+            for (int iter = 0; iter < 100; iter++) {
+                var reader = new SkipListReader(indexPool, valueReader, offset1);
+
+                long[] queryKeys = LongStream.generate(() -> r.nextLong(0, 64000)).limit(64).sorted().distinct().toArray();
+                long[] queryVals = reader.getAllValues(queryKeys);
+
+                for (int i = 0; i < queryKeys.length; i++) {
+                    long expectedPos = 0;
+                    long expectedMeta = 0;
+
+                    if ((queryKeys[i] & 1) == 0) {
+                        expectedPos = posOffsets[(int) (queryKeys[i] / 2)];
+                        expectedMeta = meta[(int) (queryKeys[i] / 2)];
+                    }
+
+                    Assertions.assertEquals(expectedPos, queryVals[i], "key " + queryKeys[i]);
+                    Assertions.assertEquals(expectedMeta, queryVals[queryKeys.length + i], "key " + queryKeys[i]);
+                }
+            }
+
+            var reader = new SkipListReader(indexPool, valueReader, offset2);
+            long[] queryVals = reader.getAllValues(new long[] { 0, 3, 4, 1497 });
+            Assertions.assertArrayEquals(new long[] { 0, 3, 0, 1497, 0, -1, 0, -499 }, queryVals);
+        }
+    }
+
+    LongArray createArray(Arena arena, long[] keys, long[] values1, long[] values2) {
+        MemorySegment ms = arena.allocate(keys.length * RECORD_SIZE*8);
+        for (int i = 0; i < keys.length; i++) {
+            ms.setAtIndex(ValueLayout.JAVA_LONG, RECORD_SIZE*i, keys[i]);
+            ms.setAtIndex(ValueLayout.JAVA_LONG, RECORD_SIZE*i + 1, values1[i]);
+            ms.setAtIndex(ValueLayout.JAVA_LONG, RECORD_SIZE*i + 2, values2[i]);
+        }
+        return LongArrayFactory.wrap(ms);
+    }
 }
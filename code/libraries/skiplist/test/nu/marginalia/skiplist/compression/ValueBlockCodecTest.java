@@ -0,0 +1,82 @@
+package nu.marginalia.skiplist.compression;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+class ValueBlockCodecTest {
+
+    @Test
+    public void testEncodeEmpty() {
+        ByteBuffer buffer = ByteBuffer.allocate(ValueBlockCodec.maxEncodedSize(0)).order(ByteOrder.nativeOrder());
+
+        int size = ValueBlockCodec.encode(new long[0], 0, buffer);
+        Assertions.assertEquals(16, size);
+
+        MemorySegment seg = MemorySegment.ofBuffer(buffer.flip());
+        Assertions.assertEquals(0, ValueBlockCodec.numEntries(seg, 0));
+        Assertions.assertEquals(16, ValueBlockCodec.encodedSize(seg, 0));
+    }
+
+    @Test
+    public void testEncodeTypical() {
+        // Size-tagged, increasing offsets with byte sized flags
+        long[] values = new long[] {
+                (12L << 48) | 100, 3,
+                (8L << 48) | 112, 0,
+                (30L << 48) | 120, 255,
+                (4L << 48) | 150, 17
+        };
+
+        ByteBuffer buffer = ByteBuffer.allocate(ValueBlockCodec.maxEncodedSize(4)).order(ByteOrder.nativeOrder());
+        int size = ValueBlockCodec.encode(values, 4, buffer);
+
+        // 8 byte header + mode + 9 bytes of varints + 4 byte packed flags = 22 bytes, padded to 32
+        Assertions.assertEquals(32, size);
+
+        long[] out = new long[8];
+        MemorySegment seg = MemorySegment.ofBuffer(buffer.flip());
+        Assertions.assertEquals(size, ValueBlockCodec.encodedSize(seg, 0));
+        Assertions.assertEquals(4, ValueBlockCodec.decode(seg, 0, out));
+        Assertions.assertArrayEquals(values, out);
+    }
+
+    @Test
+    public void testEncodeFuzz() {
+        ByteBuffer buffer = ByteBuffer.allocate(ValueBlockCodec.maxEncodedSize(2000)).order(ByteOrder.nativeOrder());
+
+        for (int iter = 0; iter < 1000; iter++) {
+            Random r = new Random(iter);
+            int n = r.nextInt(0, 2000);
+
+            long[] values = new long[2 * n];
+            for (int i = 0; i < 2 * n; i++) {
+                values[i] = switch (r.nextInt(4)) {
+                    case 0 -> r.nextLong();
+                    case 1 -> r.nextLong(0, 256);
+                    case 2 -> -r.nextLong(0, 256);
+                    default -> (r.nextLong(0, 65536) << 48) | r.nextLong(0, 1L << 48);
+                };
+            }
+
+            buffer.clear();
+            int size = ValueBlockCodec.encode(values, n, buffer);
+            Assertions.assertTrue(size <= ValueBlockCodec.maxEncodedSize(n));
+            Assertions.assertEquals(0, size % ValueBlockCodec.BLOCK_ALIGNMENT);
+
+            long[] out = new long[2 * n];
+            MemorySegment seg = MemorySegment.ofBuffer(buffer.flip());
+            Assertions.assertEquals(size, ValueBlockCodec.encodedSize(seg, 0));
+            ValueBlockCodec.decode(seg, 0, out);
+
+            if (!Arrays.equals(values, out)) {
+                Assertions.assertArrayEquals(values, out, "Seed " + iter);
+            }
+        }
+    }
+}
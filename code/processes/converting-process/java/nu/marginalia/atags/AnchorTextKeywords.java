@@ -9,7 +9,7 @@ import nu.marginalia.keyword.LinkTexts;
 import nu.marginalia.language.config.LanguageConfiguration;
 import nu.marginalia.language.model.DocumentSentence;
 import nu.marginalia.language.model.LanguageDefinition;
-import nu.marginalia.language.sentence.SentenceExtractor;
+import nu.marginalia.language.sentence.ThreadLocalSentenceExtractorProvider;
 import nu.marginalia.language.sentence.tag.HtmlTag;
 import nu.marginalia.model.EdgeUrl;
 
@@ -19,14 +19,15 @@ import java.io.InputStreamReader;
 import java.util.*;
 
 public class AnchorTextKeywords {
-    private final SentenceExtractor sentenceExtractor;
+    private final ThreadLocalSentenceExtractorProvider sentenceExtractorProvider;
     private final LanguageDefinition englishLanguage;
     private final Set<String> stopList;
 
     @Inject
-    public AnchorTextKeywords(SentenceExtractor sentenceExtractor, LanguageConfiguration languageConfiguration)
+    public AnchorTextKeywords(ThreadLocalSentenceExtractorProvider sentenceExtractorProvider, LanguageConfiguration languageConfiguration)
     {
-        this.sentenceExtractor = sentenceExtractor;
+        // The keywords are extracted by many converter threads at once, so each needs its own extractor
+        this.sentenceExtractorProvider = sentenceExtractorProvider;
 
         // FIXME:  Currently the atags file does not provide information about the language in the source document
         //         which means we have to run the link texts through English processing.  For euro-languages this is
@@ -64,6 +65,7 @@ public class AnchorTextKeywords {
 
         List<DocumentSentence> ret = new ArrayList<>(keywordsRaw.size());
         TIntList counts = new TIntArrayList(keywordsRaw.size());
+        var sentenceExtractor = sentenceExtractorProvider.get();
 
         // Extract and count keywords from anchor text
         for (Link keyword : keywordsRaw) {
@@ -86,6 +88,7 @@ public class AnchorTextKeywords {
 
         List<DocumentSentence> ret = new ArrayList<>(keywordsRaw.size());
         TIntList counts = new TIntArrayList(keywordsRaw.size());
+        var sentenceExtractor = sentenceExtractorProvider.get();
 
         // Extract and count keywords from anchor text
         for (Link keyword : keywordsRaw) {
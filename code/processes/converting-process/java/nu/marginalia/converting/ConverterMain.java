@@ -6,12 +6,14 @@ import com.google.inject.Inject;
 import com.google.inject.Injector;
 import nu.marginalia.converting.model.CrawlPlan;
 import nu.marginalia.converting.model.WorkDir;
+import nu.marginalia.converting.processor.DocumentProcessingStats;
 import nu.marginalia.converting.processor.DomainProcessor;
 import nu.marginalia.converting.sideload.SideloadSource;
 import nu.marginalia.converting.sideload.SideloadSourceFactory;
 import nu.marginalia.converting.writer.ConverterBatchWritableIf;
 import nu.marginalia.converting.writer.ConverterBatchWriter;
 import nu.marginalia.converting.writer.ConverterWriter;
+import nu.marginalia.converting.writer.StagedDomain;
 import nu.marginalia.io.SerializableCrawlDataStream;
 import nu.marginalia.mq.MessageQueueFactory;
 import nu.marginalia.mqapi.converting.ConvertRequest;
@@ -40,6 +42,8 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
@@ -193,6 +197,8 @@ public class ConverterMain extends ProcessMainClass {
 
         final int maxPoolSize = Integer.getInteger("converter.poolSize", defaultPoolSize);
 
+        final Path stagingArea = processedDir.getDir().resolve("staging");
+
         try (BatchingWorkLog batchingWorkLog = new BatchingWorkLogImpl(processedDir.getLogFile());
              ConverterWriter converterWriter = new ConverterWriter(batchingWorkLog, processedDir.getDir()))
         {
@@ -246,33 +252,67 @@ public class ConverterMain extends ProcessMainClass {
 
             logger.info("Processing large items");
 
-            try (var hb = heartbeat.createAdHocTaskHeartbeat("Large Domains")) {
-                int bigTaskIdx = 0;
-                // Next the big items domain-by-domain
-                for (var dataPath : bigTasks) {
-                    hb.progress(dataPath.toFile().getName(), bigTaskIdx++, bigTasks.size());
+            // The large domains are processed a few at a time, each into a staging area of its own,
+            // and then handed to the converterWriter, which copies the processed records into its
+            // current batch.  The number of large domains in memory at the same time is bounded by
+            // a budget in documents, as the processing of a domain retains per-document state.
 
-                    try {
-                        // SerializableCrawlDataStream is autocloseable, we can't try-with-resources because then it will be
-                        // closed before it's consumed by the converterWriter.  Instead, the converterWriter guarantees it
-                        // will close it after it's consumed.
+            final int largeDomainsParallelism = Integer.getInteger("converter.largeDomainsParallelism", Math.max(1, maxPoolSize / 4));
+            final int largeDomainsDocumentBudget = Integer.getInteger("converter.largeDomainsDocumentBudget", 4 * SIDELOAD_THRESHOLD * largeDomainsParallelism);
 
-                        var stream = SerializableCrawlDataStream.openDataStream(dataPath);
-                        ConverterBatchWritableIf writable = processor.simpleProcessing(stream, SerializableCrawlDataStream.getSizeHint(dataPath));
+            StagedDomain.clearStagingArea(stagingArea);
 
-                        converterWriter.accept(writable);
-                    }
-                    catch (Exception ex) {
-                        logger.info("Error in processing", ex);
-                    }
-                    finally {
-                        heartbeat.setProgress(processedDomains.incrementAndGet() / (double) totalDomains);
-                    }
+            // The semaphore is fair, so that a very large domain waiting for the budget isn't starved by smaller ones
+            final Semaphore documentBudget = new Semaphore(largeDomainsDocumentBudget, true);
+
+            try (var hb = heartbeat.createAdHocTaskHeartbeat("Large Domains");
+                 var largeDomainsExecutor = Executors.newFixedThreadPool(largeDomainsParallelism))
+            {
+                AtomicInteger bigTaskIdx = new AtomicInteger(0);
+
+                for (var dataPath : bigTasks) {
+                    final int sizeHint = SerializableCrawlDataStream.getSizeHint(dataPath);
+                    final int cost = Math.clamp(sizeHint, 1, largeDomainsDocumentBudget);
+
+                    largeDomainsExecutor.submit(() -> {
+                        try {
+                            documentBudget.acquire(cost);
+                        }
+                        catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                            return;
+                        }
+
+                        try {
+                            // SerializableCrawlDataStream is autocloseable, we can't try-with-resources because then it will be
+                            // closed before it's consumed.  Instead, staging the domain guarantees it will close it after it's consumed.
+
+                            var stream = SerializableCrawlDataStream.openDataStream(dataPath);
+                            ConverterBatchWritableIf writable = processor.simpleProcessing(stream, sizeHint);
+
+                            if (writable != null) {
+                                converterWriter.accept(StagedDomain.stage(writable, stagingArea));
+                            }
+                        }
+                        catch (Exception ex) {
+                            logger.info("Error in processing", ex);
+                        }
+                        finally {
+                            documentBudget.release(cost);
+                            hb.progress(dataPath.toFile().getName(), bigTaskIdx.incrementAndGet(), bigTasks.size());
+                            heartbeat.setProgress(processedDomains.incrementAndGet() / (double) totalDomains);
+                        }
+                    });
                 }
             }
 
             logger.info("Processing complete");
+            DocumentProcessingStats.logSummary();
         }
+
+        // The converterWriter has copied the last of the staged domains when it's closed
+        StagedDomain.clearStagingArea(stagingArea);
+        Files.deleteIfExists(stagingArea);
     }
 
     private static class CrawlDataLocator implements Function<WorkLogEntry, Optional<Path>> {
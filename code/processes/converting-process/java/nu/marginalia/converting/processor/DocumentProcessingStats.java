@@ -0,0 +1,142 @@
+package nu.marginalia.converting.processor;
+
+import com.sun.management.ThreadMXBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Accounting of the time spent, and memory allocated, in each stage of processing
+ * an HTML document.  Enabled with the converter.stageStats system property.
+ * <p></p>
+ * Each converter thread has its own {@link StageTimer}, which is reset at the start of every
+ * document and marks the end of each stage with {@link StageTimer#lap(Stage)}; the laps are
+ * summed up across all threads, and logged with {@link #logSummary()}.
+ * <p></p>
+ * Allocation is measured with the per-thread allocation counter of the JVM, and
+ * includes everything the thread allocated during the stage, including garbage.
+ */
+public class DocumentProcessingStats {
+    private static final Logger logger = LoggerFactory.getLogger(DocumentProcessingStats.class);
+
+    private static final boolean enabled = Boolean.getBoolean("converter.stageStats");
+
+    public enum Stage {
+        PARSE,
+        PRUNE,
+        CLASSIFY,
+        SENTENCES,
+        FEATURES,
+        KEYWORDS,
+        SUMMARY,
+        LINKS
+    }
+
+    private static final Stage[] stages = Stage.values();
+    private static final LongAdder[] stageNanos = new LongAdder[stages.length];
+    private static final LongAdder[] stageBytes = new LongAdder[stages.length];
+    private static final LongAdder[] stageCount = new LongAdder[stages.length];
+    private static final LongAdder documents = new LongAdder();
+
+    static {
+        for (int i = 0; i < stages.length; i++) {
+            stageNanos[i] = new LongAdder();
+            stageBytes[i] = new LongAdder();
+            stageCount[i] = new LongAdder();
+        }
+    }
+
+    private static final ThreadMXBean threadMXBean = getThreadMXBean();
+
+    private static final ThreadLocal<StageTimer> timers = ThreadLocal.withInitial(StageTimer::new);
+    private static final StageTimer noOpTimer = new NoOpStageTimer();
+
+    private static ThreadMXBean getThreadMXBean() {
+        if (ManagementFactory.getThreadMXBean() instanceof ThreadMXBean bean
+                && bean.isThreadAllocatedMemorySupported())
+        {
+            return bean;
+        }
+        return null;
+    }
+
+    /** Start timing a new document on the current thread */
+    public static StageTimer begin() {
+        if (!enabled)
+            return noOpTimer;
+
+        StageTimer timer = timers.get();
+        timer.reset();
+        documents.increment();
+        return timer;
+    }
+
+    /** The timer of the document being processed on the current thread */
+    public static StageTimer current() {
+        if (!enabled)
+            return noOpTimer;
+
+        return timers.get();
+    }
+
+    public static void logSummary() {
+        long docCount = documents.sum();
+        if (!enabled || docCount == 0)
+            return;
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("Document processing stages, ").append(docCount).append(" documents:");
+
+        for (int i = 0; i < stages.length; i++) {
+            long count = stageCount[i].sum();
+            if (count == 0)
+                continue;
+
+            sb.append(String.format("\n  %-10s %8.3f ms/doc %10d bytes/doc",
+                    stages[i],
+                    stageNanos[i].sum() / (count * 1_000_000.),
+                    stageBytes[i].sum() / count));
+        }
+
+        logger.info(sb.toString());
+    }
+
+    /** Thread confined stopwatch for the stages of a document */
+    public static class StageTimer {
+        private long lastNanos;
+        private long lastBytes;
+
+        void reset() {
+            lastNanos = System.nanoTime();
+            lastBytes = allocatedBytes();
+        }
+
+        /** Mark the end of a stage, which began at the end of the previous stage */
+        public void lap(Stage stage) {
+            long nanos = System.nanoTime();
+            long bytes = allocatedBytes();
+
+            stageNanos[stage.ordinal()].add(nanos - lastNanos);
+            stageBytes[stage.ordinal()].add(bytes - lastBytes);
+            stageCount[stage.ordinal()].increment();
+
+            lastNanos = nanos;
+            lastBytes = bytes;
+        }
+
+        private static long allocatedBytes() {
+            if (threadMXBean == null)
+                return 0;
+            return threadMXBean.getCurrentThreadAllocatedBytes();
+        }
+    }
+
+    private static class NoOpStageTimer extends StageTimer {
+        @Override
+        void reset() {}
+
+        @Override
+        public void lap(Stage stage) {}
+    }
+}
@@ -66,6 +66,8 @@ public class DocumentProcessor {
                                      DocumentDecorator documentDecorator) {
         ProcessedDocument ret = new ProcessedDocument();
 
+        DocumentProcessingStats.begin();
+
         try {
             // We must always provide the URL, even if we don't process the document
             ret.url = getDocumentUrl(crawledDocument);
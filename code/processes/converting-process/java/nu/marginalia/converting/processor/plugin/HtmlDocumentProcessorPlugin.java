@@ -7,6 +7,8 @@ import nu.marginalia.converting.model.DocumentHeaders;
 import nu.marginalia.converting.model.GeneratorType;
 import nu.marginalia.converting.model.ProcessedDocumentDetails;
 import nu.marginalia.converting.processor.DocumentClass;
+import nu.marginalia.converting.processor.DocumentProcessingStats;
+import nu.marginalia.converting.processor.DocumentProcessingStats.Stage;
 import nu.marginalia.converting.processor.MetaRobotsTag;
 import nu.marginalia.converting.processor.classifier.AcceptableAds;
 import nu.marginalia.converting.processor.logic.*;
@@ -105,7 +107,10 @@ public class HtmlDocumentProcessorPlugin extends AbstractDocumentProcessorPlugin
                                           Set<DomSampleClassification> domSampleClassifications, DocumentClass documentClass)
             throws DisqualifiedException, URISyntaxException, IOException, UnsupportedLanguageException {
 
+        final var timer = DocumentProcessingStats.current();
+
         Document doc = crawledDocument.parseBody();
+        timer.lap(Stage.PARSE);
 
         if (!lenientProcessing && AcceptableAds.hasAcceptableAdsTag(doc)) {
             throw new DisqualifiedException(DisqualifiedException.DisqualificationReason.ACCEPTABLE_ADS);
@@ -127,6 +132,7 @@ public class HtmlDocumentProcessorPlugin extends AbstractDocumentProcessorPlugin
         }
 
         var prunedDoc = specialization.prune(doc);
+        timer.lap(Stage.PRUNE);
 
         final int length = getLength(doc);
         final DocumentFormat format = getDocumentFormat(doc);
@@ -143,7 +149,10 @@ public class HtmlDocumentProcessorPlugin extends AbstractDocumentProcessorPlugin
             throw new DisqualifiedException(DisqualificationReason.QUALITY);
         }
 
+        timer.lap(Stage.CLASSIFY);
+
         DocumentLanguageData dld = sentenceExtractorProvider.get().extractSentences(prunedDoc);
+        timer.lap(Stage.SENTENCES);
         final String languageIsoCode = dld.language().isoCode();
 
         var ret = new ProcessedDocumentDetails();
@@ -174,9 +183,13 @@ public class HtmlDocumentProcessorPlugin extends AbstractDocumentProcessorPlugin
                 (int) -ret.quality, // ret.quality is negative
                 documentFlags);
 
+        timer.lap(Stage.FEATURES);
+
         DocumentKeywordsBuilder words = keywordExtractor.extractKeywords(dld, linkTexts, url);
+        timer.lap(Stage.KEYWORDS);
 
         ret.description = specialization.getSummary(prunedDoc, words.importantWords);
+        timer.lap(Stage.SUMMARY);
         ret.generator = generatorParts.type();
 
         var tagWords = new MetaTagsBuilder()
@@ -194,6 +207,7 @@ public class HtmlDocumentProcessorPlugin extends AbstractDocumentProcessorPlugin
         specialization.amendWords(doc, words);
 
         getLinks(url, ret, doc, words);
+        timer.lap(Stage.LINKS);
 
         if (pubDate.hasYear()) {
             ret.pubYear = pubDate.year();
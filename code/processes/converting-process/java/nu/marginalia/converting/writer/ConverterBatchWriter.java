@@ -87,6 +87,38 @@ public class ConverterBatchWriter implements AutoCloseable, ConverterBatchWriter
 
     }
 
+    /** Copy the records of a batch written by another writer, see {@link StagedDomain} */
+    @Override
+    public void writeStagedBatch(Path stagedBasePath) throws IOException {
+        Path domainPath = ProcessedDataFileNames.domainFileName(stagedBasePath);
+        Path linksPath = ProcessedDataFileNames.domainLinkFileName(stagedBasePath);
+        Path docsPath = ProcessedDataFileNames.documentFileName(stagedBasePath);
+
+        try (var reader = new SlopDocumentRecord.Reader(docsPath, 0)) {
+            while (reader.hasMore()) {
+                var record = reader.next();
+
+                if (ordinalOffset != 0) {
+                    record = record.withOrdinal(ordinalOffset + record.ordinal());
+                }
+
+                documentWriter.write(record);
+            }
+        }
+
+        try (var reader = new SlopDomainLinkRecord.Reader(linksPath, 0)) {
+            while (reader.hasMore()) {
+                domainLinkWriter.write(reader.next());
+            }
+        }
+
+        try (var reader = new SlopDomainRecord.Reader(domainPath, 0)) {
+            while (reader.hasMore()) {
+                domainWriter.write(reader.next());
+            }
+        }
+    }
+
     private void writeDocumentData(EdgeDomain domain,
                                      Iterator<ProcessedDocument> documentIterator)
             throws IOException
@@ -4,6 +4,7 @@ import nu.marginalia.converting.model.ProcessedDomain;
 import nu.marginalia.converting.sideload.SideloadSource;
 
 import java.io.IOException;
+import java.nio.file.Path;
 
 public interface ConverterBatchWriterIf {
 
@@ -12,4 +13,6 @@ public interface ConverterBatchWriterIf {
     void writeSideloadSource(SideloadSource sideloadSource) throws IOException;
 
     void writeProcessedDomain(ProcessedDomain domain);
+
+    void writeStagedBatch(Path stagedBasePath) throws IOException;
 }
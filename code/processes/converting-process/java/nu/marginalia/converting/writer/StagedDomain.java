@@ -0,0 +1,79 @@
+package nu.marginalia.converting.writer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+
+/** A domain that has been processed and written to a staging area of its own, ahead of being
+ * handed to the {@link ConverterWriter}.
+ * <p></p>
+ * This lets several large domains be processed at the same time.  The ConverterWriter
+ * still writes one domain at a time, but then it only needs to copy the already processed
+ * records into the current batch.  The domain is not logged as processed until it has been
+ * copied, so an interrupted conversion will re-process it as before.
+ */
+public class StagedDomain implements ConverterBatchWritableIf {
+    private final String id;
+    private final Path stagingDir;
+
+    private StagedDomain(String id, Path stagingDir) {
+        this.id = id;
+        this.stagingDir = stagingDir;
+    }
+
+    /** Write the domain to a new staging directory within the staging area.  The
+     * domain is closed when it has been written.
+     */
+    public static StagedDomain stage(ConverterBatchWritableIf domain, Path stagingArea) throws Exception {
+        Path stagingDir = Files.createTempDirectory(stagingArea, "staged");
+
+        try {
+            try (var writer = new ConverterBatchWriter(stagingDir, 0)) {
+                writer.write(domain);
+            }
+            return new StagedDomain(domain.id(), stagingDir);
+        }
+        catch (Exception ex) {
+            deleteRecursively(stagingDir);
+            throw ex;
+        }
+        finally {
+            domain.close();
+        }
+    }
+
+    /** Remove any staged domains left behind by an interrupted conversion */
+    public static void clearStagingArea(Path stagingArea) throws IOException {
+        if (Files.exists(stagingArea)) {
+            deleteRecursively(stagingArea);
+        }
+        Files.createDirectories(stagingArea);
+    }
+
+    @Override
+    public void write(ConverterBatchWriter writer) throws IOException {
+        writer.writeStagedBatch(stagingDir);
+    }
+
+    @Override
+    public String id() {
+        return id;
+    }
+
+    @Override
+    public void close() throws Exception {
+        deleteRecursively(stagingDir);
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        if (!Files.exists(dir))
+            return;
+
+        try (var paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+}
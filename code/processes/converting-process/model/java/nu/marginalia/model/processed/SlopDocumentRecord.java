@@ -54,6 +54,24 @@ public record SlopDocumentRecord(
             throw new IllegalArgumentException("Metas, words and positions must have the same length");
     }
 
+    public SlopDocumentRecord withOrdinal(int newOrdinal) {
+        return new SlopDocumentRecord(domain, url, newOrdinal, state, stateReason, title, description,
+                htmlFeatures, htmlStandard, length, hash, quality, documentMetadata, languageIsoCode,
+                pubYear, pubDate, words, metas, positions, spanCodes, spans);
+    }
+
+    /** The projection of the record used to write the index journal */
+    public KeywordsProjection keywordsProjection() {
+        return new KeywordsProjection(domain, ordinal, htmlFeatures, documentMetadata, length, pubDate,
+                languageIsoCode, words, metas, positions, spanCodes, spans);
+    }
+
+    /** The projection of the record used to write the document database */
+    public MetadataProjection metadataProjection() {
+        return new MetadataProjection(domain, url, ordinal, title, description, htmlFeatures,
+                htmlStandard, languageIsoCode, length, hash, quality, pubYear);
+    }
+
     public record KeywordsProjection(
             String domain,
             int ordinal,
@@ -288,6 +306,110 @@ public record SlopDocumentRecord(
 
     }
 
+    /** Reader for the full document records, used when copying records between tables */
+    public static class Reader extends SlopTable {
+        private final StringColumn.Reader domainsReader;
+        private final StringColumn.Reader urlsReader;
+        private final VarintColumn.Reader ordinalsReader;
+        private final EnumColumn.Reader statesReader;
+        private final StringColumn.Reader stateReasonsReader;
+        private final StringColumn.Reader titlesReader;
+        private final StringColumn.Reader descriptionsReader;
+        private final IntColumn.Reader htmlFeaturesReader;
+        private final EnumColumn.Reader htmlStandardsReader;
+        private final IntColumn.Reader lengthsReader;
+        private final LongColumn.Reader hashesReader;
+        private final FloatColumn.Reader qualitiesReader;
+        private final LongColumn.Reader domainMetadataReader;
+        private final ShortColumn.Reader pubYearReader;
+        private final ShortColumn.Reader pubDateReader;
+        private final EnumColumn.Reader languageReader;
+        private final ObjectArrayColumn<String>.Reader keywordsReader;
+        private final LongArrayColumn.Reader termMetaReader;
+        private final VarintCodedSequenceArrayColumn.Reader termPositionsReader;
+        private final ByteArrayColumn.Reader spanCodesReader;
+        private final VarintCodedSequenceArrayColumn.Reader spansReader;
+
+        public Reader(SlopTable.Ref<SlopDocumentRecord> pageRef) throws IOException {
+            super(pageRef);
+
+            domainsReader = domainsColumn.open(this);
+            urlsReader = urlsColumn.open(this);
+            ordinalsReader = ordinalsColumn.open(this);
+            statesReader = statesColumn.open(this);
+            stateReasonsReader = stateReasonsColumn.open(this);
+            titlesReader = titlesColumn.open(this);
+            descriptionsReader = descriptionsColumn.open(this);
+            htmlFeaturesReader = htmlFeaturesColumn.open(this);
+            htmlStandardsReader = htmlStandardsColumn.open(this);
+            lengthsReader = lengthsColumn.open(this);
+            hashesReader = hashesColumn.open(this);
+            qualitiesReader = qualitiesColumn.open(this);
+            domainMetadataReader = domainMetadata.open(this);
+            pubYearReader = pubYearColumn.open(this);
+            pubDateReader = pubDateColumn.open(this);
+            languageReader = languageColumn.open(this);
+
+            keywordsReader = keywordsColumn.open(this);
+            termMetaReader = termMetaColumn.open(this);
+            termPositionsReader = termPositionsColumn.open(this);
+
+            spanCodesReader = spanCodesColumn.open(this);
+            spansReader = spansColumn.open(this);
+        }
+
+        public Reader(Path baseDir, int page) throws IOException {
+            this(new Ref<>(baseDir, page));
+        }
+
+        public boolean hasMore() throws IOException {
+            return domainsReader.hasRemaining();
+        }
+
+        public SlopDocumentRecord next() throws IOException {
+            String domain = domainsReader.get();
+            String url = urlsReader.get();
+            int ordinal = ordinalsReader.get();
+            String state = statesReader.get();
+            String stateReason = stateReasonsReader.get();
+            String title = titlesReader.get();
+            String description = descriptionsReader.get();
+            int htmlFeatures = htmlFeaturesReader.get();
+            String htmlStandard = htmlStandardsReader.get();
+            int length = lengthsReader.get();
+            long hash = hashesReader.get();
+            float quality = qualitiesReader.get();
+            long documentMetadata = domainMetadataReader.get();
+            int pubYear = pubYearReader.get();
+            int pubDate = pubDateReader.get();
+            String language = languageReader.get();
+
+            return new SlopDocumentRecord(
+                    domain,
+                    url,
+                    ordinal,
+                    state,
+                    stateReason,
+                    title,
+                    description,
+                    htmlFeatures,
+                    htmlStandard,
+                    length,
+                    hash,
+                    quality,
+                    documentMetadata,
+                    language,
+                    pubYear < 0 ? null : pubYear,
+                    pubDate,
+                    keywordsReader.get(),
+                    termMetaReader.get(),
+                    termPositionsReader.get(),
+                    spanCodesReader.get(),
+                    spansReader.get()
+            );
+        }
+    }
+
     public static class Writer extends SlopTable {
         private final StringColumn.Writer domainsWriter;
         private final StringColumn.Writer urlsWriter;
@@ -76,6 +76,7 @@ public class SlopDocumentRecordTest {
             );
 
             Assertions.assertEquals(expected, readRecord);
+            Assertions.assertEquals(expected, record.keywordsProjection());
         }
 
         try (var docDataReader = new SlopDocumentRecord.MetadataReader(testDir, 0)) {
@@ -99,6 +100,25 @@ public class SlopDocumentRecordTest {
             );
 
             Assertions.assertEquals(expected2, readRecord);
+            Assertions.assertEquals(expected2, record.metadataProjection());
+        }
+
+        try (var reader = new SlopDocumentRecord.Reader(testDir, 0)) {
+            assertTrue(reader.hasMore());
+            var readRecord = reader.next();
+            assertFalse(reader.hasMore());
+
+            Assertions.assertEquals(record.url(), readRecord.url());
+            Assertions.assertEquals(record.ordinal(), readRecord.ordinal());
+            Assertions.assertEquals(record.state(), readRecord.state());
+            Assertions.assertEquals(record.stateReason(), readRecord.stateReason());
+            Assertions.assertEquals(record.documentMetadata(), readRecord.documentMetadata());
+            Assertions.assertEquals(record.pubYear(), readRecord.pubYear());
+            Assertions.assertEquals(record.words(), readRecord.words());
+            Assertions.assertArrayEquals(record.metas(), readRecord.metas());
+            Assertions.assertEquals(record.positions(), readRecord.positions());
+            Assertions.assertArrayEquals(record.spanCodes(), readRecord.spanCodes());
+            Assertions.assertEquals(record.spans(), readRecord.spans());
         }
     }
 }
@@ -3,7 +3,7 @@ package nu.marginalia.atags;
 import nu.marginalia.atags.source.AnchorTagsImpl;
 import nu.marginalia.language.config.LanguageConfigLocation;
 import nu.marginalia.language.config.LanguageConfiguration;
-import nu.marginalia.language.sentence.SentenceExtractor;
+import nu.marginalia.language.sentence.ThreadLocalSentenceExtractorProvider;
 import nu.marginalia.model.EdgeDomain;
 import nu.marginalia.model.EdgeUrl;
 import nu.marginalia.util.TestLanguageModels;
@@ -39,7 +39,7 @@ class DomainAnchorTagsImplTest {
             System.out.println(tags.forUrl(new EdgeUrl("http://www.chiark.greenend.org.uk/~sgtatham/putt")));
 
             var languageConfig = new LanguageConfiguration(TestLanguageModels.getLanguageModels(), new LanguageConfigLocation.Experimental());
-            var atagsKeywords = new AnchorTextKeywords(new SentenceExtractor(languageConfig, TestLanguageModels.getLanguageModels()), languageConfig);
+            var atagsKeywords = new AnchorTextKeywords(new ThreadLocalSentenceExtractorProvider(languageConfig, TestLanguageModels.getLanguageModels()), languageConfig);
 
             System.out.println(
                     atagsKeywords.getAnchorTextKeywords(tags, new EdgeUrl("https://www.chiark.greenend.org.uk/~sgtatham/"))
@@ -4,7 +4,9 @@ import com.google.gson.Gson;
 import com.google.inject.Guice;
 import com.google.inject.Inject;
 import com.google.inject.Injector;
+import com.google.inject.Provider;
 import com.zaxxer.hikari.HikariDataSource;
+import io.prometheus.metrics.core.metrics.Gauge;
 import it.unimi.dsi.fastutil.ints.IntArrayList;
 import nu.marginalia.UserAgent;
 import nu.marginalia.WmsaHome;
@@ -13,12 +15,16 @@ import nu.marginalia.atags.source.AnchorTagsSource;
 import nu.marginalia.atags.source.AnchorTagsSourceFactory;
 import nu.marginalia.coordination.DomainCoordinator;
 import nu.marginalia.coordination.DomainLock;
+import nu.marginalia.crawl.fetcher.AsyncHttpFetcherImpl;
 import nu.marginalia.crawl.fetcher.CrawlerAuditLog;
+import nu.marginalia.crawl.fetcher.HttpFetcher;
 import nu.marginalia.crawl.fetcher.HttpFetcherImpl;
 import nu.marginalia.crawl.fetcher.warc.WarcRecorder;
 import nu.marginalia.crawl.retreival.CrawlDataReference;
+import nu.marginalia.crawl.retreival.CrawlerIpScheduler;
 import nu.marginalia.crawl.retreival.CrawlerRetreiver;
 import nu.marginalia.crawl.retreival.DomainProber;
+import nu.marginalia.crawl.retreival.revisit.CrawlFingerprints;
 import nu.marginalia.crawl.warc.WarcArchiverFactory;
 import nu.marginalia.crawl.warc.WarcArchiverIf;
 import nu.marginalia.db.DomainBlacklist;
@@ -90,8 +96,14 @@ public class CrawlerMain extends ProcessMainClass {
     private final LinkedBlockingQueue<CrawlTask> retryQueue = new LinkedBlockingQueue<>();
 
     private final AtomicInteger tasksDone = new AtomicInteger(0);
-    private final HttpFetcherImpl fetcher;
+    private final HttpFetcher fetcher;
     private final CrawlerAuditLog auditLog;
+    private final CrawlerIpScheduler ipScheduler;
+
+    private static final Gauge metric_queue_depth = Gauge.builder()
+            .name("crawler_queue_depth")
+            .help("Number of crawl tasks waiting to be scheduled")
+            .register();
 
     private int totalTasks = 1;
 
@@ -99,11 +111,14 @@ public class CrawlerMain extends ProcessMainClass {
     private static final int MIN_URLS_PER_DOMAIN = Integer.getInteger("crawler.minUrlsPerDomain", 100);
     private static final int MID_URLS_PER_DOMAIN = Integer.getInteger("crawler.midUrlsPerDomain", 2_000);
     private static final int MAX_URLS_PER_DOMAIN = Integer.getInteger("crawler.maxUrlsPerDomain", 10_000);
+    private static final boolean USE_ASYNC_FETCHER = Boolean.getBoolean("crawler.asyncFetcher");
 
     @Inject
     public CrawlerMain(UserAgent userAgent,
-                       HttpFetcherImpl httpFetcher,
+                       Provider<HttpFetcherImpl> httpFetcherProvider,
+                       Provider<AsyncHttpFetcherImpl> asyncHttpFetcherProvider,
                        CrawlerAuditLog auditLog,
+                       CrawlerIpScheduler ipScheduler,
                        ProcessHeartbeatImpl heartbeat,
                        ProcessEventLog eventLog,
                        MessageQueueFactory messageQueueFactory, DomainProber domainProber,
@@ -121,8 +136,9 @@ public class CrawlerMain extends ProcessMainClass {
         super(messageQueueFactory, processConfiguration, gson, CRAWLER_INBOX);
 
         this.userAgent = userAgent;
-        this.fetcher = httpFetcher;
+        this.fetcher = USE_ASYNC_FETCHER ? asyncHttpFetcherProvider.get() : httpFetcherProvider.get();
         this.auditLog = auditLog;
+        this.ipScheduler = ipScheduler;
         this.heartbeat = heartbeat;
         this.eventLog = eventLog;
         this.domainProber = domainProber;
@@ -383,7 +399,7 @@ public class CrawlerMain extends ProcessMainClass {
         List<CrawlSpecRecord> specs = work.specs();
 
         try (WorkLog workLog = new WorkLog(outputDir.resolve("crawler.log"));
-             DomainStateDb domainStateDb = new DomainStateDb(outputDir.resolve("domainstate.db"));
+             DomainStateDb domainStateDb = DomainStateDb.openForCrawl(outputDir.resolve("domainstate.db"));
              WarcArchiverIf warcArchiver = warcArchiverFactory.get(outputDir);
              AnchorTagsSource anchorTagsSource = anchorTagsSourceFactory.create(work.domains())
         ) {
@@ -444,6 +460,7 @@ public class CrawlerMain extends ProcessMainClass {
 
                     // Try to submit any tasks that are in the retry queue (this will block if the pool is full)
                     taskList.removeIf(this::trySubmitDeferredTask);
+                    metric_queue_depth.set(taskList.size());
 
                     // Add a small pause here to avoid busy looping toward the end of the execution cycle when
                     // we might have no new viable tasks to run for hours on end
@@ -571,7 +588,7 @@ public class CrawlerMain extends ProcessMainClass {
         heartbeat.start();
 
         try (WorkLog workLog = new WorkLog(outputDir.resolve("crawler-" + targetDomainName.replace('/', '-') + ".log"));
-             DomainStateDb domainStateDb = new DomainStateDb(outputDir.resolve("domainstate.db"));
+             DomainStateDb domainStateDb = DomainStateDb.openForCrawl(outputDir.resolve("domainstate.db"));
              WarcArchiverIf warcArchiver = warcArchiverFactory.get(outputDir);
              AnchorTagsSource anchorTagsSource = anchorTagsSourceFactory.create(List.of(new EdgeDomain(targetDomainName)))
         ) {
@@ -622,9 +639,10 @@ public class CrawlerMain extends ProcessMainClass {
         }
 
         /** Best effort indicator whether we could start this now without getting stuck in
-         * DomainLocks purgatory */
+         * DomainLocks purgatory, or being turned away by the IP scheduler */
         public boolean canRun() {
-            return domainCoordinator.isLockableHint(new EdgeDomain(domain));
+            return domainCoordinator.isLockableHint(new EdgeDomain(domain))
+                && ipScheduler.isAvailableHint(domain);
         }
 
         @Override
@@ -646,7 +664,17 @@ public class CrawlerMain extends ProcessMainClass {
             }
             DomainLock domainLock = lock.get();
 
-            try (domainLock) {
+            Optional<CrawlerIpScheduler.IpPermit> ipPermit = ipScheduler.tryAcquire(domain);
+            // Enough domains on the same IP address are already being crawled,
+            // so we give the thread to some other domain and retry later
+            if (ipPermit.isEmpty()) {
+                domainLock.close();
+                pendingCrawlTasks.remove(domain);
+                retryQueue.put(this);
+                return;
+            }
+
+            try (domainLock; var permit = ipPermit.get()) {
                 Thread.currentThread().setName("crawling:" + domain);
 
                 Path newWarcFile = CrawlerOutputFile.createWarcPath(outputDir, id, domain, CrawlerOutputFile.WarcFileVersion.LIVE);
@@ -663,7 +691,7 @@ public class CrawlerMain extends ProcessMainClass {
                 }
 
                 try (var warcRecorder = new WarcRecorder(newWarcFile); // write to a temp file for now
-                     var retriever = new CrawlerRetreiver(fetcher, domainProber, specification, domainStateDb, warcRecorder);
+                     var retriever = new CrawlerRetreiver(fetcher, domainProber, specification, domainStateDb, warcRecorder, permit);
                      CrawlDataReference reference = getReference())
                 {
                     // Resume the crawl if it was aborted
@@ -687,6 +715,7 @@ public class CrawlerMain extends ProcessMainClass {
                         case CrawlerRetreiver.CrawlerResult.Crawled(int size) -> {
                             reference.delete();
                             convertWarc(domain, userAgent, newWarcFile, slopFile);
+                            retriever.getFingerprints().write(CrawlFingerprints.pathFor(slopFile));
                             workLog.setJobToFinished(domain, slopFile.toString(), size);
                         }
 
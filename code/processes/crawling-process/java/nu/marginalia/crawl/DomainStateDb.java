@@ -7,26 +7,40 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.sql.Connection;
-import java.sql.DriverManager;
+import java.nio.file.StandardCopyOption;
 import java.sql.SQLException;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 import java.util.Optional;
 
-/** Supplemental sqlite database for storing the summary of a crawl.
+/** Supplemental database for storing the summary of a crawl.
  *  One database exists per crawl data set.
+ *  <p></p>
+ *  The database is stored either in an append-only log ({@link LogDomainStateStore}), or in
+ *  sqlite ({@link SqliteDomainStateStore}).  An existing file is opened with whichever backend
+ *  it was written by; a new file is created with the backend given by crawler.domainStateBackend,
+ *  "log" by default.  The crawler migrates sqlite files to the log format when it opens them
+ *  via {@link #openForCrawl(Path)}.
  * */
 public class DomainStateDb implements AutoCloseable {
 
     private static final Logger logger = LoggerFactory.getLogger(DomainStateDb.class);
 
-    private final Connection connection;
+    private static final String BACKEND = System.getProperty("crawler.domainStateBackend", "log");
+    private static final long COMPACTION_MIN_SIZE = Long.getLong("crawler.domainStateCompactionMinSize", 16 * 1024 * 1024);
+    private static final Duration CRAWL_LOCK_TIMEOUT = Duration.ofMinutes(10);
+    private static final byte[] SQLITE_MAGIC = "SQLite format 3\0".getBytes(StandardCharsets.US_ASCII);
+
+    @Nullable
+    private final DomainStateStore store;
 
 
     public record CrawlMeta(
@@ -100,232 +114,176 @@ public class DomainStateDb implements AutoCloseable {
 
     public DomainStateDb(@Nullable Path filename) throws SQLException {
         if (null == filename) {
-            connection = null;
+            store = null;
             return;
         }
 
-        String sqliteDbString = "jdbc:sqlite:" + filename.toString();
-        connection = DriverManager.getConnection(sqliteDbString);
-
-        try (var stmt = connection.createStatement()) {
-            stmt.executeUpdate("""
-                    CREATE TABLE IF NOT EXISTS summary (
-                        domain TEXT PRIMARY KEY,
-                        lastUpdatedEpochMs LONG NOT NULL,
-                        state TEXT NOT NULL,
-                        stateDesc TEXT,
-                        feedUrl TEXT
-                    )
-                    """);
-            stmt.executeUpdate("""
-                    CREATE TABLE IF NOT EXISTS crawl_meta (
-                        domain TEXT PRIMARY KEY,
-                        lastFullCrawlEpochMs LONG NOT NULL,
-                        recrawlTimeMs LONG NOT NULL,
-                        recrawlErrors INTEGER NOT NULL,
-                        crawlTimeMs LONG NOT NULL,
-                        crawlChanges INTEGER NOT NULL,
-                        totalCrawlSize INTEGER NOT NULL
-                    )
-                    """);
-            stmt.executeUpdate("""
-                    CREATE TABLE IF NOT EXISTS favicon (
-                        domain TEXT PRIMARY KEY,
-                        contentType TEXT NOT NULL,
-                        icon BLOB NOT NULL
-                    )
-                    """);
-            stmt.execute("PRAGMA journal_mode=WAL");
+        try {
+            if (isSqliteFile(filename) || (isNewFile(filename) && "sqlite".equals(BACKEND))) {
+                store = new SqliteDomainStateStore(filename);
+            }
+            else {
+                store = new LogDomainStateStore(filename);
+            }
+        }
+        catch (IOException ex) {
+            throw new SQLException("Failed to open domain state db " + filename, ex);
+        }
+    }
+
+    /** Open the database for a crawl, first migrating it from sqlite to the log format,
+     * or compacting it if it is already in the log format.  This must only be called
+     * when no other process has the database open, other than a short-lived writer
+     * such as a migration actor, which the crawl waits for.
+     */
+    public static DomainStateDb openForCrawl(Path filename) throws SQLException {
+        try {
+            if (!"sqlite".equals(BACKEND) && isSqliteFile(filename)) {
+                migrateFromSqlite(filename);
+            }
+            else if (!isNewFile(filename) && LogDomainStateStore.isLogFile(filename)) {
+                LogDomainStateStore.compactIfNeeded(filename, COMPACTION_MIN_SIZE);
+            }
+        }
+        catch (IOException ex) {
+            throw new SQLException("Failed to prepare domain state db " + filename, ex);
+        }
+
+        return openForWriting(filename, CRAWL_LOCK_TIMEOUT);
+    }
+
+    /** Open the database to write to it, waiting up to the timeout if another process is
+     * writing to it, rather than failing on the first write.
+     *
+     * @throws SQLException if another process, such as a running crawl, is still writing
+     *                      to the database after the timeout
+     */
+    public static DomainStateDb openForWriting(Path filename, Duration timeout) throws SQLException {
+        var db = new DomainStateDb(filename);
+
+        try {
+            if (db.store != null) {
+                db.store.lockForWriting(timeout);
+            }
+            return db;
+        }
+        catch (IOException ex) {
+            db.close();
+            throw new SQLException("Domain state db " + filename + " is in use by another process; is a crawl running on this node?", ex);
+        }
+        catch (InterruptedException ex) {
+            db.close();
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for domain state db " + filename, ex);
+        }
+    }
+
+    private static void migrateFromSqlite(Path filename) throws IOException, SQLException {
+        Path tempFile = filename.resolveSibling(filename.getFileName() + ".migrate");
+        Files.deleteIfExists(tempFile);
+
+        logger.info("Migrating {} from sqlite to the log format", filename);
+
+        try (var source = new SqliteDomainStateStore(filename);
+             var dest = new LogDomainStateStore(tempFile))
+        {
+            source.copyTo(dest);
+        }
+
+        Files.move(tempFile, filename, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        // The sqlite journal files belong to the old database and must not outlive it
+        Files.deleteIfExists(filename.resolveSibling(filename.getFileName() + "-wal"));
+        Files.deleteIfExists(filename.resolveSibling(filename.getFileName() + "-shm"));
+    }
+
+    private static boolean isNewFile(Path filename) throws IOException {
+        return !Files.exists(filename) || Files.size(filename) == 0;
+    }
+
+    private static boolean isSqliteFile(Path filename) throws IOException {
+        if (isNewFile(filename))
+            return false;
+
+        byte[] header = new byte[SQLITE_MAGIC.length];
+        try (InputStream is = Files.newInputStream(filename)) {
+            return is.readNBytes(header, 0, header.length) == header.length
+                    && Arrays.equals(header, SQLITE_MAGIC);
         }
     }
 
     @Override
     public void close() throws SQLException {
-        if (connection != null) {
-            connection.close();
+        if (store == null)
+            return;
+
+        try {
+            store.close();
+        }
+        catch (SQLException ex) {
+            throw ex;
+        }
+        catch (Exception ex) {
+            throw new SQLException("Failed to close domain state db", ex);
         }
     }
 
     public boolean isAvailable() {
-        return connection != null;
+        return store != null;
     }
 
     public void saveIcon(String domain, FaviconRecord faviconRecord) {
-        if (connection == null) throw new IllegalStateException("No connection to domainstate db");
-
-        try (var stmt = connection.prepareStatement("""
-                INSERT OR REPLACE INTO favicon (domain, contentType, icon)
-                       VALUES(?, ?, ?)
-            """)) {
-            stmt.setString(1, domain);
-            stmt.setString(2, Objects.requireNonNullElse(faviconRecord.contentType, "application/octet-stream"));
-            stmt.setBytes(3, faviconRecord.imageData);
-            stmt.executeUpdate();
-        }
-        catch (SQLException ex) {
-            logger.error("Failed to insert favicon", ex);
-        }
+        if (store == null) throw new IllegalStateException("No connection to domainstate db");
+
+        store.saveIcon(domain, faviconRecord);
     }
 
     public Optional<FaviconRecord> getIcon(String domain) {
-        if (connection == null)
+        if (store == null)
             return Optional.empty();
 
-        try (var stmt = connection.prepareStatement("SELECT contentType, icon FROM favicon WHERE DOMAIN = ?")) {
-            stmt.setString(1, domain);
-            var rs = stmt.executeQuery();
-
-            if (rs.next()) {
-                return Optional.of(
-                    new FaviconRecord(
-                        rs.getString("contentType"),
-                        rs.getBytes("icon")
-                    )
-                );
-            }
-        } catch (SQLException e) {
-            logger.error("Failed to retrieve favicon", e);
-        }
-
-        return Optional.empty();
+        return store.getIcon(domain);
     }
 
     public void save(CrawlMeta crawlMeta) {
-        if (connection == null) throw new IllegalStateException("No connection to domainstate db");
-
-        try (var stmt = connection.prepareStatement("""
-                INSERT OR REPLACE INTO crawl_meta (domain, lastFullCrawlEpochMs, recrawlTimeMs, recrawlErrors, crawlTimeMs, crawlChanges, totalCrawlSize)
-                VALUES (?, ?, ?, ?, ?, ?, ?)
-                """)) {
-            stmt.setString(1, crawlMeta.domainName());
-            stmt.setLong(2, crawlMeta.lastFullCrawl.toEpochMilli());
-            stmt.setLong(3, crawlMeta.recrawlTime.toMillis());
-            stmt.setInt(4, crawlMeta.recrawlErrors);
-            stmt.setLong(5, crawlMeta.crawlTime.toMillis());
-            stmt.setInt(6, crawlMeta.crawlChanges);
-            stmt.setInt(7, crawlMeta.totalCrawlSize);
-            stmt.executeUpdate();
-        } catch (SQLException e) {
-            logger.error("Failed to insert crawl meta record", e);
-        }
+        if (store == null) throw new IllegalStateException("No connection to domainstate db");
+
+        store.save(crawlMeta);
     }
 
     public void save(SummaryRecord record) {
-        if (connection == null) throw new IllegalStateException("No connection to domainstate db");
-
-        try (var stmt = connection.prepareStatement("""
-                INSERT OR REPLACE INTO summary (domain, lastUpdatedEpochMs, state, stateDesc, feedUrl)
-                VALUES (?, ?, ?, ?, ?)
-                """)) {
-            stmt.setString(1, record.domainName());
-            stmt.setLong(2, record.lastUpdated().toEpochMilli());
-            stmt.setString(3, record.state());
-            stmt.setString(4, record.stateDesc());
-            stmt.setString(5, record.feedUrl());
-            stmt.executeUpdate();
-        } catch (SQLException e) {
-            logger.error("Failed to insert summary record", e);
-        }
+        if (store == null) throw new IllegalStateException("No connection to domainstate db");
+
+        store.save(record);
     }
 
     /** Return the last full crawl time (epoch millis) for every domain recorded in this crawl set.
      */
     public Map<String, Long> getLastFullCrawlTimes() {
-        Map<String, Long> lastCrawlTimes = new HashMap<>();
-
-        if (connection == null)
-            return lastCrawlTimes;
-
-        try (var stmt = connection.prepareStatement("SELECT domain, lastFullCrawlEpochMs FROM crawl_meta")) {
-            var rs = stmt.executeQuery();
-            while (rs.next()) {
-                lastCrawlTimes.put(rs.getString("domain"), rs.getLong("lastFullCrawlEpochMs"));
-            }
-        } catch (SQLException ex) {
-            logger.error("Failed to read last full crawl times", ex);
-        }
+        if (store == null)
+            return new HashMap<>();
 
-        return lastCrawlTimes;
+        return store.getLastFullCrawlTimes();
     }
 
     public void deleteDomain(String domainName) {
-        if (connection == null)
+        if (store == null)
             return;
 
-        try (var stmt = connection.prepareStatement("DELETE FROM crawl_meta WHERE domain = ?")) {
-            stmt.setString(1, domainName);
-            stmt.executeUpdate();
-        } catch (SQLException ex) {
-            logger.error("Failed to delete crawl_meta state for {}", domainName, ex);
-        }
-
-        try (var stmt = connection.prepareStatement("DELETE FROM summary WHERE domain = ?")) {
-            stmt.setString(1, domainName);
-            stmt.executeUpdate();
-        } catch (SQLException ex) {
-            logger.error("Failed to delete summary state for {}", domainName, ex);
-        }
-
-        try (var stmt = connection.prepareStatement("DELETE FROM favicon WHERE domain = ?")) {
-            stmt.setString(1, domainName);
-            stmt.executeUpdate();
-        } catch (SQLException ex) {
-            logger.error("Failed to delete favicon state for {}", domainName, ex);
-        }
+        store.deleteDomain(domainName);
     }
 
     public Optional<CrawlMeta> getMeta(String domainName) {
-        if (connection == null)
+        if (store == null)
             return Optional.empty();
 
-        try (var stmt = connection.prepareStatement("""
-                SELECT domain, lastFullCrawlEpochMs, recrawlTimeMs, recrawlErrors, crawlTimeMs, crawlChanges, totalCrawlSize
-                FROM crawl_meta
-                WHERE domain = ?
-                """)) {
-            stmt.setString(1, domainName);
-            var rs = stmt.executeQuery();
-            if (rs.next()) {
-                return Optional.of(new CrawlMeta(
-                        rs.getString("domain"),
-                        Instant.ofEpochMilli(rs.getLong("lastFullCrawlEpochMs")),
-                        Duration.ofMillis(rs.getLong("recrawlTimeMs")),
-                        Duration.ofMillis(rs.getLong("crawlTimeMs")),
-                        rs.getInt("recrawlErrors"),
-                        rs.getInt("crawlChanges"),
-                        rs.getInt("totalCrawlSize")
-                ));
-            }
-        } catch (SQLException ex) {
-            logger.error("Failed to get crawl meta record", ex);
-        }
-        return Optional.empty();
+        return store.getMeta(domainName);
     }
 
     public Optional<SummaryRecord> getSummary(String domainName) {
-        if (connection == null)
+        if (store == null)
             return Optional.empty();
 
-        try (var stmt = connection.prepareStatement("""
-                SELECT domain, lastUpdatedEpochMs, state, stateDesc, feedUrl
-                FROM summary
-                WHERE domain = ?
-                """)) {
-            stmt.setString(1, domainName);
-            var rs = stmt.executeQuery();
-            if (rs.next()) {
-                return Optional.of(new SummaryRecord(
-                        rs.getString("domain"),
-                        Instant.ofEpochMilli(rs.getLong("lastUpdatedEpochMs")),
-                        rs.getString("state"),
-                        rs.getString("stateDesc"),
-                        rs.getString("feedUrl")
-                ));
-            }
-        } catch (SQLException e) {
-            logger.error("Failed to get summary record", e);
-        }
-
-        return Optional.empty();
+        return store.getSummary(domainName);
     }
 }
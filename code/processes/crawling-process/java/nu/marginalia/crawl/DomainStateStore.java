@@ -0,0 +1,33 @@
+package nu.marginalia.crawl;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+
+/** Storage backend for the {@link DomainStateDb} */
+interface DomainStateStore extends AutoCloseable {
+    void saveIcon(String domain, DomainStateDb.FaviconRecord faviconRecord);
+    Optional<DomainStateDb.FaviconRecord> getIcon(String domain);
+
+    void save(DomainStateDb.CrawlMeta crawlMeta);
+    Optional<DomainStateDb.CrawlMeta> getMeta(String domainName);
+
+    void save(DomainStateDb.SummaryRecord record);
+    Optional<DomainStateDb.SummaryRecord> getSummary(String domainName);
+
+    /** Return the last full crawl time (epoch millis) for every domain in the store */
+    Map<String, Long> getLastFullCrawlTimes();
+
+    void deleteDomain(String domainName);
+
+    /** Take the right to write to the store ahead of the first write, waiting up to the timeout
+     * if another process is writing to it.
+     *
+     * @throws IOException if the store is still being written by another process after the timeout
+     */
+    default void lockForWriting(Duration timeout) throws IOException, InterruptedException {}
+
+    @Override
+    void close() throws Exception;
+}
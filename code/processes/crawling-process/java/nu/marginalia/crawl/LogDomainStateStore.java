@@ -0,0 +1,813 @@
+package nu.marginalia.crawl;
+
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import nu.marginalia.hash.MurmurHash3_128;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.LongStream;
+import java.util.zip.CRC32;
+
+/** Append-only log backend for the {@link DomainStateDb}.
+ * <p></p>
+ * Each save appends a record to the end of the file, and an in-memory index keeps the offset
+ * of the latest record of each type for each domain.  The indexes are keyed by a 64 bit hash of the
+ * domain name, rather than the name itself, and a store that only reads builds the index of a record
+ * type the first time it looks one up, so that e.g. a reader of icons doesn't also hold the crawl
+ * metadata of every domain.  Records carry their key, which is checked on reading, so a hash
+ * collision makes one domain's records unreachable rather than returning another's.
+ * Writers reserve space at the end of the file
+ * with an atomic counter and then write their record at that position, so concurrent crawl tasks
+ * do not wait for one another.  A delete appends a tombstone, which is stored in the index as a
+ * negated offset.
+ * <p></p>
+ * The file is scanned when it is opened, and a torn record at the end of the file (from a crash
+ * mid-write) is ignored and overwritten by the next write.  A store that has not written anything
+ * picks up records appended by another process, and re-opens the file if it has been replaced
+ * by compaction.
+ * <p></p>
+ * Only one process may write to the file at a time, which is enforced by an exclusive lock on the
+ * file taken on the first write; a second writer fails with an IllegalStateException.  Writers that
+ * may have to wait for another process take the lock ahead of time with {@link #lockForWriting}.
+ * A write that fails after its space has been reserved is overwritten with a padding record, so that
+ * the records after it can still be read.  If that fails too, the zeroed hole it leaves is skipped
+ * over when the file is next opened.
+ * <p></p>
+ * Layout: an 8 byte magic header, followed by records of the form
+ * <pre>
+ * int bodyLength, int crc32(body), body: [byte type, short keyLength, key, payload]
+ * </pre>
+ */
+class LogDomainStateStore implements DomainStateStore {
+    private static final Logger logger = LoggerFactory.getLogger(LogDomainStateStore.class);
+
+    static final byte[] MAGIC = "MDSTLOG1".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte TYPE_SUMMARY = 1;
+    private static final byte TYPE_META = 2;
+    private static final byte TYPE_ICON = 3;
+    private static final byte TYPE_DELETE = 4;
+    private static final byte TYPE_PADDING = 5;
+
+    /** The record types that are indexed, in the order of their slots in the index */
+    private static final byte[] INDEXED_TYPES = { TYPE_SUMMARY, TYPE_META, TYPE_ICON };
+
+    private static final MurmurHash3_128 hasher = new MurmurHash3_128();
+
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final long REFRESH_INTERVAL_MS = 5_000;
+
+    private final Path filename;
+    private volatile Segment segment;
+
+    /** Set once this store has appended to the file, after which it no longer looks for
+     * changes made by other processes */
+    private volatile boolean writing = false;
+    private long lastReplacedCheck = System.currentTimeMillis();
+
+    LogDomainStateStore(Path filename) throws IOException {
+        this.filename = filename;
+        this.segment = new Segment(filename);
+    }
+
+    /** Check whether the file at the path is in the log format */
+    static boolean isLogFile(Path filename) throws IOException {
+        byte[] header = new byte[MAGIC.length];
+
+        try (var is = Files.newInputStream(filename)) {
+            return is.readNBytes(header, 0, header.length) == header.length
+                    && Arrays.equals(header, MAGIC);
+        }
+    }
+
+    /** Rewrite the file without superseded and deleted records if they make up at least half of it,
+     * and the file is at least minSize bytes.  The store must not be open elsewhere while this runs.
+     *
+     * @return true if the file was compacted
+     */
+    static boolean compactIfNeeded(Path filename, long minSize) throws IOException {
+        Path tempFile = filename.resolveSibling(filename.getFileName() + ".compact");
+
+        try (var segment = new Segment(filename)) {
+            if (!segment.tryLock()) {
+                logger.warn("Not compacting {}, it is being written by another process", filename);
+                return false;
+            }
+            segment.scan(true);
+
+            long fileSize = segment.writeOffset.get();
+            if (fileSize < minSize)
+                return false;
+
+            long[] liveOffsets = segment.liveOffsets();
+            long liveSize = MAGIC.length;
+            for (long offset : liveOffsets) {
+                liveSize += segment.recordLength(offset);
+            }
+
+            if (liveSize * 2 > fileSize)
+                return false;
+
+            logger.info("Compacting {}, {} of {} bytes live", filename, liveSize, fileSize);
+
+            try (var dest = FileChannel.open(tempFile,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+            {
+                writeFully(dest, ByteBuffer.wrap(MAGIC));
+                for (long offset : liveOffsets) {
+                    long length = segment.recordLength(offset);
+                    long transferred = 0;
+                    while (transferred < length) {
+                        transferred += segment.channel.transferTo(offset + transferred, length - transferred, dest);
+                    }
+                }
+                dest.force(true);
+            }
+
+            // Replace the file while still holding the lock, so that no writer can start on it in the meantime
+            Files.move(tempFile, filename, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        return true;
+    }
+
+    @Override
+    public void saveIcon(String domain, DomainStateDb.FaviconRecord faviconRecord) {
+        append(TYPE_ICON, domain, out -> {
+            writeString(out, Objects.requireNonNullElse(faviconRecord.contentType(), "application/octet-stream"));
+            out.writeInt(faviconRecord.imageData().length);
+            out.write(faviconRecord.imageData());
+        });
+    }
+
+    @Override
+    public Optional<DomainStateDb.FaviconRecord> getIcon(String domain) {
+        return read(domain, TYPE_ICON, in -> {
+            String contentType = readString(in);
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            return new DomainStateDb.FaviconRecord(contentType, data);
+        });
+    }
+
+    @Override
+    public void save(DomainStateDb.CrawlMeta crawlMeta) {
+        append(TYPE_META, crawlMeta.domainName(), out -> {
+            out.writeLong(crawlMeta.lastFullCrawl().toEpochMilli());
+            out.writeLong(crawlMeta.recrawlTime().toMillis());
+            out.writeLong(crawlMeta.crawlTime().toMillis());
+            out.writeInt(crawlMeta.recrawlErrors());
+            out.writeInt(crawlMeta.crawlChanges());
+            out.writeInt(crawlMeta.totalCrawlSize());
+        });
+    }
+
+    @Override
+    public Optional<DomainStateDb.CrawlMeta> getMeta(String domainName) {
+        return read(domainName, TYPE_META, in -> readMeta(domainName, in));
+    }
+
+    private static DomainStateDb.CrawlMeta readMeta(String domainName, DataInputStream in) throws IOException {
+        Instant lastFullCrawl = Instant.ofEpochMilli(in.readLong());
+        Duration recrawlTime = Duration.ofMillis(in.readLong());
+        Duration crawlTime = Duration.ofMillis(in.readLong());
+
+        return new DomainStateDb.CrawlMeta(domainName,
+                lastFullCrawl,
+                recrawlTime,
+                crawlTime,
+                in.readInt(),
+                in.readInt(),
+                in.readInt());
+    }
+
+    @Override
+    public void save(DomainStateDb.SummaryRecord record) {
+        append(TYPE_SUMMARY, record.domainName(), out -> {
+            out.writeLong(record.lastUpdated().toEpochMilli());
+            writeString(out, record.state());
+            writeString(out, record.stateDesc());
+            writeString(out, record.feedUrl());
+        });
+    }
+
+    @Override
+    public Optional<DomainStateDb.SummaryRecord> getSummary(String domainName) {
+        return read(domainName, TYPE_SUMMARY, in -> new DomainStateDb.SummaryRecord(domainName,
+                Instant.ofEpochMilli(in.readLong()),
+                readString(in),
+                readString(in),
+                readString(in)));
+    }
+
+    @Override
+    public Map<String, Long> getLastFullCrawlTimes() {
+        refresh();
+
+        Segment seg = segment;
+
+        long[] offsets;
+        try {
+            offsets = seg.liveOffsets(TYPE_META);
+        }
+        catch (IOException ex) {
+            logger.error("Failed to index {}", filename, ex);
+            return Map.of();
+        }
+
+        Map<String, Long> lastCrawlTimes = new HashMap<>(offsets.length);
+        for (long offset : offsets) {
+            try {
+                var record = seg.readRecord(offset);
+                lastCrawlTimes.put(record.key(), record.payload().readLong());
+            }
+            catch (IOException ex) {
+                logger.error("Failed to read last full crawl time at {}", offset, ex);
+            }
+        }
+
+        return lastCrawlTimes;
+    }
+
+    @Override
+    public void deleteDomain(String domainName) {
+        append(TYPE_DELETE, domainName, _ -> {});
+    }
+
+    @Override
+    public void close() throws IOException {
+        Segment seg = segment;
+        if (writing) {
+            seg.channel.force(false);
+        }
+        seg.close();
+    }
+
+    private interface PayloadWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private interface PayloadReader<T> {
+        T read(DataInputStream in) throws IOException;
+    }
+
+    private interface RecordVisitor {
+        void visit(byte type, String key, long offset);
+    }
+
+    private record StoredRecord(String key, DataInputStream payload) {}
+
+    private void append(byte type, String key, PayloadWriter payloadWriter) {
+        try {
+            if (!writing) {
+                startWriting();
+            }
+
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+
+            var bodyBytes = new ByteArrayOutputStream(64 + keyBytes.length);
+            try (var out = new DataOutputStream(bodyBytes)) {
+                out.writeByte(type);
+                out.writeShort(keyBytes.length);
+                out.write(keyBytes);
+                payloadWriter.write(out);
+            }
+
+            byte[] body = bodyBytes.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(body);
+
+            ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + body.length);
+            record.putInt(body.length);
+            record.putInt((int) crc.getValue());
+            record.put(body);
+            record.flip();
+
+            Segment seg = segment;
+            long offset = seg.writeOffset.getAndAdd(record.remaining());
+            try {
+                writeFully(seg.channel, record, offset);
+            }
+            catch (IOException ex) {
+                writePadding(seg.channel, offset, record.limit());
+                throw ex;
+            }
+
+            seg.index(type, key, offset);
+        }
+        catch (IOException ex) {
+            logger.error("Failed to append record {} for {}", type, key, ex);
+        }
+    }
+
+    /** Overwrite the space reserved for a record that failed to be written with a padding
+     * record of the same length, so that the scan doesn't stop at it */
+    private void writePadding(FileChannel channel, long offset, int length) {
+        byte[] body = new byte[length - RECORD_HEADER_SIZE];
+        body[0] = TYPE_PADDING;
+
+        CRC32 crc = new CRC32();
+        crc.update(body);
+
+        ByteBuffer record = ByteBuffer.allocate(length);
+        record.putInt(body.length);
+        record.putInt((int) crc.getValue());
+        record.put(body);
+        record.flip();
+
+        try {
+            writeFully(channel, record, offset);
+        }
+        catch (IOException ex) {
+            logger.error("Failed to pad failed record at {}", offset, ex);
+        }
+    }
+
+    @Override
+    public void lockForWriting(Duration timeout) throws IOException, InterruptedException {
+        Instant deadline = Instant.now().plus(timeout);
+
+        while (!tryStartWriting()) {
+            if (Instant.now().isAfter(deadline)) {
+                throw new IOException("Domain state db " + filename + " is being written by another process");
+            }
+            TimeUnit.SECONDS.sleep(1);
+        }
+    }
+
+    private void startWriting() throws IOException {
+        if (!tryStartWriting()) {
+            throw new IllegalStateException("Domain state db " + filename + " is being written by another process");
+        }
+    }
+
+    /** Take the lock and prepare to append to the file
+     *
+     * @return false if another process holds the lock
+     */
+    private synchronized boolean tryStartWriting() throws IOException {
+        if (writing)
+            return true;
+
+        // Pick up anything appended since the last read, or the file that replaced it
+        refresh();
+
+        while (true) {
+            if (!segment.tryLock()) {
+                return false;
+            }
+
+            Object fileKey = Files.readAttributes(filename, BasicFileAttributes.class).fileKey();
+            if (fileKey == null || fileKey.equals(segment.fileKey))
+                break;
+
+            // The file was replaced by compaction before the lock was taken
+            Segment oldSegment = segment;
+            segment = new Segment(filename);
+            oldSegment.close();
+        }
+
+        // Holding the lock, no other writer can be in the middle of a write, so any hole
+        // in the file is permanent and may be skipped; the next write goes after the last record
+        segment.scan(true);
+
+        // Writes are indexed as they are made, so every index must be built before the first one
+        segment.loadIndexes();
+        writing = true;
+
+        return true;
+    }
+
+    private <T> Optional<T> read(String key, byte type, PayloadReader<T> reader) {
+        refresh();
+
+        // Retry once, in case the segment was replaced and closed while reading
+        for (int attempt = 0; ; attempt++) {
+            Segment seg = segment;
+
+            try {
+                long offset = seg.offset(type, key);
+                if (offset <= 0)
+                    return Optional.empty();
+
+                var record = seg.readRecord(offset);
+                if (!record.key().equals(key)) {
+                    logger.debug("Hash collision between {} and {}", key, record.key());
+                    return Optional.empty();
+                }
+
+                return Optional.of(reader.read(record.payload()));
+            }
+            catch (ClosedChannelException ex) {
+                if (attempt > 0) {
+                    logger.error("Failed to read record for {}", key, ex);
+                    return Optional.empty();
+                }
+            }
+            catch (IOException ex) {
+                logger.error("Failed to read record for {}", key, ex);
+                return Optional.empty();
+            }
+        }
+    }
+
+    /** Catch up with changes made by other processes, if this store isn't the one writing */
+    private void refresh() {
+        if (writing)
+            return;
+
+        synchronized (this) {
+            if (writing)
+                return;
+
+            try {
+                long now = System.currentTimeMillis();
+                if (now - lastReplacedCheck > REFRESH_INTERVAL_MS) {
+                    lastReplacedCheck = now;
+
+                    Object fileKey = Files.readAttributes(filename, BasicFileAttributes.class).fileKey();
+                    if (fileKey != null && !fileKey.equals(segment.fileKey)) {
+                        Segment oldSegment = segment;
+                        segment = new Segment(filename);
+                        oldSegment.close();
+                        return;
+                    }
+                }
+
+                // Another process may be in the middle of writing the record at the end of
+                // what is read, so the scan picks up from there the next time
+                if (segment.channel.size() > segment.writeOffset.get()) {
+                    segment.scan(false);
+                }
+            }
+            catch (IOException ex) {
+                logger.error("Failed to refresh domain state from {}", filename, ex);
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        }
+        else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0)
+            return null;
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            offset += channel.write(buffer, offset);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, offset);
+            if (n < 0)
+                throw new EOFException();
+            offset += n;
+        }
+        buffer.flip();
+    }
+
+    /** An open log file and its index */
+    private static class Segment implements AutoCloseable {
+        final FileChannel channel;
+        final Object fileKey;
+
+        /** The exclusive lock of the writer, if this is the segment of the writing store */
+        private FileLock lock;
+
+        /** Offset of the latest summary, meta and icon record of each domain, negated if the domain
+         * was deleted after it, by the hash of the domain name.  Each is null until it is loaded. */
+        private final Long2LongOpenHashMap[] indexes = new Long2LongOpenHashMap[INDEXED_TYPES.length];
+
+        /** The end of the valid records in the file, where the next record will be written */
+        final AtomicLong writeOffset = new AtomicLong(MAGIC.length);
+
+        Segment(Path filename) throws IOException {
+            channel = FileChannel.open(filename, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+            try {
+                if (channel.size() == 0) {
+                    writeFully(channel, ByteBuffer.wrap(MAGIC), 0);
+                }
+                else {
+                    ByteBuffer header = ByteBuffer.allocate(MAGIC.length);
+                    readFully(channel, header, 0);
+                    if (!Arrays.equals(header.array(), MAGIC)) {
+                        throw new IOException("Not a domain state log: " + filename);
+                    }
+                }
+
+                fileKey = Files.readAttributes(filename, BasicFileAttributes.class).fileKey();
+
+                scan(true);
+            }
+            catch (IOException ex) {
+                channel.close();
+                throw ex;
+            }
+        }
+
+        /** Take the exclusive lock on the file, which is held until the file is closed
+         *
+         * @return false if another process holds the lock
+         */
+        boolean tryLock() throws IOException {
+            try {
+                return lock != null || (lock = channel.tryLock()) != null;
+            }
+            catch (OverlappingFileLockException ex) {
+                // Held by another store in this process
+                return false;
+            }
+        }
+
+        /** Index the records from writeOffset to the end of the file, stopping at the first
+         * incomplete or corrupt record.
+         *
+         * @param skipHoles whether to skip past zeroed holes left by writes that failed, to
+         *                  the records after them, rather than stopping at the hole
+         */
+        synchronized void scan(boolean skipHoles) throws IOException {
+            writeOffset.set(forEachRecord(writeOffset.get(), channel.size(), skipHoles, this::index));
+        }
+
+        /** Visit the records from the offset up to the end, stopping at the first incomplete
+         * or corrupt record, and skipping zeroed holes if skipHoles is set.
+         *
+         * @return the offset past the last record visited
+         */
+        private long forEachRecord(long offset, long size, boolean skipHoles, RecordVisitor visitor) throws IOException {
+            while (offset + RECORD_HEADER_SIZE <= size) {
+                long length = validRecordLength(offset, size);
+
+                if (length < 0 && skipHoles && isZeroedHeader(offset)) {
+                    long next = findRecordAfterHole(offset, size);
+                    if (next < 0)
+                        break;
+
+                    logger.warn("Skipping {} zeroed bytes at {}", next - offset, offset);
+                    offset = next;
+                    continue;
+                }
+
+                if (length < 0)
+                    break;
+
+                ByteBuffer body = ByteBuffer.allocate((int) length - RECORD_HEADER_SIZE);
+                readFully(channel, body, offset + RECORD_HEADER_SIZE);
+
+                byte type = body.get();
+                byte[] keyBytes = new byte[body.getShort() & 0xFFFF];
+                body.get(keyBytes);
+
+                visitor.visit(type, new String(keyBytes, StandardCharsets.UTF_8), offset);
+
+                offset += length;
+            }
+
+            return offset;
+        }
+
+        /** The length of the record at the offset if it is complete and intact, or else -1 */
+        private long validRecordLength(long offset, long size) throws IOException {
+            if (offset + RECORD_HEADER_SIZE > size)
+                return -1;
+
+            ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            readFully(channel, recordHeader, offset);
+
+            int bodyLength = recordHeader.getInt();
+            int crc = recordHeader.getInt();
+
+            if (bodyLength < 3 || offset + RECORD_HEADER_SIZE + bodyLength > size)
+                return -1;
+
+            ByteBuffer body = ByteBuffer.allocate(bodyLength);
+            readFully(channel, body, offset + RECORD_HEADER_SIZE);
+
+            CRC32 crc32 = new CRC32();
+            crc32.update(body.array());
+            if ((int) crc32.getValue() != crc)
+                return -1;
+
+            return RECORD_HEADER_SIZE + bodyLength;
+        }
+
+        private boolean isZeroedHeader(long offset) throws IOException {
+            ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            readFully(channel, recordHeader, offset);
+
+            return recordHeader.getLong() == 0;
+        }
+
+        /** Find the first record after the zeroed hole at the offset.  The record starts with
+         * its length, whose leading bytes may be zero, so the record is at most three bytes
+         * before the first non-zero byte.
+         *
+         * @return the offset of the record, or -1 if the hole runs to the end of the file or
+         *         isn't followed by an intact record
+         */
+        private long findRecordAfterHole(long offset, long size) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(8192);
+
+            long pos = offset;
+            long firstNonZero = -1;
+
+            while (pos < size && firstNonZero < 0) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), size - pos));
+                readFully(channel, buffer, pos);
+
+                while (buffer.hasRemaining()) {
+                    if (buffer.get() != 0) {
+                        firstNonZero = pos + buffer.position() - 1;
+                        break;
+                    }
+                }
+
+                pos += buffer.limit();
+            }
+
+            if (firstNonZero < 0)
+                return -1;
+
+            for (long candidate = Math.max(offset, firstNonZero - 3); candidate <= firstNonZero; candidate++) {
+                if (validRecordLength(candidate, size) > 0)
+                    return candidate;
+            }
+
+            return -1;
+        }
+
+        /** Add the record to the indexes that have been loaded; the others pick it up
+         * from the file when they are loaded */
+        synchronized void index(byte type, String key, long offset) {
+            index(indexes, type, key, offset);
+        }
+
+        /** Add the record to the non-null indexes among those given, by the slot of their type */
+        private static void index(Long2LongOpenHashMap[] indexes, byte type, String key, long offset) {
+            switch (type) {
+                case TYPE_SUMMARY, TYPE_META, TYPE_ICON -> putLatest(indexes[slot(type)], hash(key), offset);
+                case TYPE_DELETE -> {
+                    long hash = hash(key);
+                    for (var index : indexes) {
+                        putLatest(index, hash, -offset);
+                    }
+                }
+                case TYPE_PADDING -> {}
+                default -> logger.warn("Unknown record type {} for {}", type, key);
+            }
+        }
+
+        /** Concurrent writers may index their records out of order, so keep whichever
+         * record is furthest into the file */
+        private static void putLatest(Long2LongOpenHashMap index, long hash, long offset) {
+            if (index == null)
+                return;
+
+            long current = index.get(hash);
+            if (current == 0 || Math.abs(offset) > Math.abs(current)) {
+                index.put(hash, offset);
+            }
+        }
+
+        /** The offset of the latest record of the type for the key, negated if the key was
+         * deleted after it, or 0 if there is none.  The record may belong to another key
+         * with the same hash. */
+        synchronized long offset(byte type, String key) throws IOException {
+            return index(type).get(hash(key));
+        }
+
+        /** Load the indexes of all the record types */
+        synchronized void loadIndexes() throws IOException {
+            load(INDEXED_TYPES);
+        }
+
+        /** The index of the record type, which is loaded the first time it is needed */
+        private Long2LongOpenHashMap index(byte type) throws IOException {
+            if (indexes[slot(type)] == null) {
+                load(type);
+            }
+            return indexes[slot(type)];
+        }
+
+        /** Build the indexes of the record types that aren't loaded, in one pass over the
+         * records scanned so far */
+        private void load(byte... types) throws IOException {
+            var loaded = new Long2LongOpenHashMap[INDEXED_TYPES.length];
+            boolean anyMissing = false;
+
+            for (byte type : types) {
+                if (indexes[slot(type)] == null) {
+                    loaded[slot(type)] = new Long2LongOpenHashMap();
+                    anyMissing = true;
+                }
+            }
+
+            if (!anyMissing)
+                return;
+
+            forEachRecord(MAGIC.length, writeOffset.get(), true,
+                    (type, key, offset) -> index(loaded, type, key, offset));
+
+            for (int slot = 0; slot < loaded.length; slot++) {
+                if (loaded[slot] != null) {
+                    indexes[slot] = loaded[slot];
+                }
+            }
+        }
+
+        private static int slot(byte type) {
+            return type - TYPE_SUMMARY;
+        }
+
+        private static long hash(String key) {
+            return hasher.hashNearlyASCII(key);
+        }
+
+        /** Offsets of the live records of the type, in file order */
+        synchronized long[] liveOffsets(byte type) throws IOException {
+            return Arrays.stream(index(type).values().toLongArray())
+                    .filter(offset -> offset > 0)
+                    .sorted()
+                    .toArray();
+        }
+
+        /** Offsets of all live records, in file order */
+        synchronized long[] liveOffsets() throws IOException {
+            LongStream offsets = LongStream.empty();
+            for (byte type : INDEXED_TYPES) {
+                offsets = LongStream.concat(offsets, Arrays.stream(liveOffsets(type)));
+            }
+            return offsets.sorted().toArray();
+        }
+
+        long recordLength(long offset) throws IOException {
+            ByteBuffer recordHeader = ByteBuffer.allocate(4);
+            readFully(channel, recordHeader, offset);
+            return RECORD_HEADER_SIZE + recordHeader.getInt();
+        }
+
+        /** Read the key of the record at the offset, and open a stream over its payload */
+        StoredRecord readRecord(long offset) throws IOException {
+            ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            readFully(channel, recordHeader, offset);
+
+            ByteBuffer body = ByteBuffer.allocate(recordHeader.getInt());
+            readFully(channel, body, offset + RECORD_HEADER_SIZE);
+
+            body.get(); // type
+            int keyLength = body.getShort() & 0xFFFF;
+            String key = new String(body.array(), body.position(), keyLength, StandardCharsets.UTF_8);
+            body.position(body.position() + keyLength);
+
+            return new StoredRecord(key,
+                    new DataInputStream(new ByteArrayInputStream(body.array(), body.position(), body.remaining())));
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package nu.marginalia.crawl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+
+/** The original sqlite backend for the {@link DomainStateDb}.  All writers share one
+ * connection, and are serialized on the database lock.
+ */
+class SqliteDomainStateStore implements DomainStateStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(SqliteDomainStateStore.class);
+
+    private final Connection connection;
+
+    SqliteDomainStateStore(Path filename) throws SQLException {
+        String sqliteDbString = "jdbc:sqlite:" + filename.toString();
+        connection = DriverManager.getConnection(sqliteDbString);
+
+        try (var stmt = connection.createStatement()) {
+            stmt.executeUpdate("""
+                    CREATE TABLE IF NOT EXISTS summary (
+                        domain TEXT PRIMARY KEY,
+                        lastUpdatedEpochMs LONG NOT NULL,
+                        state TEXT NOT NULL,
+                        stateDesc TEXT,
+                        feedUrl TEXT
+                    )
+                    """);
+            stmt.executeUpdate("""
+                    CREATE TABLE IF NOT EXISTS crawl_meta (
+                        domain TEXT PRIMARY KEY,
+                        lastFullCrawlEpochMs LONG NOT NULL,
+                        recrawlTimeMs LONG NOT NULL,
+                        recrawlErrors INTEGER NOT NULL,
+                        crawlTimeMs LONG NOT NULL,
+                        crawlChanges INTEGER NOT NULL,
+                        totalCrawlSize INTEGER NOT NULL
+                    )
+                    """);
+            stmt.executeUpdate("""
+                    CREATE TABLE IF NOT EXISTS favicon (
+                        domain TEXT PRIMARY KEY,
+                        contentType TEXT NOT NULL,
+                        icon BLOB NOT NULL
+                    )
+                    """);
+            stmt.execute("PRAGMA journal_mode=WAL");
+        }
+    }
+
+    @Override
+    public void close() throws SQLException {
+        connection.close();
+    }
+
+    @Override
+    public void saveIcon(String domain, DomainStateDb.FaviconRecord faviconRecord) {
+        try (var stmt = connection.prepareStatement("""
+                INSERT OR REPLACE INTO favicon (domain, contentType, icon)
+                       VALUES(?, ?, ?)
+            """)) {
+            stmt.setString(1, domain);
+            stmt.setString(2, Objects.requireNonNullElse(faviconRecord.contentType(), "application/octet-stream"));
+            stmt.setBytes(3, faviconRecord.imageData());
+            stmt.executeUpdate();
+        }
+        catch (SQLException ex) {
+            logger.error("Failed to insert favicon", ex);
+        }
+    }
+
+    @Override
+    public Optional<DomainStateDb.FaviconRecord> getIcon(String domain) {
+        try (var stmt = connection.prepareStatement("SELECT contentType, icon FROM favicon WHERE DOMAIN = ?")) {
+            stmt.setString(1, domain);
+            var rs = stmt.executeQuery();
+
+            if (rs.next()) {
+                return Optional.of(
+                    new DomainStateDb.FaviconRecord(
+                        rs.getString("contentType"),
+                        rs.getBytes("icon")
+                    )
+                );
+            }
+        } catch (SQLException e) {
+            logger.error("Failed to retrieve favicon", e);
+        }
+
+        return Optional.empty();
+    }
+
+    @Override
+    public void save(DomainStateDb.CrawlMeta crawlMeta) {
+        try (var stmt = connection.prepareStatement("""
+                INSERT OR REPLACE INTO crawl_meta (domain, lastFullCrawlEpochMs, recrawlTimeMs, recrawlErrors, crawlTimeMs, crawlChanges, totalCrawlSize)
+                VALUES (?, ?, ?, ?, ?, ?, ?)
+                """)) {
+            stmt.setString(1, crawlMeta.domainName());
+            stmt.setLong(2, crawlMeta.lastFullCrawl().toEpochMilli());
+            stmt.setLong(3, crawlMeta.recrawlTime().toMillis());
+            stmt.setInt(4, crawlMeta.recrawlErrors());
+            stmt.setLong(5, crawlMeta.crawlTime().toMillis());
+            stmt.setInt(6, crawlMeta.crawlChanges());
+            stmt.setInt(7, crawlMeta.totalCrawlSize());
+            stmt.executeUpdate();
+        } catch (SQLException e) {
+            logger.error("Failed to insert crawl meta record", e);
+        }
+    }
+
+    @Override
+    public void save(DomainStateDb.SummaryRecord record) {
+        try (var stmt = connection.prepareStatement("""
+                INSERT OR REPLACE INTO summary (domain, lastUpdatedEpochMs, state, stateDesc, feedUrl)
+                VALUES (?, ?, ?, ?, ?)
+                """)) {
+            stmt.setString(1, record.domainName());
+            stmt.setLong(2, record.lastUpdated().toEpochMilli());
+            stmt.setString(3, record.state());
+            stmt.setString(4, record.stateDesc());
+            stmt.setString(5, record.feedUrl());
+            stmt.executeUpdate();
+        } catch (SQLException e) {
+            logger.error("Failed to insert summary record", e);
+        }
+    }
+
+    @Override
+    public Map<String, Long> getLastFullCrawlTimes() {
+        Map<String, Long> lastCrawlTimes = new HashMap<>();
+
+        try (var stmt = connection.prepareStatement("SELECT domain, lastFullCrawlEpochMs FROM crawl_meta")) {
+            var rs = stmt.executeQuery();
+            while (rs.next()) {
+                lastCrawlTimes.put(rs.getString("domain"), rs.getLong("lastFullCrawlEpochMs"));
+            }
+        } catch (SQLException ex) {
+            logger.error("Failed to read last full crawl times", ex);
+        }
+
+        return lastCrawlTimes;
+    }
+
+    @Override
+    public void deleteDomain(String domainName) {
+        try (var stmt = connection.prepareStatement("DELETE FROM crawl_meta WHERE domain = ?")) {
+            stmt.setString(1, domainName);
+            stmt.executeUpdate();
+        } catch (SQLException ex) {
+            logger.error("Failed to delete crawl_meta state for {}", domainName, ex);
+        }
+
+        try (var stmt = connection.prepareStatement("DELETE FROM summary WHERE domain = ?")) {
+            stmt.setString(1, domainName);
+            stmt.executeUpdate();
+        } catch (SQLException ex) {
+            logger.error("Failed to delete summary state for {}", domainName, ex);
+        }
+
+        try (var stmt = connection.prepareStatement("DELETE FROM favicon WHERE domain = ?")) {
+            stmt.setString(1, domainName);
+            stmt.executeUpdate();
+        } catch (SQLException ex) {
+            logger.error("Failed to delete favicon state for {}", domainName, ex);
+        }
+    }
+
+    @Override
+    public Optional<DomainStateDb.CrawlMeta> getMeta(String domainName) {
+        try (var stmt = connection.prepareStatement("""
+                SELECT domain, lastFullCrawlEpochMs, recrawlTimeMs, recrawlErrors, crawlTimeMs, crawlChanges, totalCrawlSize
+                FROM crawl_meta
+                WHERE domain = ?
+                """)) {
+            stmt.setString(1, domainName);
+            var rs = stmt.executeQuery();
+            if (rs.next()) {
+                return Optional.of(new DomainStateDb.CrawlMeta(
+                        rs.getString("domain"),
+                        Instant.ofEpochMilli(rs.getLong("lastFullCrawlEpochMs")),
+                        Duration.ofMillis(rs.getLong("recrawlTimeMs")),
+                        Duration.ofMillis(rs.getLong("crawlTimeMs")),
+                        rs.getInt("recrawlErrors"),
+                        rs.getInt("crawlChanges"),
+                        rs.getInt("totalCrawlSize")
+                ));
+            }
+        } catch (SQLException ex) {
+            logger.error("Failed to get crawl meta record", ex);
+        }
+        return Optional.empty();
+    }
+
+    @Override
+    public Optional<DomainStateDb.SummaryRecord> getSummary(String domainName) {
+        try (var stmt = connection.prepareStatement("""
+                SELECT domain, lastUpdatedEpochMs, state, stateDesc, feedUrl
+                FROM summary
+                WHERE domain = ?
+                """)) {
+            stmt.setString(1, domainName);
+            var rs = stmt.executeQuery();
+            if (rs.next()) {
+                return Optional.of(new DomainStateDb.SummaryRecord(
+                        rs.getString("domain"),
+                        Instant.ofEpochMilli(rs.getLong("lastUpdatedEpochMs")),
+                        rs.getString("state"),
+                        rs.getString("stateDesc"),
+                        rs.getString("feedUrl")
+                ));
+            }
+        } catch (SQLException e) {
+            logger.error("Failed to get summary record", e);
+        }
+
+        return Optional.empty();
+    }
+
+    /** Copy all records to another store */
+    void copyTo(DomainStateStore destination) throws SQLException {
+        try (var stmt = connection.prepareStatement("SELECT domain FROM summary")) {
+            var rs = stmt.executeQuery();
+            while (rs.next()) {
+                getSummary(rs.getString(1)).ifPresent(destination::save);
+            }
+        }
+        try (var stmt = connection.prepareStatement("SELECT domain FROM crawl_meta")) {
+            var rs = stmt.executeQuery();
+            while (rs.next()) {
+                getMeta(rs.getString(1)).ifPresent(destination::save);
+            }
+        }
+        try (var stmt = connection.prepareStatement("SELECT domain FROM favicon")) {
+            var rs = stmt.executeQuery();
+            while (rs.next()) {
+                String domain = rs.getString(1);
+                getIcon(domain).ifPresent(icon -> destination.saveIcon(domain, icon));
+            }
+        }
+    }
+}
@@ -0,0 +1,455 @@
+package nu.marginalia.crawl.fetcher;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import crawlercommons.robots.SimpleRobotRules;
+import crawlercommons.robots.SimpleRobotRulesParser;
+import io.prometheus.metrics.core.metrics.Counter;
+import io.prometheus.metrics.core.metrics.Gauge;
+import io.prometheus.metrics.core.metrics.Histogram;
+import nu.marginalia.UserAgent;
+import nu.marginalia.crawl.fetcher.warc.WarcRecorder;
+import nu.marginalia.crawl.retreival.CrawlDelayTimer;
+import nu.marginalia.link_parser.LinkParser;
+import nu.marginalia.model.EdgeUrl;
+import nu.marginalia.model.body.ContentTypeLogic;
+import nu.marginalia.model.body.DocumentBodyExtractor;
+import nu.marginalia.model.body.HttpFetchResult;
+import nu.marginalia.proxy.SocksProxyConfiguration;
+import nu.marginalia.proxy.SocksProxyManager;
+import org.apache.hc.client5.http.async.methods.SimpleHttpRequest;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.async.methods.SimpleRequestBuilder;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.cookie.BasicCookieStore;
+import org.apache.hc.client5.http.cookie.CookieStore;
+import org.apache.hc.client5.http.cookie.StandardCookieSpec;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManager;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManagerBuilder;
+import org.apache.hc.client5.http.ssl.DefaultClientTlsStrategy;
+import org.apache.hc.core5.http.HttpException;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.pool.PoolStats;
+import org.apache.hc.core5.reactor.IOReactorConfig;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.net.ssl.SSLContext;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/** HttpFetcher based on the async HttpClient, as an alternative to {@link HttpFetcherImpl}.
+ * <p></p>
+ * The requests are multiplexed over a small number of I/O reactor threads, and response bodies
+ * are streamed into the WARC recorder's buffers as they arrive, so the crawler threads only wait
+ * for the exchanges to complete, rather than each holding a socket and reading from it.  This is
+ * most effective together with virtual threads (crawler.useVirtualThreads).
+ * <p></p>
+ * The crawl delay, robots.txt, cookie, retry and redirect handling is the same as for HttpFetcherImpl.
+ * It's enabled for a crawl with -Dcrawler.asyncFetcher=true.  The number of I/O threads is configured
+ * with crawler.asyncIoThreads.
+ */
+@Singleton
+public class AsyncHttpFetcherImpl implements HttpFetcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(AsyncHttpFetcherImpl.class);
+    private final String userAgentString;
+    private final String userAgentIdentifier;
+
+    private final CookieStore cookies = new BasicCookieStore();
+    private final SocksProxyManager proxyManager;
+
+    private static final SimpleRobotRulesParser robotsParser = new SimpleRobotRulesParser();
+    private final ContentTypeLogic contentTypeLogic = new ContentTypeLogic();
+
+    @Nullable // in tests
+    private final CrawlerAuditLog auditLog;
+
+    private final LinkParser linkParser = new LinkParser();
+
+    private final CloseableHttpAsyncClient client;
+    private PoolingAsyncClientConnectionManager connectionManager;
+
+    private static final Duration requestTimeLimit = Duration.ofSeconds(30);
+
+    private static final Gauge metric_fetch_in_flight = Gauge.builder()
+            .name("crawler_fetch_in_flight")
+            .help("Number of requests in flight in the async fetcher")
+            .register();
+    private static final Gauge metric_fetch_connections = Gauge.builder()
+            .name("crawler_fetch_connections")
+            .help("Number of connections leased from the async fetcher's connection pool")
+            .register();
+    private static final Counter metric_fetch_bytes = Counter.builder()
+            .name("crawler_fetch_bytes")
+            .help("Number of response body bytes fetched by the async fetcher")
+            .register();
+    private static final Histogram metric_fetch_time = Histogram.builder()
+            .name("crawler_fetch_time")
+            .classicLinearUpperBounds(0.25, 0.25, 40)
+            .help("Time spent on requests in the async fetcher, in seconds")
+            .register();
+
+    @Inject
+    public AsyncHttpFetcherImpl(UserAgent userAgent, CrawlerAuditLog auditLog)
+    {
+        this(userAgent.uaString(), userAgent.uaIdentifier(), auditLog);
+    }
+
+    public AsyncHttpFetcherImpl(UserAgent userAgent) {
+        this(userAgent.uaString(), userAgent.uaIdentifier(), null);
+    }
+
+    private AsyncHttpFetcherImpl(String userAgentString, String userAgentIdentifier, @Nullable CrawlerAuditLog auditLog) {
+        this.proxyManager = new SocksProxyManager(new SocksProxyConfiguration());
+        try {
+            this.client = createClient();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        this.userAgentString = userAgentString;
+        this.userAgentIdentifier = userAgentIdentifier;
+        this.auditLog = auditLog;
+    }
+
+    private CloseableHttpAsyncClient createClient() throws NoSuchAlgorithmException {
+        final int socketTimeout = Integer.getInteger("crawler.socketTimeout", 10);
+
+        final ConnectionConfig connectionConfig = ConnectionConfig.custom()
+                .setSocketTimeout(socketTimeout, TimeUnit.SECONDS)
+                .setConnectTimeout(Integer.getInteger("crawler.connectTimeout", 30), TimeUnit.SECONDS)
+                .setValidateAfterInactivity(TimeValue.ofSeconds(5))
+                .build();
+
+        connectionManager = PoolingAsyncClientConnectionManagerBuilder.create()
+                .setMaxConnPerRoute(10)
+                .setMaxConnTotal(5000)
+                .setDefaultConnectionConfig(connectionConfig)
+                .setTlsStrategy(new DefaultClientTlsStrategy(SSLContext.getDefault()))
+                .build();
+
+        IOReactorConfig.Builder ioReactorConfig = IOReactorConfig.custom()
+                .setSoTimeout(Timeout.ofSeconds(socketTimeout))
+                .setIoThreadCount(Integer.getInteger("crawler.asyncIoThreads", Runtime.getRuntime().availableProcessors()));
+
+        // The I/O reactor is shared by all connections, so unlike the blocking client,
+        // a single proxy is selected for the lifetime of the client
+        if (proxyManager.isProxyEnabled()) {
+            SocksProxyConfiguration.SocksProxy selectedProxy = proxyManager.selectProxy();
+            ioReactorConfig.setSocksProxyAddress(new InetSocketAddress(selectedProxy.getHost(), selectedProxy.getPort()));
+        }
+
+        final RequestConfig defaultRequestConfig = RequestConfig.custom()
+                .setCookieSpec(StandardCookieSpec.RELAXED)
+                .setResponseTimeout(Integer.getInteger("crawler.responseTimeout", 10), TimeUnit.SECONDS)
+                .setConnectionRequestTimeout(Integer.getInteger("crawler.connectionRequestTimeout", 5), TimeUnit.MINUTES)
+                .build();
+
+        var client = HttpAsyncClients.custom()
+                .setDefaultCookieStore(cookies)
+                .setConnectionManager(connectionManager)
+                .setIOReactorConfig(ioReactorConfig.build())
+                .setRetryStrategy(new CrawlerRetryStrategy())
+                // Same as the blocking client, we're either going to re-use the connection
+                // fairly quickly or close it for a long time
+                .setKeepAliveStrategy((response, context) -> TimeValue.ofSeconds(30))
+                .disableRedirectHandling()
+                .setDefaultRequestConfig(defaultRequestConfig)
+                .build();
+
+        client.start();
+
+        return client;
+    }
+
+    public PoolStats getPoolStats() {
+        return connectionManager.getTotalStats();
+    }
+
+    @Override
+    public void setAllowAllContentTypes(boolean allowAllContentTypes) {
+        contentTypeLogic.setAllowAllContentTypes(allowAllContentTypes);
+    }
+
+    @Override
+    public CookieStore getCookies() {
+        return cookies;
+    }
+
+    @Override
+    public void clearCookies() {
+        cookies.clear();
+    }
+
+    @Override
+    public void close() {
+        client.close(CloseMode.GRACEFUL);
+    }
+
+    /** Send a request and wait for the response, which is buffered in memory.  This is
+     * used for the small requests that are not recorded in the WARC file. */
+    private SimpleHttpResponse send(SimpleHttpRequest request) throws IOException, InterruptedException {
+        Instant start = Instant.now();
+        metric_fetch_in_flight.inc();
+
+        try (var sl = new SendLock()) {
+            var future = client.execute(request, null);
+
+            try {
+                SimpleHttpResponse response = future.get(requestTimeLimit.toMillis(), TimeUnit.MILLISECONDS);
+
+                byte[] body = response.getBodyBytes();
+                if (body != null) {
+                    metric_fetch_bytes.inc(body.length);
+                }
+
+                return response;
+            }
+            catch (TimeoutException ex) {
+                future.cancel(true);
+                throw new SocketTimeoutException("Timeout fetching " + request.getRequestUri());
+            }
+            catch (ExecutionException ex) {
+                if (ex.getCause() instanceof IOException ioe) throw ioe;
+                throw new IOException(ex.getCause());
+            }
+        }
+        finally {
+            metric_fetch_in_flight.dec();
+            metric_fetch_connections.set(connectionManager.getTotalStats().getLeased());
+            metric_fetch_time.observe(Duration.between(start, Instant.now()).toMillis() / 1000.);
+        }
+    }
+
+    /**
+     * Probe the domain to see if it is reachable, attempting to identify which schema to use,
+     * and if there are any redirects.  This is done by one or more HEAD requests.
+     *
+     * @param url The URL to probe.
+     * @return The result of the probe, indicating the state and the URL.
+     */
+    @Override
+    public DomainProbeResult probeDomain(EdgeUrl url) {
+        return HttpProbeLogic.probeDomain(url, linkParser, (probeUrl, rangedGet) -> {
+            var builder = rangedGet ? SimpleRequestBuilder.get(probeUrl.asURI()) : SimpleRequestBuilder.head(probeUrl.asURI());
+
+            builder.addHeader("User-Agent", userAgentString)
+                   .addHeader("Accept-Encoding", "gzip");
+            if (rangedGet) {
+                builder.addHeader("Range", "bytes=0-255");
+            }
+
+            return send(builder.build());
+        });
+    }
+
+    /** Perform a HEAD request to fetch the content type of a URL.
+     * If the content type is not allowed, flag the URL as a failed
+     * content type probe.
+     */
+    public ContentTypeProbeResult probeContentType(EdgeUrl url,
+                                                   DomainCookies cookies,
+                                                   CrawlDelayTimer timer,
+                                                   ContentTags tags) {
+        if (!tags.isEmpty() || !contentTypeLogic.isUrlLikeBinary(url)) {
+            return new ContentTypeProbeResult.NoOp();
+        }
+
+        try {
+            SimpleHttpRequest head = SimpleRequestBuilder.head(url.asURI())
+                    .addHeader("User-Agent", userAgentString)
+                    .addHeader("Accept-Encoding", "gzip")
+                    .build();
+
+            cookies.paintRequest(head);
+
+            var rsp = send(head);
+            cookies.updateCookieStore(rsp);
+
+            return HttpProbeLogic.interpretContentTypeProbe(url, rsp, linkParser, contentTypeLogic);
+        }
+        catch (SocketTimeoutException ex) {
+            return new ContentTypeProbeResult.Timeout(ex);
+        }
+        catch (Exception ex) {
+            logger.error("Error during fetching {}[{}]", ex.getClass().getSimpleName(), ex.getMessage());
+            return new ContentTypeProbeResult.Exception(ex);
+        }
+        finally {
+            timer.waitFetchDelay();
+        }
+    }
+
+    /** Fetch the content of a URL, and record it in a WARC file,
+     * returning a result object that can be used to determine
+     * the outcome of the fetch.
+     */
+    @Override
+    public HttpFetchResult fetchContent(EdgeUrl url,
+                                        WarcRecorder warcRecorder,
+                                        DomainCookies cookies,
+                                        CrawlDelayTimer timer,
+                                        ContentTags contentTags,
+                                        ProbeType probeType)
+    {
+        try {
+            if (probeType == HttpFetcher.ProbeType.FULL) {
+                try {
+                    var probeResult = probeContentType(url, cookies, timer, contentTags);
+
+                    if (auditLog != null)
+                        auditLog.logProbe(probeResult, url);
+
+                    switch (probeResult) {
+                        case HttpFetcher.ContentTypeProbeResult.NoOp():
+                            break;
+                        case HttpFetcher.ContentTypeProbeResult.Ok(EdgeUrl resolvedUrl):
+                            url = resolvedUrl; // If we were redirected while probing, use the final URL for fetching
+                            break;
+                        case ContentTypeProbeResult.BadContentType badContentType:
+                            warcRecorder.flagAsFailedContentTypeProbe(url, badContentType.contentType(), badContentType.statusCode());
+                            return new HttpFetchResult.ResultNone();
+                        case ContentTypeProbeResult.BadContentType.Timeout(Exception ex):
+                            warcRecorder.flagAsTimeout(url);
+                            return new HttpFetchResult.ResultException(ex);
+                        case ContentTypeProbeResult.Exception(Exception ex):
+                            warcRecorder.flagAsError(url, ex);
+                            return new HttpFetchResult.ResultException(ex);
+                        case ContentTypeProbeResult.HttpError httpError:
+                            return new HttpFetchResult.ResultException(new HttpException("HTTP status code " + httpError.statusCode() + ": " + httpError.message()));
+                        case ContentTypeProbeResult.Redirect redirect:
+                            return new HttpFetchResult.ResultRedirect(redirect.location());
+                    }
+                } catch (Exception ex) {
+                    logger.warn("Failed to fetch {}", url, ex);
+                    return new HttpFetchResult.ResultException(ex);
+                }
+            }
+
+            SimpleHttpRequest request = SimpleRequestBuilder.get(url.asURI())
+                    .addHeader("User-Agent", userAgentString)
+                    .addHeader("Accept-Encoding", "gzip")
+                    .addHeader("Accept-Language", "en,*;q=0.5")
+                    .addHeader("Accept", "text/html, application/xhtml+xml, text/*;q=0.8")
+                    .build();
+
+            contentTags.paint(request);
+
+            Instant start = Instant.now();
+            metric_fetch_in_flight.inc();
+
+            try (var sl = new SendLock()) {
+                HttpFetchResult result = warcRecorder.fetch(client, cookies, request, requestTimeLimit);
+
+                Duration fetchDuration = Duration.between(start, Instant.now());
+
+                if (result instanceof HttpFetchResult.ResultOk ok) {
+                    metric_fetch_bytes.inc(ok.byteLength());
+
+                    if (ok.statusCode() == 304) {
+                        result = new HttpFetchResult.Result304Raw();
+                    }
+                }
+
+                if (auditLog != null)
+                    auditLog.logFetch(result, url, fetchDuration);
+
+                return result;
+            }
+            finally {
+                metric_fetch_in_flight.dec();
+                metric_fetch_connections.set(connectionManager.getTotalStats().getLeased());
+                metric_fetch_time.observe(Duration.between(start, Instant.now()).toMillis() / 1000.);
+            }
+        }
+        catch (Exception ex) {
+            if (auditLog != null)
+                auditLog.logFetch(new HttpFetchResult.ResultException(ex), url, Duration.ZERO);
+
+            return new HttpFetchResult.ResultException(ex);
+        }
+    }
+
+    @Override
+    public SitemapRetriever createSitemapRetriever() {
+        return new SitemapRetriever();
+    }
+
+    /** Recursively fetch sitemaps */
+    @Override
+    public List<EdgeUrl> fetchSitemapUrls(String root, CrawlDelayTimer delayTimer) {
+        return HttpFetcherImpl.fetchSitemapUrls(root, delayTimer, this::fetchSingleSitemap);
+    }
+
+    private HttpFetcherImpl.SitemapResult fetchSingleSitemap(EdgeUrl sitemapUrl) {
+        try {
+            SimpleHttpRequest getRequest = SimpleRequestBuilder.get(sitemapUrl.asURI())
+                    .addHeader("User-Agent", userAgentString)
+                    .addHeader("Accept-Encoding", "gzip")
+                    .addHeader("Accept", "text/*, */*;q=0.9")
+                    .build();
+
+            var response = send(getRequest);
+
+            if (response.getCode() != 200 || response.getBodyBytes() == null) {
+                return new HttpFetcherImpl.SitemapResult.SitemapError();
+            }
+
+            return HttpFetcherImpl.parseSitemap(new ByteArrayInputStream(response.getBodyBytes()),
+                    response.getFirstHeader("Content-Encoding"),
+                    sitemapUrl);
+        }
+        catch (Exception ex) {
+            logger.warn("Error while fetching sitemap {}: {} ({})", sitemapUrl, ex.getClass().getSimpleName(), ex.getMessage());
+            return new HttpFetcherImpl.SitemapResult.SitemapError();
+        }
+    }
+
+    @Override
+    public SimpleRobotRules fetchRobotRules(EdgeUrl rootUrl, WarcRecorder recorder) {
+        var ret = fetchAndParseRobotsTxt(rootUrl.withPathAndParam("/robots.txt", null), recorder);
+        if (ret.isPresent())
+            return ret.get();
+
+        return new SimpleRobotRules(SimpleRobotRules.RobotRulesMode.ALLOW_ALL);
+    }
+
+    private Optional<SimpleRobotRules> fetchAndParseRobotsTxt(EdgeUrl url, WarcRecorder recorder) {
+        try (var sl = new SendLock()) {
+
+            SimpleHttpRequest request = SimpleRequestBuilder.get(url.asURI())
+                    .addHeader("User-Agent", userAgentString)
+                    .addHeader("Accept-Encoding", "gzip")
+                    .addHeader("Accept", "text/*, */*;q=0.9")
+                    .build();
+
+            HttpFetchResult result = recorder.fetch(client, new DomainCookies(), request, requestTimeLimit);
+
+            return DocumentBodyExtractor.asBytes(result).mapOpt((contentType, body) ->
+                    robotsParser.parseContent(url.toString(),
+                            body,
+                            contentType.toString(),
+                            userAgentIdentifier)
+            );
+        }
+        catch (Exception ex) {
+            return Optional.empty();
+        }
+    }
+}
@@ -1,6 +1,6 @@
 package nu.marginalia.crawl.fetcher;
 
-import org.apache.hc.client5.http.classic.methods.HttpGet;
+import org.apache.hc.core5.http.HttpRequest;
 
 /** Encapsulates request modifiers; the ETag and Last-Modified tags for a resource */
 public record ContentTags(String etag, String lastMod) {
@@ -17,7 +17,7 @@ public record ContentTags(String etag, String lastMod) {
     }
 
     /** Paints the tags onto the request builder. */
-    public void paint(HttpGet request) {
+    public void paint(HttpRequest request) {
 
         // Paint the ETag header if present,
         // otherwise paint the Last-Modified header
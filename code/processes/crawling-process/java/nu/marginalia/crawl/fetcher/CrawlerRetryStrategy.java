@@ -0,0 +1,70 @@
+package nu.marginalia.crawl.fetcher;
+
+import org.apache.hc.client5.http.HttpRequestRetryStrategy;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpRequest;
+import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.util.TimeValue;
+
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+
+/** The retry strategy of the crawler's HTTP clients.  Server errors and
+ * rate limiting are retried a few times, timeouts and TLS errors are not.
+ */
+class CrawlerRetryStrategy implements HttpRequestRetryStrategy {
+
+    @Override
+    public boolean retryRequest(HttpRequest request, IOException exception, int executionCount, HttpContext context) {
+        return switch (exception) {
+            case SocketTimeoutException ste -> false;
+            case SSLException ssle -> false;
+            case UnknownHostException uhe -> false;
+            default -> executionCount <= 3;
+        };
+    }
+
+    @Override
+    public boolean retryRequest(HttpResponse response, int executionCount, HttpContext context) {
+        return switch (response.getCode()) {
+            case 500, 503 -> executionCount <= 2;
+            case 429 -> executionCount <= 3;
+            default -> false;
+        };
+    }
+
+    @Override
+    public TimeValue getRetryInterval(HttpRequest request, IOException exception, int executionCount, HttpContext context) {
+        return TimeValue.ofSeconds(1);
+    }
+
+    @Override
+    public TimeValue getRetryInterval(HttpResponse response, int executionCount, HttpContext context) {
+
+        int statusCode = response.getCode();
+
+        // Give 503 a bit more time
+        if (statusCode == 503) return TimeValue.ofSeconds(5);
+
+        if (statusCode == 429) {
+            // get the Retry-After header
+            Header header = response.getFirstHeader("Retry-After");
+
+            if (header == null) {
+                return TimeValue.ofSeconds(2);
+            }
+
+            String retryAfter = header.getValue();
+
+            int retryAfterTime = HttpFetcherImpl.parseRetryAfterSeconds(retryAfter);
+            if (retryAfterTime > 0) {
+                return TimeValue.ofSeconds(Math.clamp(retryAfterTime, 1, 10));
+            }
+        }
+
+        return TimeValue.ofSeconds(2);
+    }
+}
@@ -1,8 +1,7 @@
 package nu.marginalia.crawl.fetcher;
 
 import org.apache.commons.lang3.StringUtils;
-import org.apache.hc.client5.http.classic.methods.HttpUriRequestBase;
-import org.apache.hc.core5.http.ClassicHttpRequest;
+import org.apache.hc.core5.http.HttpRequest;
 import org.apache.hc.core5.http.HttpResponse;
 
 import java.util.HashMap;
@@ -45,11 +44,7 @@ public class DomainCookies {
         }
     }
 
-    public void paintRequest(HttpUriRequestBase request) {
-        request.addHeader("Cookie", createCookieHeader());
-    }
-
-    public void paintRequest(ClassicHttpRequest request) {
+    public void paintRequest(HttpRequest request) {
         request.addHeader("Cookie", createCookieHeader());
     }
 
@@ -13,7 +13,6 @@ import nu.marginalia.model.EdgeUrl;
 import nu.marginalia.model.body.ContentTypeLogic;
 import nu.marginalia.model.body.DocumentBodyExtractor;
 import nu.marginalia.model.body.HttpFetchResult;
-import nu.marginalia.model.crawldata.CrawlerDomainStatus;
 import nu.marginalia.proxy.SocksProxyConfiguration;
 import nu.marginalia.proxy.SocksProxyManager;
 import org.apache.hc.client5.http.ConnectionKeepAliveStrategy;
@@ -48,14 +47,11 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.zip.GZIPInputStream;
 import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
-import java.net.URISyntaxException;
-import java.net.UnknownHostException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.time.Duration;
@@ -66,7 +62,7 @@ import java.time.format.DateTimeParseException;
 import java.util.*;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 
 
 @Singleton
@@ -234,92 +230,20 @@ public class HttpFetcherImpl implements HttpFetcher, HttpRequestRetryStrategy {
      */
     @Override
     public DomainProbeResult probeDomain(EdgeUrl url) {
-        List<EdgeUrl> urls = new ArrayList<>();
-        urls.add(url);
-
-        int redirects = 0;
-        AtomicBoolean tryGet = new AtomicBoolean(false);
-
-        while (!urls.isEmpty() && ++redirects < 5) {
-            ClassicHttpRequest request;
-
-            EdgeUrl topUrl = urls.removeFirst();
-            try {
-                if (tryGet.get()) {
-                    request = ClassicRequestBuilder.get(topUrl.asURI())
-                                .addHeader("User-Agent", userAgentString)
-                                .addHeader("Accept-Encoding", "gzip")
-                                .addHeader("Range", "bytes=0-255")
-                                .build();
-                } else {
-                    request = ClassicRequestBuilder.head(topUrl.asURI())
-                                .addHeader("User-Agent", userAgentString)
-                                .addHeader("Accept-Encoding", "gzip")
-                                .build();
-                }
-            } catch (URISyntaxException e) {
-                return new DomainProbeResult.Error(CrawlerDomainStatus.ERROR, "Invalid URL");
-            }
-
-            try {
-                var result = SendLock.wrapSend(client, request, response -> {
-                    EntityUtils.consumeQuietly(response.getEntity());
-
-                    return switch (response.getCode()) {
-                        case 200, 206 -> new DomainProbeResult.Ok(url);
-                        case 301, 302, 307 -> {
-                            var location = response.getFirstHeader("Location");
-
-                            if (location != null) {
-                                Optional<EdgeUrl> newUrl = linkParser.parseLink(topUrl, location.getValue());
-                                if (newUrl.isEmpty()) {
-                                    yield new DomainProbeResult.Error(CrawlerDomainStatus.ERROR, "Invalid location header on redirect");
-                                }
-                                EdgeUrl newEdgeUrl = newUrl.get();
-                                if (newEdgeUrl.domain.equals(topUrl.domain)) {
-                                    yield new DomainProbeResult.RedirectSameDomain_Internal(newEdgeUrl);
-                                }
-                                else {
-                                    yield new DomainProbeResult.Redirect(newEdgeUrl.domain);
-                                }
-                            }
+        return HttpProbeLogic.probeDomain(url, linkParser, (probeUrl, rangedGet) -> {
+            var builder = rangedGet ? ClassicRequestBuilder.get(probeUrl.asURI()) : ClassicRequestBuilder.head(probeUrl.asURI());
 
-                            yield new DomainProbeResult.Error(CrawlerDomainStatus.ERROR, "No location header on redirect");
-
-                        }
-                        default -> {
-                            if (!tryGet.get()) {
-                                tryGet.set(true);
-                                yield new DomainProbeResult.RedirectSameDomain_Internal(url);
-                            }
-                            else {
-                                yield new DomainProbeResult.Error(CrawlerDomainStatus.ERROR, "HTTP status " + response.getCode() + ", tried HEAD and GET?!");
-                            }
-                        }
-                    };
-                });
-
-                if (result instanceof DomainProbeResult.RedirectSameDomain_Internal(EdgeUrl redirUrl)) {
-                    urls.add(redirUrl);
-                }
-                else {
-                    return result;
-                }
-
-                // We don't have robots.txt yet, so we'll assume a request delay of 1 second
-                TimeUnit.SECONDS.sleep(1);
-            }
-            catch (SocketTimeoutException ex) {
-                return new DomainProbeResult.Error(CrawlerDomainStatus.ERROR, "Timeout during domain probe");
+            builder.addHeader("User-Agent", userAgentString)
+                   .addHeader("Accept-Encoding", "gzip");
+            if (rangedGet) {
+                builder.addHeader("Range", "bytes=0-255");
             }
-            catch (Exception ex) {
-                return new DomainProbeResult.Error(CrawlerDomainStatus.ERROR, ex.getClass().getSimpleName() + " during domain probe");
-            }
-
-        }
-
-        return new DomainProbeResult.Error(CrawlerDomainStatus.ERROR, "Failed to resolve domain root");
 
+            return SendLock.wrapSend(client, builder.build(), response -> {
+                EntityUtils.consumeQuietly(response.getEntity());
+                return response;
+            });
+        });
     }
 
     /** Perform a HEAD request to fetch the content type of a URL.
@@ -348,42 +272,8 @@ public class HttpFetcherImpl implements HttpFetcher, HttpRequestRetryStrategy {
             return SendLock.wrapSend(client, head, (rsp) -> {
                 cookies.updateCookieStore(rsp);
                 EntityUtils.consumeQuietly(rsp.getEntity());
-                int statusCode = rsp.getCode();
-
-                // Handle redirects
-                if (statusCode == 301 || statusCode == 302 || statusCode == 307) {
-                    var location = rsp.getFirstHeader("Location");
-                    if (location != null) {
-                        Optional<EdgeUrl> newUrl = linkParser.parseLink(url, location.getValue());
-                        if (newUrl.isEmpty())
-                            return new ContentTypeProbeResult.HttpError(statusCode, "Invalid location header on redirect");
-                        return new ContentTypeProbeResult.Redirect(newUrl.get());
-                    }
-                }
 
-                if (statusCode == 405) {
-                    // If we get a 405, we can't probe the content type with HEAD, so we'll just say it's ok
-                    return new ContentTypeProbeResult.Ok(url);
-                }
-
-                // Handle errors
-                if (statusCode < 200 || statusCode > 300) {
-                    return new ContentTypeProbeResult.HttpError(statusCode, "Bad status code");
-                }
-
-                // Handle missing content type
-                var ctHeader = rsp.getFirstHeader("Content-Type");
-                if (ctHeader == null) {
-                    return new ContentTypeProbeResult.HttpError(statusCode, "Missing Content-Type header");
-                }
-                var contentType = ctHeader.getValue();
-
-                // Check if the content type is allowed
-                if (contentTypeLogic.isAllowableContentType(contentType)) {
-                    return new ContentTypeProbeResult.Ok(url);
-                } else {
-                    return new ContentTypeProbeResult.BadContentType(contentType, statusCode);
-                }
+                return HttpProbeLogic.interpretContentTypeProbe(url, rsp, linkParser, contentTypeLogic);
             });
         }
         catch (SocketTimeoutException ex) {
@@ -489,6 +379,11 @@ public class HttpFetcherImpl implements HttpFetcher, HttpRequestRetryStrategy {
     /** Recursively fetch sitemaps */
     @Override
     public List<EdgeUrl> fetchSitemapUrls(String root, CrawlDelayTimer delayTimer) {
+        return fetchSitemapUrls(root, delayTimer, this::fetchSingleSitemap);
+    }
+
+    /** Recursively fetch sitemaps, using the provided function to fetch and parse each sitemap */
+    static List<EdgeUrl> fetchSitemapUrls(String root, CrawlDelayTimer delayTimer, Function<EdgeUrl, SitemapResult> fetchSingleSitemap) {
         try {
             List<EdgeUrl> ret = new ArrayList<>();
 
@@ -506,7 +401,7 @@ public class HttpFetcherImpl implements HttpFetcher, HttpRequestRetryStrategy {
             while (!sitemapQueue.isEmpty() && ret.size() < 20_000 && ++fetchedSitemaps < 10) {
                 var head = sitemapQueue.removeFirst();
 
-                switch (fetchSingleSitemap(head)) {
+                switch (fetchSingleSitemap.apply(head)) {
                     case SitemapResult.SitemapUrls(List<String> urls) -> {
 
                         for (var url : urls) {
@@ -542,69 +437,22 @@ public class HttpFetcherImpl implements HttpFetcher, HttpRequestRetryStrategy {
     }
 
 
-    private SitemapResult fetchSingleSitemap(EdgeUrl sitemapUrl) throws URISyntaxException {
-        HttpGet getRequest = new HttpGet(sitemapUrl.asURI());
+    private SitemapResult fetchSingleSitemap(EdgeUrl sitemapUrl) {
+        try (var sl = new SendLock()) {
+            HttpGet getRequest = new HttpGet(sitemapUrl.asURI());
 
-        getRequest.addHeader("User-Agent", userAgentString);
-        getRequest.addHeader("Accept-Encoding", "gzip");
-        getRequest.addHeader("Accept", "text/*, */*;q=0.9");
-        getRequest.addHeader("User-Agent", userAgentString);
+            getRequest.addHeader("User-Agent", userAgentString);
+            getRequest.addHeader("Accept-Encoding", "gzip");
+            getRequest.addHeader("Accept", "text/*, */*;q=0.9");
+            getRequest.addHeader("User-Agent", userAgentString);
 
-        try (var sl = new SendLock()) {
             return client.execute(getRequest, response -> {
                 try {
                     if (response.getCode() != 200) {
                         return new SitemapResult.SitemapError();
                     }
 
-                    InputStream entityStream = response.getEntity().getContent();
-
-                    Header contentEncoding = response.getFirstHeader("Content-Encoding");
-                    if (contentEncoding != null && "gzip".equalsIgnoreCase(contentEncoding.getValue())) {
-                        entityStream = new GZIPInputStream(entityStream);
-                    }
-
-                    Document parsedSitemap;
-
-                    try (var stream = entityStream) {
-                        parsedSitemap = Jsoup.parse(
-                                stream,
-                                null,
-                                sitemapUrl.toString(),
-                                Parser.xmlParser()
-                        );
-                    }
-
-                    if (parsedSitemap.childrenSize() == 0) {
-                        return new SitemapResult.SitemapError();
-                    }
-
-                    String rootTagName = parsedSitemap.child(0).tagName();
-
-                    return switch (rootTagName.toLowerCase()) {
-                        case "sitemapindex" -> {
-                            List<String> references = new ArrayList<>();
-                            for (var locTag : parsedSitemap.getElementsByTag("loc")) {
-                                references.add(locTag.text().trim());
-                            }
-                            yield new SitemapResult.SitemapReferences(Collections.unmodifiableList(references));
-                        }
-                        case "urlset" -> {
-                            List<String> urls = new ArrayList<>();
-                            for (var locTag : parsedSitemap.select("url > loc")) {
-                                urls.add(locTag.text().trim());
-                            }
-                            yield new SitemapResult.SitemapUrls(Collections.unmodifiableList(urls));
-                        }
-                        case "rss", "atom" -> {
-                            List<String> urls = new ArrayList<>();
-                            for (var locTag : parsedSitemap.select("link, url")) {
-                                urls.add(locTag.text().trim());
-                            }
-                            yield new SitemapResult.SitemapUrls(Collections.unmodifiableList(urls));
-                        }
-                        default -> new SitemapResult.SitemapError();
-                    };
+                    return parseSitemap(response.getEntity().getContent(), response.getFirstHeader("Content-Encoding"), sitemapUrl);
                 }
                 finally {
                     EntityUtils.consumeQuietly(response.getEntity());
@@ -617,7 +465,56 @@ public class HttpFetcherImpl implements HttpFetcher, HttpRequestRetryStrategy {
         }
     }
 
-    private sealed interface SitemapResult {
+    /** Parse a sitemap, which may be a sitemap index, a list of URLs, or an RSS or Atom feed */
+    static SitemapResult parseSitemap(InputStream entityStream, @Nullable Header contentEncoding, EdgeUrl sitemapUrl) throws IOException {
+        if (contentEncoding != null && "gzip".equalsIgnoreCase(contentEncoding.getValue())) {
+            entityStream = new GZIPInputStream(entityStream);
+        }
+
+        Document parsedSitemap;
+
+        try (var stream = entityStream) {
+            parsedSitemap = Jsoup.parse(
+                    stream,
+                    null,
+                    sitemapUrl.toString(),
+                    Parser.xmlParser()
+            );
+        }
+
+        if (parsedSitemap.childrenSize() == 0) {
+            return new SitemapResult.SitemapError();
+        }
+
+        String rootTagName = parsedSitemap.child(0).tagName();
+
+        return switch (rootTagName.toLowerCase()) {
+            case "sitemapindex" -> {
+                List<String> references = new ArrayList<>();
+                for (var locTag : parsedSitemap.getElementsByTag("loc")) {
+                    references.add(locTag.text().trim());
+                }
+                yield new SitemapResult.SitemapReferences(Collections.unmodifiableList(references));
+            }
+            case "urlset" -> {
+                List<String> urls = new ArrayList<>();
+                for (var locTag : parsedSitemap.select("url > loc")) {
+                    urls.add(locTag.text().trim());
+                }
+                yield new SitemapResult.SitemapUrls(Collections.unmodifiableList(urls));
+            }
+            case "rss", "atom" -> {
+                List<String> urls = new ArrayList<>();
+                for (var locTag : parsedSitemap.select("link, url")) {
+                    urls.add(locTag.text().trim());
+                }
+                yield new SitemapResult.SitemapUrls(Collections.unmodifiableList(urls));
+            }
+            default -> new SitemapResult.SitemapError();
+        };
+    }
+
+    sealed interface SitemapResult {
         record SitemapUrls(List<String> urls) implements SitemapResult {}
         record SitemapReferences(List<String> sitemapRefs) implements SitemapResult {}
         record SitemapError() implements SitemapResult {}
@@ -654,55 +551,26 @@ public class HttpFetcherImpl implements HttpFetcher, HttpRequestRetryStrategy {
         }
     }
 
+    private final CrawlerRetryStrategy retryStrategy = new CrawlerRetryStrategy();
+
     @Override
     public boolean retryRequest(HttpRequest request, IOException exception, int executionCount, HttpContext context) {
-        return switch (exception) {
-            case SocketTimeoutException ste -> false;
-            case SSLException ssle -> false;
-            case UnknownHostException uhe -> false;
-            default -> executionCount <= 3;
-        };
+        return retryStrategy.retryRequest(request, exception, executionCount, context);
     }
 
     @Override
     public boolean retryRequest(HttpResponse response, int executionCount, HttpContext context) {
-        return switch (response.getCode()) {
-            case 500, 503 -> executionCount <= 2;
-            case 429 -> executionCount <= 3;
-            default -> false;
-        };
+        return retryStrategy.retryRequest(response, executionCount, context);
     }
 
     @Override
     public TimeValue getRetryInterval(HttpRequest request, IOException exception, int executionCount, HttpContext context) {
-        return TimeValue.ofSeconds(1);
+        return retryStrategy.getRetryInterval(request, exception, executionCount, context);
     }
 
     @Override
     public TimeValue getRetryInterval(HttpResponse response, int executionCount, HttpContext context) {
-
-        int statusCode = response.getCode();
-
-        // Give 503 a bit more time
-        if (statusCode == 503) return TimeValue.ofSeconds(5);
-
-        if (statusCode == 429) {
-            // get the Retry-After header
-            Header header = response.getFirstHeader("Retry-After");
-
-            if (header == null) {
-                return TimeValue.ofSeconds(2);
-            }
-
-            String retryAfter = header.getValue();
-
-            int retryAfterTime = parseRetryAfterSeconds(retryAfter);
-            if (retryAfterTime > 0) {
-                return TimeValue.ofSeconds(Math.clamp(retryAfterTime, 1, 10));
-            }
-        }
-
-        return TimeValue.ofSeconds(2);
+        return retryStrategy.getRetryInterval(response, executionCount, context);
     }
 
     /** Parse a Retry-After header value, which can be either a number of seconds
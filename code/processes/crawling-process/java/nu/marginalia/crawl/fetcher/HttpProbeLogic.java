@@ -0,0 +1,165 @@
+package nu.marginalia.crawl.fetcher;
+
+import nu.marginalia.link_parser.LinkParser;
+import nu.marginalia.model.EdgeUrl;
+import nu.marginalia.model.body.ContentTypeLogic;
+import nu.marginalia.model.crawldata.CrawlerDomainStatus;
+import org.apache.hc.core5.http.HttpResponse;
+
+import javax.annotation.Nullable;
+import java.net.SocketTimeoutException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/** The domain and content type probes of {@link HttpFetcherImpl} and {@link AsyncHttpFetcherImpl},
+ * which only differ in how they send the requests.
+ */
+final class HttpProbeLogic {
+
+    private HttpProbeLogic() {}
+
+    /** Sends a probe request with the client of a fetcher */
+    interface ProbeSender {
+        /** Send a HEAD request for the URL, or if rangedGet is set, a GET request for the first
+         * bytes of the document, and return the response with its body consumed */
+        HttpResponse send(EdgeUrl url, boolean rangedGet) throws Exception;
+    }
+
+    /**
+     * Probe the domain to see if it is reachable, attempting to identify which schema to use,
+     * and if there are any redirects.  This is done by one or more HEAD requests, falling back
+     * to a GET request if the server doesn't like HEAD requests.
+     *
+     * @param url The URL to probe.
+     * @return The result of the probe, indicating the state and the URL.
+     */
+    static HttpFetcher.DomainProbeResult probeDomain(EdgeUrl url, LinkParser linkParser, ProbeSender sender) {
+        List<EdgeUrl> urls = new ArrayList<>();
+        urls.add(url);
+
+        int redirects = 0;
+        boolean tryGet = false;
+
+        while (!urls.isEmpty() && ++redirects < 5) {
+            EdgeUrl topUrl = urls.removeFirst();
+
+            try {
+                HttpResponse response = sender.send(topUrl, tryGet);
+
+                HttpFetcher.DomainProbeResult result = interpretDomainProbe(url, topUrl, response, linkParser);
+
+                if (result == null) {
+                    if (tryGet) {
+                        return new HttpFetcher.DomainProbeResult.Error(CrawlerDomainStatus.ERROR, "HTTP status " + response.getCode() + ", tried HEAD and GET?!");
+                    }
+
+                    // Some servers don't handle HEAD requests, try again with GET
+                    tryGet = true;
+                    urls.add(url);
+                }
+                else if (result instanceof HttpFetcher.DomainProbeResult.RedirectSameDomain_Internal(EdgeUrl redirUrl)) {
+                    urls.add(redirUrl);
+                }
+                else {
+                    return result;
+                }
+
+                // We don't have robots.txt yet, so we'll assume a request delay of 1 second
+                TimeUnit.SECONDS.sleep(1);
+            }
+            catch (URISyntaxException ex) {
+                return new HttpFetcher.DomainProbeResult.Error(CrawlerDomainStatus.ERROR, "Invalid URL");
+            }
+            catch (SocketTimeoutException ex) {
+                return new HttpFetcher.DomainProbeResult.Error(CrawlerDomainStatus.ERROR, "Timeout during domain probe");
+            }
+            catch (Exception ex) {
+                return new HttpFetcher.DomainProbeResult.Error(CrawlerDomainStatus.ERROR, ex.getClass().getSimpleName() + " during domain probe");
+            }
+        }
+
+        return new HttpFetcher.DomainProbeResult.Error(CrawlerDomainStatus.ERROR, "Failed to resolve domain root");
+    }
+
+    /** Interpret the response to a domain probe request for topUrl, which is url or a redirect from it.
+     *
+     * @return the outcome of the probe, or null if the status code is not one the probe understands
+     */
+    @Nullable
+    static HttpFetcher.DomainProbeResult interpretDomainProbe(EdgeUrl url,
+                                                              EdgeUrl topUrl,
+                                                              HttpResponse response,
+                                                              LinkParser linkParser)
+    {
+        return switch (response.getCode()) {
+            case 200, 206 -> new HttpFetcher.DomainProbeResult.Ok(url);
+            case 301, 302, 307 -> {
+                var location = response.getFirstHeader("Location");
+
+                if (location != null) {
+                    Optional<EdgeUrl> newUrl = linkParser.parseLink(topUrl, location.getValue());
+                    if (newUrl.isEmpty()) {
+                        yield new HttpFetcher.DomainProbeResult.Error(CrawlerDomainStatus.ERROR, "Invalid location header on redirect");
+                    }
+                    EdgeUrl newEdgeUrl = newUrl.get();
+                    if (newEdgeUrl.domain.equals(topUrl.domain)) {
+                        yield new HttpFetcher.DomainProbeResult.RedirectSameDomain_Internal(newEdgeUrl);
+                    }
+                    else {
+                        yield new HttpFetcher.DomainProbeResult.Redirect(newEdgeUrl.domain);
+                    }
+                }
+
+                yield new HttpFetcher.DomainProbeResult.Error(CrawlerDomainStatus.ERROR, "No location header on redirect");
+            }
+            default -> null;
+        };
+    }
+
+    /** Interpret the response to a content type probe */
+    static HttpFetcher.ContentTypeProbeResult interpretContentTypeProbe(EdgeUrl url,
+                                                                        HttpResponse rsp,
+                                                                        LinkParser linkParser,
+                                                                        ContentTypeLogic contentTypeLogic)
+    {
+        int statusCode = rsp.getCode();
+
+        // Handle redirects
+        if (statusCode == 301 || statusCode == 302 || statusCode == 307) {
+            var location = rsp.getFirstHeader("Location");
+            if (location != null) {
+                Optional<EdgeUrl> newUrl = linkParser.parseLink(url, location.getValue());
+                if (newUrl.isEmpty())
+                    return new HttpFetcher.ContentTypeProbeResult.HttpError(statusCode, "Invalid location header on redirect");
+                return new HttpFetcher.ContentTypeProbeResult.Redirect(newUrl.get());
+            }
+        }
+
+        if (statusCode == 405) {
+            // If we get a 405, we can't probe the content type with HEAD, so we'll just say it's ok
+            return new HttpFetcher.ContentTypeProbeResult.Ok(url);
+        }
+
+        // Handle errors
+        if (statusCode < 200 || statusCode > 300) {
+            return new HttpFetcher.ContentTypeProbeResult.HttpError(statusCode, "Bad status code");
+        }
+
+        // Handle missing content type
+        var ctHeader = rsp.getFirstHeader("Content-Type");
+        if (ctHeader == null) {
+            return new HttpFetcher.ContentTypeProbeResult.HttpError(statusCode, "Missing Content-Type header");
+        }
+        var contentType = ctHeader.getValue();
+
+        // Check if the content type is allowed
+        if (contentTypeLogic.isAllowableContentType(contentType)) {
+            return new HttpFetcher.ContentTypeProbeResult.Ok(url);
+        } else {
+            return new HttpFetcher.ContentTypeProbeResult.BadContentType(contentType, statusCode);
+        }
+    }
+}
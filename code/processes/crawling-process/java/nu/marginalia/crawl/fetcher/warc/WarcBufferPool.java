@@ -0,0 +1,372 @@
+package nu.marginalia.crawl.fetcher.warc;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Pool of off-heap buffers for response bodies.
+ * <p></p>
+ * Response bodies are read into chunks from the pool, and the chunks are then digested, written
+ * into the WARC file, and read back for parsing, without the body being copied to a temporary
+ * file or into an intermediate array on the heap.
+ * <p></p>
+ * Up to crawler.warcBufferPoolChunks chunks are allocated from a single arena that is never
+ * closed, and these are returned to the pool when they are released.  Chunks beyond that are
+ * allocated from automatic arenas, and are dropped when released, to be freed by the garbage
+ * collector.  Closing an arena for every chunk would instead stall the whole VM on a thread
+ * handshake each time.  No more than crawler.warcBufferMaxBytes are allocated at any time,
+ * pooled or in use, and once they are all taken, the rest of the body is written to a temporary
+ * file next to the WARC file instead, which is memory mapped to be read.
+ */
+class WarcBufferPool {
+    private static final Logger logger = LoggerFactory.getLogger(WarcBufferPool.class);
+
+    static final int CHUNK_SIZE = 65536;
+    private static final int MAX_POOLED_CHUNKS = Integer.getInteger("crawler.warcBufferPoolChunks", 2048);
+    private static final long MAX_ALLOCATED_BYTES = Long.getLong("crawler.warcBufferMaxBytes", 512L * 1024 * 1024);
+
+    private static final Arena poolArena = Arena.ofShared();
+
+    private static final ConcurrentLinkedQueue<Chunk> pool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooledChunks = new AtomicInteger();
+    private static final AtomicInteger poolArenaChunks = new AtomicInteger();
+    private static final AtomicLong allocatedBytes = new AtomicLong();
+
+    /** A chunk of off-heap memory.  Pooled chunks belong to the pool arena, and are never freed. */
+    record Chunk(ByteBuffer buffer, boolean pooled) {}
+
+    /** Take a chunk from the pool, or allocate a new one.
+     *
+     * @return the chunk, or null if crawler.warcBufferMaxBytes are already allocated
+     */
+    static Chunk acquire() {
+        return acquire(MAX_ALLOCATED_BYTES, MAX_POOLED_CHUNKS);
+    }
+
+    static Chunk acquire(long maxAllocatedBytes) {
+        return acquire(maxAllocatedBytes, MAX_POOLED_CHUNKS);
+    }
+
+    /** For testing */
+    static Chunk acquire(long maxAllocatedBytes, int maxPooledChunks) {
+        Chunk chunk = pool.poll();
+
+        if (chunk != null) {
+            pooledChunks.decrementAndGet();
+            return chunk;
+        }
+
+        if (allocatedBytes.addAndGet(CHUNK_SIZE) > maxAllocatedBytes) {
+            allocatedBytes.addAndGet(-CHUNK_SIZE);
+            return null;
+        }
+
+        if (poolArenaChunks.incrementAndGet() <= maxPooledChunks) {
+            return new Chunk(poolArena.allocate(CHUNK_SIZE).asByteBuffer(), true);
+        }
+        poolArenaChunks.decrementAndGet();
+
+        return new Chunk(Arena.ofAuto().allocate(CHUNK_SIZE).asByteBuffer(), false);
+    }
+
+    static void release(Chunk chunk) {
+        chunk.buffer().clear();
+
+        if (chunk.pooled()) {
+            pooledChunks.incrementAndGet();
+            pool.offer(chunk);
+        }
+        else {
+            // The chunk is freed once it is no longer reachable
+            allocatedBytes.addAndGet(-CHUNK_SIZE);
+        }
+    }
+
+    /** The number of chunks in the pool */
+    static int pooledChunks() {
+        return pooledChunks.get();
+    }
+
+    /** The number of bytes allocated to chunks, pooled or in use */
+    static long allocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    /** A response body, stored in chunks from the pool, and in a temporary file if the pool
+     * is exhausted.  The chunks are returned to the pool and the file is deleted when the body
+     * is closed, after which none of its views may be used. */
+    static class Body implements AutoCloseable {
+        private final Path spillDir;
+        private final long maxAllocatedBytes;
+        private final List<Chunk> chunks = new ArrayList<>();
+        private int size = 0;
+
+        private Path spillFile;
+        private FileChannel spillChannel;
+        private long spillSize = 0;
+
+        private Arena spillArena;
+        private MemorySegment spillMapping;
+
+        /** @param spillDir the directory to write the temporary file in, if the pool is exhausted */
+        Body(Path spillDir) {
+            this(spillDir, MAX_ALLOCATED_BYTES);
+        }
+
+        /** For testing */
+        Body(Path spillDir, long maxAllocatedBytes) {
+            this.spillDir = spillDir;
+            this.maxAllocatedBytes = maxAllocatedBytes;
+        }
+
+        public void write(ByteBuffer src) {
+            while (src.hasRemaining() && spillChannel == null) {
+                ByteBuffer chunk = chunks.isEmpty() ? null : chunks.getLast().buffer();
+                if (chunk == null || !chunk.hasRemaining()) {
+                    Chunk newChunk = acquire(maxAllocatedBytes);
+                    if (newChunk == null) {
+                        openSpillFile();
+                        break;
+                    }
+                    chunks.add(newChunk);
+                    chunk = newChunk.buffer();
+                }
+
+                int n = Math.min(src.remaining(), chunk.remaining());
+
+                chunk.put(chunk.position(), src, src.position(), n);
+                chunk.position(chunk.position() + n);
+                src.position(src.position() + n);
+
+                size += n;
+            }
+
+            if (src.hasRemaining()) {
+                writeSpillFile(src);
+            }
+        }
+
+        public void write(byte[] bytes, int offset, int length) {
+            write(ByteBuffer.wrap(bytes, offset, length));
+        }
+
+        private void openSpillFile() {
+            try {
+                spillFile = Files.createTempFile(spillDir, "rsp", ".body");
+                spillChannel = FileChannel.open(spillFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                spillArena = Arena.ofShared();
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            logger.debug("Response buffers exhausted, writing body to {}", spillFile);
+        }
+
+        private void writeSpillFile(ByteBuffer src) {
+            try {
+                while (src.hasRemaining()) {
+                    int n = spillChannel.write(src, spillSize);
+                    spillSize += n;
+                    size += n;
+                }
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        public OutputStream outputStream() {
+            return new OutputStream() {
+                @Override
+                public void write(int b) {
+                    Body.this.write(new byte[] { (byte) b }, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    Body.this.write(b, off, len);
+                }
+            };
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /** Whether some of the body was written to a temporary file */
+        public boolean isSpilled() {
+            return spillChannel != null;
+        }
+
+        /** Read-only views of the contents of the body */
+        public ByteBuffer[] views() {
+            boolean hasSpill = spillSize > 0;
+
+            ByteBuffer[] views = new ByteBuffer[chunks.size() + (hasSpill ? 1 : 0)];
+
+            for (int i = 0; i < chunks.size(); i++) {
+                ByteBuffer chunk = chunks.get(i).buffer();
+                views[i] = chunk.slice(0, chunk.position()).asReadOnlyBuffer();
+            }
+
+            if (hasSpill) {
+                views[chunks.size()] = spillView();
+            }
+
+            return views;
+        }
+
+        private ByteBuffer spillView() {
+            if (spillMapping == null || spillMapping.byteSize() != spillSize) {
+                try {
+                    spillMapping = spillChannel.map(FileChannel.MapMode.READ_ONLY, 0, spillSize, spillArena);
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            return spillMapping.asByteBuffer().asReadOnlyBuffer();
+        }
+
+        @Override
+        public void close() {
+            for (var chunk : chunks) {
+                release(chunk);
+            }
+            chunks.clear();
+            size = 0;
+
+            if (spillChannel != null) {
+                // Unmaps the file
+                spillArena.close();
+
+                try {
+                    spillChannel.close();
+                    Files.deleteIfExists(spillFile);
+                }
+                catch (IOException e) {
+                    logger.warn("Failed to delete {}", spillFile, e);
+                }
+
+                spillArena = null;
+                spillMapping = null;
+                spillChannel = null;
+                spillFile = null;
+                spillSize = 0;
+            }
+        }
+    }
+
+    /** Channel over a sequence of buffers, that are consumed as the channel is read */
+    static class BufferChannel implements ReadableByteChannel {
+        private final ByteBuffer[] buffers;
+        private int idx = 0;
+        private boolean open = true;
+
+        BufferChannel(ByteBuffer... buffers) {
+            this.buffers = buffers;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            while (idx < buffers.length && !buffers[idx].hasRemaining()) {
+                idx++;
+            }
+            if (idx >= buffers.length) {
+                return -1;
+            }
+
+            int n = 0;
+            while (idx < buffers.length && dst.hasRemaining()) {
+                ByteBuffer src = buffers[idx];
+
+                int len = Math.min(src.remaining(), dst.remaining());
+                dst.put(dst.position(), src, src.position(), len);
+                dst.position(dst.position() + len);
+                src.position(src.position() + len);
+                n += len;
+
+                if (!src.hasRemaining()) {
+                    idx++;
+                }
+            }
+
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+
+    /** Input stream over a sequence of buffers, that are consumed as the stream is read */
+    static class BufferInputStream extends InputStream {
+        private final ByteBuffer[] buffers;
+        private int idx = 0;
+
+        BufferInputStream(ByteBuffer... buffers) {
+            this.buffers = buffers;
+        }
+
+        private ByteBuffer current() {
+            while (idx < buffers.length && !buffers[idx].hasRemaining()) {
+                idx++;
+            }
+            return idx < buffers.length ? buffers[idx] : null;
+        }
+
+        @Override
+        public int read() {
+            ByteBuffer src = current();
+            if (src == null)
+                return -1;
+
+            return src.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0)
+                return 0;
+
+            ByteBuffer src = current();
+            if (src == null)
+                return -1;
+
+            int n = Math.min(len, src.remaining());
+            src.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            ByteBuffer src = current();
+            return src == null ? 0 : src.remaining();
+        }
+    }
+}
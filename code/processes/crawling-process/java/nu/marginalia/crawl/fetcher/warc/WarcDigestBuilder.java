@@ -2,6 +2,7 @@ package nu.marginalia.crawl.fetcher.warc;
 
 import org.netpreserve.jwarc.WarcDigest;
 
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
@@ -26,6 +27,10 @@ class WarcDigestBuilder {
         digest.update(buffer, s, n);
     }
 
+    public void update(ByteBuffer buffer) {
+        digest.update(buffer);
+    }
+
     public WarcDigest build() {
         return new WarcDigest(digest);
     }
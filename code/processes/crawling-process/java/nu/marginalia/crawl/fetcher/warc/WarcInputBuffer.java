@@ -5,17 +5,18 @@ import org.apache.commons.io.input.BOMInputStream;
 import org.apache.hc.client5.http.classic.methods.HttpGet;
 import org.apache.hc.core5.http.ClassicHttpResponse;
 import org.apache.hc.core5.http.Header;
+import org.jetbrains.annotations.Nullable;
 import org.netpreserve.jwarc.WarcTruncationReason;
 
 import java.io.*;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.Arrays;
 
 /** Input buffer for temporary storage of a HTTP response
- *  This may be in-memory or on-disk, at the discretion of
+ *  This may be on the heap or off-heap, at the discretion of
  *  the implementation.
  * */
 public abstract class WarcInputBuffer implements AutoCloseable {
@@ -29,6 +30,19 @@ public abstract class WarcInputBuffer implements AutoCloseable {
     /** If necessary, the stream is closed when the buffer is closed */
     public abstract InputStream read() throws IOException;
 
+    /** Views of the contents of the buffer, that are valid until the buffer is closed.
+     * Each call returns new views, so the contents may be read more than once. */
+    public abstract ByteBuffer[] views() throws IOException;
+
+    /** Update the digests with the contents of the buffer, in place */
+    public void updateDigests(WarcDigestBuilder... digestBuilders) throws IOException {
+        for (ByteBuffer view : views()) {
+            for (var digestBuilder : digestBuilders) {
+                digestBuilder.update(view.duplicate());
+            }
+        }
+    }
+
     /** The size of the response */
     public abstract int size();
 
@@ -37,9 +51,8 @@ public abstract class WarcInputBuffer implements AutoCloseable {
     public final Header[] headers() { return headers; }
 
     /** Create a buffer for a response.
-     *  If the response is small and not compressed, it will be stored in memory.
-     *  Otherwise, it will be stored in a temporary file, with compression transparently handled
-     *  and suppressed from the headers.
+     *  If the response is small and its length is known, it will be stored on the heap.
+     *  Otherwise, it will be stored in off-heap buffers from the {@link WarcBufferPool}.
      *  If an error occurs, a buffer will be created with no content and an error status.
      */
     static WarcInputBuffer forResponse(ClassicHttpResponse response,
@@ -73,7 +86,7 @@ public abstract class WarcInputBuffer implements AutoCloseable {
             else {
                 // handles both the negative length case (e.g. HTTP 1.0)
                 // and the known length case
-                return new FileBuffer(response.getHeaders(), request, timeLimit, is, tempDir);
+                return new OffHeapBuffer(response.getHeaders(), request, timeLimit, is, tempDir);
             }
         }
         finally {
@@ -239,6 +252,11 @@ class ErrorBuffer extends WarcInputBuffer {
         return ByteArrayInputStream.nullInputStream();
     }
 
+    @Override
+    public ByteBuffer[] views() {
+        return new ByteBuffer[0];
+    }
+
     @Override
     public int size() {
         return 0;
@@ -277,6 +295,11 @@ class MemoryBuffer extends WarcInputBuffer {
         return new ByteArrayInputStream(data);
     }
 
+    @Override
+    public ByteBuffer[] views() {
+        return new ByteBuffer[] { ByteBuffer.wrap(data).asReadOnlyBuffer() };
+    }
+
     @Override
     public int size() {
         return data.length;
@@ -288,47 +311,127 @@ class MemoryBuffer extends WarcInputBuffer {
     }
 }
 
-/** Buffer for when we have the response in a file */
-class FileBuffer extends WarcInputBuffer {
-    private final Path tempFile;
+/** Buffer for when we have the response in off-heap memory */
+class OffHeapBuffer extends WarcInputBuffer {
+    private final WarcBufferPool.Body body;
 
-    public FileBuffer(Header[] headers, HttpGet request, Duration timeLimit, InputStream responseStream, Path tempDir) throws IOException {
+    public OffHeapBuffer(Header[] headers, HttpGet request, Duration timeLimit, InputStream responseStream, Path tempDir) {
         super(headers);
 
+        body = new WarcBufferPool.Body(tempDir);
+
         if (!isRangeComplete(headers)) {
             truncationReason = WarcTruncationReason.LENGTH;
         } else {
             truncationReason = WarcTruncationReason.NOT_TRUNCATED;
         }
 
-        this.tempFile = Files.createTempFile(tempDir, "rsp", ".html");
+        copy(responseStream, request, body.outputStream(), timeLimit);
+    }
 
-        try (var out = Files.newOutputStream(tempFile)) {
-            copy(responseStream, request, out, timeLimit);
-        }
-        catch (Exception ex) {
-            truncationReason = WarcTruncationReason.UNSPECIFIED;
-        }
+    @Override
+    public InputStream read() {
+        return new WarcBufferPool.BufferInputStream(body.views());
     }
 
-    public InputStream read() throws IOException {
-        return Files.newInputStream(tempFile);
+    @Override
+    public ByteBuffer[] views() {
+        return body.views();
     }
 
+    @Override
     public int size() {
-        try {
-            long fileSize = Files.size(tempFile);
-            if (fileSize > Integer.MAX_VALUE) {
-                throw new IllegalStateException("File too large");
+        return body.size();
+    }
+
+    @Override
+    public void close() {
+        body.close();
+    }
+}
+/** Buffer that is filled incrementally as the response is received by the async client.
+ *  The response is copied directly from the client's buffers into off-heap buffers.
+ */
+class StreamingBuffer extends WarcInputBuffer {
+    private final WarcBufferPool.Body body;
+
+    private boolean bomChecked = false;
+    private boolean finished = false;
+
+    public StreamingBuffer(Header[] headers, Path tempDir) {
+        super(headers);
+
+        body = new WarcBufferPool.Body(tempDir);
+
+        if (!isRangeComplete(headers)) {
+            truncationReason = WarcTruncationReason.LENGTH;
+        }
+    }
+
+    /** Append the contents of the buffer.  Data beyond the maximum size
+     * is consumed but discarded, and the response is flagged as truncated. */
+    public synchronized void write(ByteBuffer src) {
+        if (finished) {
+            src.position(src.limit());
+            return;
+        }
+
+        // Gobble up the BOM if it's there
+        if (!bomChecked && src.remaining() >= 3) {
+            bomChecked = true;
+
+            int pos = src.position();
+            if (src.get(pos) == (byte) 0xEF && src.get(pos + 1) == (byte) 0xBB && src.get(pos + 2) == (byte) 0xBF) {
+                src.position(pos + 3);
             }
-            return (int) fileSize;
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        }
+
+        int n = Math.min(src.remaining(), WarcRecorder.MAX_SIZE - body.size());
+        if (n < src.remaining()) {
+            truncationReason = WarcTruncationReason.LENGTH;
+        }
+
+        if (n > 0) {
+            body.write(src.slice(src.position(), n));
+        }
+
+        src.position(src.limit());
+    }
+
+    /** Stop accepting data, flagging the response with the truncation reason if it is incomplete */
+    public synchronized void finish(@Nullable WarcTruncationReason reason) {
+        if (finished)
+            return;
+        finished = true;
+
+        if (reason != null) {
+            truncationReason = reason;
         }
     }
 
     @Override
-    public void close() throws Exception {
-        Files.deleteIfExists(tempFile);
+    public synchronized InputStream read() {
+        finish(null);
+
+        return new WarcBufferPool.BufferInputStream(body.views());
+    }
+
+    @Override
+    public synchronized ByteBuffer[] views() {
+        finish(null);
+
+        return body.views();
     }
-}
\ No newline at end of file
+
+    @Override
+    public synchronized int size() {
+        return body.size();
+    }
+
+    @Override
+    public synchronized void close() {
+        finish(null);
+
+        body.close();
+    }
+}
@@ -1,8 +1,9 @@
 package nu.marginalia.crawl.fetcher.warc;
 
 import org.apache.commons.lang3.StringUtils;
-import org.apache.hc.core5.http.ClassicHttpResponse;
 import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpVersion;
+import org.apache.hc.core5.http.ProtocolVersion;
 
 import java.net.URI;
 import java.net.URLEncoder;
@@ -91,10 +92,15 @@ public class WarcProtocolReconstructor {
         return "HTTP/" + version + " " + statusCode + " " + statusMessage + "\r\n" + headerString + "\r\n\r\n";
     }
 
-    static String getResponseHeader(ClassicHttpResponse response, Duration responseDuration, long size) {
+    static String getResponseHeader(org.apache.hc.core5.http.HttpResponse response, Duration responseDuration, long size) {
         String headerString = getHeadersAsString(response.getHeaders(), responseDuration, size);
 
-        return response.getVersion().format() + " " + response.getCode() + " " + response.getReasonPhrase() + "\r\n" + headerString + "\r\n\r\n";
+        // The async client may leave the version and reason phrase unset, e.g. for HTTP/2 responses
+        ProtocolVersion version = Objects.requireNonNullElse(response.getVersion(), HttpVersion.HTTP_1_1);
+        String reasonPhrase = Objects.requireNonNullElse(response.getReasonPhrase(),
+                STATUS_CODE_MAP.getOrDefault(response.getCode(), "Unknown"));
+
+        return version.format() + " " + response.getCode() + " " + reasonPhrase + "\r\n" + headerString + "\r\n\r\n";
     }
 
     private static final Map<Integer, String> STATUS_CODE_MAP = Map.ofEntries(
@@ -8,21 +8,26 @@ import nu.marginalia.link_parser.LinkParser;
 import nu.marginalia.model.EdgeDomain;
 import nu.marginalia.model.EdgeUrl;
 import nu.marginalia.model.body.HttpFetchResult;
+import org.apache.hc.client5.http.async.methods.SimpleHttpRequest;
+import org.apache.hc.client5.http.async.methods.SimpleRequestProducer;
 import org.apache.hc.client5.http.classic.HttpClient;
 import org.apache.hc.client5.http.classic.methods.HttpGet;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.core5.http.HttpRequest;
+import org.apache.hc.core5.http.HttpResponse;
 import org.apache.hc.core5.http.NameValuePair;
 import org.jetbrains.annotations.Nullable;
 import org.netpreserve.jwarc.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetAddress;
 import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -30,6 +35,10 @@ import java.security.NoSuchAlgorithmException;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /** Based on JWarc's fetch method, APL 2.0 license
  * <p></p>
@@ -91,9 +100,6 @@ public class WarcRecorder implements AutoCloseable {
     {
         URI requestUri = request.getUri();
 
-        WarcDigestBuilder responseDigestBuilder = new WarcDigestBuilder();
-        WarcDigestBuilder payloadDigestBuilder = new WarcDigestBuilder();
-
         Instant requestDate = Instant.now();
 
         // Not entirely sure why we need to do this, but keeping it due to Chesterton's Fence
@@ -106,134 +112,8 @@ public class WarcRecorder implements AutoCloseable {
         try {
             return client.execute(request,response -> {
 
-                try (WarcInputBuffer inputBuffer = WarcInputBuffer.forResponse(response, request, timeout, warcFile.getParent());
-                     InputStream inputStream = inputBuffer.read()) {
-
-                    Instant responseDate = Instant.now();
-
-                    cookies.updateCookieStore(response);
-
-                    // Build and write the request
-
-                    WarcDigestBuilder requestDigestBuilder = new WarcDigestBuilder();
-
-                    byte[] httpRequestString = WarcProtocolReconstructor
-                            .getHttpRequestString(
-                                    request.getMethod(),
-                                    request.getHeaders(),
-                                    extraHeaders,
-                                    requestUri)
-                            .getBytes();
-
-                    requestDigestBuilder.update(httpRequestString);
-
-                    WarcRequest warcRequest = new WarcRequest.Builder(requestUri)
-                            .blockDigest(requestDigestBuilder.build())
-                            .date(requestDate)
-                            .body(MediaType.HTTP_REQUEST, httpRequestString)
-                            .build();
-
-                    warcRequest.http(); // force HTTP header to be parsed before body is consumed so that caller can use it
-                    writer.write(warcRequest);
-
-
-                    if (cookies.hasCookies()) {
-                        response.addHeader("X-Has-Cookies", 1);
-                    }
-
-                    byte[] responseHeaders = WarcProtocolReconstructor.getResponseHeader(response,
-                            Duration.between(requestDate, responseDate),
-                            inputBuffer.size()).getBytes(StandardCharsets.UTF_8);
-
-                    ResponseDataBuffer responseDataBuffer = new ResponseDataBuffer(inputBuffer.size() + responseHeaders.length);
-
-                    responseDataBuffer.put(responseHeaders);
-                    responseDataBuffer.updateDigest(responseDigestBuilder, 0, responseHeaders.length);
-
-                    int dataStart = responseDataBuffer.pos();
-
-                    for (;;) {
-                        int remainingLength = responseDataBuffer.remaining();
-                        if (remainingLength == 0)
-                            break;
-
-                        int startPos = responseDataBuffer.pos();
-
-                        int n = responseDataBuffer.readFrom(inputStream, remainingLength);
-                        if (n < 0)
-                            break;
-
-                        responseDataBuffer.updateDigest(responseDigestBuilder, startPos, n);
-                        responseDataBuffer.updateDigest(payloadDigestBuilder, startPos, n);
-                    }
-
-                    // with some http client libraries, that resolve redirects transparently, this might be different
-                    // from the request URI, but currently we don't have transparent redirect resolution so it's always
-                    // the same (though let's keep the variables separate in case this changes)
-                    final URI responseUri = requestUri;
-
-                    WarcResponse.Builder responseBuilder = new WarcResponse.Builder(responseUri)
-                            .blockDigest(responseDigestBuilder.build())
-                            .date(responseDate)
-                            .concurrentTo(warcRequest.id())
-                            .body(MediaType.HTTP_RESPONSE, responseDataBuffer.copyBytes());
-
-                    InetAddress inetAddress = InetAddress.getByName(responseUri.getHost());
-                    responseBuilder.ipAddress(inetAddress);
-                    responseBuilder.payloadDigest(payloadDigestBuilder.build());
-                    responseBuilder.truncated(inputBuffer.truncationReason());
-
-                    // Build and write the response
-
-                    var warcResponse = responseBuilder.build();
-                    warcResponse.http(); // force HTTP header to be parsed before body is consumed so that caller can use it
-                    writer.write(warcResponse);
-
-                    if (Duration.between(requestDate, Instant.now()).compareTo(Duration.ofSeconds(9)) > 0
-                            && inputBuffer.size() < 2048
-                            && !requestUri.getPath().endsWith("robots.txt")) // don't bail on robots.txt
-                    {
-                        // Fast detection and mitigation of crawler traps that respond with slow
-                        // small responses, with a high branching factor
-
-                        // Note we bail *after* writing the warc records, this will effectively only
-                        // prevent link extraction from the document.
-
-                        logger.warn("URL {} took too long to fetch ({}s) and was too small for the effort ({}b)",
-                                requestUri,
-                                Duration.between(requestDate, Instant.now()).getSeconds(),
-                                inputBuffer.size()
-                        );
-
-                        return new HttpFetchResult.ResultException(new IOException("Likely crawler trap"));
-                    }
-
-                    if (response.getCode() == 301 || response.getCode() == 302 || response.getCode() == 307) {
-                        // If the server responds with a redirect, we need to
-                        // update the request URI to the new location
-                        EdgeUrl redirectLocation = Optional.ofNullable(response.getFirstHeader("Location"))
-                                                           .map(NameValuePair::getValue)
-                                .flatMap(location -> linkParser.parseLink(new EdgeUrl(requestUri), location))
-                                .orElse(null);
-                        if (redirectLocation != null) {
-                            // If the redirect location is a valid URL, we need to update the request URI
-                            return new HttpFetchResult.ResultRedirect(redirectLocation);
-                        } else {
-                            // If the redirect location is not a valid URL, we need to throw an exception
-                            return new HttpFetchResult.ResultException(new IOException("Invalid redirect location: " + response.getFirstHeader("Location")));
-                        }
-                    }
-
-                    try (ByteArrayInputStream stream = new ByteArrayInputStream(
-                            responseDataBuffer.data, dataStart,
-                            responseDataBuffer.length() - dataStart)) {
-
-                        return HttpFetchResult.ResultOk.forStreamedBytes(responseUri,
-                                response.getCode(),
-                                inputBuffer.headers(),
-                                inetAddress.getHostAddress(),
-                                stream);
-                    }
+                try (WarcInputBuffer inputBuffer = WarcInputBuffer.forResponse(response, request, timeout, warcFile.getParent())) {
+                    return recordResponse(requestUri, request, extraHeaders, requestDate, response, inputBuffer, cookies);
                 } catch (Exception ex) {
                     flagAsError(new EdgeUrl(requestUri), ex); // write a WARC record to indicate the error
                     logger.warn("Failed to fetch URL {}:  {}", requestUri, ex.getMessage());
@@ -253,6 +133,204 @@ public class WarcRecorder implements AutoCloseable {
         }
     }
 
+    /** Fetch a URL with the async client, and record the request and response.
+     * <p></p>
+     * The response body is streamed into a buffer by the client's I/O threads as it arrives,
+     * and the calling thread only waits for the exchange to complete.  If the response takes
+     * longer than the timeout, whatever has been received is recorded as a truncated response.
+     */
+    public HttpFetchResult fetch(CloseableHttpAsyncClient client,
+                                 DomainCookies cookies,
+                                 SimpleHttpRequest request,
+                                 Duration timeout)
+            throws NoSuchAlgorithmException, IOException, URISyntaxException, InterruptedException
+    {
+        URI requestUri = request.getUri();
+
+        Instant requestDate = Instant.now();
+
+        Map<String, List<String>> extraHeaders = new HashMap<>(request.getHeaders().length);
+
+        // Inject a range header to attempt to limit the size of the response
+        // to the maximum size we want to store, if the server supports it.
+        request.addHeader("Range", "bytes=0-"+MAX_SIZE);
+        cookies.paintRequest(request);
+
+        WarcResponseConsumer consumer = new WarcResponseConsumer(warcFile.getParent());
+        Future<WarcResponseConsumer.BufferedResponse> future =
+                client.execute(SimpleRequestProducer.create(request), consumer, null);
+
+        WarcResponseConsumer.BufferedResponse bufferedResponse;
+        try {
+            bufferedResponse = future.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException ex) {
+            bufferedResponse = consumer.abort(WarcTruncationReason.TIME);
+            future.cancel(true);
+
+            if (bufferedResponse == null) {
+                flagAsTimeout(new EdgeUrl(requestUri)); // write a WARC record to indicate the timeout
+                return new HttpFetchResult.ResultException(new SocketTimeoutException("Timeout fetching " + requestUri));
+            }
+        }
+        catch (ExecutionException ex) {
+            consumer.discard();
+
+            if (ex.getCause() instanceof SocketTimeoutException ste) {
+                flagAsTimeout(new EdgeUrl(requestUri)); // write a WARC record to indicate the timeout
+                return new HttpFetchResult.ResultException(ste);
+            }
+
+            Exception cause = ex.getCause() instanceof Exception e ? e : ex;
+            flagAsError(new EdgeUrl(requestUri), cause); // write a WARC record to indicate the error
+            logger.warn("Failed to fetch URL {}:  {}", requestUri, cause.getMessage());
+            return new HttpFetchResult.ResultException(cause);
+        }
+        catch (InterruptedException ex) {
+            consumer.abort(WarcTruncationReason.UNSPECIFIED);
+            future.cancel(true);
+            consumer.discard();
+            throw ex;
+        }
+
+        try (WarcInputBuffer inputBuffer = bufferedResponse.buffer()) {
+            return recordResponse(requestUri, request, extraHeaders, requestDate, bufferedResponse.response(), inputBuffer, cookies);
+        } catch (Exception ex) {
+            flagAsError(new EdgeUrl(requestUri), ex); // write a WARC record to indicate the error
+            logger.warn("Failed to fetch URL {}:  {}", requestUri, ex.getMessage());
+            return new HttpFetchResult.ResultException(ex);
+        }
+    }
+
+    /** Write the request and the buffered response to the WARC file,
+     * and construct the fetch result from the response. */
+    private HttpFetchResult recordResponse(URI requestUri,
+                                           HttpRequest request,
+                                           Map<String, List<String>> extraHeaders,
+                                           Instant requestDate,
+                                           HttpResponse response,
+                                           WarcInputBuffer inputBuffer,
+                                           DomainCookies cookies) throws Exception
+    {
+        WarcDigestBuilder responseDigestBuilder = new WarcDigestBuilder();
+        WarcDigestBuilder payloadDigestBuilder = new WarcDigestBuilder();
+
+        Instant responseDate = Instant.now();
+
+        cookies.updateCookieStore(response);
+
+        // Build and write the request
+
+        WarcDigestBuilder requestDigestBuilder = new WarcDigestBuilder();
+
+        byte[] httpRequestString = WarcProtocolReconstructor
+                .getHttpRequestString(
+                        request.getMethod(),
+                        request.getHeaders(),
+                        extraHeaders,
+                        requestUri)
+                .getBytes();
+
+        requestDigestBuilder.update(httpRequestString);
+
+        WarcRequest warcRequest = new WarcRequest.Builder(requestUri)
+                .blockDigest(requestDigestBuilder.build())
+                .date(requestDate)
+                .body(MediaType.HTTP_REQUEST, httpRequestString)
+                .build();
+
+        warcRequest.http(); // force HTTP header to be parsed before body is consumed so that caller can use it
+        writer.write(warcRequest);
+
+
+        if (cookies.hasCookies()) {
+            response.addHeader("X-Has-Cookies", 1);
+        }
+
+        byte[] responseHeaders = WarcProtocolReconstructor.getResponseHeader(response,
+                Duration.between(requestDate, responseDate),
+                inputBuffer.size()).getBytes(StandardCharsets.UTF_8);
+
+        // The body is digested and written to the WARC file from the input buffer
+        // where it was received, without first being copied into a contiguous array
+
+        responseDigestBuilder.update(responseHeaders);
+        inputBuffer.updateDigests(responseDigestBuilder, payloadDigestBuilder);
+
+        ByteBuffer[] bodyViews = inputBuffer.views();
+        ByteBuffer[] responseBuffers = new ByteBuffer[bodyViews.length + 1];
+        responseBuffers[0] = ByteBuffer.wrap(responseHeaders);
+        System.arraycopy(bodyViews, 0, responseBuffers, 1, bodyViews.length);
+
+        // with some http client libraries, that resolve redirects transparently, this might be different
+        // from the request URI, but currently we don't have transparent redirect resolution so it's always
+        // the same (though let's keep the variables separate in case this changes)
+        final URI responseUri = requestUri;
+
+        WarcResponse.Builder responseBuilder = new WarcResponse.Builder(responseUri)
+                .blockDigest(responseDigestBuilder.build())
+                .date(responseDate)
+                .concurrentTo(warcRequest.id())
+                .body(MediaType.HTTP_RESPONSE,
+                        new WarcBufferPool.BufferChannel(responseBuffers),
+                        responseHeaders.length + (long) inputBuffer.size());
+
+        InetAddress inetAddress = InetAddress.getByName(responseUri.getHost());
+        responseBuilder.ipAddress(inetAddress);
+        responseBuilder.payloadDigest(payloadDigestBuilder.build());
+        responseBuilder.truncated(inputBuffer.truncationReason());
+
+        // Build and write the response
+
+        var warcResponse = responseBuilder.build();
+        warcResponse.http(); // force HTTP header to be parsed before body is consumed so that caller can use it
+        writer.write(warcResponse);
+
+        if (Duration.between(requestDate, Instant.now()).compareTo(Duration.ofSeconds(9)) > 0
+                && inputBuffer.size() < 2048
+                && !requestUri.getPath().endsWith("robots.txt")) // don't bail on robots.txt
+        {
+            // Fast detection and mitigation of crawler traps that respond with slow
+            // small responses, with a high branching factor
+
+            // Note we bail *after* writing the warc records, this will effectively only
+            // prevent link extraction from the document.
+
+            logger.warn("URL {} took too long to fetch ({}s) and was too small for the effort ({}b)",
+                    requestUri,
+                    Duration.between(requestDate, Instant.now()).getSeconds(),
+                    inputBuffer.size()
+            );
+
+            return new HttpFetchResult.ResultException(new IOException("Likely crawler trap"));
+        }
+
+        if (response.getCode() == 301 || response.getCode() == 302 || response.getCode() == 307) {
+            // If the server responds with a redirect, we need to
+            // update the request URI to the new location
+            EdgeUrl redirectLocation = Optional.ofNullable(response.getFirstHeader("Location"))
+                                               .map(NameValuePair::getValue)
+                    .flatMap(location -> linkParser.parseLink(new EdgeUrl(requestUri), location))
+                    .orElse(null);
+            if (redirectLocation != null) {
+                // If the redirect location is a valid URL, we need to update the request URI
+                return new HttpFetchResult.ResultRedirect(redirectLocation);
+            } else {
+                // If the redirect location is not a valid URL, we need to throw an exception
+                return new HttpFetchResult.ResultException(new IOException("Invalid redirect location: " + response.getFirstHeader("Location")));
+            }
+        }
+
+        try (InputStream stream = inputBuffer.read()) {
+
+            return HttpFetchResult.ResultOk.forStreamedBytes(responseUri,
+                    response.getCode(),
+                    inputBuffer.headers(),
+                    inetAddress.getHostAddress(),
+                    stream);
+        }
+    }
+
     public void resync(WarcRecord item) throws IOException {
         writer.write(item);
     }
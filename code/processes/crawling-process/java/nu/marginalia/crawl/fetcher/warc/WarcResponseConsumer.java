@@ -0,0 +1,139 @@
+package nu.marginalia.crawl.fetcher.warc;
+
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.EntityDetails;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.nio.AsyncResponseConsumer;
+import org.apache.hc.core5.http.nio.CapacityChannel;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.jetbrains.annotations.Nullable;
+import org.netpreserve.jwarc.WarcTruncationReason;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.List;
+
+/** Response consumer for the async HTTP client, that streams the response body
+ * into a {@link StreamingBuffer} as it arrives, rather than blocking a thread on
+ * reading it.
+ * <p></p>
+ * The buffer is owned by the caller once the response has been handed over, either
+ * through the result callback, or by {@link #abort}; otherwise {@link #discard} must
+ * be called to remove any temporary file.
+ */
+class WarcResponseConsumer implements AsyncResponseConsumer<WarcResponseConsumer.BufferedResponse> {
+    private static final int CAPACITY_INCREMENT = 65536;
+
+    private final Path tempDir;
+
+    private HttpResponse response;
+    private StreamingBuffer buffer;
+    private FutureCallback<BufferedResponse> resultCallback;
+    private CapacityChannel capacityChannel;
+
+    public record BufferedResponse(HttpResponse response, StreamingBuffer buffer) {}
+
+    WarcResponseConsumer(Path tempDir) {
+        this.tempDir = tempDir;
+    }
+
+    @Override
+    public synchronized void consumeResponse(HttpResponse response,
+                                             EntityDetails entityDetails,
+                                             HttpContext context,
+                                             FutureCallback<BufferedResponse> resultCallback)
+    {
+        this.response = response;
+        this.buffer = new StreamingBuffer(response.getHeaders(), tempDir);
+        this.resultCallback = resultCallback;
+
+        if (entityDetails == null) {
+            complete();
+        }
+    }
+
+    @Override
+    public void informationResponse(HttpResponse response, HttpContext context) {
+        // 1xx responses are not recorded
+    }
+
+    @Override
+    public synchronized void updateCapacity(CapacityChannel capacityChannel) throws IOException {
+        this.capacityChannel = capacityChannel;
+        capacityChannel.update(CAPACITY_INCREMENT);
+    }
+
+    @Override
+    public synchronized void consume(ByteBuffer src) throws IOException {
+        int n = src.remaining();
+
+        if (buffer != null) {
+            buffer.write(src);
+        }
+        else {
+            src.position(src.limit());
+        }
+
+        if (capacityChannel != null) {
+            capacityChannel.update(n);
+        }
+    }
+
+    @Override
+    public synchronized void streamEnd(List<? extends Header> trailers) {
+        complete();
+    }
+
+    private void complete() {
+        if (resultCallback == null)
+            return;
+
+        buffer.finish(null);
+        resultCallback.completed(new BufferedResponse(response, buffer));
+        resultCallback = null;
+    }
+
+    /** Stop consuming the response, e.g. because it took too long.
+     *
+     * @return the response received so far, or null if no response has been received
+     */
+    @Nullable
+    public synchronized BufferedResponse abort(WarcTruncationReason reason) {
+        resultCallback = null;
+
+        if (response == null)
+            return null;
+
+        buffer.finish(reason);
+        return new BufferedResponse(response, buffer);
+    }
+
+    /** Remove the buffered response, if it was never handed over to the caller */
+    public synchronized void discard() {
+        resultCallback = null;
+
+        if (buffer != null) {
+            try {
+                buffer.close();
+            } catch (Exception e) {
+                // Ignore
+            }
+        }
+    }
+
+    @Override
+    public synchronized void failed(Exception cause) {
+        if (buffer != null) {
+            buffer.finish(WarcTruncationReason.UNSPECIFIED);
+        }
+    }
+
+    @Override
+    public synchronized void releaseResources() {
+        if (buffer != null) {
+            buffer.finish(null);
+        }
+    }
+}
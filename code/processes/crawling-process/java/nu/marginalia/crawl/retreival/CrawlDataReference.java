@@ -1,8 +1,10 @@
 package nu.marginalia.crawl.retreival;
 
 import nu.marginalia.ContentTypes;
+import nu.marginalia.crawl.retreival.revisit.CrawlFingerprints;
 import nu.marginalia.io.SerializableCrawlDataStream;
 import nu.marginalia.lsh.EasyLSH;
+import nu.marginalia.model.EdgeUrl;
 import nu.marginalia.model.crawldata.CrawledDocument;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
@@ -27,6 +29,10 @@ public class CrawlDataReference implements AutoCloseable, Iterable<CrawledDocume
     @Nullable
     private SerializableCrawlDataStream data = null;
 
+    @Nullable
+    private CrawlFingerprints.Reader fingerprints = null;
+    private boolean fingerprintsOpened = false;
+
     private static final Logger logger = LoggerFactory.getLogger(CrawlDataReference.class);
 
     public CrawlDataReference(@Nullable Path path) {
@@ -41,7 +47,34 @@ public class CrawlDataReference implements AutoCloseable, Iterable<CrawledDocume
     public void delete() throws IOException {
         if (path != null) {
             Files.deleteIfExists(path);
+            Files.deleteIfExists(CrawlFingerprints.pathFor(path));
+        }
+    }
+
+    /** Look up the fingerprint of the URL from the previous crawl, if the previous
+     * crawl left a fingerprint index */
+    public Optional<CrawlFingerprints.Fingerprint> getFingerprint(EdgeUrl url) {
+        if (closed) {
+            throw new IllegalStateException("Use after close()");
+        }
+
+        if (!fingerprintsOpened) {
+            fingerprintsOpened = true;
+
+            if (path != null && Files.exists(CrawlFingerprints.pathFor(path))) {
+                try {
+                    fingerprints = CrawlFingerprints.Reader.open(CrawlFingerprints.pathFor(path));
+                }
+                catch (Exception ex) {
+                    logger.error("Failed to open fingerprint index", ex);
+                }
+            }
         }
+
+        if (fingerprints == null)
+            return Optional.empty();
+
+        return fingerprints.get(url);
     }
 
     public @NotNull Iterator<CrawledDocument> iterator() {
@@ -82,14 +115,14 @@ public class CrawlDataReference implements AutoCloseable, Iterable<CrawledDocume
     }
 
     public static boolean isContentBodySame(byte[] one, byte[] other) {
+        return isContentHashSame(contentHash(one), contentHash(other));
+    }
 
-        final long contentHashOne = contentHash(one);
-        final long contentHashOther = contentHash(other);
-
+    public static boolean isContentHashSame(long contentHashOne, long contentHashOther) {
         return EasyLSH.hammingDistance(contentHashOne, contentHashOther) < 4;
     }
 
-    private static long contentHash(byte[] content) {
+    public static long contentHash(byte[] content) {
         EasyLSH hash = new EasyLSH();
         int next = 0;
 
@@ -126,6 +159,9 @@ public class CrawlDataReference implements AutoCloseable, Iterable<CrawledDocume
             if (data != null) {
                 data.close();
             }
+            if (fingerprints != null) {
+                fingerprints.close();
+            }
             closed = true;
         }
     }
@@ -2,6 +2,7 @@ package nu.marginalia.crawl.retreival;
 
 import nu.marginalia.crawl.fetcher.HttpFetcherImpl;
 
+import javax.annotation.Nullable;
 import java.time.Duration;
 import java.util.concurrent.ThreadLocalRandom;
 
@@ -19,13 +20,22 @@ public class CrawlDelayTimer {
 
     private final long delayTime;
 
+    /** Fetch slots shared with other domains on the same IP address, if any */
+    @Nullable
+    private final CrawlerIpScheduler.IpPermit ipPermit;
+
     public CrawlDelayTimer(long delayTime) {
+        this(delayTime, null);
+    }
+
+    public CrawlDelayTimer(long delayTime, @Nullable CrawlerIpScheduler.IpPermit ipPermit) {
         if (delayTime <= 0) {
             this.delayTime = DEFAULT_CRAWL_DELAY_MIN_MS;
         }
         else {
             this.delayTime = delayTime;
         }
+        this.ipPermit = ipPermit;
     }
 
     /** Call when we've gotten an HTTP 429 response.  This will wait a moment, and then
@@ -56,6 +66,21 @@ public class CrawlDelayTimer {
     }
 
     public void waitFetchDelay(long spentTime) {
+        waitDomainDelay(spentTime);
+
+        if (ipPermit != null) {
+            // Then wait for our turn among the domains hosted on the same IP address
+            try {
+                ipPermit.awaitFetchSlot();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted", e);
+            }
+        }
+    }
+
+    private void waitDomainDelay(long spentTime) {
         long sleepTime = delayTime;
 
         long jitter = ThreadLocalRandom.current().nextLong(0, 150);
@@ -0,0 +1,277 @@
+package nu.marginalia.crawl.retreival;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+import com.google.inject.Singleton;
+import io.prometheus.metrics.core.metrics.Gauge;
+import io.prometheus.metrics.core.metrics.Histogram;
+
+import javax.annotation.Nullable;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Enforces politeness across all domains hosted on the same IP address.
+ * <p></p>
+ * The crawl delay is otherwise tracked per domain, so a shared host with hundreds of
+ * subdomains (blog platforms, shared hosting) would be fetched from by as many crawl
+ * tasks at once.  This keeps track of the domains being crawled per IP address, and
+ * hands out fetch slots for each address no more often than crawler.perIpFetchInterval.
+ * <p></p>
+ * A domain whose address already has crawler.maxDomainsPerIp domains in flight is
+ * turned away, so that the crawl task can be retried later and the thread given to
+ * a domain on some other address, rather than waiting for its slot.
+ * <p></p>
+ * Domains are grouped by IP address rather than by ASN, as the large hosting and CDN
+ * networks would otherwise be throttled as if they were a single server.  For the same
+ * reason, an address that more than crawler.sharedIpDomainThreshold of the resolved domains
+ * point to is taken to be a CDN or anycast address in front of many unrelated servers, and
+ * its domains are scheduled as if each had an address of its own.
+ * <p></p>
+ * The resolved addresses are cached for crawler.ipCacheTtlMinutes, and names that don't
+ * resolve are retried after crawler.ipNegativeCacheTtlSeconds.
+ */
+@Singleton
+public class CrawlerIpScheduler {
+    private static final Duration FETCH_INTERVAL = Duration.ofMillis(Long.getLong("crawler.perIpFetchInterval", 250));
+    private static final int MAX_DOMAINS_PER_IP = Integer.getInteger("crawler.maxDomainsPerIp", 8);
+    private static final int SHARED_IP_DOMAIN_THRESHOLD = Integer.getInteger("crawler.sharedIpDomainThreshold", 64);
+    private static final Duration CACHE_TTL = Duration.ofMinutes(Long.getLong("crawler.ipCacheTtlMinutes", 60));
+    private static final Duration NEGATIVE_CACHE_TTL = Duration.ofSeconds(Long.getLong("crawler.ipNegativeCacheTtlSeconds", 60));
+    private static final int CACHE_SIZE = Integer.getInteger("crawler.ipCacheSize", 250_000);
+
+    private final Map<String, IpState> ipStates = new ConcurrentHashMap<>();
+
+    /** The number of cached domains that resolve to each address, to find the shared addresses */
+    private final Map<String, Integer> domainsPerIp = new ConcurrentHashMap<>();
+    private final Cache<String, ResolvedAddress> resolvedAddresses;
+
+    private final Duration fetchInterval;
+    private final int maxDomainsPerIp;
+    private final int sharedIpDomainThreshold;
+    private final Duration cacheTtl;
+    private final Duration negativeCacheTtl;
+    private final Function<String, String> resolver;
+
+    private static final Gauge metric_active_ips = Gauge.builder()
+            .name("crawler_ip_active")
+            .help("Number of IP addresses with domains being crawled")
+            .register();
+    private static final Histogram metric_ip_wait_time = Histogram.builder()
+            .name("crawler_ip_wait_time")
+            .classicLinearUpperBounds(0.05, 0.05, 40)
+            .help("Time spent waiting for a per-IP fetch slot, in seconds")
+            .register();
+
+    public CrawlerIpScheduler() {
+        this(FETCH_INTERVAL, MAX_DOMAINS_PER_IP, SHARED_IP_DOMAIN_THRESHOLD,
+                CACHE_TTL, NEGATIVE_CACHE_TTL, CACHE_SIZE,
+                CrawlerIpScheduler::resolveAddress);
+    }
+
+    /** For testing
+     *
+     * @param resolver resolves a domain name to an address, or returns null if the name doesn't resolve
+     */
+    CrawlerIpScheduler(Duration fetchInterval,
+                       int maxDomainsPerIp,
+                       int sharedIpDomainThreshold,
+                       Duration cacheTtl,
+                       Duration negativeCacheTtl,
+                       int cacheSize,
+                       Function<String, String> resolver) {
+        this.fetchInterval = fetchInterval;
+        this.maxDomainsPerIp = maxDomainsPerIp;
+        this.sharedIpDomainThreshold = sharedIpDomainThreshold;
+        this.cacheTtl = cacheTtl;
+        this.negativeCacheTtl = negativeCacheTtl;
+        this.resolver = resolver;
+
+        this.resolvedAddresses = CacheBuilder.newBuilder()
+                .maximumSize(cacheSize)
+                .removalListener((RemovalNotification<String, ResolvedAddress> notification) -> {
+                    ResolvedAddress address = notification.getValue();
+                    if (address != null && address.ip() != null) {
+                        domainsPerIp.computeIfPresent(address.ip(), (_, count) -> count <= 1 ? null : count - 1);
+                    }
+                })
+                .build();
+    }
+
+    /** Best effort indicator whether a permit for the domain would be granted now,
+     * without resolving the domain if it hasn't been seen before */
+    public boolean isAvailableHint(String domain) {
+        ResolvedAddress address = resolvedAddresses.getIfPresent(domain);
+        if (address == null)
+            return true;
+
+        IpState state = ipStates.get(schedulingKey(domain, address));
+        return state == null || state.activeDomains() < maxDomainsPerIp;
+    }
+
+    /** Register the domain as being crawled, returning a permit that must be closed when
+     * the crawl of the domain is done.  Returns empty if too many domains on the same IP
+     * address are already being crawled.
+     */
+    public Optional<IpPermit> tryAcquire(String domain) {
+        ResolvedAddress address = resolve(domain);
+        String key = schedulingKey(domain, address);
+
+        // Register within compute() so that the state can't be removed by a concurrent release
+        IpPermit[] permit = new IpPermit[1];
+        ipStates.compute(key, (_, state) -> {
+            if (state == null) {
+                state = new IpState();
+            }
+            if (state.tryRegisterDomain(maxDomainsPerIp)) {
+                permit[0] = new IpPermit(address.ip(), key, state);
+            }
+            return state;
+        });
+
+        metric_active_ips.set(ipStates.size());
+
+        return Optional.ofNullable(permit[0]);
+    }
+
+    /** Resolve the domain, or return its cached address.  The lookup is done outside
+     * of the cache, so that a slow lookup doesn't hold up the lookups of other domains */
+    private ResolvedAddress resolve(String domain) {
+        Instant now = Instant.now();
+
+        ResolvedAddress address = resolvedAddresses.getIfPresent(domain);
+        if (address != null && address.expires().isAfter(now)) {
+            return address;
+        }
+
+        String ip = resolver.apply(domain);
+        if (ip == null) {
+            address = new ResolvedAddress(null, now.plus(negativeCacheTtl));
+        }
+        else {
+            address = new ResolvedAddress(ip, now.plus(cacheTtl));
+            domainsPerIp.merge(ip, 1, Integer::sum);
+        }
+
+        // Replacing an entry decrements the count of the address it replaces
+        resolvedAddresses.put(domain, address);
+
+        return address;
+    }
+
+    /** The key of the state the domain is scheduled by, which is the address, unless the
+     * domain doesn't resolve or its address is shared by too many domains, in which case
+     * it's the domain itself */
+    private String schedulingKey(String domain, ResolvedAddress address) {
+        if (address.ip() == null)
+            return domain;
+        if (domainsPerIp.getOrDefault(address.ip(), 0) > sharedIpDomainThreshold)
+            return domain;
+        return address.ip();
+    }
+
+    @Nullable
+    private static String resolveAddress(String domain) {
+        try {
+            return InetAddress.getByName(domain).getHostAddress();
+        }
+        catch (UnknownHostException e) {
+            // The domain probe will fail for this domain, so it will not be fetched from
+            return null;
+        }
+    }
+
+    private void release(String key) {
+        ipStates.computeIfPresent(key, (_, s) -> s.unregisterDomain() == 0 ? null : s);
+
+        metric_active_ips.set(ipStates.size());
+    }
+
+    public int activeDomains(String domain) {
+        ResolvedAddress address = resolvedAddresses.getIfPresent(domain);
+        if (address == null)
+            return 0;
+
+        IpState state = ipStates.get(schedulingKey(domain, address));
+        return state == null ? 0 : state.activeDomains();
+    }
+
+    /** A cached name lookup, where ip is null if the name didn't resolve */
+    private record ResolvedAddress(@Nullable String ip, Instant expires) {}
+
+    public class IpPermit implements AutoCloseable {
+        @Nullable
+        private final String ip;
+        private final String key;
+        private final IpState state;
+        private boolean closed = false;
+
+        private IpPermit(@Nullable String ip, String key, IpState state) {
+            this.ip = ip;
+            this.key = key;
+            this.state = state;
+        }
+
+        /** The address of the domain, or null if it didn't resolve */
+        @Nullable
+        public String ip() {
+            return ip;
+        }
+
+        /** Wait until the next fetch slot for the IP address */
+        public void awaitFetchSlot() throws InterruptedException {
+            Instant now = Instant.now();
+            Instant slot = state.reserveSlot(now, fetchInterval);
+
+            Duration wait = Duration.between(now, slot);
+            metric_ip_wait_time.observe(wait.toMillis() / 1000.);
+
+            if (wait.isPositive()) {
+                Thread.sleep(wait);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                release(key);
+            }
+        }
+    }
+
+    private static class IpState {
+        private int activeDomains = 0;
+        private Instant nextSlot = Instant.EPOCH;
+
+        synchronized boolean tryRegisterDomain(int maxDomains) {
+            if (activeDomains >= maxDomains)
+                return false;
+
+            activeDomains++;
+            return true;
+        }
+
+        synchronized int unregisterDomain() {
+            return --activeDomains;
+        }
+
+        synchronized int activeDomains() {
+            return activeDomains;
+        }
+
+        /** Reserve the next free slot, and push the following slot one interval further */
+        synchronized Instant reserveSlot(Instant now, Duration interval) {
+            Instant slot = nextSlot.isAfter(now) ? nextSlot : now;
+            nextSlot = slot.plus(interval);
+            return slot;
+        }
+    }
+}
@@ -10,6 +10,7 @@ import nu.marginalia.crawl.fetcher.DomainCookies;
 import nu.marginalia.crawl.fetcher.HttpFetcher;
 import nu.marginalia.crawl.fetcher.warc.WarcRecorder;
 import nu.marginalia.crawl.logic.LinkFilterSelector;
+import nu.marginalia.crawl.retreival.revisit.CrawlFingerprints;
 import nu.marginalia.crawl.retreival.revisit.CrawlerRevisitor;
 import nu.marginalia.crawl.retreival.revisit.DocumentWithReference;
 import nu.marginalia.ip_blocklist.UrlBlocklist;
@@ -22,6 +23,7 @@ import nu.marginalia.model.crawldata.CrawlerDomainStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
@@ -53,6 +55,10 @@ public class CrawlerRetreiver implements AutoCloseable {
     private final WarcRecorder warcRecorder;
     private final CrawlerRevisitor crawlerRevisitor;
     private final DomainCookies cookies = new DomainCookies();
+    private final CrawlFingerprints.Builder fingerprints = new CrawlFingerprints.Builder();
+
+    @Nullable
+    private final CrawlerIpScheduler.IpPermit ipPermit;
 
     private static final CrawlerConnectionThrottle connectionThrottle = new CrawlerConnectionThrottle(
             Duration.ofSeconds(1), // pace the connections to avoid network congestion at startup
@@ -67,6 +73,17 @@ public class CrawlerRetreiver implements AutoCloseable {
                             DomainStateDb domainStateDb,
                             WarcRecorder warcRecorder)
     {
+        this(fetcher, domainProber, specs, domainStateDb, warcRecorder, null);
+    }
+
+    public CrawlerRetreiver(HttpFetcher fetcher,
+                            DomainProber domainProber,
+                            CrawlerMain.CrawlSpecRecord specs,
+                            DomainStateDb domainStateDb,
+                            WarcRecorder warcRecorder,
+                            @Nullable CrawlerIpScheduler.IpPermit ipPermit)
+    {
+        this.ipPermit = ipPermit;
         this.domainStateDb = domainStateDb;
         this.warcRecorder = warcRecorder;
         this.fetcher = fetcher;
@@ -92,6 +109,12 @@ public class CrawlerRetreiver implements AutoCloseable {
         return crawlFrontier;
     }
 
+    /** Fingerprints of the documents fetched or carried over in this crawl,
+     * to be written alongside the crawl data for the next crawl */
+    public CrawlFingerprints.Builder getFingerprints() {
+        return fingerprints;
+    }
+
     public CrawlerResult crawlDomain() {
         return crawlDomain(new DomainLinks(), new CrawlDataReference());
     }
@@ -116,7 +139,7 @@ public class CrawlerRetreiver implements AutoCloseable {
                     TimeUnit.SECONDS.sleep(1);
 
                     final SimpleRobotRules robotsRules = fetcher.fetchRobotRules(probedUrl, warcRecorder);
-                    final CrawlDelayTimer delayTimer = new CrawlDelayTimer(robotsRules.getCrawlDelay());
+                    final CrawlDelayTimer delayTimer = new CrawlDelayTimer(robotsRules.getCrawlDelay(), ipPermit);
 
                     if (!robotsRules.isAllowed(probedUrl.toString())) {
                         warcRecorder.flagAsRobotsTxtError(probedUrl);
@@ -519,9 +542,41 @@ public class CrawlerRetreiver implements AutoCloseable {
             logger.error("Error parsing document {}", top, ex);
         }
 
+        recordFingerprint(top, fetchedDoc, reference, contentTags);
+
         return fetchedDoc;
     }
 
+    private void recordFingerprint(EdgeUrl url,
+                                   HttpFetchResult result,
+                                   DocumentWithReference reference,
+                                   ContentTags contentTags)
+    {
+        Instant now = Instant.now();
+        CrawlFingerprints.Fingerprint previous = reference.fingerprint();
+
+        switch (result) {
+            case HttpFetchResult.Result304ReplacedWithReference(_, _, byte[] body) -> {
+                long bodyHash = previous != null ? previous.bodyHash() : CrawlDataReference.contentHash(body);
+                Instant lastChanged = previous != null ? previous.lastChanged() : now;
+
+                fingerprints.put(url, new CrawlFingerprints.Fingerprint(bodyHash, lastChanged, now, contentTags.etag(), contentTags.lastMod()));
+            }
+            case HttpFetchResult.ResultOk ok when ok.statusCode() == 200 -> {
+                long bodyHash = CrawlDataReference.contentHash(ok.getBodyBytes());
+
+                // Without a fingerprint from the previous crawl, we don't know when the document last
+                // changed, so we count from now
+                Instant lastChanged = previous != null && CrawlDataReference.isContentHashSame(previous.bodyHash(), bodyHash)
+                        ? previous.lastChanged()
+                        : now;
+
+                fingerprints.put(url, new CrawlFingerprints.Fingerprint(bodyHash, lastChanged, now, ok.header("ETag"), ok.header("Last-Modified")));
+            }
+            default -> {}
+        }
+    }
+
     private boolean isAllowedProtocol(String proto) {
         return proto.equalsIgnoreCase("http")
                 || proto.equalsIgnoreCase("https");
@@ -0,0 +1,248 @@
+package nu.marginalia.crawl.retreival.revisit;
+
+import nu.marginalia.hash.MurmurHash3_128;
+import nu.marginalia.model.EdgeUrl;
+
+import javax.annotation.Nullable;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/** Index of the HTTP validators and content hashes of the documents in a crawl of a domain.
+ * <p></p>
+ * The index is written alongside the crawl data, and is memory mapped by the next crawl of the
+ * domain to decide per URL whether the document is due to be fetched again, instead of relying
+ * only on how many documents in the domain have changed so far in the recrawl.  A document that
+ * has not changed in a long time is checked less often than one that changed on the last visit.
+ * <p></p>
+ * Layout: a 16 byte header (long magic, int count, int unused), followed by count 32 byte entries
+ * sorted by URL hash (long urlHash, long bodyHash, int lastChanged, int lastChecked,
+ * int tagsOffset, int tagsLength), followed by the ETag and Last-Modified strings of the entries.
+ */
+public class CrawlFingerprints {
+    private static final long MAGIC = 0x4D465052494E5431L; // "MFPRINT1"
+    private static final int HEADER_SIZE = 16;
+    private static final int ENTRY_SIZE = 32;
+
+    private static final Duration MAX_RECHECK_INTERVAL = Duration.ofDays(Integer.getInteger("crawler.maxRecheckIntervalDays", 90));
+
+    private static final MurmurHash3_128 hasher = new MurmurHash3_128();
+
+    private static final ValueLayout.OfLong LONG = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+    private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+    private static final ValueLayout.OfShort SHORT = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+
+    /** Path of the fingerprint index belonging to the crawl data file */
+    public static Path pathFor(Path crawlDataPath) {
+        return crawlDataPath.resolveSibling(crawlDataPath.getFileName() + ".fp");
+    }
+
+    public static long urlHash(EdgeUrl url) {
+        return hasher.hashNearlyASCII(url.toString());
+    }
+
+    /**
+     * @param bodyHash content hash of the document body, see {@link nu.marginalia.crawl.retreival.CrawlDataReference#contentHash(byte[])}
+     * @param lastChanged when the document was last seen to have changed, or was first fetched
+     * @param lastChecked when the document was last fetched
+     */
+    public record Fingerprint(long bodyHash,
+                              Instant lastChanged,
+                              Instant lastChecked,
+                              @Nullable String etag,
+                              @Nullable String lastModified)
+    {
+        /** Returns true if the document should be fetched again.  The longer the document
+         * had gone unchanged by the last check, the longer we wait until the next one, up to
+         * crawler.maxRecheckIntervalDays.
+         */
+        public boolean isDueForRecheck(Instant now) {
+            Duration interval = Duration.between(lastChanged, lastChecked).dividedBy(2);
+            if (interval.compareTo(MAX_RECHECK_INTERVAL) > 0) {
+                interval = MAX_RECHECK_INTERVAL;
+            }
+
+            return !now.isBefore(lastChecked.plus(interval));
+        }
+    }
+
+    /** Collects the fingerprints of a crawl in progress */
+    public static class Builder {
+        private final Map<Long, Fingerprint> fingerprints = new HashMap<>();
+
+        public synchronized void put(EdgeUrl url, Fingerprint fingerprint) {
+            fingerprints.put(urlHash(url), fingerprint);
+        }
+
+        public synchronized int size() {
+            return fingerprints.size();
+        }
+
+        /** Write the index to the path, replacing any existing file atomically */
+        public synchronized void write(Path path) throws IOException {
+            long[] hashes = fingerprints.keySet().stream().mapToLong(Long::longValue).sorted().toArray();
+
+            Path tempFile = path.resolveSibling(path.getFileName() + ".tmp");
+
+            try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+                out.writeLong(MAGIC);
+                out.writeInt(hashes.length);
+                out.writeInt(0);
+
+                byte[][] tags = new byte[hashes.length][];
+                int tagsOffset = 0;
+
+                for (int i = 0; i < hashes.length; i++) {
+                    Fingerprint fp = fingerprints.get(hashes[i]);
+                    tags[i] = encodeTags(fp);
+
+                    out.writeLong(hashes[i]);
+                    out.writeLong(fp.bodyHash());
+                    out.writeInt((int) fp.lastChanged().getEpochSecond());
+                    out.writeInt((int) fp.lastChecked().getEpochSecond());
+                    out.writeInt(tagsOffset);
+                    out.writeInt(tags[i].length);
+
+                    tagsOffset += tags[i].length;
+                }
+
+                for (byte[] tag : tags) {
+                    out.write(tag);
+                }
+            }
+
+            Files.move(tempFile, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        private static byte[] encodeTags(Fingerprint fp) throws IOException {
+            var baos = new ByteArrayOutputStream();
+            try (var out = new DataOutputStream(baos)) {
+                writeString(out, fp.etag());
+                writeString(out, fp.lastModified());
+            }
+            return baos.toByteArray();
+        }
+
+        private static void writeString(DataOutputStream out, @Nullable String value) throws IOException {
+            if (value == null) {
+                out.writeShort(-1);
+            }
+            else {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                // Validators are short; anything absurdly long is not worth keeping
+                if (bytes.length > Short.MAX_VALUE) {
+                    out.writeShort(-1);
+                }
+                else {
+                    out.writeShort(bytes.length);
+                    out.write(bytes);
+                }
+            }
+        }
+    }
+
+    /** Memory mapped view of a fingerprint index.  Confined to the thread that opened it. */
+    public static class Reader implements AutoCloseable {
+        private final Arena arena;
+        private final MemorySegment segment;
+        private final int count;
+        private final long tagsBase;
+
+        private Reader(Arena arena, MemorySegment segment) throws IOException {
+            this.arena = arena;
+            this.segment = segment;
+
+            if (segment.byteSize() < HEADER_SIZE || segment.get(LONG, 0) != MAGIC) {
+                throw new IOException("Not a fingerprint index");
+            }
+
+            count = segment.get(INT, 8);
+            tagsBase = HEADER_SIZE + (long) count * ENTRY_SIZE;
+
+            if (count < 0 || tagsBase > segment.byteSize()) {
+                throw new IOException("Truncated fingerprint index");
+            }
+        }
+
+        public static Reader open(Path path) throws IOException {
+            Arena arena = Arena.ofConfined();
+
+            try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                return new Reader(arena, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena));
+            }
+            catch (IOException | RuntimeException ex) {
+                arena.close();
+                throw ex;
+            }
+        }
+
+        public int size() {
+            return count;
+        }
+
+        public Optional<Fingerprint> get(EdgeUrl url) {
+            long hash = urlHash(url);
+
+            int low = 0;
+            int high = count - 1;
+
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                long entryHash = segment.get(LONG, HEADER_SIZE + (long) mid * ENTRY_SIZE);
+
+                if (entryHash < hash) low = mid + 1;
+                else if (entryHash > hash) high = mid - 1;
+                else return Optional.of(readEntry(HEADER_SIZE + (long) mid * ENTRY_SIZE));
+            }
+
+            return Optional.empty();
+        }
+
+        private Fingerprint readEntry(long offset) {
+            long bodyHash = segment.get(LONG, offset + 8);
+            Instant lastChanged = Instant.ofEpochSecond(Integer.toUnsignedLong(segment.get(INT, offset + 16)));
+            Instant lastChecked = Instant.ofEpochSecond(Integer.toUnsignedLong(segment.get(INT, offset + 20)));
+
+            long tagsOffset = tagsBase + segment.get(INT, offset + 24);
+
+            short etagLength = segment.get(SHORT, tagsOffset);
+            String etag = readString(tagsOffset + 2, etagLength);
+            tagsOffset += 2 + Math.max(0, etagLength);
+
+            short lastModifiedLength = segment.get(SHORT, tagsOffset);
+            String lastModified = readString(tagsOffset + 2, lastModifiedLength);
+
+            return new Fingerprint(bodyHash, lastChanged, lastChecked, etag, lastModified);
+        }
+
+        @Nullable
+        private String readString(long offset, short length) {
+            if (length < 0)
+                return null;
+
+            byte[] bytes = segment.asSlice(offset, length).toArray(ValueLayout.JAVA_BYTE);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void close() {
+            arena.close();
+        }
+    }
+}
@@ -15,10 +15,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.time.Instant;
+import java.util.Optional;
 
 /** This class encapsulates the logic for re-visiting a domain that has already been crawled.
  *  We may use information from the previous crawl to inform the next crawl, specifically the
- *  E-Tag and Last-Modified headers.
+ *  E-Tag and Last-Modified headers, and the fingerprints of the documents, which tell us how
+ *  long each document has gone without changing.
  */
 public class CrawlerRevisitor {
 
@@ -58,6 +61,8 @@ public class CrawlerRevisitor {
             strategy = Strategy.FULL;
         }
 
+        final Instant recrawlStart = Instant.now();
+
         for (CrawledDocument doc : oldCrawlData) {
             if (errors > 20) {
                 // If we've had too many errors, we'll stop trying to recrawl
@@ -105,38 +110,48 @@ public class CrawlerRevisitor {
 
             size++;
 
-            double skipProb;
+            Optional<CrawlFingerprints.Fingerprint> fingerprint = oldCrawlData.getFingerprint(url);
+            boolean skip;
 
-            // calculate the probability of skipping this document based on the
-            // fraction of documents that haven't changed
-            if (strategy == Strategy.SUMMARY && recrawled >= 5 && retained > 0.8 * recrawled) {
-                skipProb = 1.0;
+            if (fingerprint.isPresent()) {
+                // We know when this document was last checked and when it last changed,
+                // so we can decide whether it's due for a visit on its own merits
+                skip = !fingerprint.get().isDueForRecheck(recrawlStart);
             }
             else {
-                skipProb = (double) retained / recrawled;
-
-                // If we've crawled a lot of documents, we'll be more conservative
-                // in trying to recrawl documents, to avoid hammering the server too much;
-                // in the case of a large change, we'll eventually catch it anyway
-
-                if (skipped + recrawled > 10_000) {
-                    skipProb = Math.clamp(skipProb, 0.75, 0.99);
-                } else if (skipped + recrawled > 1000) {
-                    skipProb = Math.clamp(skipProb, 0.5, 0.75);
-                } else if (recrawled > 25) {
-                    skipProb = Math.clamp(skipProb, 0, 0.50);
+                double skipProb;
+
+                // calculate the probability of skipping this document based on the
+                // fraction of documents that haven't changed
+                if (strategy == Strategy.SUMMARY && recrawled >= 5 && retained > 0.8 * recrawled) {
+                    skipProb = 1.0;
                 }
                 else {
-                    skipProb = 0;
+                    skipProb = (double) retained / recrawled;
+
+                    // If we've crawled a lot of documents, we'll be more conservative
+                    // in trying to recrawl documents, to avoid hammering the server too much;
+                    // in the case of a large change, we'll eventually catch it anyway
+
+                    if (skipped + recrawled > 10_000) {
+                        skipProb = Math.clamp(skipProb, 0.75, 0.99);
+                    } else if (skipped + recrawled > 1000) {
+                        skipProb = Math.clamp(skipProb, 0.5, 0.75);
+                    } else if (recrawled > 25) {
+                        skipProb = Math.clamp(skipProb, 0, 0.50);
+                    }
+                    else {
+                        skipProb = 0;
+                    }
                 }
+                skip = Math.random() < skipProb;
             }
 
-            if (Math.random() < skipProb) //
-            {
-                // Since it looks like most of these documents haven't changed,
-                // we'll load the documents directly; but we do this in a random
-                // fashion to make sure we eventually catch changes over time
-                // and ensure we discover new links
+            if (skip) {
+                // Since it looks like this document hasn't changed, going by its fingerprint
+                // or by how many of the other documents have changed, we'll load the document
+                // directly; the recheck interval is capped and the fallback is randomized, to
+                // make sure we eventually catch changes over time and ensure we discover new links
 
                 try {
                     // Hoover up any links from the document
@@ -156,6 +171,9 @@ public class CrawlerRevisitor {
                         new ContentTags(doc.etagMaybe, doc.lastModifiedMaybe)
                 );
 
+                // Carry the fingerprint over to the new crawl, it was not checked this time
+                fingerprint.ifPresent(fp -> crawlerRetreiver.getFingerprints().put(url, fp));
+
                 skipped++;
             }
             else {
@@ -163,7 +181,7 @@ public class CrawlerRevisitor {
                 // providing etag and last-modified headers, so we can recycle the
                 // document if it hasn't changed without actually downloading it
 
-                DocumentWithReference reference =  new DocumentWithReference(doc, oldCrawlData);
+                DocumentWithReference reference =  new DocumentWithReference(doc, oldCrawlData, fingerprint.orElse(null));
 
                 var result = crawlerRetreiver.fetchContentWithReference(url, delayTimer, reference);
 
@@ -10,9 +10,14 @@ import java.util.Objects;
 
 public record DocumentWithReference(
         @Nullable CrawledDocument doc,
-        @Nullable CrawlDataReference reference) {
+        @Nullable CrawlDataReference reference,
+        @Nullable CrawlFingerprints.Fingerprint fingerprint) {
 
-    private static final DocumentWithReference emptyInstance = new DocumentWithReference(null, null);
+    private static final DocumentWithReference emptyInstance = new DocumentWithReference(null, null, null);
+
+    public DocumentWithReference(@Nullable CrawledDocument doc, @Nullable CrawlDataReference reference) {
+        this(doc, reference, null);
+    }
 
     public static DocumentWithReference empty() {
         return emptyInstance;
@@ -56,6 +61,13 @@ public record DocumentWithReference(
         if (hasIdenticalHeader("ETag", doc, resultOk))
             return true;
 
+        // Use the content hash from the previous crawl's fingerprint if we have it,
+        // rather than hashing the old document body again
+        if (fingerprint != null) {
+            return CrawlDataReference.isContentHashSame(fingerprint.bodyHash(),
+                    CrawlDataReference.contentHash(resultOk.getBodyBytes()));
+        }
+
         return CrawlDataReference.isContentBodySame(doc.documentBodyBytes, resultOk.getBodyBytes());
     }
 
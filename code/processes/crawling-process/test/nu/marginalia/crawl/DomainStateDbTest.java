@@ -5,11 +5,17 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.sql.SQLException;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -24,6 +30,8 @@ class DomainStateDbTest {
     @AfterEach
     void tearDown() throws IOException {
         Files.deleteIfExists(tempFile);
+        Files.deleteIfExists(tempFile.resolveSibling(tempFile.getFileName() + "-wal"));
+        Files.deleteIfExists(tempFile.resolveSibling(tempFile.getFileName() + "-shm"));
     }
 
     @Test
@@ -135,4 +143,181 @@ class DomainStateDbTest {
         }
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testReopen() throws SQLException {
+        var meta = new DomainStateDb.CrawlMeta("example.com", Instant.ofEpochMilli(12345), Duration.ofMillis(30), Duration.ofMillis(300), 1, 2, 3);
+
+        try (var db = new DomainStateDb(tempFile)) {
+            db.save(meta);
+            db.save(DomainStateDb.SummaryRecord.forSuccess("example.com", "https://example.com/feed.xml"));
+            db.save(new DomainStateDb.CrawlMeta("gone.example.com", Instant.ofEpochMilli(1000), Duration.ZERO, Duration.ZERO, 0, 0, 0));
+            db.deleteDomain("gone.example.com");
+        }
+
+        try (var db = DomainStateDb.openForCrawl(tempFile)) {
+            assertEquals(meta, db.getMeta("example.com").orElseThrow());
+            assertEquals("https://example.com/feed.xml", db.getSummary("example.com").orElseThrow().feedUrl());
+
+            // the deletion should survive reopening the database
+            assertTrue(db.getMeta("gone.example.com").isEmpty());
+            assertEquals(1, db.getLastFullCrawlTimes().size());
+        }
+    }
+
+    @Test
+    public void testReopenWithHole() throws Exception {
+        try (var db = new DomainStateDb(tempFile)) {
+            db.save(new DomainStateDb.CrawlMeta("a.example.com", Instant.ofEpochMilli(1000), Duration.ZERO, Duration.ZERO, 0, 0, 0));
+            db.save(new DomainStateDb.CrawlMeta("b.example.com", Instant.ofEpochMilli(2000), Duration.ZERO, Duration.ZERO, 0, 0, 0));
+            db.save(new DomainStateDb.CrawlMeta("c.example.com", Instant.ofEpochMilli(3000), Duration.ZERO, Duration.ZERO, 0, 0, 0));
+        }
+
+        // Zero out the second record, as a write that failed after its space was reserved would leave it
+        try (var channel = FileChannel.open(tempFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long offset = LogDomainStateStore.MAGIC.length;
+            offset += 8 + readInt(channel, offset);
+
+            int length = 8 + readInt(channel, offset);
+            channel.write(ByteBuffer.allocate(length), offset);
+        }
+
+        try (var db = new DomainStateDb(tempFile)) {
+            assertTrue(db.getMeta("a.example.com").isPresent());
+            assertTrue(db.getMeta("b.example.com").isEmpty());
+            assertTrue(db.getMeta("c.example.com").isPresent());
+
+            db.save(new DomainStateDb.CrawlMeta("d.example.com", Instant.ofEpochMilli(4000), Duration.ZERO, Duration.ZERO, 0, 0, 0));
+        }
+
+        // The write after reopening should have gone after the records past the hole
+        try (var db = new DomainStateDb(tempFile)) {
+            var times = db.getLastFullCrawlTimes();
+            assertEquals(3, times.size());
+            assertEquals(3000L, times.get("c.example.com"));
+            assertEquals(4000L, times.get("d.example.com"));
+        }
+    }
+
+    private static int readInt(FileChannel channel, long offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        channel.read(buffer, offset);
+        return buffer.flip().getInt();
+    }
+
+    @Test
+    public void testSingleWriter() throws SQLException {
+        try (var writer = new DomainStateDb(tempFile);
+             var otherWriter = new DomainStateDb(tempFile))
+        {
+            writer.save(DomainStateDb.SummaryRecord.forSuccess("example.com"));
+
+            assertThrows(IllegalStateException.class, () -> otherWriter.deleteDomain("example.com"));
+
+            // ... but it may still read
+            assertTrue(otherWriter.getSummary("example.com").isPresent());
+        }
+
+        // Once the writer has closed, another may take its place
+        try (var db = new DomainStateDb(tempFile)) {
+            db.deleteDomain("example.com");
+            assertTrue(db.getSummary("example.com").isEmpty());
+        }
+    }
+
+    @Test
+    public void testReaderLoadsIndexesWhenNeeded() throws SQLException {
+        try (var writer = new DomainStateDb(tempFile);
+             var reader = new DomainStateDb(tempFile))
+        {
+            writer.saveIcon("a.example.com", new DomainStateDb.FaviconRecord("image/png", new byte[] { 1 }));
+            writer.save(new DomainStateDb.CrawlMeta("a.example.com", Instant.ofEpochMilli(1000), Duration.ZERO, Duration.ZERO, 0, 0, 0));
+
+            // Loads the icon index only
+            assertTrue(reader.getIcon("a.example.com").isPresent());
+
+            writer.saveIcon("b.example.com", new DomainStateDb.FaviconRecord("image/png", new byte[] { 2 }));
+            writer.save(new DomainStateDb.CrawlMeta("b.example.com", Instant.ofEpochMilli(2000), Duration.ZERO, Duration.ZERO, 0, 0, 0));
+            writer.deleteDomain("a.example.com");
+
+            // The loaded index should pick up the records appended since, and the index loaded
+            // later should include the records that were scanned before it was needed
+            assertTrue(reader.getIcon("a.example.com").isEmpty());
+            assertArrayEquals(new byte[] { 2 }, reader.getIcon("b.example.com").orElseThrow().imageData());
+            assertTrue(reader.getMeta("a.example.com").isEmpty());
+            assertEquals(Map.of("b.example.com", 2000L), reader.getLastFullCrawlTimes());
+        }
+    }
+
+    @Test
+    public void testOpenForWritingWaitsForWriter() throws Exception {
+        var writer = new DomainStateDb(tempFile);
+        writer.save(DomainStateDb.SummaryRecord.forSuccess("example.com"));
+
+        // Gives up with a clear error if the writer doesn't let go in time
+        var ex = assertThrows(SQLException.class, () -> DomainStateDb.openForWriting(tempFile, Duration.ofMillis(100)));
+        assertTrue(ex.getMessage().contains("in use by another process"), ex.getMessage());
+
+        try (var executor = Executors.newSingleThreadExecutor()) {
+            var waitingWriter = executor.submit(() -> DomainStateDb.openForWriting(tempFile, Duration.ofSeconds(30)));
+
+            TimeUnit.MILLISECONDS.sleep(500);
+            assertFalse(waitingWriter.isDone());
+            writer.close();
+
+            try (var db = waitingWriter.get(30, TimeUnit.SECONDS)) {
+                db.deleteDomain("example.com");
+                assertTrue(db.getSummary("example.com").isEmpty());
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentWriters() throws Exception {
+        try (var db = new DomainStateDb(tempFile)) {
+            try (var executor = Executors.newFixedThreadPool(8)) {
+                for (int i = 0; i < 1000; i++) {
+                    int n = i;
+                    executor.submit(() -> db.save(new DomainStateDb.CrawlMeta("www" + n + ".example.com", Instant.ofEpochMilli(n), Duration.ZERO, Duration.ZERO, 0, 0, 0)));
+                }
+                executor.shutdown();
+                assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+            }
+
+            assertEquals(1000, db.getLastFullCrawlTimes().size());
+        }
+
+        try (var db = new DomainStateDb(tempFile)) {
+            var times = db.getLastFullCrawlTimes();
+            assertEquals(1000, times.size());
+            assertEquals(500L, times.get("www500.example.com"));
+        }
+    }
+
+    @Test
+    public void testMigrateFromSqlite() throws Exception {
+        Files.delete(tempFile);
+
+        var meta = new DomainStateDb.CrawlMeta("example.com", Instant.ofEpochMilli(12345), Duration.ofMillis(30), Duration.ofMillis(300), 1, 2, 3);
+        var summary = DomainStateDb.SummaryRecord.forError("example.com", "Redirect", "www.example.com");
+
+        try (var sqlite = new SqliteDomainStateStore(tempFile)) {
+            sqlite.save(meta);
+            sqlite.save(summary);
+            sqlite.saveIcon("example.com", new DomainStateDb.FaviconRecord("image/png", new byte[] { 1, 2, 3 }));
+        }
+
+        // Opening the database outside the crawler should leave the sqlite file as it is
+        try (var db = new DomainStateDb(tempFile)) {
+            assertEquals(meta, db.getMeta("example.com").orElseThrow());
+        }
+        assertFalse(LogDomainStateStore.isLogFile(tempFile));
+
+        try (var db = DomainStateDb.openForCrawl(tempFile)) {
+            assertEquals(meta, db.getMeta("example.com").orElseThrow());
+            assertEquals(summary, db.getSummary("example.com").orElseThrow());
+            assertArrayEquals(new byte[] { 1, 2, 3 }, db.getIcon("example.com").orElseThrow().imageData());
+        }
+        assertTrue(LogDomainStateStore.isLogFile(tempFile));
+    }
+
+}
@@ -0,0 +1,63 @@
+package nu.marginalia.crawl.fetcher;
+
+import nu.marginalia.link_parser.LinkParser;
+import nu.marginalia.model.EdgeDomain;
+import nu.marginalia.model.EdgeUrl;
+import org.apache.hc.core5.http.message.BasicHttpResponse;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+class HttpProbeLogicTest {
+    private final LinkParser linkParser = new LinkParser();
+
+    @Test
+    void testOk() throws Exception {
+        var url = new EdgeUrl("https://www.example.com/");
+
+        var result = HttpProbeLogic.probeDomain(url, linkParser, (probeUrl, rangedGet) -> new BasicHttpResponse(200));
+
+        Assertions.assertEquals(new HttpFetcher.DomainProbeResult.Ok(url), result);
+    }
+
+    @Test
+    void testFallBackToGet() throws Exception {
+        var url = new EdgeUrl("https://www.example.com/");
+        List<Boolean> requests = new ArrayList<>();
+
+        var result = HttpProbeLogic.probeDomain(url, linkParser, (probeUrl, rangedGet) -> {
+            requests.add(rangedGet);
+            return new BasicHttpResponse(rangedGet ? 206 : 405);
+        });
+
+        Assertions.assertEquals(new HttpFetcher.DomainProbeResult.Ok(url), result);
+        Assertions.assertEquals(List.of(false, true), requests);
+    }
+
+    @Test
+    void testRedirectToOtherDomain() throws Exception {
+        var url = new EdgeUrl("https://www.example.com/");
+
+        var result = HttpProbeLogic.probeDomain(url, linkParser, (probeUrl, rangedGet) -> {
+            var response = new BasicHttpResponse(301);
+            response.addHeader("Location", "https://example.com/");
+            return response;
+        });
+
+        Assertions.assertEquals(new HttpFetcher.DomainProbeResult.Redirect(new EdgeDomain("example.com")), result);
+    }
+
+    @Test
+    void testTimeout() throws Exception {
+        var url = new EdgeUrl("https://www.example.com/");
+
+        var result = HttpProbeLogic.probeDomain(url, linkParser, (probeUrl, rangedGet) -> {
+            throw new SocketTimeoutException();
+        });
+
+        Assertions.assertInstanceOf(HttpFetcher.DomainProbeResult.Error.class, result);
+    }
+}
@@ -0,0 +1,154 @@
+package nu.marginalia.crawl.fetcher.warc;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WarcBufferPoolTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testWriteAcrossChunks() throws IOException {
+        byte[] data = new byte[WarcBufferPool.CHUNK_SIZE * 2 + 17];
+        new Random(1).nextBytes(data);
+
+        try (var body = new WarcBufferPool.Body(tempDir)) {
+            // Write in odd sized pieces to straddle the chunk boundaries
+            for (int pos = 0; pos < data.length; pos += 1000) {
+                body.write(data, pos, Math.min(1000, data.length - pos));
+            }
+
+            assertEquals(data.length, body.size());
+            assertEquals(3, body.views().length);
+
+            // The contents should be readable more than once
+            for (int i = 0; i < 2; i++) {
+                try (var is = new WarcBufferPool.BufferInputStream(body.views())) {
+                    assertArrayEquals(data, is.readAllBytes());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testChannel() throws IOException {
+        byte[] header = "HTTP/1.1 200 OK\r\n\r\n".getBytes();
+        byte[] data = new byte[WarcBufferPool.CHUNK_SIZE + 5];
+        new Random(2).nextBytes(data);
+
+        try (var body = new WarcBufferPool.Body(tempDir)) {
+            body.write(ByteBuffer.wrap(data));
+
+            ByteBuffer[] views = body.views();
+            ByteBuffer[] buffers = new ByteBuffer[views.length + 1];
+            buffers[0] = ByteBuffer.wrap(header);
+            System.arraycopy(views, 0, buffers, 1, views.length);
+
+            ByteBuffer dst = ByteBuffer.allocate(header.length + data.length);
+            try (var channel = new WarcBufferPool.BufferChannel(buffers)) {
+                while (channel.read(dst) > 0);
+                assertEquals(-1, channel.read(ByteBuffer.allocate(1)));
+            }
+
+            assertFalse(dst.hasRemaining());
+            dst.flip();
+
+            byte[] headerOut = new byte[header.length];
+            byte[] dataOut = new byte[data.length];
+            dst.get(headerOut);
+            dst.get(dataOut);
+
+            assertArrayEquals(header, headerOut);
+            assertArrayEquals(data, dataOut);
+        }
+    }
+
+    @Test
+    public void testChunksAreReused() {
+        var body = new WarcBufferPool.Body(tempDir);
+        body.write(new byte[10], 0, 10);
+        body.close();
+
+        assertEquals(0, body.size());
+        assertEquals(0, body.views().length);
+
+        var chunk = WarcBufferPool.acquire();
+        assertNotNull(chunk);
+        assertEquals(0, chunk.buffer().position());
+        assertEquals(WarcBufferPool.CHUNK_SIZE, chunk.buffer().remaining());
+        WarcBufferPool.release(chunk);
+    }
+
+    @Test
+    public void testSpillPastMaxAllocatedBytes() throws IOException {
+        long allocatedBefore = WarcBufferPool.allocatedBytes();
+
+        // Allow no new allocations, so that the body spills once the pooled chunks are taken
+        byte[] data = new byte[(WarcBufferPool.pooledChunks() + 2) * WarcBufferPool.CHUNK_SIZE + 17];
+        new Random(3).nextBytes(data);
+
+        try (var body = new WarcBufferPool.Body(tempDir, allocatedBefore)) {
+            body.write(data, 0, data.length);
+
+            assertTrue(body.isSpilled());
+            try (var files = Files.list(tempDir)) {
+                assertEquals(1, files.count());
+            }
+            assertEquals(data.length, body.size());
+            assertEquals(allocatedBefore, WarcBufferPool.allocatedBytes());
+
+            for (int i = 0; i < 2; i++) {
+                try (var is = new WarcBufferPool.BufferInputStream(body.views())) {
+                    assertArrayEquals(data, is.readAllBytes());
+                }
+            }
+        }
+
+        assertEquals(allocatedBefore, WarcBufferPool.allocatedBytes());
+        try (var files = Files.list(tempDir)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    public void testUnpooledChunksAreFreed() throws InterruptedException {
+        long allocatedBefore = WarcBufferPool.allocatedBytes();
+        int pooledBefore = WarcBufferPool.pooledChunks();
+
+        // Take the chunks in the pool, then one past it, which is not pooled
+        List<WarcBufferPool.Chunk> pooledChunks = new ArrayList<>();
+        WarcBufferPool.Chunk chunk;
+        while ((chunk = WarcBufferPool.acquire(Long.MAX_VALUE, 0)).pooled()) {
+            pooledChunks.add(chunk);
+        }
+        assertEquals(allocatedBefore + WarcBufferPool.CHUNK_SIZE, WarcBufferPool.allocatedBytes());
+
+        var unpooledBuffer = new WeakReference<>(chunk.buffer());
+        WarcBufferPool.release(chunk);
+        chunk = null;
+
+        pooledChunks.forEach(WarcBufferPool::release);
+        assertEquals(pooledBefore, WarcBufferPool.pooledChunks());
+        assertEquals(allocatedBefore, WarcBufferPool.allocatedBytes());
+
+        // The released chunk should not be retained, so that its memory is freed
+        for (int i = 0; i < 100 && unpooledBuffer.get() != null; i++) {
+            System.gc();
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        assertNull(unpooledBuffer.get());
+    }
+}
@@ -0,0 +1,174 @@
+package nu.marginalia.crawl.retreival;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CrawlerIpSchedulerTest {
+
+    private static final Map<String, String> addresses = Map.of(
+            "www.example.com", "10.0.0.1",
+            "blog.example.com", "10.0.0.1",
+            "www.example.org", "10.0.0.2"
+    );
+
+    private CrawlerIpScheduler createScheduler(Duration interval, int maxDomainsPerIp) {
+        return new CrawlerIpScheduler(interval, maxDomainsPerIp, 100,
+                Duration.ofHours(1), Duration.ofHours(1), 1000,
+                addresses::get);
+    }
+
+    @Test
+    public void testMaxDomainsPerIp() {
+        var scheduler = createScheduler(Duration.ofMillis(10), 1);
+
+        var permit = scheduler.tryAcquire("www.example.com");
+        assertTrue(permit.isPresent());
+        assertEquals("10.0.0.1", permit.get().ip());
+
+        // blog.example.com is on the same address, and should be turned away
+        assertTrue(scheduler.tryAcquire("blog.example.com").isEmpty());
+        assertFalse(scheduler.isAvailableHint("blog.example.com"));
+        assertEquals(1, scheduler.activeDomains("www.example.com"));
+
+        // ... but not www.example.org, which is on a different address
+        var otherPermit = scheduler.tryAcquire("www.example.org");
+        assertTrue(otherPermit.isPresent());
+        otherPermit.get().close();
+
+        permit.get().close();
+        permit.get().close(); // closing twice should not release twice
+
+        assertTrue(scheduler.isAvailableHint("blog.example.com"));
+        assertEquals(0, scheduler.activeDomains("www.example.com"));
+
+        var permit2 = scheduler.tryAcquire("blog.example.com");
+        assertTrue(permit2.isPresent());
+        permit2.get().close();
+    }
+
+    @Test
+    public void testUnseenDomainIsAvailable() {
+        var scheduler = createScheduler(Duration.ofMillis(10), 1);
+
+        // The hint should not resolve domains it hasn't seen
+        assertTrue(scheduler.isAvailableHint("www.example.net"));
+        assertEquals(0, scheduler.activeDomains("www.example.net"));
+    }
+
+    @Test
+    public void testFetchSlotsAreShared() throws InterruptedException {
+        var scheduler = createScheduler(Duration.ofMillis(100), 2);
+
+        try (var permitA = scheduler.tryAcquire("www.example.com").orElseThrow();
+             var permitB = scheduler.tryAcquire("blog.example.com").orElseThrow())
+        {
+            Instant start = Instant.now();
+
+            // Four slots, alternating between the two domains, should be spaced
+            // out by the interval regardless of which domain takes them
+            permitA.awaitFetchSlot();
+            permitB.awaitFetchSlot();
+            permitA.awaitFetchSlot();
+            permitB.awaitFetchSlot();
+
+            Duration elapsed = Duration.between(start, Instant.now());
+            assertTrue(elapsed.compareTo(Duration.ofMillis(300)) >= 0, "Elapsed " + elapsed);
+        }
+    }
+
+    @Test
+    public void testUnresolvedDomainIsRetried() throws InterruptedException {
+        AtomicInteger lookups = new AtomicInteger();
+
+        var scheduler = new CrawlerIpScheduler(Duration.ofMillis(10), 1, 100,
+                Duration.ofHours(1), Duration.ofMillis(50), 1000,
+                domain -> {
+                    lookups.incrementAndGet();
+                    return addresses.get(domain);
+                });
+
+        // Domains that don't resolve are scheduled by their name
+        try (var permit = scheduler.tryAcquire("www.example.net").orElseThrow()) {
+            assertNull(permit.ip());
+        }
+        scheduler.tryAcquire("www.example.net").orElseThrow().close();
+        assertEquals(1, lookups.get());
+
+        // ... until the negative result expires
+        TimeUnit.MILLISECONDS.sleep(100);
+        scheduler.tryAcquire("www.example.net").orElseThrow().close();
+        assertEquals(2, lookups.get());
+
+        // ... while the domains that do resolve stay cached
+        scheduler.tryAcquire("www.example.com").orElseThrow().close();
+        scheduler.tryAcquire("www.example.com").orElseThrow().close();
+        assertEquals(3, lookups.get());
+    }
+
+    @Test
+    public void testSlowLookupDoesNotBlockOtherDomains() throws InterruptedException {
+        CountDownLatch lookupStarted = new CountDownLatch(1);
+        CountDownLatch lookupReleased = new CountDownLatch(1);
+
+        var scheduler = new CrawlerIpScheduler(Duration.ofMillis(10), 1, 100,
+                Duration.ofHours(1), Duration.ofHours(1), 1000,
+                domain -> {
+                    if (domain.equals("www.example.com")) {
+                        lookupStarted.countDown();
+                        try {
+                            lookupReleased.await();
+                        }
+                        catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    return addresses.get(domain);
+                });
+
+        Thread slowThread = Thread.ofPlatform().start(() -> scheduler.tryAcquire("www.example.com"));
+        try {
+            assertTrue(lookupStarted.await(5, TimeUnit.SECONDS));
+
+            // The lookup of www.example.com is hanging, and should not hold up the other domains
+            assertTrue(scheduler.tryAcquire("www.example.org").isPresent());
+            assertTrue(scheduler.isAvailableHint("www.example.com"));
+        }
+        finally {
+            lookupReleased.countDown();
+            slowThread.join();
+        }
+    }
+
+    @Test
+    public void testSharedAddressIsExempt() {
+        Map<String, String> cdnAddresses = new ConcurrentHashMap<>();
+        for (int i = 0; i < 10; i++) {
+            cdnAddresses.put("site" + i + ".example.com", "10.0.0.100");
+        }
+
+        var scheduler = new CrawlerIpScheduler(Duration.ofMillis(10), 1, 3,
+                Duration.ofHours(1), Duration.ofHours(1), 1000,
+                cdnAddresses::get);
+
+        // Up to the threshold, the domains are limited by their shared address
+        var permit = scheduler.tryAcquire("site0.example.com").orElseThrow();
+        assertTrue(scheduler.tryAcquire("site1.example.com").isEmpty());
+        assertTrue(scheduler.tryAcquire("site2.example.com").isEmpty());
+        permit.close();
+
+        // Past the threshold the address is taken to be a CDN, and each domain is scheduled on its own
+        assertTrue(scheduler.tryAcquire("site3.example.com").isPresent());
+        assertTrue(scheduler.tryAcquire("site4.example.com").isPresent());
+        assertTrue(scheduler.tryAcquire("site5.example.com").isPresent());
+        assertEquals(1, scheduler.activeDomains("site5.example.com"));
+    }
+}
@@ -0,0 +1,91 @@
+package nu.marginalia.crawl.retreival.revisit;
+
+import nu.marginalia.model.EdgeUrl;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CrawlFingerprintsTest {
+    Path tempFile;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        tempFile = Files.createTempFile(getClass().getSimpleName(), ".fp");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        Files.deleteIfExists(tempFile);
+    }
+
+    @Test
+    void testWriteAndRead() throws IOException, URISyntaxException {
+        Instant changed = Instant.ofEpochSecond(1_700_000_000L);
+        Instant checked = Instant.ofEpochSecond(1_710_000_000L);
+
+        var builder = new CrawlFingerprints.Builder();
+        for (int i = 0; i < 100; i++) {
+            builder.put(new EdgeUrl("https://www.example.com/" + i),
+                    new CrawlFingerprints.Fingerprint(i, changed, checked, i % 2 == 0 ? "\"etag" + i + "\"" : null, null));
+        }
+        builder.put(new EdgeUrl("https://www.example.com/lastmod"),
+                new CrawlFingerprints.Fingerprint(-1, changed, checked, null, "Wed, 21 Oct 2015 07:28:00 GMT"));
+        builder.write(tempFile);
+
+        try (var reader = CrawlFingerprints.Reader.open(tempFile)) {
+            assertEquals(101, reader.size());
+
+            for (int i = 0; i < 100; i++) {
+                var fp = reader.get(new EdgeUrl("https://www.example.com/" + i)).orElseThrow();
+                assertEquals(i, fp.bodyHash());
+                assertEquals(changed, fp.lastChanged());
+                assertEquals(checked, fp.lastChecked());
+                assertEquals(i % 2 == 0 ? "\"etag" + i + "\"" : null, fp.etag());
+                assertNull(fp.lastModified());
+            }
+
+            var fp = reader.get(new EdgeUrl("https://www.example.com/lastmod")).orElseThrow();
+            assertEquals(-1, fp.bodyHash());
+            assertEquals("Wed, 21 Oct 2015 07:28:00 GMT", fp.lastModified());
+
+            assertTrue(reader.get(new EdgeUrl("https://www.example.com/missing")).isEmpty());
+        }
+    }
+
+    @Test
+    void testEmpty() throws IOException, URISyntaxException {
+        new CrawlFingerprints.Builder().write(tempFile);
+
+        try (var reader = CrawlFingerprints.Reader.open(tempFile)) {
+            assertEquals(0, reader.size());
+            assertTrue(reader.get(new EdgeUrl("https://www.example.com/")).isEmpty());
+        }
+    }
+
+    @Test
+    void testRecheckInterval() {
+        Instant now = Instant.now();
+
+        // Changed on the last check, so it should be checked again right away
+        var volatileDoc = new CrawlFingerprints.Fingerprint(0, now.minus(Duration.ofDays(30)), now.minus(Duration.ofDays(30)), null, null);
+        assertTrue(volatileDoc.isDueForRecheck(now));
+
+        // Unchanged for 60 days as of a check 10 days ago; wait 30 days from that check
+        var stableDoc = new CrawlFingerprints.Fingerprint(0, now.minus(Duration.ofDays(70)), now.minus(Duration.ofDays(10)), null, null);
+        assertFalse(stableDoc.isDueForRecheck(now));
+        assertTrue(stableDoc.isDueForRecheck(now.plus(Duration.ofDays(21))));
+
+        // Unchanged for years, but the interval is capped
+        var ancientDoc = new CrawlFingerprints.Fingerprint(0, now.minus(Duration.ofDays(3650)), now.minus(Duration.ofDays(100)), null, null);
+        assertTrue(ancientDoc.isDueForRecheck(now));
+    }
+}
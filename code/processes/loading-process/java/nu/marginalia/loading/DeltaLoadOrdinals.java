@@ -0,0 +1,69 @@
+package nu.marginalia.loading;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/** Reserves a range of document ordinals for each delta load.
+ * <p></p>
+ * The converter numbers the documents of each domain from zero, so a domain that is loaded
+ * in more than one delta batch would get the same document ids in each batch, and the delta
+ * index, which is constructed from all delta batches, would mix up their documents.  The
+ * ordinals of the nth delta batch are instead offset by a range of their own above the
+ * ordinals of the regular load, in the same way the live crawler's documents are offset.
+ * <p></p>
+ * The number of delta batches is kept in the index construction area, which a regular
+ * load clears.
+ */
+public class DeltaLoadOrdinals {
+    /** The first ordinal of the first delta batch, above the ordinals of any regular load */
+    public static final int FIRST_ORDINAL = 1 << 24;
+
+    /** The number of ordinals reserved for each domain in each delta batch */
+    public static final int BATCH_SIZE = 1 << 20;
+
+    /** The live crawler's documents are numbered from here */
+    public static final int END_ORDINAL = 67_000_000;
+
+    public static final int MAX_BATCHES = (END_ORDINAL - FIRST_ORDINAL) / BATCH_SIZE;
+
+    private static final String BATCH_COUNT_FILE_NAME = "delta-batches.dat";
+
+    private DeltaLoadOrdinals() {}
+
+    /** Reserve the ordinal range of the next delta batch, and return its first ordinal.
+     *
+     * @throws IllegalStateException if all ranges are taken, and a regular load is needed
+     */
+    public static int reserve(Path constructionArea) throws IOException {
+        Path batchCountFile = constructionArea.resolve(BATCH_COUNT_FILE_NAME);
+
+        int batch = 0;
+        if (Files.exists(batchCountFile)) {
+            batch = Integer.parseInt(Files.readString(batchCountFile).trim());
+        }
+
+        if (batch >= MAX_BATCHES) {
+            throw new IllegalStateException("All " + MAX_BATCHES + " delta loads since the last regular load have been used, a regular load is needed");
+        }
+
+        Files.writeString(batchCountFile, Integer.toString(batch + 1));
+
+        return FIRST_ORDINAL + batch * BATCH_SIZE;
+    }
+
+    /** Offset the ordinal of a document in a delta batch
+     *
+     * @throws IllegalStateException if the ordinal is outside the batch's range
+     */
+    public static int offset(int firstOrdinal, int ordinal) {
+        if (firstOrdinal == 0)
+            return ordinal;
+
+        if (ordinal >= BATCH_SIZE) {
+            throw new IllegalStateException("Document ordinal " + ordinal + " does not fit in a delta batch");
+        }
+
+        return firstOrdinal + ordinal;
+    }
+}
@@ -17,12 +17,23 @@ import java.io.IOException;
 import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 
+/** Writes the index journal, with one journal per language.
+ * <p></p>
+ * Each language's journal is written by a thread of its own, which is fed through a bounded
+ * queue, so that the loader isn't held up by the encoding and compression of the journal,
+ * and the languages are written in parallel.  Errors in writing are reported by the next
+ * call to putWords, or by close().
+ */
 @Singleton
 public class LoaderIndexJournalWriter {
 
     private static final Logger logger = LoggerFactory.getLogger(LoaderIndexJournalWriter.class);
+    private static final int queueSize = Integer.getInteger("loader.journalQueueSize", 1024);
+
     private final Map<String, WriteHead> writeHeads = new HashMap<>();
 
     @Inject
@@ -44,10 +55,22 @@ public class LoaderIndexJournalWriter {
         head.putWords(header, data);
     }
 
+    /** Wait for the queued words to be written, and close the journals */
     public void close() throws IOException {
+        IOException failure = null;
+
         for (WriteHead head : writeHeads.values()) {
-            head.close();
+            try {
+                head.close();
+            }
+            catch (IOException ex) {
+                if (failure == null) failure = ex;
+                else failure.addSuppressed(ex);
+            }
         }
+
+        if (failure != null)
+            throw failure;
     }
 
     static class WriteHead {
@@ -59,12 +82,24 @@ public class LoaderIndexJournalWriter {
 
         private final Path journalPath;
 
+        private final BlockingQueue<PendingWrite> queue = new ArrayBlockingQueue<>(queueSize);
+        private final Thread writerThread;
+        private volatile IOException failure;
+        private boolean closed = false;
+
+        /** Marks the end of the queue */
+        private static final PendingWrite END = new PendingWrite(0, null);
+
         WriteHead(Path indexArea, LanguageDefinition  languageDefinition) throws IOException {
             keywordHasher = languageDefinition.keywordHasher();
             journalPath = IndexJournal.allocateName(indexArea, languageDefinition.isoCode());
             page = IndexJournal.numPages(journalPath);
 
             switchToNextVersion();
+
+            writerThread = Thread.ofPlatform()
+                    .name("JournalWriter[" + languageDefinition.isoCode() + "]")
+                    .start(this::writerThread);
         }
 
         private void switchToNextVersion() throws IOException {
@@ -77,17 +112,70 @@ public class LoaderIndexJournalWriter {
 
         public void putWords(long header, SlopDocumentRecord.KeywordsProjection data) throws IOException
         {
-            if (++recordsWritten > 200_000) {
-                recordsWritten = 0;
-                switchToNextVersion();
+            if (failure != null)
+                throw failure;
+            if (closed)
+                throw new IOException("Journal writer is closed");
+
+            try {
+                queue.put(new PendingWrite(header, data));
             }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while queueing words", ex);
+            }
+        }
 
-            currentWriter.put(header, data, keywordHasher);
+        private void writerThread() {
+            try {
+                for (;;) {
+                    PendingWrite write = queue.take();
+                    if (write == END)
+                        break;
+
+                    // Keep draining the queue after a failure, so that putWords doesn't block forever
+                    if (failure != null)
+                        continue;
+
+                    try {
+                        if (++recordsWritten > 200_000) {
+                            recordsWritten = 0;
+                            switchToNextVersion();
+                        }
+
+                        currentWriter.put(write.header(), write.data(), keywordHasher);
+                    }
+                    catch (IOException ex) {
+                        logger.error("Failed to write journal " + journalPath, ex);
+                        failure = ex;
+                    }
+                }
+            }
+            catch (InterruptedException ex) {
+                failure = new IOException("Journal writer interrupted", ex);
+            }
         }
 
         public void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+
+            try {
+                queue.put(END);
+                writerThread.join();
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while closing journal writer", ex);
+            }
+
             currentWriter.close();
+
+            if (failure != null)
+                throw failure;
         }
 
+        private record PendingWrite(long header, SlopDocumentRecord.KeywordsProjection data) {}
     }
 }
@@ -4,9 +4,10 @@ import com.google.gson.Gson;
 import com.google.inject.Guice;
 import com.google.inject.Inject;
 import com.google.inject.Injector;
+import nu.marginalia.IndexLocations;
 import nu.marginalia.linkdb.docs.DocumentDbWriter;
 import nu.marginalia.linkgraph.io.DomainLinksWriter;
-import nu.marginalia.loading.documents.DocumentLoaderService;
+import nu.marginalia.loading.documents.DocumentPipelineLoaderService;
 import nu.marginalia.loading.documents.KeywordLoaderService;
 import nu.marginalia.loading.domains.DomainIdRegistry;
 import nu.marginalia.loading.domains.DomainLoaderService;
@@ -40,7 +41,7 @@ public class LoaderMain extends ProcessMainClass {
     private final DomainLoaderService domainService;
     private final DomainLinksLoaderService linksService;
     private final KeywordLoaderService keywordLoaderService;
-    private final DocumentLoaderService documentLoaderService;
+    private final DocumentPipelineLoaderService documentPipelineLoaderService;
 
     private static boolean insertFoundDomains = Boolean.getBoolean("loader.insertFoundDomains")
                                                 || (null == System.getProperty("loader.insertFoundDomains"));
@@ -75,7 +76,7 @@ public class LoaderMain extends ProcessMainClass {
                       DomainLoaderService domainService,
                       DomainLinksLoaderService linksService,
                       KeywordLoaderService keywordLoaderService,
-                      DocumentLoaderService documentLoaderService,
+                      DocumentPipelineLoaderService documentPipelineLoaderService,
                       ProcessConfiguration processConfiguration,
                       Gson gson
                       ) {
@@ -89,7 +90,7 @@ public class LoaderMain extends ProcessMainClass {
         this.domainService = domainService;
         this.linksService = linksService;
         this.keywordLoaderService = keywordLoaderService;
-        this.documentLoaderService = documentLoaderService;
+        this.documentPipelineLoaderService = documentPipelineLoaderService;
 
         heartbeat.start();
     }
@@ -104,12 +105,23 @@ public class LoaderMain extends ProcessMainClass {
 
         DomainIdRegistry domainIdRegistry = domainService.getOrCreateDomainIds(heartbeat, inputData);
 
+        // The documents of a delta load get ordinals of their own, see DeltaLoadOrdinals
+        final int firstOrdinal;
+        if (instructions.value().delta) {
+            firstOrdinal = DeltaLoadOrdinals.reserve(IndexLocations.getIndexConstructionArea(fileStorageService));
+            logger.info("Loading delta batch, with ordinals from {}", firstOrdinal);
+        }
+        else {
+            firstOrdinal = 0;
+        }
+
         boolean executionOk;
         try (var pool = new ForkJoinPool(ForkJoinPool.getCommonPoolParallelism())) {
             List<ForkJoinTask<?>> tasks = new ArrayList<>();
 
-            tasks.add(pool.submit(() -> keywordLoaderService.loadKeywords(domainIdRegistry, heartbeat, inputData)));
-            tasks.add(pool.submit(() -> documentLoaderService.loadDocuments(domainIdRegistry, heartbeat, inputData)));
+            // The keywords and documents are loaded in a single pass over the document records,
+            // the domain metadata and links are separate tables
+            tasks.add(pool.submit(() -> documentPipelineLoaderService.loadDocumentsAndKeywords(domainIdRegistry, heartbeat, inputData, firstOrdinal)));
             tasks.add(pool.submit(() -> domainService.loadDomainMetadata(domainIdRegistry, heartbeat, inputData)));
 
             if (insertFoundDomains) {
@@ -58,6 +58,12 @@ public class DocumentLoaderService {
         return true;
     }
 
+    /** Create a loader that batches documents into the document database,
+     * which must be closed to write the last batch */
+    LinkdbLoader createLinkdbLoader(DomainIdRegistry domainIdRegistry) {
+        return new LinkdbLoader(domainIdRegistry);
+    }
+
     class LinkdbLoader implements AutoCloseable {
         private final DomainIdRegistry domainIdRegistry;
         private final List<DocdbUrlDetail> details = new ArrayList<>(1000);
@@ -73,6 +79,11 @@ public class DocumentLoaderService {
                     projection.ordinal()
             );
 
+            accept(urlId, projection);
+        }
+
+        public void accept(long urlId, SlopDocumentRecord.MetadataProjection projection)
+        {
             var parsedUrl = EdgeUrl.parse(projection.url());
             if (parsedUrl.isEmpty()) {
                 logger.error("Failed to parse URL: {}", projection.url());
@@ -0,0 +1,146 @@
+package nu.marginalia.loading.documents;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import nu.marginalia.loading.DeltaLoadOrdinals;
+import nu.marginalia.loading.LoaderIndexJournalWriter;
+import nu.marginalia.loading.LoaderInputData;
+import nu.marginalia.loading.domains.DomainIdRegistry;
+import nu.marginalia.model.id.UrlIdCodec;
+import nu.marginalia.model.processed.SlopDocumentRecord;
+import nu.marginalia.process.control.ProcessHeartbeat;
+import nu.marginalia.slop.SlopTable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.concurrent.*;
+
+/** Loads the keywords and the document metadata of the processed documents in a single pass.
+ * <p></p>
+ * Each page of document records is read once, and the records are fanned out to the index
+ * journal writer, which writes each language on a thread of its own, and to the document
+ * database, which is written on a separate thread.  Both are fed through bounded queues, so
+ * the slowest consumer sets the pace.
+ * <p></p>
+ * This does the work of {@link KeywordLoaderService#loadKeywords} and
+ * {@link DocumentLoaderService#loadDocuments} together, without reading the shared
+ * columns twice.
+ */
+@Singleton
+public class DocumentPipelineLoaderService {
+    private static final Logger logger = LoggerFactory.getLogger(DocumentPipelineLoaderService.class);
+    private static final int queueSize = Integer.getInteger("loader.documentQueueSize", 1024);
+
+    private final LoaderIndexJournalWriter journalWriter;
+    private final DocumentLoaderService documentLoaderService;
+
+    /** Marks the end of the document queue */
+    private static final PendingDocument END = new PendingDocument(0, null);
+
+    @Inject
+    public DocumentPipelineLoaderService(LoaderIndexJournalWriter journalWriter,
+                                         DocumentLoaderService documentLoaderService) {
+        this.journalWriter = journalWriter;
+        this.documentLoaderService = documentLoaderService;
+    }
+
+    /** Load the documents and keywords of the input data
+     *
+     * @param firstOrdinal the first ordinal of a delta load, see {@link DeltaLoadOrdinals}, or 0
+     */
+    public boolean loadDocumentsAndKeywords(DomainIdRegistry domainIdRegistry,
+                                            ProcessHeartbeat processHeartbeat,
+                                            LoaderInputData inputData,
+                                            int firstOrdinal)
+            throws IOException, SQLException
+    {
+        Collection<SlopTable.Ref<SlopDocumentRecord>> pageRefs = inputData.listDocumentFiles();
+        BlockingQueue<PendingDocument> documentQueue = new ArrayBlockingQueue<>(queueSize);
+
+        try (var taskHeartbeat = processHeartbeat.createAdHocTaskHeartbeat("DOCUMENTS");
+             var executor = Executors.newSingleThreadExecutor())
+        {
+            Future<?> documentDbTask = executor.submit(() -> {
+                try (var loader = documentLoaderService.createLinkdbLoader(domainIdRegistry)) {
+                    for (;;) {
+                        PendingDocument document = documentQueue.take();
+                        if (document == END)
+                            break;
+
+                        loader.accept(document.urlId(), document.projection());
+                    }
+                }
+                return null;
+            });
+
+            boolean producerFinished = false;
+            try {
+                for (var pageRef : taskHeartbeat.wrap("LOAD", pageRefs)) {
+                    try (var reader = new SlopDocumentRecord.Reader(pageRef)) {
+                        logger.info("Loading documents from {}", pageRef);
+
+                        while (reader.hasMore()) {
+                            var record = reader.next();
+
+                            long combinedId = UrlIdCodec.encodeId(
+                                    domainIdRegistry.getDomainId(record.domain()),
+                                    DeltaLoadOrdinals.offset(firstOrdinal, record.ordinal()));
+
+                            journalWriter.putWords(combinedId, record.keywordsProjection());
+                            enqueue(documentQueue, new PendingDocument(combinedId, record.metadataProjection()), documentDbTask);
+                        }
+                    }
+                }
+
+                enqueue(documentQueue, END, documentDbTask);
+                producerFinished = true;
+            }
+            finally {
+                // If the producer failed, the consumer will never see the end of the queue, and
+                // closing the executor would wait for it forever; the producer's exception is
+                // the one that propagates
+                if (!producerFinished) {
+                    documentDbTask.cancel(true);
+                }
+            }
+
+            documentDbTask.get();
+        }
+        catch (ExecutionException ex) {
+            logger.error("Failed to load documents", ex.getCause());
+
+            if (ex.getCause() instanceof SQLException sqlException) throw sqlException;
+            if (ex.getCause() instanceof IOException ioException) throw ioException;
+            throw new RuntimeException(ex.getCause());
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading documents", ex);
+        }
+        catch (IOException e) {
+            logger.error("Failed to load documents", e);
+            throw e;
+        }
+
+        return true;
+    }
+
+    /** Put the document on the queue, unless the consumer has stopped, in which case
+     * waiting for room on the queue would block forever */
+    private void enqueue(BlockingQueue<PendingDocument> queue,
+                         PendingDocument document,
+                         Future<?> consumer) throws InterruptedException, ExecutionException
+    {
+        while (!queue.offer(document, 1, TimeUnit.SECONDS)) {
+            if (consumer.isDone()) {
+                consumer.get(); // throws the consumer's exception, if any
+                throw new IllegalStateException("Document database loader stopped unexpectedly");
+            }
+        }
+    }
+
+    private record PendingDocument(long urlId, SlopDocumentRecord.MetadataProjection projection) {}
+}
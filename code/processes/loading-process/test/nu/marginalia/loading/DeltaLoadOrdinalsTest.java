@@ -0,0 +1,66 @@
+package nu.marginalia.loading;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DeltaLoadOrdinalsTest {
+    Path constructionArea;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        constructionArea = Files.createTempDirectory(getClass().getSimpleName());
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        try (var files = Files.list(constructionArea)) {
+            for (Path file : files.toList()) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(constructionArea);
+    }
+
+    @Test
+    public void testBatchesGetDistinctRanges() throws IOException {
+        int first = DeltaLoadOrdinals.reserve(constructionArea);
+        int second = DeltaLoadOrdinals.reserve(constructionArea);
+
+        assertEquals(DeltaLoadOrdinals.FIRST_ORDINAL, first);
+        assertEquals(first + DeltaLoadOrdinals.BATCH_SIZE, second);
+
+        // The same document of a domain loaded in both batches gets different ordinals
+        assertNotEquals(DeltaLoadOrdinals.offset(first, 0), DeltaLoadOrdinals.offset(second, 0));
+        assertTrue(DeltaLoadOrdinals.offset(first, DeltaLoadOrdinals.BATCH_SIZE - 1) < second);
+    }
+
+    @Test
+    public void testRegularLoadIsNotOffset() {
+        assertEquals(5, DeltaLoadOrdinals.offset(0, 5));
+    }
+
+    @Test
+    public void testOrdinalOutsideBatch() {
+        assertThrows(IllegalStateException.class,
+                () -> DeltaLoadOrdinals.offset(DeltaLoadOrdinals.FIRST_ORDINAL, DeltaLoadOrdinals.BATCH_SIZE));
+    }
+
+    @Test
+    public void testRangesRunOut() throws IOException {
+        int last = 0;
+        for (int i = 0; i < DeltaLoadOrdinals.MAX_BATCHES; i++) {
+            last = DeltaLoadOrdinals.reserve(constructionArea);
+        }
+
+        // The last range must end before the live crawler's ordinals
+        assertTrue(last + DeltaLoadOrdinals.BATCH_SIZE <= DeltaLoadOrdinals.END_ORDINAL);
+        assertThrows(IllegalStateException.class, () -> DeltaLoadOrdinals.reserve(constructionArea));
+    }
+}
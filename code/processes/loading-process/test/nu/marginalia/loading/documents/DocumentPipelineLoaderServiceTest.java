@@ -0,0 +1,52 @@
+package nu.marginalia.loading.documents;
+
+import nu.marginalia.linkdb.docs.DocumentDbWriter;
+import nu.marginalia.loading.LoaderIndexJournalWriter;
+import nu.marginalia.loading.LoaderInputData;
+import nu.marginalia.loading.domains.DomainIdRegistry;
+import nu.marginalia.process.control.FakeProcessHeartbeat;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+class DocumentPipelineLoaderServiceTest {
+    Path inputDir;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        inputDir = Files.createTempDirectory(getClass().getSimpleName());
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        Files.delete(inputDir);
+    }
+
+    @Test
+    public void testProducerFailureDoesNotHang() throws IOException {
+        var service = new DocumentPipelineLoaderService(
+                Mockito.mock(LoaderIndexJournalWriter.class),
+                new DocumentLoaderService(Mockito.mock(DocumentDbWriter.class)));
+
+        // The input claims a batch of documents that isn't there, so reading it fails
+        // while the document database loader is waiting on the queue
+        var inputData = new LoaderInputData(inputDir, 1);
+
+        assertTimeoutPreemptively(Duration.ofSeconds(30), () ->
+                assertThrows(Exception.class, () -> service.loadDocumentsAndKeywords(
+                        Mockito.mock(DomainIdRegistry.class),
+                        new FakeProcessHeartbeat(),
+                        inputData,
+                        0))
+        );
+    }
+}
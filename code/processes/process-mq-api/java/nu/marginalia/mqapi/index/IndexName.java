@@ -3,5 +3,8 @@ package nu.marginalia.mqapi.index;
 public enum IndexName {
     FORWARD,
     REVERSE_FULL,
-    REVERSE_PRIO
+    REVERSE_PRIO,
+    /** A small forward, full and prio index of the index journal pages that have been
+     * written since the last full index construction */
+    DELTA
 }
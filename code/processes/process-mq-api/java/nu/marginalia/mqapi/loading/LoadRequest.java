@@ -7,7 +7,15 @@ import java.util.List;
 public class LoadRequest {
     public List<FileStorageId> inputProcessDataStorageIds;
 
+    /** The data is loaded on top of the data that is already loaded, for a delta index */
+    public boolean delta;
+
     public LoadRequest(List<FileStorageId> inputProcessDataStorageIds) {
+        this(inputProcessDataStorageIds, false);
+    }
+
+    public LoadRequest(List<FileStorageId> inputProcessDataStorageIds, boolean delta) {
         this.inputProcessDataStorageIds = inputProcessDataStorageIds;
+        this.delta = delta;
     }
 }
@@ -6,6 +6,7 @@ import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
 import nu.marginalia.IndexLocations;
 import nu.marginalia.db.DomainRankingSetsService;
 import nu.marginalia.db.DomainTypes;
+import nu.marginalia.domaingraph.GraphSource;
 import nu.marginalia.ranking.domains.PageRankDomainRanker;
 import nu.marginalia.ranking.domains.accumulator.RankingResultHashSetAccumulator;
 import nu.marginalia.process.control.ProcessEventLog;
@@ -17,7 +18,10 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /** Recalculates the secondary ranking sets, which act as filters constraining searches
  * to a subset of the indexed domains. */
@@ -46,20 +50,23 @@ public class SecondaryRankingsCalculator {
     }
 
     public void calculate() {
+        List<DomainRankingSetsService.DomainRankingSet> normalSets = new ArrayList<>();
+
         for (var rankingSet : domainRankingSetsService.getAll()) {
             if (primaryRankingSet.equals(rankingSet.name())) { // Skip the primary ranking set
                 continue;
             }
 
+            if (!rankingSet.isSpecial()) {
+                normalSets.add(rankingSet);
+                continue;
+            }
+
             try {
-                if (rankingSet.isSpecial()) {
-                    switch (rankingSet.name()) {
-                        case "BLOGS" -> recalculateSpecialSet(rankingSet, DomainTypes.Type.BLOG);
-                        case "SMALL" -> recalculateSpecialSet(rankingSet, DomainTypes.Type.SMALL);
-                        case "NONE" -> {} // No-op
-                    }
-                } else {
-                    recalculateNormal(rankingSet);
+                switch (rankingSet.name()) {
+                    case "BLOGS" -> recalculateSpecialSet(rankingSet, DomainTypes.Type.BLOG);
+                    case "SMALL" -> recalculateSpecialSet(rankingSet, DomainTypes.Type.SMALL);
+                    case "NONE" -> {} // No-op
                 }
             }
             catch (Exception ex) {
@@ -67,14 +74,51 @@ public class SecondaryRankingsCalculator {
             }
             eventLog.logEvent("RANKING-SET-RECALCULATED", rankingSet.name());
         }
+
+        recalculateNormal(normalSets);
     }
 
-    private void recalculateNormal(DomainRankingSetsService.DomainRankingSet rankingSet) {
-        List<String> domains = List.of(rankingSet.domains());
+    /** The normal ranking sets are personalized PageRank calculations over one of a few graphs,
+     * so the sets are grouped by graph and the rankings of each group are calculated together,
+     * rather than loading the graph and iterating over it once per set. */
+    private void recalculateNormal(List<DomainRankingSetsService.DomainRankingSet> rankingSets) {
+        Map<GraphSource, List<DomainRankingSetsService.DomainRankingSet>> setsByGraph = new LinkedHashMap<>();
+        for (var rankingSet : rankingSets) {
+            setsByGraph.computeIfAbsent(graphSources.forDomainList(List.of(rankingSet.domains())), _ -> new ArrayList<>())
+                    .add(rankingSet);
+        }
+
+        for (var entry : setsByGraph.entrySet()) {
+            List<DomainRankingSetsService.DomainRankingSet> sets = entry.getValue();
+
+            List<PageRankDomainRanker> rankers = null;
+            try {
+                rankers = PageRankDomainRanker.forDomainNameSets(entry.getKey(),
+                        sets.stream().map(set -> List.of(set.domains())).toList());
+            }
+            catch (Exception ex) {
+                logger.warn("Failed to recalculate ranking sets {}", sets.stream().map(DomainRankingSetsService.DomainRankingSet::name).toList(), ex);
+            }
+
+            for (int i = 0; i < sets.size(); i++) {
+                var rankingSet = sets.get(i);
+
+                if (rankers != null) {
+                    try {
+                        writeNormalSet(rankingSet, rankers.get(i));
+                    }
+                    catch (Exception ex) {
+                        logger.warn("Failed to recalculate ranking set {}", rankingSet.name(), ex);
+                    }
+                }
+
+                eventLog.logEvent("RANKING-SET-RECALCULATED", rankingSet.name());
+            }
+        }
+    }
 
-        var data = PageRankDomainRanker
-                .forDomainNames(graphSources.forDomainList(domains), domains)
-                .calculate(rankingSet.depth(), RankingResultHashSetAccumulator::new);
+    private void writeNormalSet(DomainRankingSetsService.DomainRankingSet rankingSet, PageRankDomainRanker ranker) {
+        var data = ranker.calculate(rankingSet.depth(), RankingResultHashSetAccumulator::new);
 
         var set = new RankingSearchSet(rankingSet.name(), rankingSet.fileName(searchSetsBase), data);
 
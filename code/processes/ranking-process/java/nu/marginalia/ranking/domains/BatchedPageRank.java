@@ -0,0 +1,357 @@
+package nu.marginalia.ranking.domains;
+
+import it.unimi.dsi.fastutil.ints.IntCollection;
+import nu.marginalia.domaingraph.DomainGraph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/** Parallel PageRank over a {@link DomainGraph}, that computes several rankings in
+ * the same sweeps over the graph.
+ *
+ * <p>Each ranking has an influence set, and is calculated as in {@link PersonalizedPageRank}.
+ * An empty influence set gives the standard PageRank.
+ *
+ * <p>Each iteration pulls the scores of the in-neighbors of every vertex, with the vertices
+ * split into ranges that are processed in parallel on a fork-join pool.  Since each vertex
+ * only writes its own scores, the ranges need no coordination beyond a barrier between iterations.
+ * The scores of the rankings in a batch are interleaved by vertex, so that an in-edge is read once
+ * for all of them, and the cost of walking the edges, which dominates each iteration, is shared.
+ * Scores are kept as floats, which halves the memory traffic of doubles, and is plenty of
+ * precision for ordering the domains.
+ *
+ * <p>The rankings of a batch converge after different numbers of iterations.  A ranking that
+ * has converged is dropped from the batch, and the others continue until they have converged
+ * as well, or the maximum number of iterations has been reached.
+ */
+public class BatchedPageRank {
+    /** The number of rankings computed in the same sweeps over the graph.  Each ranking
+     * needs two floats per vertex while it's being calculated. */
+    public static final int BATCH_SIZE_DEFAULT = Integer.getInteger("ranking.pageRank.batchSize", 16);
+
+    /** The number of vertices in each parallel task */
+    private static final int PARTITION_SIZE = 1024;
+
+    private final DomainGraph graph;
+    private final ForkJoinPool pool;
+    private final double dampingFactor;
+    private final int maxIterations;
+    private final double tolerance;
+    private final int batchSize;
+
+    /** For each vertex, the reciprocal of its out-degree, or of the sum of its edge weights
+     * if the graph is weighted; zero if it has no out-edges */
+    private final float[] outFactor;
+
+    /** Vertices without out-edges, whose scores are spread over all vertices in the standard PageRank */
+    private final int[] danglingVertices;
+
+    public BatchedPageRank(DomainGraph graph) {
+        this(graph, ForkJoinPool.commonPool(),
+                PersonalizedPageRank.DAMPING_FACTOR_DEFAULT,
+                PersonalizedPageRank.MAX_ITERATIONS_DEFAULT,
+                PersonalizedPageRank.TOLERANCE_DEFAULT,
+                BATCH_SIZE_DEFAULT);
+    }
+
+    public BatchedPageRank(DomainGraph graph,
+                           ForkJoinPool pool,
+                           double dampingFactor,
+                           int maxIterations,
+                           double tolerance,
+                           int batchSize) {
+        if (maxIterations <= 0)
+            throw new IllegalArgumentException("Maximum iterations must be positive");
+        if (dampingFactor < 0.0 || dampingFactor > 1.0)
+            throw new IllegalArgumentException("Damping factor not valid");
+        if (tolerance <= 0.0)
+            throw new IllegalArgumentException("Tolerance not valid, must be positive");
+        if (batchSize <= 0)
+            throw new IllegalArgumentException("Batch size must be positive");
+
+        this.graph = graph;
+        this.pool = pool;
+        this.dampingFactor = dampingFactor;
+        this.maxIterations = maxIterations;
+        this.tolerance = tolerance;
+
+        // The interleaved score arrays are indexed by int
+        this.batchSize = Math.max(1, Math.min(batchSize, Integer.MAX_VALUE / Math.max(1, graph.size())));
+
+        this.outFactor = buildOutFactor();
+        this.danglingVertices = IntStream.range(0, graph.size())
+                .filter(v -> graph.outDegree(v) == 0)
+                .toArray();
+    }
+
+    /** Returns the scores of each internal vertex index, in {@code [0, graph.size())},
+     * for each of the influence sets. */
+    public List<float[]> compute(List<? extends IntCollection> influenceSets) {
+        List<float[]> ret = new ArrayList<>(influenceSets.size());
+
+        for (int i = 0; i < influenceSets.size(); i += batchSize) {
+            var batch = influenceSets.subList(i, Math.min(influenceSets.size(), i + batchSize));
+            ret.addAll(computeBatch(batch));
+        }
+
+        return ret;
+    }
+
+    private List<float[]> computeBatch(List<? extends IntCollection> influenceSets) {
+        final int V = graph.size();
+        final int K = influenceSets.size();
+
+        // Influence sets as bitsets of internal indexes; null for the standard PageRank
+        final BitSet[] influence = new BitSet[K];
+        final int[][] influenceMembers = new int[K][];
+
+        for (int j = 0; j < K; j++) {
+            BitSet members = new BitSet(V);
+            IntCollection vertexIds = influenceSets.get(j);
+            if (vertexIds != null) {
+                for (var it = vertexIds.iterator(); it.hasNext(); ) {
+                    int idx = graph.internalIndex(it.nextInt());
+                    if (idx >= 0) members.set(idx);
+                }
+            }
+
+            if (!members.isEmpty()) {
+                influence[j] = members;
+                influenceMembers[j] = members.stream().toArray();
+            }
+        }
+
+        final float[][] results = new float[K][];
+        if (V == 0) {
+            Arrays.setAll(results, _ -> new float[0]);
+            return List.of(results);
+        }
+
+        // The scores are interleaved by vertex, with one column per ranking that has not yet
+        // converged.  Converged rankings are removed, so that they don't slow down the others.
+        Batch batch = new Batch(IntStream.range(0, K).toArray(), influence, influenceMembers);
+        float[] cur = new float[V * K];
+        float[] next = new float[V * K];
+
+        Arrays.fill(cur, 1f / V);
+
+        final int partitions = (V + PARTITION_SIZE - 1) / PARTITION_SIZE;
+
+        for (int iteration = 0; iteration < maxIterations && batch.width() > 0; iteration++) {
+            final Batch b = batch;
+            final int width = b.width();
+            final float[][] partitionChange = new float[partitions][width];
+
+            for (int c = 0; c < width; c++) {
+                if (b.influence[c] == null) {
+                    b.base[c] = (float) ((1d - dampingFactor) / V + dampingFactor * danglingSum(cur, width, c) / V);
+                }
+                else {
+                    b.teleport[c] = teleportPersonalized(cur, width, c, b.influenceMembers[c]);
+                }
+            }
+
+            final float[] src = cur;
+            final float[] dst = next;
+
+            pool.submit(() -> IntStream.range(0, partitions).parallel().forEach(p ->
+                    sweep(p * PARTITION_SIZE, Math.min(V, (p + 1) * PARTITION_SIZE), b, src, dst, partitionChange[p])
+            )).join();
+
+            float[] tmp = cur; cur = next; next = tmp;
+
+            BitSet converged = new BitSet(width);
+            for (int c = 0; c < width; c++) {
+                float maxChange = 0f;
+                for (float[] change : partitionChange) {
+                    maxChange = Math.max(maxChange, change[c]);
+                }
+                if (maxChange < tolerance) {
+                    converged.set(c);
+                }
+            }
+
+            if (!converged.isEmpty()) {
+                for (int c = converged.nextSetBit(0); c >= 0; c = converged.nextSetBit(c + 1)) {
+                    results[b.sets[c]] = finish(cur, b, c);
+                }
+
+                batch = b.without(converged);
+                cur = repack(cur, V, width, converged);
+                next = new float[cur.length];
+            }
+        }
+
+        // Rankings that did not converge within the maximum number of iterations
+        for (int c = 0; c < batch.width(); c++) {
+            results[batch.sets[c]] = finish(cur, batch, c);
+        }
+
+        return List.of(results);
+    }
+
+    /** The rankings that are calculated in an iteration */
+    private static class Batch {
+        /** The index of the influence set of each column */
+        final int[] sets;
+        final BitSet[] influence;
+        final int[][] influenceMembers;
+
+        /** Scores given to all vertices in each iteration, in the standard PageRank */
+        final float[] base;
+        /** Scores given to the influence set members in each iteration, in personalized rankings */
+        final float[] teleport;
+
+        private final BitSet[] allInfluence;
+        private final int[][] allInfluenceMembers;
+
+        Batch(int[] sets, BitSet[] allInfluence, int[][] allInfluenceMembers) {
+            this.sets = sets;
+            this.allInfluence = allInfluence;
+            this.allInfluenceMembers = allInfluenceMembers;
+            this.influence = new BitSet[sets.length];
+            this.influenceMembers = new int[sets.length][];
+            for (int c = 0; c < sets.length; c++) {
+                influence[c] = allInfluence[sets[c]];
+                influenceMembers[c] = allInfluenceMembers[sets[c]];
+            }
+            this.base = new float[sets.length];
+            this.teleport = new float[sets.length];
+        }
+
+        int width() {
+            return sets.length;
+        }
+
+        Batch without(BitSet columns) {
+            int[] remaining = IntStream.range(0, sets.length)
+                    .filter(c -> !columns.get(c))
+                    .map(c -> sets[c])
+                    .toArray();
+
+            return new Batch(remaining, allInfluence, allInfluenceMembers);
+        }
+    }
+
+    /** Calculate the next scores of the vertices in [start, end) for all rankings in the batch */
+    private void sweep(int start, int end, Batch batch, float[] cur, float[] next, float[] maxChange) {
+        final int[] inN = graph.inNeighborsArray();
+        final double[] inW = graph.inWeightsArray();
+        final boolean weighted = graph.isWeighted();
+        final float d = (float) dampingFactor;
+        final int K = batch.width();
+
+        final float[] acc = new float[K];
+
+        for (int v = start; v < end; v++) {
+            Arrays.fill(acc, 0f);
+
+            for (int k = graph.inOffset(v), to = graph.inEnd(v); k < to; k++) {
+                int w = inN[k];
+                float c = weighted ? (float) inW[k] * outFactor[w] : outFactor[w];
+                if (c == 0f) continue;
+
+                int wb = w * K;
+                for (int j = 0; j < K; j++) {
+                    acc[j] += c * cur[wb + j];
+                }
+            }
+
+            int vb = v * K;
+            for (int j = 0; j < K; j++) {
+                float newVal = d * acc[j];
+                if (batch.influence[j] == null) newVal += batch.base[j];
+                else if (batch.influence[j].get(v)) newVal += batch.teleport[j];
+
+                float diff = Math.abs(newVal - cur[vb + j]);
+                if (diff > maxChange[j]) maxChange[j] = diff;
+
+                next[vb + j] = newVal;
+            }
+        }
+    }
+
+    /** Extract the final scores of a column */
+    private float[] finish(float[] cur, Batch batch, int column) {
+        int V = graph.size();
+        int K = batch.width();
+
+        float[] scores = new float[V];
+        for (int v = 0; v < V; v++) {
+            scores[v] = cur[v * K + column];
+        }
+
+        // Strip the teleport contribution from the influence set members so
+        // the returned scores describe propagation alone, as in PersonalizedPageRank
+        if (batch.influence[column] != null) {
+            float r = teleportPersonalized(cur, K, column, batch.influenceMembers[column]);
+            for (int v : batch.influenceMembers[column]) {
+                scores[v] -= r;
+            }
+        }
+
+        return scores;
+    }
+
+    /** Copy the interleaved scores, without the removed columns */
+    private static float[] repack(float[] scores, int V, int width, BitSet removed) {
+        int[] kept = IntStream.range(0, width).filter(c -> !removed.get(c)).toArray();
+        int newWidth = kept.length;
+
+        float[] ret = new float[V * newWidth];
+        for (int v = 0; v < V; v++) {
+            for (int c = 0; c < newWidth; c++) {
+                ret[v * newWidth + c] = scores[v * width + kept[c]];
+            }
+        }
+        return ret;
+    }
+
+    private float[] buildOutFactor() {
+        int V = graph.size();
+        float[] factor = new float[V];
+
+        if (graph.isWeighted()) {
+            int[] inN = graph.inNeighborsArray();
+            double[] inW = graph.inWeightsArray();
+            double[] sum = new double[V];
+            for (int v = 0; v < V; v++) {
+                for (int k = graph.inOffset(v), to = graph.inEnd(v); k < to; k++) {
+                    sum[inN[k]] += inW[k];
+                }
+            }
+            for (int v = 0; v < V; v++) {
+                if (sum[v] > 0d) factor[v] = (float) (1d / sum[v]);
+            }
+        }
+        else {
+            for (int v = 0; v < V; v++) {
+                int od = graph.outDegree(v);
+                if (od > 0) factor[v] = 1f / od;
+            }
+        }
+
+        return factor;
+    }
+
+    private double danglingSum(float[] cur, int K, int j) {
+        double sum = 0d;
+        for (int v : danglingVertices) {
+            sum += cur[v * K + j];
+        }
+        return sum;
+    }
+
+    private float teleportPersonalized(float[] cur, int K, int j, int[] members) {
+        double r = 0d;
+        for (int v : members) {
+            if (graph.outDegree(v) > 0) r += (1d - dampingFactor);
+            else r += cur[v * K + j];
+        }
+        return (float) (r / members.length);
+    }
+}
@@ -6,6 +6,7 @@ import nu.marginalia.ranking.domains.accumulator.RankingResultAccumulator;
 import nu.marginalia.domaingraph.DomainGraph;
 import nu.marginalia.domaingraph.GraphSource;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.function.Supplier;
 
@@ -13,20 +14,55 @@ public class PageRankDomainRanker implements RankingAlgorithm {
     private final IntArrayList influenceSet;
     private final DomainGraph graph;
 
+    /** Scores that were calculated in a batch with other rankers, see {@link #forDomainNameSets} */
+    private final float[] precomputedScores;
+
     public PageRankDomainRanker(GraphSource source, List<Integer> influenceSet) {
-        this.influenceSet = new IntArrayList(influenceSet.size());
-        for (Integer id : influenceSet) this.influenceSet.add(id.intValue());
+        this.influenceSet = toIntList(influenceSet);
         this.graph = source.getGraph();
+        this.precomputedScores = null;
+    }
+
+    private PageRankDomainRanker(DomainGraph graph, IntArrayList influenceSet, float[] scores) {
+        this.influenceSet = influenceSet;
+        this.graph = graph;
+        this.precomputedScores = scores;
     }
 
     public static PageRankDomainRanker forDomainNames(GraphSource source, List<String> influenceSet) {
         return new PageRankDomainRanker(source, source.domainIds(influenceSet));
     }
 
+    /** Create rankers for several influence sets over the same graph.  The graph is only
+     * loaded once, and the rankings are calculated together, see {@link BatchedPageRank}.
+     */
+    public static List<PageRankDomainRanker> forDomainNameSets(GraphSource source, List<List<String>> influenceSets) {
+        List<IntArrayList> influenceIds = new ArrayList<>(influenceSets.size());
+        for (var influenceSet : influenceSets) {
+            influenceIds.add(toIntList(source.domainIds(influenceSet)));
+        }
+
+        DomainGraph graph = source.getGraph();
+        List<float[]> scores = new BatchedPageRank(graph).compute(influenceIds);
+
+        List<PageRankDomainRanker> ret = new ArrayList<>(influenceSets.size());
+        for (int i = 0; i < influenceIds.size(); i++) {
+            ret.add(new PageRankDomainRanker(graph, influenceIds.get(i), scores.get(i)));
+        }
+        return ret;
+    }
+
+    private static IntArrayList toIntList(List<Integer> ids) {
+        var ret = new IntArrayList(ids.size());
+        for (Integer id : ids) ret.add(id.intValue());
+        return ret;
+    }
+
     @Override
     public <T> T calculate(int resultCount, Supplier<RankingResultAccumulator<T>> accumulatorSupplier) {
-        var pageRank = new PersonalizedPageRank(graph, influenceSet);
-        double[] scores = pageRank.getScores();
+        float[] scores = precomputedScores != null
+                ? precomputedScores
+                : new BatchedPageRank(graph).compute(List.of(influenceSet)).getFirst();
         int vertexCount = scores.length;
         int topCount = Math.min(resultCount, vertexCount);
 
@@ -36,7 +72,7 @@ public class PageRankDomainRanker implements RankingAlgorithm {
             // To keep allocations down, we can use a bit twiddling trick here.  The bits of a float
             // are such that if we coerce them into an int, equality still holds.  Thus if we tack the
             // score onto the most significant bytes of a long, we can sort the ids without extra allocations.
-            int scoreBits = Float.floatToRawIntBits((float) Math.max(0d, scores[vertexIdx]));
+            int scoreBits = Float.floatToRawIntBits(Math.max(0f, scores[vertexIdx]));
             long entry = ((long) scoreBits << 32) | (vertexIdx & 0xFFFFFFFFL);
 
             if (topEntriesHeap.size() < topCount) {
@@ -12,6 +12,9 @@ import java.util.BitSet;
  * Otherwise the teleport distribution is uniform, recovering standard
  * PageRank.
  *
+ * <p>This is a straightforward single-threaded implementation, which is kept as a reference
+ * for {@link BatchedPageRank}, that the rankers use.
+ *
  * <p>Adapted from the JGraphT {@code PageRank} algorithm (EPL-2.0 / LGPL-2.1-or-later).
  */
 public class PersonalizedPageRank {
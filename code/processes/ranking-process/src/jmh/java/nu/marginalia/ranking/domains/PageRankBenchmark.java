@@ -0,0 +1,141 @@
+package nu.marginalia.ranking.domains;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import nu.marginalia.domaingraph.DomainGraph;
+import nu.marginalia.domaingraph.DomainGraphBuilder;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/** This benchmark compares calculating the rankings of several influence sets one at a time
+ * with PersonalizedPageRank, as the secondary ranking sets used to be, with calculating them
+ * in batches with BatchedPageRank, on a synthetic graph with a power law degree distribution
+ * like that of the link graph. */
+public class PageRankBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class GraphState {
+        @Param({ "1000000" })
+        int vertices;
+
+        /** Out-edges per vertex */
+        @Param({ "8" })
+        int edgesPerVertex;
+
+        @Param({ "8" })
+        int influenceSetCount;
+
+        DomainGraph graph;
+        List<IntList> influenceSets;
+        ForkJoinPool pool;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            Random r = new Random(42);
+
+            // Preferential attachment: each new vertex links to vertices chosen in proportion
+            // to their degree, by picking the endpoint of a random existing edge
+            IntArrayList sources = new IntArrayList(vertices * edgesPerVertex);
+            IntArrayList dests = new IntArrayList(vertices * edgesPerVertex);
+
+            sources.add(1);
+            dests.add(0);
+
+            for (int v = 2; v < vertices; v++) {
+                for (int i = 0; i < edgesPerVertex; i++) {
+                    int e = r.nextInt(sources.size());
+                    int dest = r.nextBoolean() ? sources.getInt(e) : dests.getInt(e);
+
+                    if (dest != v) {
+                        sources.add(v);
+                        dests.add(dest);
+                    }
+                }
+            }
+
+            var builder = DomainGraphBuilder.directed();
+            for (int v = 0; v < vertices; v++) {
+                builder.addVertex(v);
+            }
+
+            graph = builder.build(consumer -> {
+                for (int i = 0; i < sources.size(); i++) {
+                    consumer.accept(sources.getInt(i), dests.getInt(i));
+                }
+            });
+
+            // One standard PageRank, and personalized ones around a handful of random domains each
+            influenceSets = new ArrayList<>();
+            influenceSets.add(IntList.of());
+            while (influenceSets.size() < influenceSetCount) {
+                influenceSets.add(IntList.of(r.ints(5, 0, vertices).toArray()));
+            }
+
+            pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            pool.shutdown();
+        }
+    }
+
+    @Fork(value = 1, warmups = 1, jvmArgsAppend = { "-Xmx8g" })
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public double sequential(GraphState state) {
+        double ret = 0;
+        for (var influenceSet : state.influenceSets) {
+            ret += new PersonalizedPageRank(state.graph, influenceSet).getScores()[0];
+        }
+        return ret;
+    }
+
+    @Fork(value = 1, warmups = 1, jvmArgsAppend = { "-Xmx8g" })
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public double parallelOneAtATime(GraphState state) {
+        var pageRank = new BatchedPageRank(state.graph, state.pool,
+                PersonalizedPageRank.DAMPING_FACTOR_DEFAULT,
+                PersonalizedPageRank.MAX_ITERATIONS_DEFAULT,
+                PersonalizedPageRank.TOLERANCE_DEFAULT,
+                1);
+
+        double ret = 0;
+        for (float[] scores : pageRank.compute(state.influenceSets)) {
+            ret += scores[0];
+        }
+        return ret;
+    }
+
+    @Fork(value = 1, warmups = 1, jvmArgsAppend = { "-Xmx8g" })
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public double parallelBatched(GraphState state) {
+        var pageRank = new BatchedPageRank(state.graph, state.pool,
+                PersonalizedPageRank.DAMPING_FACTOR_DEFAULT,
+                PersonalizedPageRank.MAX_ITERATIONS_DEFAULT,
+                PersonalizedPageRank.TOLERANCE_DEFAULT,
+                state.influenceSetCount);
+
+        double ret = 0;
+        for (float[] scores : pageRank.compute(state.influenceSets)) {
+            ret += scores[0];
+        }
+        return ret;
+    }
+}
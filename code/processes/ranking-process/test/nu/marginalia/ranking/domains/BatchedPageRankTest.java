@@ -0,0 +1,108 @@
+package nu.marginalia.ranking.domains;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import nu.marginalia.domaingraph.DomainGraph;
+import nu.marginalia.domaingraph.DomainGraphBuilder;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class BatchedPageRankTest {
+    static final double DAMPING = 0.85;
+    static final int ITERATIONS = 100;
+    static final double TOLERANCE = 1e-9;
+
+    static final List<IntList> influenceSets = List.of(
+            IntList.of(),
+            IntList.of(1, 2, 3),
+            IntList.of(500),
+            IntList.of(7, 1000, 1500, 1999),
+            IntList.of(-5) // not in the graph, same as the standard PageRank
+    );
+
+    @Test
+    void testDirected() {
+        var graph = powerLawGraph(2000, 4, false);
+        assertSameAsReference(graph, 2);
+    }
+
+    @Test
+    void testWeighted() {
+        var graph = powerLawGraph(2000, 4, true);
+        assertSameAsReference(graph, 16);
+    }
+
+    @Test
+    void testEmptyGraph() {
+        var graph = DomainGraphBuilder.directed().build(_ -> {});
+
+        var scores = new BatchedPageRank(graph).compute(influenceSets);
+
+        assertEquals(influenceSets.size(), scores.size());
+        assertEquals(0, scores.getFirst().length);
+    }
+
+    private void assertSameAsReference(DomainGraph graph, int batchSize) {
+        try (var pool = new ForkJoinPool(4)) {
+            var scores = new BatchedPageRank(graph, pool, DAMPING, ITERATIONS, TOLERANCE, batchSize)
+                    .compute(influenceSets);
+
+            assertEquals(influenceSets.size(), scores.size());
+
+            for (int i = 0; i < influenceSets.size(); i++) {
+                double[] expected = new PersonalizedPageRank(graph, influenceSets.get(i), DAMPING, ITERATIONS, TOLERANCE)
+                        .getScores();
+                float[] actual = scores.get(i);
+
+                assertEquals(expected.length, actual.length);
+                // The scores are summed as floats, so the error grows with the score
+                for (int v = 0; v < expected.length; v++) {
+                    double delta = Math.max(1e-7, Math.abs(expected[v]) * 1e-3);
+                    assertEquals(expected[v], actual[v], delta, "Set " + i + " vertex " + v);
+                }
+            }
+        }
+    }
+
+    /** Create a graph with a power law degree distribution by preferential attachment, where
+     * each new vertex links to m vertices chosen in proportion to their degree */
+    static DomainGraph powerLawGraph(int vertices, int m, boolean weighted) {
+        Random r = new Random(1);
+
+        IntArrayList sources = new IntArrayList();
+        IntArrayList dests = new IntArrayList();
+
+        sources.add(1);
+        dests.add(0);
+
+        for (int v = 2; v < vertices; v++) {
+            for (int i = 0; i < m; i++) {
+                // Picking the endpoint of a random edge picks a vertex in proportion to its degree
+                int e = r.nextInt(sources.size());
+                int dest = r.nextBoolean() ? sources.getInt(e) : dests.getInt(e);
+
+                if (dest != v) {
+                    sources.add(v);
+                    dests.add(dest);
+                }
+            }
+        }
+
+        var builder = weighted ? DomainGraphBuilder.undirectedWeighted() : DomainGraphBuilder.directed();
+        for (int v = 0; v < vertices; v++) {
+            builder.addVertex(v);
+        }
+
+        return builder.build(consumer -> {
+            for (int i = 0; i < sources.size(); i++) {
+                if (weighted) consumer.accept(sources.getInt(i), dests.getInt(i), 1 + (i % 3));
+                else consumer.accept(sources.getInt(i), dests.getInt(i));
+            }
+        });
+    }
+}
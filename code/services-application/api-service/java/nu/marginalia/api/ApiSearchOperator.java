@@ -35,6 +35,7 @@ public class ApiSearchOperator {
                 RpcQueryLimits.newBuilder()
                         .setResultsTotal(Math.min(100, count))
                         .setTimeoutMs(Math.clamp(timeout, 50, 250))
+                        .setPriority(RpcQueryLimits.PRIORITY.API)
                         .build(),
                 cursor);
 
@@ -71,6 +72,7 @@ public class ApiSearchOperator {
                         .setResultsByDomain(Math.clamp(domainCount, 1, 100))
                         .setResultsTotal(Math.min(100, count))
                         .setTimeoutMs(Math.clamp(timeout, 50, 250))
+                        .setPriority(RpcQueryLimits.PRIORITY.API)
                         .build(),
                 page);
 
@@ -107,6 +109,7 @@ public class ApiSearchOperator {
                         .setResultsByDomain(Math.clamp(domainCount, 1, 100))
                         .setResultsTotal(Math.min(100, count))
                         .setTimeoutMs(150)
+                        .setPriority(RpcQueryLimits.PRIORITY.API)
                         .build(),
                 page);
 
@@ -251,6 +251,7 @@ public class ControlNodeActionsService {
 
     private Object triggerLoadSelected(Request request, Response response) throws SQLException {
         int nodeId = Integer.parseInt(request.params("id"));
+        boolean isIncremental = "on".equalsIgnoreCase(request.queryParams("incremental"));
         String[] values = request.queryParamsValues("source");
 
         if (values.length == 0) {
@@ -261,7 +262,12 @@ public class ControlNodeActionsService {
 
         changeActiveStorage(nodeId, FileStorageType.PROCESSED_DATA, ids.toArray(new FileStorageId[0]));
 
-        crawlClient.loadProcessedData(nodeId, ids);
+        if (isIncremental) {
+            crawlClient.loadProcessedDataIncrementally(nodeId, ids);
+        }
+        else {
+            crawlClient.loadProcessedData(nodeId, ids);
+        }
 
         return "";
     }
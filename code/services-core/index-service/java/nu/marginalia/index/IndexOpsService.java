@@ -31,6 +31,11 @@ public class IndexOpsService {
         return run(() -> index.switchIndex(additionalWork)).orElse(false);
     }
 
+    /** @return true if the delta index was switched */
+    public boolean switchDeltaIndex() throws Exception {
+        return run(index::switchDeltaIndex).orElse(false);
+    }
+
 
     @CheckReturnValue
     public <T> Optional<T> run(Callable<T> c) throws Exception {
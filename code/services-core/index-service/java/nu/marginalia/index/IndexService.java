@@ -144,6 +144,15 @@ public class IndexService extends JoobyService {
         return "ok";
     }
 
+    @MqRequest(endpoint = IndexMqEndpoints.SWITCH_DELTA_INDEX)
+    public String switchDeltaIndex(String message) throws Exception {
+        if (!opsService.switchDeltaIndex()) {
+            throw new IllegalStateException("Ops lock busy or delta index switch failed");
+        }
+
+        return "ok";
+    }
+
     public void switchLinkdb() throws Exception {
         logger.info("Switching link databases");
 
@@ -124,6 +124,13 @@ public class CountMinSketch {
     }
 
     public void set(byte[] key) {
+        add(key, 1);
+    }
+
+    /**
+     * Add count occurrences of the key, equivalent to calling set(key) count times.
+     */
+    public void add(byte[] key, int count) {
         // We use the trick mentioned in "Less Hashing, Same Performance: Building a Better Bloom Filter"
         // by Kirsch et.al. From abstract 'only two hash functions are necessary to effectively
         // implement a Bloom filter without any loss in the asymptotic false positive probability'
@@ -142,7 +149,36 @@ public class CountMinSketch {
                 combinedHash = ~combinedHash;
             }
             int pos = combinedHash % w;
-            multiset[i - 1][pos] += 1;
+            multiset[i - 1][pos] += count;
+        }
+    }
+
+    /**
+     * Add count occurrences of the key with a conservative update: each counter of the key is only
+     * raised as far as the new estimate of the key, rather than increased by count.  This gives the
+     * same estimate for the key, with less overestimate for the keys it collides with.  Counts
+     * added this way must not be removed, and sketches built this way may still be merged.
+     */
+    public void addConservative(byte[] key, int count) {
+        long hash64 = Murmur3.hash64(key);
+        int hash1 = (int) hash64;
+        int hash2 = (int) (hash64 >>> 32);
+
+        int[] positions = new int[d];
+        int min = Integer.MAX_VALUE;
+        for (int i = 1; i <= d; i++) {
+            int combinedHash = hash1 + (i * hash2);
+            // hashcode should be positive, flip all the bits if it's negative
+            if (combinedHash < 0) {
+                combinedHash = ~combinedHash;
+            }
+            positions[i - 1] = combinedHash % w;
+            min = Math.min(min, multiset[i - 1][positions[i - 1]]);
+        }
+
+        int estimate = (int) Math.min(Integer.MAX_VALUE, (long) min + count);
+        for (int i = 0; i < d; i++) {
+            multiset[i][positions[i]] = Math.max(multiset[i][positions[i]], estimate);
         }
     }
 
@@ -165,6 +201,14 @@ public class CountMinSketch {
         set(longToByteArrayLE(val));
     }
 
+    public void addLong(long val, int count) {
+        add(longToByteArrayLE(val), count);
+    }
+
+    public void addLongConservative(long val, int count) {
+        addConservative(longToByteArrayLE(val), count);
+    }
+
     public void setFloat(float val) {
         setInt(Float.floatToIntBits(val));
     }
@@ -236,6 +280,9 @@ public class CountMinSketch {
     /**
      * Merge the give count min sketch with current one. Merge will throw RuntimeException if the
      * provided CountMinSketch is not compatible with current one.
+     * <p/>
+     * The width of the provided sketch may also be a divisor of the width of this one, such as a
+     * smaller power of two, in which case it is merged as if it had first been {@link #widen widened}.
      *
      * @param that - the one to be merged
      */
@@ -244,7 +291,7 @@ public class CountMinSketch {
             return;
         }
 
-        if (this.w != that.w) {
+        if (this.w % that.w != 0) {
             throw new RuntimeException("Merge failed! Width of count min sketch do not match!" +
                     "this.width: " + this.getWidth() + " that.width: " + that.getWidth());
         }
@@ -256,9 +303,31 @@ public class CountMinSketch {
 
         for (int i = 0; i < d; i++) {
             for (int j = 0; j < w; j++) {
-                this.multiset[i][j] += that.multiset[i][j];
+                this.multiset[i][j] += that.multiset[i][j % that.w];
+            }
+        }
+    }
+
+    /**
+     * Return a copy of the sketch with the given width, which must be a multiple of the current width.
+     * A key's position in a row is its hash modulo the width, so the counter at position j of the
+     * wider sketch holds the counter at position j % w of this one, and every estimate stays the same.
+     *
+     * @param width - the width of the copy
+     * @return the widened copy
+     */
+    public CountMinSketch widen(int width) {
+        if (width % w != 0) {
+            throw new RuntimeException("Widen failed! Width " + width + " is not a multiple of " + w);
+        }
+
+        int[][] ms = new int[d][width];
+        for (int i = 0; i < d; i++) {
+            for (int j = 0; j < width; j += w) {
+                System.arraycopy(multiset[i], 0, ms[i], j, w);
             }
         }
+        return new CountMinSketch(width, d, ms);
     }
 
     /**